@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.w3c.dom.Document;
+
+/**
+ * Request signing, response parsing and parameter sorting in {@link CSMethod}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CSMethodBenchmark {
+    private CSCloud  provider;
+    private CSMethod method;
+    private Param[]  params;
+    private String   page;
+
+    @Setup
+    public void setUp() throws Exception {
+        List<Param> list = new ArrayList<Param>();
+
+        provider = Fixtures.connect();
+        method = new CSMethod(provider);
+        list.add(new Param("zoneId", "3b1e4bde-c2a0-4b8e-9b1f-4d1cbd3a7e2f"));
+        list.add(new Param("serviceOfferingId", "9a4f7c61-7f3b-4e3a-a0b9-5e0f7b2f7c55"));
+        list.add(new Param("templateId", "c5a1b2d3-4e5f-4a6b-8c7d-9e0f1a2b3c4d"));
+        list.add(new Param("displayName", "benchmark server with spaces"));
+        list.add(new Param("keypair", "benchmark-key"));
+        list.add(new Param("networkIds", "0d9b6a2e-5c4f-4b3a-9e8d-7c6b5a4f3e2d"));
+        for( int i = 0; i < 10; i++ ) {
+            list.add(new Param("tags[" + i + "].key", "key" + i));
+            list.add(new Param("tags[" + i + "].value", "value " + i + " & more"));
+        }
+        Collections.shuffle(list, new Random(42L));
+        params = list.toArray(new Param[list.size()]);
+        page = Fixtures.getPayload("listVirtualMachines", 500);
+    }
+
+    @TearDown
+    public void tearDown() {
+        provider.close();
+    }
+
+    @Benchmark
+    public String buildSignedQuery() throws Exception {
+        return method.buildQuery("deployVirtualMachine", params);
+    }
+
+    @Benchmark
+    public Document parsePage() throws Exception {
+        return method.parseResponse(200, page);
+    }
+
+    @Benchmark
+    public TreeSet<Param> sortParams() {
+        TreeSet<Param> sorted = new TreeSet<Param>();
+
+        Collections.addAll(sorted, params);
+        return sorted;
+    }
+}
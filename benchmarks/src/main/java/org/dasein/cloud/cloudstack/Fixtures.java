@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.Properties;
+
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.cloudstack.sim.CSSimulator;
+import org.w3c.dom.NodeList;
+
+/**
+ * Fixture payloads and providers for the benchmarks. A payload is read from <code>&lt;command&gt;.xml</code> in the
+ * directory named by the <code>cloudstack.fixtures</code> system property when one exists, so responses recorded from
+ * a real cloud can be replayed; otherwise the simulator renders a synthetic page of the requested size.
+ */
+public final class Fixtures {
+    // one day in seconds, far longer than any benchmark run
+    static private final String CACHE_TIMEOUT = "86400";
+
+    static private CSSimulator simulator;
+
+    /**
+     * @param command the listing command
+     * @param size the number of resources in the page
+     * @return the XML response body for one page of the listing
+     * @throws IOException the recorded fixture could not be read
+     */
+    static public @Nonnull String getPayload(@Nonnull String command, int size) throws IOException {
+        String dir = System.getProperty("cloudstack.fixtures");
+
+        if( dir != null ) {
+            File file = new File(dir, command + ".xml");
+
+            if( file.exists() ) {
+                return read(new FileInputStream(file));
+            }
+        }
+        CSSimulator renderer = new CSSimulator();
+
+        renderer.setCount(command, size);
+        return renderer.render(command, 1, size);
+    }
+
+    /**
+     * Connects a provider to a shared simulator so mappers can resolve the lookups they make, such as zones, products
+     * and tags, from a local server. The zone and tag caches are set to outlive any benchmark run. Otherwise a
+     * lookup expiring mid-run would put simulator calls inside the measured operations. Service offerings are already
+     * cached for hours.
+     * @return a connected provider
+     * @throws CloudException the provider could not connect
+     * @throws InternalException an error occurred within Dasein Cloud while connecting
+     * @throws IOException the simulator could not start
+     */
+    static public synchronized @Nonnull CSCloud connect() throws CloudException, InternalException, IOException {
+        if( simulator == null ) {
+            simulator = new CSSimulator();
+            simulator.start();
+        }
+        CSCloud provider = simulator.connect();
+        Properties properties = provider.getContext().getCustomProperties();
+
+        properties.setProperty("zoneCacheTimeout", CACHE_TIMEOUT);
+        properties.setProperty("tagCacheTimeout", CACHE_TIMEOUT);
+        return provider;
+    }
+
+    /**
+     * Parses one page of a listing the way {@link CSMethod} parses live responses.
+     * @param provider the provider to parse with
+     * @param command the listing command
+     * @param element the element holding each resource
+     * @return the resource elements of a 500-element page
+     * @throws Exception the payload could not be loaded or parsed
+     */
+    static public @Nonnull NodeList parse(@Nonnull CSCloud provider, @Nonnull String command, @Nonnull String element) throws Exception {
+        return new CSMethod(provider).parseResponse(200, getPayload(command, 500)).getElementsByTagName(element);
+    }
+
+    static private @Nonnull String read(@Nonnull InputStream input) throws IOException {
+        Reader reader = new InputStreamReader(input, "UTF-8");
+        StringBuilder str = new StringBuilder();
+        char[] buffer = new char[8192];
+        int count;
+
+        try {
+            while( (count = reader.read(buffer)) != -1 ) {
+                str.append(buffer, 0, count);
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return str.toString();
+    }
+
+    private Fixtures() { }
+}
@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack.compute;
+
+import java.util.concurrent.TimeUnit;
+
+import org.dasein.cloud.cloudstack.CSCloud;
+import org.dasein.cloud.cloudstack.CSTagIndex;
+import org.dasein.cloud.cloudstack.Fixtures;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.NodeList;
+
+/**
+ * Maps a 500-element page of virtual machines, volumes and templates. Each benchmark operation maps a whole page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ComputeMapperBenchmark {
+    private CSCloud         provider;
+    private VirtualMachines vmSupport;
+    private Volumes         volumeSupport;
+    private Templates       imageSupport;
+    private NodeList        vms;
+    private NodeList        volumes;
+    private NodeList        templates;
+    private CSTagIndex      vmTags;
+    private CSTagIndex      volumeTags;
+    private CSTagIndex      templateTags;
+
+    @Setup
+    public void setUp() throws Exception {
+        provider = Fixtures.connect();
+        vmSupport = provider.getComputeServices().getVirtualMachineSupport();
+        volumeSupport = provider.getComputeServices().getVolumeSupport();
+        imageSupport = provider.getComputeServices().getImageSupport();
+        vms = Fixtures.parse(provider, "listVirtualMachines", "virtualmachine");
+        volumes = Fixtures.parse(provider, "listVolumes", "volume");
+        templates = Fixtures.parse(provider, "listTemplates", "template");
+        // capture the tag indexes once, as a listing does, and load the zone and product lookups before measuring
+        vmTags = provider.getTagIndex("UserVm");
+        volumeTags = provider.getTagIndex("Volume");
+        templateTags = provider.getTagIndex("Template");
+        for( int i = 0; i < vms.getLength(); i++ ) {
+            vmSupport.toVirtualMachine(vms.item(i), vmTags);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        provider.close();
+    }
+
+    @Benchmark
+    public void toVirtualMachines(Blackhole blackhole) throws Exception {
+        for( int i = 0; i < vms.getLength(); i++ ) {
+            blackhole.consume(vmSupport.toVirtualMachine(vms.item(i), vmTags));
+        }
+    }
+
+    @Benchmark
+    public void toVolumes(Blackhole blackhole) throws Exception {
+        for( int i = 0; i < volumes.getLength(); i++ ) {
+            blackhole.consume(volumeSupport.toVolume(volumes.item(i), false, volumeTags));
+        }
+    }
+
+    @Benchmark
+    public void toImages(Blackhole blackhole) throws Exception {
+        for( int i = 0; i < templates.getLength(); i++ ) {
+            blackhole.consume(imageSupport.toImage(templates.item(i), false, null, templateTags));
+        }
+    }
+}
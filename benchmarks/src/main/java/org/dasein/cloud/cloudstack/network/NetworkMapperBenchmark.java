@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack.network;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.dasein.cloud.cloudstack.CSCloud;
+import org.dasein.cloud.cloudstack.Fixtures;
+import org.dasein.cloud.network.LoadBalancer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.NodeList;
+
+/**
+ * Maps a 500-element page of public IP addresses and load balancer rules. Each benchmark operation maps a whole page.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class NetworkMapperBenchmark {
+    private CSCloud       provider;
+    private IpAddress     addressSupport;
+    private LoadBalancers loadBalancerSupport;
+    private NodeList      addresses;
+    private NodeList      rules;
+
+    @Setup
+    public void setUp() throws Exception {
+        provider = Fixtures.connect();
+        addressSupport = provider.getNetworkServices().getIpAddressSupport();
+        loadBalancerSupport = provider.getNetworkServices().getLoadBalancerSupport();
+        addresses = Fixtures.parse(provider, "listPublicIpAddresses", "publicipaddress");
+        rules = Fixtures.parse(provider, "listLoadBalancerRules", "loadbalancerrule");
+    }
+
+    @TearDown
+    public void tearDown() {
+        provider.close();
+    }
+
+    @Benchmark
+    public void toAddresses(Blackhole blackhole) throws Exception {
+        Map<String,LoadBalancer> loadBalancers = new HashMap<String, LoadBalancer>();
+
+        for( int i = 0; i < addresses.getLength(); i++ ) {
+            blackhole.consume(addressSupport.toAddress(addresses.item(i), loadBalancers));
+        }
+    }
+
+    @Benchmark
+    public Map<String,LoadBalancer> toRules() throws Exception {
+        Map<String,LoadBalancer> loadBalancers = new HashMap<String, LoadBalancer>();
+
+        for( int i = 0; i < rules.getLength(); i++ ) {
+            loadBalancerSupport.toRule(rules.item(i), loadBalancers);
+        }
+        return loadBalancers;
+    }
+}
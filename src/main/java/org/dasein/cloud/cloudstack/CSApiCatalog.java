@@ -0,0 +1,322 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.APITrace;
+import org.dasein.util.CalendarWrapper;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Immutable view of the full <code>listApis</code> catalog available to a single account. The catalog is fetched
+ * once and answers API and parameter support questions locally, instead of probing the cloud one API name at a time.
+ * <p>
+ * If the <code>apiCatalogDirectory</code> custom property is set, the catalog is also persisted to that directory
+ * and reused across process restarts for up to a day. Each file records the endpoint and account it belongs to and is
+ * replaced atomically, so a reader never sees another account's catalog or a partly written one.
+ * </p>
+ */
+public class CSApiCatalog {
+    static private final Logger logger = CSCloud.getLogger(CSApiCatalog.class, "std");
+
+    static public final String LIST_APIS = "listApis";
+
+    static private final long   PERSISTENCE_TIMEOUT = CalendarWrapper.DAY;
+    // API names never contain a dot, so this cannot collide with a catalog entry
+    static private final String KEY_PROPERTY        = "catalog.key";
+
+    static private final CSApiCatalog UNAVAILABLE = new CSApiCatalog(Collections.<String,Set<String>>emptyMap(), false);
+
+    /**
+     * Loads the catalog for the current context of the specified provider, either from the persisted copy or from
+     * the cloud.
+     * @param provider the provider whose context identifies the endpoint and account
+     * @return the catalog for the account, or an unavailable catalog if the cloud does not allow listing its APIs
+     * @throws CloudException an error occurred fetching the catalog from the cloud
+     * @throws InternalException an error occurred within Dasein Cloud while fetching the catalog
+     */
+    static @Nonnull CSApiCatalog load(@Nonnull CSCloud provider) throws CloudException, InternalException {
+        String key = getKey(provider);
+        File file = getPersistentFile(provider, key);
+
+        if( file != null ) {
+            CSApiCatalog catalog = read(file, key);
+
+            if( catalog != null ) {
+                return catalog;
+            }
+        }
+        APITrace.begin(provider, "CSCloud.getApiCatalog");
+        try {
+            Document doc;
+
+            try {
+                doc = new CSMethod(provider).get(LIST_APIS);
+            }
+            catch( CSException e ) {
+                int code = e.getHttpCode();
+
+                if( code == 530 || code == 531 || code == 432 ) {
+                    logger.warn("Unable to list the full API catalog (" + code + "), falling back to per-API checks");
+                    return UNAVAILABLE;
+                }
+                throw e;
+            }
+            if( doc == null ) {
+                logger.warn("No API catalog was returned, falling back to per-API checks");
+                return UNAVAILABLE;
+            }
+            CSApiCatalog catalog = parse(doc);
+
+            if( file != null ) {
+                write(file, key, catalog);
+            }
+            return catalog;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    static @Nonnull CSApiCatalog parse(@Nonnull Document doc) {
+        Map<String,Set<String>> apis = new HashMap<String, Set<String>>();
+        NodeList matches = doc.getElementsByTagName("api");
+
+        for( int i=0; i<matches.getLength(); i++ ) {
+            NodeList attributes = matches.item(i).getChildNodes();
+            Set<String> parameters = new HashSet<String>();
+            String name = null;
+
+            for( int j=0; j<attributes.getLength(); j++ ) {
+                Node attribute = attributes.item(j);
+
+                if( attribute.getNodeName().equalsIgnoreCase("name") ) {
+                    name = CSCloud.getTextValue(attribute);
+                }
+                else if( attribute.getNodeName().equalsIgnoreCase("params") ) {
+                    NodeList parts = attribute.getChildNodes();
+
+                    for( int k=0; k<parts.getLength(); k++ ) {
+                        Node part = parts.item(k);
+
+                        if( part.getNodeName().equalsIgnoreCase("name") ) {
+                            String value = CSCloud.getTextValue(part);
+
+                            if( value != null ) {
+                                parameters.add(value.trim().toLowerCase(Locale.ENGLISH));
+                            }
+                        }
+                    }
+                }
+            }
+            if( name != null ) {
+                apis.put(name.trim().toLowerCase(Locale.ENGLISH), Collections.unmodifiableSet(parameters));
+            }
+        }
+        return new CSApiCatalog(apis, true);
+    }
+
+    static private @Nonnull String getKey(@Nonnull CSCloud provider) {
+        ProviderContext ctx = provider.getContext();
+
+        return (ctx == null ? "" : ctx.getCloud().getEndpoint() + "/" + ctx.getAccountNumber());
+    }
+
+    static private @Nullable File getPersistentFile(@Nonnull CSCloud provider, @Nonnull String key) {
+        ProviderContext ctx = provider.getContext();
+        Properties properties = (ctx == null ? null : ctx.getCustomProperties());
+        String dir = (properties == null ? null : properties.getProperty("apiCatalogDirectory"));
+
+        if( dir == null || dir.trim().length() < 1 ) {
+            return null;
+        }
+        try {
+            StringBuilder name = new StringBuilder("cloudstack-apis-");
+
+            for( byte b : MessageDigest.getInstance("SHA-1").digest(key.getBytes("utf-8")) ) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return new File(dir.trim(), name.append(".properties").toString());
+        }
+        catch( NoSuchAlgorithmException e ) {
+            logger.warn("Unable to name the persisted API catalog: " + e.getMessage());
+        }
+        catch( UnsupportedEncodingException e ) {
+            logger.warn("Unable to name the persisted API catalog: " + e.getMessage());
+        }
+        return null;
+    }
+
+    static private @Nullable CSApiCatalog read(@Nonnull File file, @Nonnull String key) {
+        if( !file.exists() || (System.currentTimeMillis() - file.lastModified()) > PERSISTENCE_TIMEOUT ) {
+            return null;
+        }
+        Properties properties = new Properties();
+
+        try {
+            InputStream input = new FileInputStream(file);
+
+            try {
+                properties.load(input);
+            }
+            finally {
+                input.close();
+            }
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to read persisted API catalog " + file + ": " + e.getMessage());
+            return null;
+        }
+        if( !key.equals(properties.getProperty(KEY_PROPERTY)) ) {
+            logger.warn("Ignoring persisted API catalog " + file + " because it belongs to another endpoint or account");
+            return null;
+        }
+        Map<String,Set<String>> apis = new HashMap<String, Set<String>>();
+
+        for( String name : properties.stringPropertyNames() ) {
+            if( name.equals(KEY_PROPERTY) ) {
+                continue;
+            }
+            String value = properties.getProperty(name);
+            Set<String> parameters = new HashSet<String>();
+
+            if( value != null && value.length() > 0 ) {
+                Collections.addAll(parameters, value.split(","));
+            }
+            apis.put(name, Collections.unmodifiableSet(parameters));
+        }
+        return new CSApiCatalog(apis, true);
+    }
+
+    static private void write(@Nonnull File file, @Nonnull String key, @Nonnull CSApiCatalog catalog) {
+        Properties properties = new Properties();
+
+        properties.setProperty(KEY_PROPERTY, key);
+        for( Map.Entry<String,Set<String>> entry : catalog.apis.entrySet() ) {
+            StringBuilder str = new StringBuilder();
+
+            for( String parameter : entry.getValue() ) {
+                if( str.length() > 0 ) {
+                    str.append(",");
+                }
+                str.append(parameter);
+            }
+            properties.setProperty(entry.getKey(), str.toString());
+        }
+        try {
+            File parent = file.getParentFile();
+
+            if( parent != null && !parent.exists() && !parent.mkdirs() ) {
+                logger.warn("Unable to create API catalog directory " + parent);
+                return;
+            }
+            // write a private copy and rename it into place so concurrent readers never see a partial file
+            File temp = File.createTempFile(file.getName(), ".tmp", parent);
+
+            try {
+                OutputStream output = new FileOutputStream(temp);
+
+                try {
+                    properties.store(output, "CloudStack listApis catalog");
+                }
+                finally {
+                    output.close();
+                }
+                // some platforms refuse to rename over an existing file
+                if( !temp.renameTo(file) && !(file.delete() && temp.renameTo(file)) ) {
+                    logger.warn("Unable to move the persisted API catalog into place at " + file);
+                }
+            }
+            finally {
+                if( temp.exists() && !temp.delete() ) {
+                    temp.deleteOnExit();
+                }
+            }
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to persist API catalog to " + file + ": " + e.getMessage());
+        }
+    }
+
+    private final Map<String,Set<String>> apis;
+    private final boolean                 available;
+
+    private CSApiCatalog(@Nonnull Map<String,Set<String>> apis, boolean available) {
+        this.apis = Collections.unmodifiableMap(apis);
+        this.available = available;
+    }
+
+    /**
+     * @return true if the catalog was actually loaded; an unavailable catalog cannot answer any questions and callers
+     * should fall back to probing individual APIs
+     */
+    public boolean isAvailable() {
+        return available;
+    }
+
+    public boolean hasApi(@Nonnull String name) {
+        return apis.containsKey(name.toLowerCase(Locale.ENGLISH));
+    }
+
+    public boolean supportsParameter(@Nonnull String api, @Nonnull String parameter) {
+        Set<String> parameters = apis.get(api.toLowerCase(Locale.ENGLISH));
+
+        return (parameters != null && parameters.contains(parameter.toLowerCase(Locale.ENGLISH)));
+    }
+
+    public @Nonnull Set<String> getParameters(@Nonnull String api) {
+        Set<String> parameters = apis.get(api.toLowerCase(Locale.ENGLISH));
+
+        return (parameters == null ? Collections.<String>emptySet() : parameters);
+    }
+
+    public int size() {
+        return apis.size();
+    }
+
+    @Override
+    public String toString() {
+        return "CSApiCatalog [" + (available ? apis.size() + " APIs" : "unavailable") + "]";
+    }
+}
@@ -0,0 +1,144 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+
+/**
+ * Result of applying one operation to many resources. Each resource succeeds or fails on its own, so a failure on
+ * one resource never hides the outcome of the others.
+ */
+public class CSBulkResult {
+    /**
+     * The outcome of the operation on a single resource.
+     */
+    static public class Outcome {
+        private final String         resourceId;
+        private final CloudException error;
+
+        Outcome(@Nonnull String resourceId, @Nullable CloudException error) {
+            this.resourceId = resourceId;
+            this.error = error;
+        }
+
+        public @Nonnull String getResourceId() {
+            return resourceId;
+        }
+
+        public @Nullable CloudException getError() {
+            return error;
+        }
+
+        public boolean isSuccessful() {
+            return (error == null);
+        }
+
+        @Override
+        public String toString() {
+            return resourceId + " " + (error == null ? "succeeded" : "failed: " + error.getMessage());
+        }
+    }
+
+    private final String              operation;
+    private final Map<String,Outcome> outcomes = new LinkedHashMap<String, Outcome>();
+
+    public CSBulkResult(@Nonnull String operation) {
+        this.operation = operation;
+    }
+
+    /**
+     * Records the outcome for a resource, replacing any earlier outcome for the same resource.
+     * @param resourceId the resource ID
+     * @param error the error, or null if the operation succeeded
+     */
+    public synchronized void add(@Nonnull String resourceId, @Nullable CloudException error) {
+        outcomes.put(resourceId, new Outcome(resourceId, error));
+    }
+
+    public @Nonnull String getOperation() {
+        return operation;
+    }
+
+    /**
+     * @param resourceId the resource ID
+     * @return the outcome for the resource, or null if the resource was not part of the operation
+     */
+    public synchronized @Nullable Outcome getOutcome(@Nonnull String resourceId) {
+        return outcomes.get(resourceId);
+    }
+
+    /**
+     * @return the outcome for each resource, in the order the resources were submitted
+     */
+    public synchronized @Nonnull List<Outcome> getOutcomes() {
+        return new ArrayList<Outcome>(outcomes.values());
+    }
+
+    public synchronized @Nonnull List<String> getFailedResourceIds() {
+        List<String> ids = new ArrayList<String>();
+
+        for( Outcome outcome : outcomes.values() ) {
+            if( !outcome.isSuccessful() ) {
+                ids.add(outcome.getResourceId());
+            }
+        }
+        return ids;
+    }
+
+    public boolean isSuccessful() {
+        return getFailedResourceIds().isEmpty();
+    }
+
+    /**
+     * Turns any per-resource failures into an exception for callers that treat the operation as all-or-nothing.
+     * @throws CloudException the operation failed for one or more resources; the first failure is the cause
+     */
+    public void checkSuccess() throws CloudException {
+        CloudException first = null;
+        int failed = 0, total;
+
+        synchronized( this ) {
+            total = outcomes.size();
+            for( Outcome outcome : outcomes.values() ) {
+                if( !outcome.isSuccessful() ) {
+                    if( first == null ) {
+                        first = outcome.getError();
+                    }
+                    failed++;
+                }
+            }
+        }
+        if( failed > 0 ) {
+            throw new CloudException(operation + " failed for " + failed + " of " + total + " resource(s): " + (first == null ? "unknown error" : first.getMessage()), first);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return operation + " [" + getOutcomes().size() + " resource(s), " + getFailedResourceIds().size() + " failed]";
+    }
+}
@@ -0,0 +1,332 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.util.CalendarWrapper;
+
+/**
+ * Optional background warmer for the static CloudStack catalogs (zones, service offerings, disk offerings,
+ * hypervisors and OS types). When the <code>cacheWarmer</code> custom property is <code>true</code>, the catalogs
+ * for a context are loaded as soon as the context is first used and reloaded at about 80% of their cache lifetime,
+ * so foreground calls find them warm.
+ * <p>
+ * Refreshes run on a single process-wide scheduler with <code>cacheWarmerThreads</code> threads (default 2), and each
+ * catalog is warmed at most once per endpoint, region or account regardless of how many contexts share it. Schedules
+ * are jittered so that many catalogs with the same lifetime do not expire at once. Every provider using a catalog is
+ * registered with its task, and the catalog is warmed for as long as one of them remains open. Tasks hold providers
+ * only weakly, so a provider that is discarded without being closed stops counting once it is garbage collected.
+ * </p>
+ */
+public class CSCacheWarmer {
+    static private final Logger logger = CSCloud.getLogger(CSCacheWarmer.class, "std");
+
+    static private final int    DEFAULT_THREADS  = 2;
+    static private final double REFRESH_FRACTION = 0.8;
+    static private final double JITTER_FRACTION  = 0.1;
+    static private final long   START_JITTER     = CalendarWrapper.SECOND * 5L;
+    static private final long   RETRY_DELAY      = CalendarWrapper.MINUTE;
+
+    /**
+     * The catalogs kept warm, along with the scope at which each one is shared and its cache lifetime.
+     */
+    static enum Catalog {
+        ZONES(true, true) {
+            long getTimeout(@Nonnull ProviderContext ctx) { return CSZoneCatalog.getTimeout(ctx); }
+            void refresh(@Nonnull CSCloud provider) throws CloudException, InternalException { CSZoneCatalog.refresh(provider); }
+        },
+        SERVICE_OFFERINGS(false, true) {
+            long getTimeout(@Nonnull ProviderContext ctx) { return CalendarWrapper.HOUR * 4L; }
+            void refresh(@Nonnull CSCloud provider) throws CloudException, InternalException { provider.getComputeServices().getVirtualMachineSupport().refreshProducts(); }
+        },
+        DISK_OFFERINGS(false, true) {
+            long getTimeout(@Nonnull ProviderContext ctx) { return CalendarWrapper.HOUR * 4L; }
+            void refresh(@Nonnull CSCloud provider) throws CloudException, InternalException { provider.getComputeServices().getVolumeSupport().refreshVolumeProducts(); }
+        },
+        HYPERVISORS(false, false) {
+            long getTimeout(@Nonnull ProviderContext ctx) { return CalendarWrapper.DAY; }
+            void refresh(@Nonnull CSCloud provider) throws CloudException, InternalException { provider.refreshZoneHypervisors(); }
+        },
+        OS_TYPES(true, false) {
+            long getTimeout(@Nonnull ProviderContext ctx) { return CalendarWrapper.DAY; }
+            void refresh(@Nonnull CSCloud provider) throws CloudException, InternalException { provider.getComputeServices().getImageSupport().refreshOsTypes(); }
+        };
+
+        private final boolean cloudWide;
+        private final boolean perAccount;
+
+        Catalog(boolean cloudWide, boolean perAccount) {
+            this.cloudWide = cloudWide;
+            this.perAccount = perAccount;
+        }
+
+        abstract long getTimeout(@Nonnull ProviderContext ctx);
+
+        abstract void refresh(@Nonnull CSCloud provider) throws CloudException, InternalException;
+
+        @Nullable String getKey(@Nonnull ProviderContext ctx) {
+            StringBuilder key = new StringBuilder();
+
+            key.append(name()).append("/").append(ctx.getCloud().getEndpoint());
+            if( !cloudWide ) {
+                if( ctx.getRegionId() == null ) {
+                    return null;
+                }
+                key.append("/").append(ctx.getRegionId());
+            }
+            if( perAccount ) {
+                key.append("/").append(ctx.getAccountNumber());
+            }
+            return key.toString();
+        }
+    }
+
+    static private final ConcurrentHashMap<String,Task> tasks  = new ConcurrentHashMap<String, Task>();
+    static private final Random                         random = new Random();
+
+    static private ScheduledThreadPoolExecutor executor;
+
+    /**
+     * @param ctx the context to check
+     * @return true if the context asks for its catalogs to be kept warm
+     */
+    static public boolean isEnabled(@Nullable ProviderContext ctx) {
+        Properties properties = (ctx == null ? null : ctx.getCustomProperties());
+
+        return (properties != null && "true".equalsIgnoreCase(properties.getProperty("cacheWarmer")));
+    }
+
+    /**
+     * Registers the provider with the task for every catalog used by its current context, starting the tasks for
+     * catalogs that are not already being warmed.
+     * @param provider the provider whose context should be kept warm
+     */
+    static public void start(@Nonnull CSCloud provider) {
+        ProviderContext ctx = provider.getContext();
+
+        if( !isEnabled(ctx) ) {
+            return;
+        }
+        ScheduledThreadPoolExecutor scheduler = getExecutor(ctx);
+
+        for( Catalog catalog : Catalog.values() ) {
+            String key = catalog.getKey(ctx);
+
+            if( key == null ) {
+                continue;
+            }
+            while( true ) {
+                Task task = tasks.get(key);
+
+                if( task == null ) {
+                    task = new Task(key, catalog, scheduler);
+                    task.register(provider);
+                    if( tasks.putIfAbsent(key, task) == null ) {
+                        if( logger.isDebugEnabled() ) {
+                            logger.debug("Warming " + key);
+                        }
+                        task.schedule(jitter(START_JITTER));
+                        break;
+                    }
+                }
+                else if( task.register(provider) ) {
+                    break;
+                }
+                // otherwise the task was cancelled as its last provider went away; start a new one
+            }
+        }
+    }
+
+    /**
+     * Unregisters the provider from every catalog it was keeping warm. A catalog stops being warmed once no other
+     * open provider is registered for it.
+     * @param provider the provider being closed
+     */
+    static public void stop(@Nonnull CSCloud provider) {
+        for( Task task : tasks.values() ) {
+            task.unregister(provider);
+        }
+    }
+
+    static private synchronized @Nonnull ScheduledThreadPoolExecutor getExecutor(@Nonnull ProviderContext ctx) {
+        if( executor == null ) {
+            Properties properties = ctx.getCustomProperties();
+            String value = (properties == null ? null : properties.getProperty("cacheWarmerThreads"));
+            int threads = DEFAULT_THREADS;
+
+            if( value != null ) {
+                try {
+                    threads = Math.max(1, Integer.parseInt(value.trim()));
+                }
+                catch( NumberFormatException e ) {
+                    logger.warn("Invalid value for cacheWarmerThreads: " + value);
+                }
+            }
+            final AtomicInteger count = new AtomicInteger(0);
+
+            executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+                @Override
+                public Thread newThread(@Nonnull Runnable r) {
+                    Thread t = new Thread(r);
+
+                    t.setName("CloudStack cache warmer " + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    static private long jitter(long range) {
+        synchronized( random ) {
+            return (long)(random.nextDouble() * range);
+        }
+    }
+
+    static private long getRefreshDelay(long timeout) {
+        long jitter = (long)(timeout * JITTER_FRACTION);
+
+        return Math.max(CalendarWrapper.SECOND, (long)(timeout * REFRESH_FRACTION) - jitter(jitter));
+    }
+
+    static private class Task implements Runnable {
+        private final String                        key;
+        private final Catalog                       catalog;
+        private final ScheduledThreadPoolExecutor   scheduler;
+        private final List<WeakReference<CSCloud>>  providers = new ArrayList<WeakReference<CSCloud>>();
+        private volatile ScheduledFuture<?>         future;
+        private volatile boolean                    cancelled;
+
+        Task(@Nonnull String key, @Nonnull Catalog catalog, @Nonnull ScheduledThreadPoolExecutor scheduler) {
+            this.key = key;
+            this.catalog = catalog;
+            this.scheduler = scheduler;
+        }
+
+        /**
+         * @param provider a provider using this catalog
+         * @return false if the task has already been cancelled and can no longer take registrations
+         */
+        synchronized boolean register(@Nonnull CSCloud provider) {
+            if( cancelled ) {
+                return false;
+            }
+            for( WeakReference<CSCloud> ref : providers ) {
+                if( ref.get() == provider ) {
+                    return true;
+                }
+            }
+            providers.add(new WeakReference<CSCloud>(provider));
+            return true;
+        }
+
+        synchronized void unregister(@Nonnull CSCloud provider) {
+            Iterator<WeakReference<CSCloud>> it = providers.iterator();
+
+            while( it.hasNext() ) {
+                if( it.next().get() == provider ) {
+                    it.remove();
+                }
+            }
+            getProvider();
+        }
+
+        /**
+         * Drops providers that have been collected or lost their context, and cancels the task if none remain.
+         * @return a provider still using this catalog, or null if the task has been cancelled
+         */
+        synchronized @Nullable CSCloud getProvider() {
+            Iterator<WeakReference<CSCloud>> it = providers.iterator();
+            CSCloud provider = null;
+
+            while( it.hasNext() ) {
+                CSCloud p = it.next().get();
+
+                if( p == null || p.getContext() == null ) {
+                    it.remove();
+                }
+                else if( provider == null ) {
+                    provider = p;
+                }
+            }
+            if( provider == null && !cancelled ) {
+                cancel();
+            }
+            return provider;
+        }
+
+        void schedule(long delay) {
+            if( !cancelled ) {
+                future = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void cancel() {
+            ScheduledFuture<?> f = future;
+
+            cancelled = true;
+            tasks.remove(key, this);
+            if( f != null ) {
+                f.cancel(false);
+            }
+            if( logger.isDebugEnabled() ) {
+                logger.debug("Stopped warming " + key);
+            }
+        }
+
+        @Override
+        public void run() {
+            CSCloud provider = (cancelled ? null : getProvider());
+
+            if( provider == null ) {
+                return;
+            }
+            try {
+                catalog.refresh(provider);
+                schedule(getRefreshDelay(catalog.getTimeout(provider.getContext())));
+            }
+            catch( Throwable t ) {
+                logger.warn("Unable to warm " + key + ": " + t.getMessage());
+                schedule(RETRY_DELAY + jitter(RETRY_DELAY));
+            }
+        }
+    }
+
+    private CSCacheWarmer() { }
+}
@@ -23,10 +23,24 @@ import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.dasein.cloud.AbstractCloud;
@@ -43,6 +57,7 @@ import org.dasein.cloud.storage.StorageServices;
 import org.dasein.cloud.util.APITrace;
 import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
+import org.dasein.util.CalendarWrapper;
 import org.dasein.util.uom.time.Day;
 import org.dasein.util.uom.time.TimePeriod;
 import org.dasein.util.uom.time.TimePeriodUnit;
@@ -55,11 +70,23 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Dasein Cloud provider for CloudStack. A connected instance is safe for use by any number of threads at once, and
+ * sharing one instance per context is preferred to creating one per thread, since the task executor, the catalogs
+ * and the caches are all kept per provider or per endpoint.
+ * <p>
+ * The service objects it hands out are cheap and hold no mutable state besides their capabilities, which are
+ * immutable once built and published through volatile fields. Lazily computed values such as the service provider
+ * and version may be computed more than once under contention but always to the same result. Shared catalogs are
+ * loaded once per key while readers of a loaded catalog never block.
+ * <p>
+ * The provider context itself is not copied, so it must not be changed while the provider is in use.
+ */
 public class CSCloud extends AbstractCloud {
     static private final Logger logger = getLogger(CSCloud.class, "std");
     static public final String LIST_ACCOUNTS = "listAccounts";
     static private final String LIST_HYPERVISORS = "listHypervisors";
-    static private final String LIST_TAGS = "listTags";
+    static public final String LIST_TAGS = "listTags";
     static private final String CREATE_TAGS = "createTags";
     static private final String DELETE_TAGS = "deleteTags";
 
@@ -87,6 +114,16 @@ public class CSCloud extends AbstractCloud {
         return Logger.getLogger("dasein.cloud.cloudstack." + type + "." + pkg + getLastItem(cls.getName()));
     }
     
+    static private final int DEFAULT_TAG_CHUNK_LENGTH        = 20000;
+    static private final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+    // below this many resources, reading each resource's tags costs less than sweeping every tag of the type
+    static private final int TAG_SWEEP_THRESHOLD             = 20;
+
+    static private final ThreadLocal<Boolean> taskThread = new ThreadLocal<Boolean>();
+
+    private final AtomicBoolean      warming = new AtomicBoolean(false);
+    private volatile ExecutorService taskExecutor;
+
     public CSCloud() { }
     
     @Override
@@ -111,13 +148,29 @@ public class CSCloud extends AbstractCloud {
         );
     }
     
+    @Override
+    public void close() {
+        if( warming.compareAndSet(true, false) ) {
+            CSCacheWarmer.stop(this);
+        }
+        synchronized( this ) {
+            if( taskExecutor != null ) {
+                taskExecutor.shutdown();
+                taskExecutor = null;
+            }
+        }
+        super.close();
+    }
+
     @Override
     public @Nonnull CSComputeServices getComputeServices() {
+        startCacheWarmer();
         return new CSComputeServices(this);
     }
     
     @Override
     public @Nonnull CSTopology getDataCenterServices() {
+        startCacheWarmer();
         return new CSTopology(this);
     }
     
@@ -149,9 +202,11 @@ public class CSCloud extends AbstractCloud {
         return name;
     }
 
-    private transient CSServiceProvider serviceProvider;
+    private transient volatile CSServiceProvider serviceProvider;
 
     public CSServiceProvider getServiceProvider() {
+        CSServiceProvider serviceProvider = this.serviceProvider;
+
         if( serviceProvider == null ) {
             String pn = getProviderName();
 
@@ -169,80 +224,68 @@ public class CSCloud extends AbstractCloud {
             else {
                 serviceProvider = CSServiceProvider.INTERNAL;
             }
+            this.serviceProvider = serviceProvider;
         }
         return serviceProvider;
     }
 
-    private transient String versionString;
-
+    /**
+     * Provides the version string reported by the management server. The value is shared across every context and
+     * account using the same endpoint through {@link CSVersionRegistry}.
+     * @return the CloudStack version string, such as 4.2.1
+     * @throws CloudException the version could not be determined
+     */
     public @Nonnull String getVersionString() throws CloudException {
         APITrace.begin(this, "CSCloud.getVersionString");
-        if( versionString == null ) {
-            //run list zone query to check whether this might be v4
-            try {
-                CSMethod method = new CSMethod(this);
-                Document doc = method.get("listZones", new Param("available", "true"));
-                NodeList meta = doc.getElementsByTagName("listzonesresponse");
-                for (int item = 0; item<meta.getLength(); item++) {
-                    Node node = meta.item(item);
-                    versionString = node.getAttributes().getNamedItem("cloud-stack-version").getNodeValue();
-                }
-            }
-            catch (Throwable e) {
-                throw new CloudException("Unable to get CloudStack version for "+getCloudName(), e);
-            }
-            finally {
-                APITrace.end();
+        try {
+            String v = CSVersionRegistry.getEntry(this).getVersionString();
+
+            if( v == null ) {
+                throw new CloudException("No CloudStack version was provided by " + getCloudName());
             }
+            return v;
+        }
+        catch( CloudException e ) {
+            throw e;
+        }
+        catch( Throwable e ) {
+            throw new CloudException("Unable to get CloudStack version for "+getCloudName(), e);
+        }
+        finally {
+            APITrace.end();
         }
-        return versionString;
     }
 
-    private transient CSVersion version;
-
     public @Nonnull
     CSVersion getVersion() {
-        APITrace.begin(this, "CSCloud.getVersion");
-        if( version == null ) {
-            ProviderContext ctx = getContext();
-            Properties properties = (ctx == null ? null : ctx.getCustomProperties());
-            String versionString;
-
-            if (properties == null || properties.getProperty("apiVersion") == null || properties.getProperty("apiVersion").equals("")) {
-               //run list zone query to check whether this might be v4
-                try {
-                    CSMethod method = new CSMethod(this);
-                    Document doc = method.get("listZones", new Param("available", "true"));
-                    NodeList meta = doc.getElementsByTagName("listzonesresponse");
-                    for (int item = 0; item<meta.getLength(); item++) {
-                        Node node = meta.item(item);
-                        String v = node.getAttributes().getNamedItem("cloud-stack-version").getNodeValue();
-                        if (v.startsWith("4")) {
-                            if (properties == null) {
-                                properties = new Properties();
-                            }
-                            properties.setProperty("apiVersion", "CS4");
-                            logger.info("Version property not found so setting based on result of query: "+v);
-                            version = CSVersion.CS4;
-                            return version;
-                        }
-                    }
-                }
-                catch (Throwable ignore) {}
-                finally {
-                    APITrace.end();
-                }
-            }
+        ProviderContext ctx = getContext();
+        Properties properties = (ctx == null ? null : ctx.getCustomProperties());
+        String versionString = (properties == null ? null : properties.getProperty("apiVersion"));
 
-            versionString = (properties == null ? "CS3" : properties.getProperty("apiVersion", "CS3"));
+        if( versionString == null || versionString.equals("") ) {
+            APITrace.begin(this, "CSCloud.getVersion");
             try {
-                version = CSVersion.valueOf(versionString);
+                CSVersion version = CSVersionRegistry.getEntry(this).getVersion();
+
+                if( logger.isDebugEnabled() ) {
+                    logger.debug("Version property not found so using detected version: " + version);
+                }
+                return version;
             }
-            catch( Throwable t ) {
-                version = CSVersion.CS3;
+            catch( Throwable ignore ) {
+                // the registry remembers the failure briefly, so this fallback does not retry on every call
+                return CSVersion.CS3;
             }
+            finally {
+                APITrace.end();
+            }
+        }
+        try {
+            return CSVersion.valueOf(versionString);
+        }
+        catch( Throwable t ) {
+            return CSVersion.CS3;
         }
-        return version;
     }
 
     private boolean isSubscribed() throws CloudException, InternalException {
@@ -352,6 +395,16 @@ public class CSCloud extends AbstractCloud {
         }        
     }
     
+    /**
+     * Registers this provider's catalogs with the background cache warmer the first time the provider is used, if the
+     * <code>cacheWarmer</code> custom property is enabled.
+     */
+    private void startCacheWarmer() {
+        if( CSCacheWarmer.isEnabled(getContext()) && warming.compareAndSet(false, true) ) {
+            CSCacheWarmer.start(this);
+        }
+    }
+
     @Override
     public @Nullable String testContext() {
         APITrace.begin(this, "testContext");
@@ -407,156 +460,53 @@ public class CSCloud extends AbstractCloud {
             APITrace.end();
         }
     }
-
-    private boolean isSubscribed() throws CloudException, InternalException {
-        APITrace.begin(this, "CSCloud.isSubscribed");
-        try {
-            CSMethod method = new CSMethod(this);
-
-            try {
-                Document doc = method.get(method.buildUrl(LIST_ACCOUNTS), LIST_ACCOUNTS);
-                NodeList matches = doc.getElementsByTagName("user");
-
-                if( matches.getLength() < 1 ) {
-                    return false;
-                }
-                String ctxKey = null;
-                try {
-                    ctxKey = new String(getContext().getAccessPublic(), "utf-8");
-                }
-                catch( UnsupportedEncodingException e ) {
-                    e.printStackTrace();
-                    throw new RuntimeException("This cannot happen: " + e.getMessage());
-                }
-
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    boolean found = false;
-                    String account = null;
-                    Node node = matches.item(i);
-                    NodeList attributes = node.getChildNodes();
-
-                    for (int j = 0; j<attributes.getLength(); j++) {
-                        Node attribute = attributes.item(j);
-                        String name = attribute.getNodeName().toLowerCase();
-                        String value;
-
-                        if( attribute.getChildNodes().getLength() > 0 ) {
-                            value = attribute.getFirstChild().getNodeValue();
-                        }
-                        else {
-                            value = null;
-                        }
-                        if (name.equals("apikey")) {
-                            if (value.equals(ctxKey)) {
-                                found = true;
-                                continue;
-                            }
-                        }
-                        else  if (name.equals("account")) {
-                            account = value;
-                        }
-                    }
-                    if (found) {
-                        getContext().setAccountNumber(account);
-                        return true;
-                    }
-                }
-                logger.debug("No match to api key found");
-                return false;
-            }
-            catch( CSException e ) {
-                int code = e.getHttpCode();
-
-                if( code == HttpServletResponse.SC_FORBIDDEN || code == 401 || code == 531 ) {
-                    return false;
-                }
-                throw e;
-            }
-            catch( CloudException e ) {
-                int code = e.getHttpCode();
-
-                if( code == HttpServletResponse.SC_FORBIDDEN || code == HttpServletResponse.SC_UNAUTHORIZED ) {
-                    return false;
-                }
-                throw e;
-            }
-        }
-        finally {
-            APITrace.end();
-        }
-    }
     
     public Document waitForJob(Document doc, String jobName) throws CloudException, InternalException {
-        NodeList matches = doc.getElementsByTagName("jobid");
-        if( matches.getLength() > 0 ) {
-            return waitForJob(matches.item(0).getFirstChild().getNodeValue(), jobName);
+        String jobId = CSJobTracker.getJobId(doc);
+
+        if( jobId != null ) {
+            return waitForJob(jobId, jobName);
         }    
         return null;
     }
     
     public Document waitForJob(String jobId, String jobName) throws CloudException, InternalException {
+        CSMethod method = new CSMethod(this);
+        String endpoint = method.buildApiUrl();
+
         APITrace.begin(this, "waitForJob");
+        long started = System.nanoTime();
+        CloudException error = null;
+        boolean failed = true;
+
         try {
-            CSMethod method = new CSMethod(this);
+            long pollInterval = CSJobTracker.getPollInterval(getContext());
+
             while( true ) {
-                try { Thread.sleep(5000L); }
+                try { Thread.sleep(pollInterval); }
                 catch( InterruptedException e ) { /* ignore */ }
-                Document doc = method.get("queryAsyncJobResult", new Param("jobId", jobId));
-
-                NodeList matches = doc.getElementsByTagName("jobstatus");
-                int status = 0;
+                Document doc = CSJobTracker.getResult(method.get(CSJobTracker.QUERY_ASYNC_JOB_RESULT, new Param("jobId", jobId)), jobName);
 
-                if( matches.getLength() > 0 ) {
-                    status = Integer.parseInt(matches.item(0).getFirstChild().getNodeValue());
-                }
-                if( status > 0 ) {
-                    int code = status;
-
-                    if( status == 1 ) {
-                        return doc;
-                    }
-                    if( status == 2 ) {
-                        matches = doc.getElementsByTagName("jobresult");
-                        if( matches.getLength() > 0 ) {
-                            String str = matches.item(0).getFirstChild().getNodeValue();
-
-                            if( str == null || str.trim().length() < 1 ) {
-                                NodeList nodes = matches.item(0).getChildNodes();
-                                String message = null;
-
-                                for( int i=0; i<nodes.getLength(); i++ ) {
-                                    Node n = nodes.item(i);
-
-                                    if( n.getNodeName().equalsIgnoreCase("errorcode") ) {
-                                        try {
-                                            code = Integer.parseInt(n.getFirstChild().getNodeValue().trim());
-                                        }
-                                        catch( NumberFormatException ignore ) {
-                                            // ignore
-                                        }
-                                    }
-                                    else if( n.getNodeName().equalsIgnoreCase("errortext") ) {
-                                        message = n.getFirstChild().getNodeValue().trim();
-                                    }
-                                }
-                                CSMethod.ParsedError error = new CSMethod.ParsedError();
-
-                                error.code = code;
-                                error.message = message;
-                                throw new CSException(error);
-                            }
-                            else {
-                                throw new CloudException(str);
-                            }
-                        }
-                        else {
-                            throw new CloudException(jobName + " failed with an unexplained error.");
-                        }
-                    }
+                if( doc != null ) {
+                    failed = false;
+                    return doc;
                 }
             }
         }
+        catch( CloudException e ) {
+            error = e;
+            throw e;
+        }
         finally {
+            long waited = System.nanoTime() - started;
+
+            CSMetrics.getInstance().recordJob(endpoint, waited, failed);
+            if( failed ) {
+                CSMethod.fireJobComplete(this, jobId, jobName, waited, error == null ? new CloudException(jobName + " was not completed") : error);
+            }
+            else {
+                CSMethod.fireJobComplete(this, jobId, jobName, waited, null);
+            }
             APITrace.end();
         }
     }
@@ -578,7 +528,31 @@ public class CSCloud extends AbstractCloud {
         return getUserAccountData().isAdmin();
     }
 
+    /**
+     * Provides the full catalog of APIs available to the current account. The catalog is fetched with a single
+     * <code>listApis</code> call and cached for the account.
+     * @return the API catalog; check {@link CSApiCatalog#isAvailable()} as some clouds refuse to list all APIs
+     * @throws CloudException an error occurred fetching the catalog from the cloud
+     * @throws InternalException an error occurred within Dasein Cloud while fetching the catalog
+     */
+    public @Nonnull CSApiCatalog getApiCatalog() throws CloudException, InternalException {
+        return CSSharedCache.get(this, "apiCatalog", CSApiCatalog.class, CacheLevel.CLOUD_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY), new CSSharedCache.Loader<CSApiCatalog>() {
+            @Override
+            public @Nonnull Collection<CSApiCatalog> load() throws CloudException, InternalException {
+                return Collections.singleton(CSApiCatalog.load(CSCloud.this));
+            }
+        }).iterator().next();
+    }
+
     public boolean hasApi(@Nullable String callName) throws CloudException, InternalException {
+        if( callName == null ) {
+            return false;
+        }
+        CSApiCatalog catalog = getApiCatalog();
+
+        if( catalog.isAvailable() ) {
+            return catalog.hasApi(callName);
+        }
         Cache<Boolean> cache = Cache.getInstance(this, "api."+callName, Boolean.class, CacheLevel.CLOUD_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY));
         Iterable<Boolean> cachedValues = cache.get(getContext());
         if( cachedValues != null && cachedValues.iterator().hasNext() ) {
@@ -603,16 +577,33 @@ public class CSCloud extends AbstractCloud {
 
     }
 
+    /**
+     * Checks whether the specified API accepts the named parameter, answered locally from the API catalog.
+     * @param callName the API to check
+     * @param parameter the parameter name (case insensitive)
+     * @return true if the parameter is supported, false if it is not or if the catalog is unavailable
+     * @throws CloudException an error occurred fetching the catalog from the cloud
+     * @throws InternalException an error occurred within Dasein Cloud while fetching the catalog
+     */
+    public boolean hasApiParameter(@Nonnull String callName, @Nonnull String parameter) throws CloudException, InternalException {
+        CSApiCatalog catalog = getApiCatalog();
+
+        return (catalog.isAvailable() && catalog.supportsParameter(callName, parameter));
+    }
+
     private @Nonnull AccountData getUserAccountData() throws CloudException, InternalException {
+        // loaded once per account even when many threads ask at once
+        return CSSharedCache.get(this, "account", AccountData.class, CacheLevel.CLOUD_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY), new CSSharedCache.Loader<AccountData>() {
+            @Override
+            public @Nonnull Collection<AccountData> load() throws CloudException, InternalException {
+                return Collections.singleton(loadUserAccountData());
+            }
+        }).iterator().next();
+    }
+
+    private @Nonnull AccountData loadUserAccountData() throws CloudException, InternalException {
         AccountData data = null;
-        Cache<AccountData> cache = Cache.getInstance(this, "account", AccountData.class, CacheLevel.CLOUD_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY));
-        Iterable<AccountData> cachedValues = cache.get(getContext());
-        if( cachedValues != null && cachedValues.iterator().hasNext() ) {
-            data = cachedValues.iterator().next();
-        }
-        if( data != null ) {
-            return data;
-        }
+
         APITrace.begin(this, "getUserAccountData");
 
         try {
@@ -681,21 +672,18 @@ public class CSCloud extends AbstractCloud {
         finally {
             APITrace.end();
         }
-        if( data != null ) {
-            cache.put(getContext(), Arrays.asList(data));
-        }
-        else {
+        if( data == null ) {
             throw new InternalException("Unable to find user account for name " + getContext().getAccountNumber());
         }
         return data;
     }
 
-    public class AccountData {
-        private String  accountId;
-        private String  parentAccount;
-        private String  username;
-        private String  domainId;
-        private boolean admin;
+    static public class AccountData {
+        private final String  accountId;
+        private final String  parentAccount;
+        private final String  username;
+        private final String  domainId;
+        private final boolean admin;
 
         public AccountData(String username, String accountId, String parentAccount, String domainId, boolean admin) {
             this.username = username;
@@ -739,6 +727,27 @@ public class CSCloud extends AbstractCloud {
         return node.getFirstChild().getNodeValue();
     }
 
+    /**
+     * Provides the tag index for a resource type ahead of decorating a listing, so every resource in the listing is
+     * decorated from one <code>listTags</code> sweep. The listing should hold on to the returned index for its whole
+     * run rather than look it up per resource. Because tags are only decoration, a failure is logged and leaves the
+     * resources with just the tags embedded in the list response.
+     * @param resourceType the CloudStack resource type
+     * @return the tag index, or null if it could not be loaded
+     */
+    public @Nullable CSTagIndex getTagIndex(@Nonnull String resourceType) {
+        try {
+            return CSTagIndex.getInstance(this, resourceType);
+        }
+        catch( CloudException e ) {
+            logger.warn("Unable to load " + resourceType + " tags: " + e.getMessage());
+        }
+        catch( InternalException e ) {
+            logger.warn("Unable to load " + resourceType + " tags: " + e.getMessage());
+        }
+        return null;
+    }
+
     /**
      * Returns the boolean value of the given node.
      *
@@ -754,129 +763,420 @@ public class CSCloud extends AbstractCloud {
         if( ctx == null ) {
             throw new CloudException("No context was set for this request");
         }
-        String cacheName = "hypervisorCache";
-        Cache<String> hypervisorCache = Cache.getInstance(this, cacheName, String.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY));
+        List<String> zoneHypervisors = new ArrayList<String>();
 
-        List<String> zoneHypervisors = Iterables.toList(hypervisorCache.get(ctx));
-        if( zoneHypervisors != null ) {
-            return zoneHypervisors;
+        for( String hypervisor : CSSharedCache.get(this, "hypervisorCache", String.class, CacheLevel.REGION, new TimePeriod<Day>(1, TimePeriod.DAY), new HypervisorLoader()) ) {
+            zoneHypervisors.add(hypervisor);
         }
-        try {
-            Document doc = new CSMethod(this).get(LIST_HYPERVISORS, new Param("zoneid", ctx.getRegionId()));
+        return zoneHypervisors;
+    }
+
+    /**
+     * Reloads the shared hypervisor list for the current region, regardless of its current age.
+     * @throws CloudException an error occurred loading the hypervisors from the cloud
+     * @throws InternalException an error occurred within Dasein Cloud while loading the hypervisors
+     */
+    public void refreshZoneHypervisors() throws CloudException, InternalException {
+        CSSharedCache.refresh(this, "hypervisorCache", String.class, CacheLevel.REGION, new TimePeriod<Day>(1, TimePeriod.DAY), new HypervisorLoader());
+    }
+
+    private class HypervisorLoader implements CSSharedCache.Loader<String> {
+        @Override
+        public @Nonnull Collection<String> load() throws CloudException, InternalException {
+            Document doc = new CSMethod(CSCloud.this).get(LIST_HYPERVISORS, new Param("zoneid", getContext().getRegionId()));
             NodeList nodes = doc.getElementsByTagName("name");
-            zoneHypervisors = new ArrayList<String>();
+            List<String> zoneHypervisors = new ArrayList<String>();
+
             for( int i = 0; i < nodes.getLength(); i++ ) {
                 Node item = nodes.item(i);
                 zoneHypervisors.add(item.getFirstChild().getNodeValue().trim());
             }
-            hypervisorCache.put(ctx, zoneHypervisors);
             return zoneHypervisors;
         }
+    }
+
+    /**
+     * Creates the specified tags on every listed resource. Large resource sets are split into chunks that fit in a
+     * single request, the chunks are submitted concurrently on the {@link #getTaskExecutor() task executor}, and their
+     * jobs are waited on together.
+     * @param resIds the resources to tag
+     * @param resourceType the CloudStack resource type
+     * @param keyValuePairs the tags to create; tags without a value are skipped, and if none has a value every chunk
+     * fails without being submitted
+     * @return the per-chunk result of the operation
+     * @throws InternalException an error occurred within Dasein Cloud while tagging
+     * @throws CloudException an error occurred tagging the resources
+     */
+    public @Nonnull CSTagResult createTags(@Nonnull String[] resIds, @Nonnull String resourceType, Tag... keyValuePairs) throws InternalException, CloudException {
+        APITrace.begin(this, "Cloud.createTags");
+        try {
+            CSTagResult result = submitTags(CREATE_TAGS, "Create Tags", resIds, resourceType, keyValuePairs);
+
+            logFailures(result, resourceType);
+            return result;
+        }
         finally {
+            APITrace.end();
         }
     }
 
-    public @Nullable void createTags(@Nonnull String[] resIds, @Nonnull String resourceType, Tag... keyValuePairs) throws InternalException, CloudException {
-        APITrace.begin(this, "Cloud.createTags");
+    public @Nonnull CSTagResult updateTags(@Nonnull String[] resIds, String resourceType, Tag... keyValuePairs) throws InternalException, CloudException {
+        APITrace.begin(this, "Cloud.updateTags");
         try {
-            try {
-                String resourceIds = "";
-                for( String resId : resIds ) {
-                    resourceIds += resId + ",";
-                }
-                if( resourceIds.endsWith(",") ) {
-                    resourceIds = resourceIds.substring(0, resourceIds.length() - 1);
+            // Group the resources by the existing tags that are about to be replaced so each group is removed in bulk
+            Map<String,List<String>> groups = new LinkedHashMap<String, List<String>>();
+            Map<String,Tag[]> groupTags = new HashMap<String, Tag[]>();
+            // the existing tags must be read fresh: a few resources one at a time, many with one fresh sweep
+            CSTagIndex index = (resIds.length > TAG_SWEEP_THRESHOLD ? CSTagIndex.refresh(this, resourceType) : null);
+
+            for( String resId : resIds ) {
+                Map<String,String> existing = (index == null ? CSTagIndex.fetchTags(this, resourceType, resId) : index.getTags(resId));
+                List<Tag> tags = new ArrayList<Tag>();
+                StringBuilder key = new StringBuilder();
+
+                for( Tag update : keyValuePairs ) {
+                    String value = existing.get(update.getKey());
+
+                    if( value != null ) {
+                        tags.add(new Tag(update.getKey(), value));
+                        key.append(update.getKey()).append('=').append(value).append('\n');
+                    }
                 }
-                List<Param> params = new ArrayList<Param>();
-                params.add(new Param("resourceids", resourceIds));
-                params.add(new Param("resourcetype", resourceType));
-                for( int i = 0; i < keyValuePairs.length; i++ ) {
-                    // Tag value can't be null or ""
-                    if( keyValuePairs[i].getValue() != null && !keyValuePairs[i].getValue().equals("") ) {
-                        params.add(new Param("tags[" + i + "].key", keyValuePairs[i].getKey()));
-                        params.add(new Param("tags[" + i + "].value", keyValuePairs[i].getValue()));
+                if( tags.size() > 0 ) {
+                    List<String> ids = groups.get(key.toString());
+
+                    if( ids == null ) {
+                        ids = new ArrayList<String>();
+                        groups.put(key.toString(), ids);
+                        groupTags.put(key.toString(), tags.toArray(new Tag[tags.size()]));
                     }
+                    ids.add(resId);
                 }
-                Document doc = new CSMethod(this).get(CREATE_TAGS, params);
-                waitForJob(doc, "Create Tags");
             }
-            catch( CloudException e ) {
-                logger.error("Error while creating tags for " + resourceType + " - ", e);
+            CSTagResult result = new CSTagResult("Update Tags");
+
+            for( Map.Entry<String,List<String>> group : groups.entrySet() ) {
+                result.addAll(removeTags(group.getValue().toArray(new String[group.getValue().size()]), resourceType, groupTags.get(group.getKey())));
             }
+            result.addAll(createTags(resIds, resourceType, keyValuePairs));
+            return result;
         }
         finally {
             APITrace.end();
         }
     }
 
-    public @Nullable void updateTags(@Nonnull String[] resIds, String resourceType, Tag... keyValuePairs) throws InternalException, CloudException {
-        APITrace.begin(this, "Cloud.updateTags");
+    /**
+     * Removes the specified tags from every listed resource, chunked and submitted like
+     * {@link #createTags(String[], String, Tag...)}.
+     * @param vmIds the resources to untag
+     * @param resourceType the CloudStack resource type
+     * @param keyValuePairs the tags to remove, or none to remove every tag; tags without a value are skipped, and if
+     * none has a value every chunk fails without being submitted
+     * @return the per-chunk result of the operation
+     * @throws InternalException an error occurred within Dasein Cloud while untagging
+     * @throws CloudException an error occurred untagging the resources
+     */
+    public @Nonnull CSTagResult removeTags(@Nonnull String[] vmIds, String resourceType, Tag... keyValuePairs) throws InternalException, CloudException {
+        APITrace.begin(this, "Cloud.removeTags");
         try {
-            try {
-                // List and remove existing tags to update the values
-                for( String resId : resIds ) {
-                    Tag[] tagList = getTags(resId);
-                    if( tagList.length > 0 ) {
-                        List<Tag> tags = new ArrayList<Tag>();
-                        // New tags to update
-                        for( int i = 0; i < keyValuePairs.length; i++ ) {
-                            // Existing tags
-                            for( int k = 0; k < tagList.length; k++ ) {
-                                if( keyValuePairs[i].getKey().equals(tagList[k].getKey()) ) {
-                                    if( tagList[k].getValue() != null ) {
-                                        tags.add(new Tag(tagList[k].getKey(), tagList[k].getValue()));
-                                    }
-                                }
-                            }
-                        }
-                        if( tags.size() > 0 ) {
-                            removeTags(new String[]{ resId }, resourceType, tags.toArray(new Tag[tags.size()]));
-                        }
-                    }
+            CSTagResult result = submitTags(DELETE_TAGS, "Delete Tags", vmIds, resourceType, keyValuePairs);
+
+            logFailures(result, resourceType);
+            return result;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    private void logFailures(@Nonnull CSTagResult result, @Nonnull String resourceType) {
+        for( CSTagResult.Chunk chunk : result.getFailedChunks() ) {
+            logger.error("Error while tagging " + chunk.getResourceIds().size() + " " + resourceType + " resource(s) - ", chunk.getError());
+        }
+    }
+
+    /**
+     * Creates a possibly different set of tags on each listed resource. Resources sharing the same tags are tagged in
+     * bulk, and the jobs for every group are submitted concurrently and waited on together.
+     * @param tagsByResource the tags to create, keyed by resource ID
+     * @param resourceType the CloudStack resource type
+     * @return the per-chunk result of the operation
+     * @throws InternalException an error occurred within Dasein Cloud while tagging
+     * @throws CloudException an error occurred tagging the resources
+     */
+    public @Nonnull CSTagResult createTags(@Nonnull Map<String,Tag[]> tagsByResource, @Nonnull String resourceType) throws InternalException, CloudException {
+        APITrace.begin(this, "Cloud.createTags");
+        try {
+            Map<String,List<String>> groups = new LinkedHashMap<String, List<String>>();
+            Map<String,Tag[]> groupTags = new HashMap<String, Tag[]>();
+
+            for( Map.Entry<String,Tag[]> entry : tagsByResource.entrySet() ) {
+                StringBuilder key = new StringBuilder();
+
+                for( Tag tag : entry.getValue() ) {
+                    key.append(tag.getKey()).append('=').append(tag.getValue()).append('\n');
+                }
+                List<String> ids = groups.get(key.toString());
+
+                if( ids == null ) {
+                    ids = new ArrayList<String>();
+                    groups.put(key.toString(), ids);
+                    groupTags.put(key.toString(), entry.getValue());
                 }
-                // Update tags
-                createTags(resIds, resourceType, keyValuePairs);
+                ids.add(entry.getKey());
             }
-            catch( CloudException e ) {
-                logger.error("Error while updating tags for " + resourceType + " - ", e);
+            List<TagGroup> tagGroups = new ArrayList<TagGroup>();
+
+            for( Map.Entry<String,List<String>> group : groups.entrySet() ) {
+                tagGroups.add(new TagGroup(group.getValue().toArray(new String[group.getValue().size()]), groupTags.get(group.getKey())));
             }
+            CSTagResult result = submitTags(CREATE_TAGS, "Create Tags", resourceType, tagGroups);
+
+            logFailures(result, resourceType);
+            return result;
         }
         finally {
             APITrace.end();
         }
     }
 
-    public @Nullable void removeTags(@Nonnull String[] vmIds, String resourceType, Tag... keyValuePairs) throws InternalException, CloudException {
-        APITrace.begin(this, "Cloud.removeTags");
-        try {
-            String resourceIds = "";
-            try {
-                for( String vmId : vmIds ) {
-                    resourceIds += vmId + ",";
+    static private class TagGroup {
+        final String[] resourceIds;
+        final Tag[]    tags;
+
+        TagGroup(@Nonnull String[] resourceIds, @Nonnull Tag[] tags) {
+            this.resourceIds = resourceIds;
+            this.tags = tags;
+        }
+    }
+
+    private @Nonnull CSTagResult submitTags(@Nonnull String command, @Nonnull String jobName, @Nonnull String[] resourceIds, @Nonnull String resourceType, @Nonnull Tag[] tags) throws InternalException, CloudException {
+        return submitTags(command, jobName, resourceType, Collections.singletonList(new TagGroup(resourceIds, tags)));
+    }
+
+    private @Nonnull CSTagResult submitTags(@Nonnull final String command, @Nonnull final String jobName, @Nonnull final String resourceType, @Nonnull List<TagGroup> groups) throws InternalException, CloudException {
+        CSTagResult result = new CSTagResult(jobName);
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        List<TagGroup> chunkGroups = new ArrayList<TagGroup>();
+        List<Future<String>> submissions = new ArrayList<Future<String>>();
+        int chunkLength = getTagChunkLength();
+
+        for( TagGroup group : groups ) {
+            if( group.resourceIds.length < 1 ) {
+                continue;
+            }
+            final List<Param> tagParams = new ArrayList<Param>();
+
+            for( int i = 0; i < group.tags.length; i++ ) {
+                // Tag value can't be null or ""
+                if( group.tags[i].getValue() != null && !group.tags[i].getValue().equals("") ) {
+                    tagParams.add(new Param("tags[" + i + "].key", group.tags[i].getKey()));
+                    tagParams.add(new Param("tags[" + i + "].value", group.tags[i].getValue()));
                 }
-                if( resourceIds.endsWith(",") ) {
-                    resourceIds = resourceIds.substring(0, resourceIds.length() - 1);
+            }
+            if( tagParams.isEmpty() && group.tags.length > 0 ) {
+                // without any tags[] CloudStack would delete every tag on the resources, so fail the group instead
+                for( List<String> chunk : toChunks(group.resourceIds, chunkLength) ) {
+                    result.add(new CSTagResult.Chunk(chunk, new CloudException("None of the " + group.tags.length + " tag(s) has a value")));
                 }
-                List<Param> params = new ArrayList<Param>();
-                params.add(new Param("resourceids", resourceIds));
-                params.add(new Param("resourcetype", resourceType));
-                for( int i = 0; i < keyValuePairs.length; i++ ) {
-                    // Tag value can't be null or ""
-                    if( keyValuePairs[i].getValue() != null && !keyValuePairs[i].getValue().equals("") ) {
-                        params.add(new Param("tags[" + i + "].key", keyValuePairs[i].getKey()));
-                        params.add(new Param("tags[" + i + "].value", keyValuePairs[i].getValue()));
+                continue;
+            }
+            for( final List<String> chunk : toChunks(group.resourceIds, chunkLength) ) {
+                chunks.add(chunk);
+                chunkGroups.add(group);
+                submissions.add(submitTask(new Callable<String>() {
+                    @Override
+                    public String call() throws Exception {
+                        List<Param> params = new ArrayList<Param>();
+
+                        params.add(new Param("resourceids", join(chunk)));
+                        params.add(new Param("resourcetype", resourceType));
+                        params.addAll(tagParams);
+                        return CSJobTracker.getJobId(new CSMethod(CSCloud.this).get(command, params));
                     }
+                }));
+            }
+        }
+        if( chunks.isEmpty() ) {
+            return result;
+        }
+        CSJobTracker tracker = new CSJobTracker(this);
+        Map<String,Integer> chunksByJob = new HashMap<String, Integer>();
+        List<CSTagResult.Chunk> results = new ArrayList<CSTagResult.Chunk>();
+
+        for( int i = 0; i < chunks.size(); i++ ) {
+            List<String> chunk = chunks.get(i);
+
+            results.add(null);
+            try {
+                String jobId = submissions.get(i).get();
+
+                if( jobId == null ) {
+                    results.set(i, new CSTagResult.Chunk(chunk, null));
+                }
+                else {
+                    chunksByJob.put(jobId, i);
+                    tracker.track(jobId, jobName);
                 }
-                Document doc = new CSMethod(this).get(DELETE_TAGS, params);
-                waitForJob(doc, "Delete Tags");
             }
-            catch( CloudException e ) {
-                logger.error("Error while removing tags for " + resourceType + " - ", e);
+            catch( ExecutionException e ) {
+                Throwable cause = e.getCause();
+
+                results.set(i, new CSTagResult.Chunk(chunk, cause instanceof CloudException ? (CloudException)cause : new CloudException(cause)));
+            }
+            catch( InterruptedException e ) {
+                throw new InternalException(e);
             }
         }
-        finally {
-            APITrace.end();
+        for( CSJobTracker.Outcome outcome : tracker.waitForAll(CalendarWrapper.MINUTE * 30L).values() ) {
+            int i = chunksByJob.get(outcome.getJobId());
+
+            results.set(i, new CSTagResult.Chunk(chunks.get(i), outcome.getError()));
+        }
+        for( int i = 0; i < results.size(); i++ ) {
+            CSTagResult.Chunk chunk = results.get(i);
+
+            result.add(chunk);
+            if( chunk.isSuccessful() ) {
+                String[] ids = chunk.getResourceIds().toArray(new String[chunk.getResourceIds().size()]);
+
+                if( command.equals(CREATE_TAGS) ) {
+                    CSTagIndex.tagsCreated(this, resourceType, ids, chunkGroups.get(i).tags);
+                }
+                else {
+                    CSTagIndex.tagsRemoved(this, resourceType, ids, chunkGroups.get(i).tags);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Splits resource IDs into chunks whose comma-separated form stays within the specified length.
+     * @param resourceIds the resource IDs to split
+     * @param maxLength the maximum length of a single chunk's <code>resourceids</code> value
+     * @return the chunks, each holding at least one resource ID
+     */
+    static @Nonnull List<List<String>> toChunks(@Nonnull String[] resourceIds, int maxLength) {
+        List<List<String>> chunks = new ArrayList<List<String>>();
+        List<String> current = new ArrayList<String>();
+        int length = 0;
+
+        for( String id : resourceIds ) {
+            int added = (current.isEmpty() ? id.length() : id.length() + 1);
+
+            if( !current.isEmpty() && length + added > maxLength ) {
+                chunks.add(current);
+                current = new ArrayList<String>();
+                added = id.length();
+                length = 0;
+            }
+            current.add(id);
+            length += added;
+        }
+        if( !current.isEmpty() ) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
+
+    static private @Nonnull String join(@Nonnull List<String> ids) {
+        StringBuilder str = new StringBuilder();
+
+        for( String id : ids ) {
+            if( str.length() > 0 ) {
+                str.append(",");
+            }
+            str.append(id);
+        }
+        return str.toString();
+    }
+
+    private int getTagChunkLength() {
+        return getIntProperty("tagChunkLength", DEFAULT_TAG_CHUNK_LENGTH);
+    }
+
+    private int getIntProperty(@Nonnull String name, int defaultValue) {
+        ProviderContext ctx = getContext();
+        Properties properties = (ctx == null ? null : ctx.getCustomProperties());
+        String value = (properties == null ? null : properties.getProperty(name));
+
+        if( value != null ) {
+            try {
+                return Integer.parseInt(value.trim());
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Invalid value for " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * Provides the bounded executor used to run independent CloudStack calls for this provider concurrently. Its size
+     * is set by the <code>maxConcurrentRequests</code> custom property (default 4); idle threads time out, and the
+     * executor is shut down when the provider is closed.
+     * @return the task executor for this provider
+     */
+    public @Nonnull ExecutorService getTaskExecutor() {
+        ExecutorService current = taskExecutor;
+
+        if( current != null ) {
+            return current;
+        }
+        synchronized( this ) {
+            if( taskExecutor != null ) {
+                return taskExecutor;
+            }
+            int threads = Math.max(1, getIntProperty("maxConcurrentRequests", DEFAULT_MAX_CONCURRENT_REQUESTS));
+            final AtomicInteger count = new AtomicInteger(0);
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(@Nonnull final Runnable r) {
+                    Thread t = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            taskThread.set(Boolean.TRUE);
+                            r.run();
+                        }
+                    });
+
+                    t.setName("CloudStack request " + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+            executor.allowCoreThreadTimeOut(true);
+            taskExecutor = executor;
+            return executor;
+        }
+    }
+
+    /**
+     * @return true if the current thread belongs to a provider's task executor, where blocking on other tasks could
+     * exhaust the pool
+     */
+    public boolean isTaskThread() {
+        return Boolean.TRUE.equals(taskThread.get());
+    }
+
+    /**
+     * Runs a task on the {@link #getTaskExecutor() task executor}. Tasks submitted from a thread that already belongs
+     * to the executor run inline instead, so nested bulk operations cannot exhaust the bounded pool and deadlock.
+     * @param task the task to run
+     * @param <T> the type of the task result
+     * @return the future result of the task
+     */
+    public @Nonnull <T> Future<T> submitTask(@Nonnull Callable<T> task) {
+        if( isTaskThread() ) {
+            FutureTask<T> future = new FutureTask<T>(task);
+
+            future.run();
+            return future;
         }
+        return getTaskExecutor().submit(task);
     }
 
     public @Nullable Tag[] getTags(@Nonnull String resourceId) throws InternalException, CloudException {
@@ -904,40 +1204,22 @@ public class CSCloud extends AbstractCloud {
     }
 
     /**
-     * Returns the boolean value of the given node.
-     *
-     * @param node the node to extract the value from
-     * @return the boolean value of the node
+     * Reads the current tags on a resource directly from the cloud with a <code>listTags</code> call for that resource
+     * alone.
+     * @param resourceId the resource ID
+     * @param resourceType the CloudStack resource type
+     * @return the tags on the resource
+     * @throws InternalException an error occurred within Dasein Cloud while loading the tags
+     * @throws CloudException an error occurred loading the tags from the cloud
      */
-    static public boolean getBooleanValue( Node node ) {
-        return Boolean.valueOf(getTextValue(node));
-    }
+    public @Nonnull Tag[] getTags(@Nonnull String resourceId, @Nonnull String resourceType) throws InternalException, CloudException {
+        Map<String,String> map = CSTagIndex.fetchTags(this, resourceType, resourceId);
+        List<Tag> tags = new ArrayList<Tag>();
 
-    public @Nonnull List<String> getZoneHypervisors(String regionId) throws CloudException, InternalException {
-        ProviderContext ctx = getContext();
-        if( ctx == null ) {
-            throw new CloudException("No context was set for this request");
-        }
-        String cacheName = "hypervisorCache";
-        Cache<String> hypervisorCache = Cache.getInstance(this, cacheName, String.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY));
-
-        List<String> zoneHypervisors = Iterables.toList(hypervisorCache.get(ctx));
-        if( zoneHypervisors != null ) {
-            return zoneHypervisors;
-        }
-        try {
-            CSMethod method = new CSMethod(this);
-            Document doc = method.get(method.buildUrl(LIST_HYPERVISORS, new Param("zoneid", ctx.getRegionId())), LIST_HYPERVISORS);
-            NodeList nodes = doc.getElementsByTagName("name");
-            zoneHypervisors = new ArrayList<String>();
-            for( int i=0; i< nodes.getLength(); i++ ) {
-                Node item = nodes.item(i);
-                zoneHypervisors.add(item.getFirstChild().getNodeValue().trim());
-            }
-            hypervisorCache.put(ctx, zoneHypervisors);
-            return zoneHypervisors;
-        } finally {
+        for( Map.Entry<String,String> entry : map.entrySet() ) {
+            tags.add(new Tag(entry.getKey(), entry.getValue()));
         }
+        return tags.toArray(new Tag[tags.size()]);
     }
 
 }
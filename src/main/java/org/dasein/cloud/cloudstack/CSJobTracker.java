@@ -0,0 +1,361 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.APITrace;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Waits on any number of CloudStack async jobs together. All pending jobs are checked in one polling loop, with the
+ * status queries of each round spread over the provider's task executor, so waiting on a batch of jobs takes about as
+ * long as its slowest job instead of the sum of all of them. Jobs are polled every <code>jobPollInterval</code>
+ * milliseconds (default 5000).
+ */
+public class CSJobTracker {
+    static private final Logger logger = CSCloud.getLogger(CSJobTracker.class, "std");
+
+    static public final String QUERY_ASYNC_JOB_RESULT = "queryAsyncJobResult";
+
+    static private final long DEFAULT_POLL_INTERVAL = 5000L;
+
+    /**
+     * @param ctx the context whose custom properties may set <code>jobPollInterval</code>
+     * @return the number of milliseconds to wait between two status queries of the same job
+     */
+    static public long getPollInterval(@Nullable ProviderContext ctx) {
+        Properties properties = (ctx == null ? null : ctx.getCustomProperties());
+        String value = (properties == null ? null : properties.getProperty("jobPollInterval"));
+
+        if( value != null ) {
+            try {
+                long interval = Long.parseLong(value.trim());
+
+                if( interval >= 0L ) {
+                    return interval;
+                }
+            }
+            catch( NumberFormatException ignore ) {
+                // fall through to the warning
+            }
+            logger.warn("Invalid value for jobPollInterval: " + value);
+        }
+        return DEFAULT_POLL_INTERVAL;
+    }
+
+    /**
+     * The final state of a single tracked job.
+     */
+    static public class Outcome {
+        private final String         jobId;
+        private final String         jobName;
+        private final Document       result;
+        private final CloudException error;
+        private final boolean        timedOut;
+
+        Outcome(@Nonnull String jobId, @Nonnull String jobName, @Nullable Document result, @Nullable CloudException error, boolean timedOut) {
+            this.jobId = jobId;
+            this.jobName = jobName;
+            this.result = result;
+            this.error = error;
+            this.timedOut = timedOut;
+        }
+
+        public @Nonnull String getJobId() {
+            return jobId;
+        }
+
+        public @Nonnull String getJobName() {
+            return jobName;
+        }
+
+        public @Nullable Document getResult() {
+            return result;
+        }
+
+        public @Nullable CloudException getError() {
+            return error;
+        }
+
+        public boolean isSuccessful() {
+            return (error == null);
+        }
+
+        /**
+         * @return true if the job was still running when the wait timed out, so it may yet complete in the cloud
+         */
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        @Override
+        public String toString() {
+            return jobName + " [" + jobId + "] " + (error == null ? "succeeded" : "failed: " + error.getMessage());
+        }
+    }
+
+    /**
+     * Extracts the ID of the async job started by a CloudStack call.
+     * @param doc the response to the call that started the job
+     * @return the job ID, or null if the call did not start a job
+     */
+    static public @Nullable String getJobId(@Nonnull Document doc) {
+        NodeList matches = doc.getElementsByTagName("jobid");
+
+        if( matches.getLength() > 0 && matches.item(0).hasChildNodes() ) {
+            return matches.item(0).getFirstChild().getNodeValue();
+        }
+        return null;
+    }
+
+    /**
+     * Interprets a <code>queryAsyncJobResult</code> response.
+     * @param doc the response to <code>queryAsyncJobResult</code>
+     * @param jobName a description of the job for error messages
+     * @return the response if the job completed successfully, or null if it is still pending
+     * @throws CloudException the job failed
+     */
+    static @Nullable Document getResult(@Nonnull Document doc, @Nonnull String jobName) throws CloudException {
+        NodeList matches = doc.getElementsByTagName("jobstatus");
+        int status = 0;
+
+        if( matches.getLength() > 0 ) {
+            status = Integer.parseInt(matches.item(0).getFirstChild().getNodeValue());
+        }
+        if( status < 1 ) {
+            return null;
+        }
+        int code = status;
+
+        if( status == 1 ) {
+            return doc;
+        }
+        matches = doc.getElementsByTagName("jobresult");
+        if( matches.getLength() > 0 ) {
+            String str = matches.item(0).getFirstChild().getNodeValue();
+
+            if( str == null || str.trim().length() < 1 ) {
+                NodeList nodes = matches.item(0).getChildNodes();
+                String message = null;
+
+                for( int i=0; i<nodes.getLength(); i++ ) {
+                    Node n = nodes.item(i);
+
+                    if( n.getNodeName().equalsIgnoreCase("errorcode") ) {
+                        try {
+                            code = Integer.parseInt(n.getFirstChild().getNodeValue().trim());
+                        }
+                        catch( NumberFormatException ignore ) {
+                            // ignore
+                        }
+                    }
+                    else if( n.getNodeName().equalsIgnoreCase("errortext") ) {
+                        message = n.getFirstChild().getNodeValue().trim();
+                    }
+                }
+                CSMethod.ParsedError error = new CSMethod.ParsedError();
+
+                error.code = code;
+                error.message = message;
+                throw new CSException(error);
+            }
+            else {
+                throw new CloudException(str);
+            }
+        }
+        throw new CloudException(jobName + " failed with an unexplained error.");
+    }
+
+    private final CSCloud            provider;
+    private final Map<String,String> pending = new LinkedHashMap<String, String>();
+
+    public CSJobTracker(@Nonnull CSCloud provider) {
+        this.provider = provider;
+    }
+
+    /**
+     * Adds a job to the set of jobs being waited on.
+     * @param jobId the async job ID
+     * @param jobName a description of the job for error messages
+     */
+    public synchronized void track(@Nonnull String jobId, @Nonnull String jobName) {
+        pending.put(jobId, jobName);
+    }
+
+    /**
+     * @return the number of jobs still being waited on
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Polls every pending job until all of them complete or the timeout passes. Only a job that CloudStack reports as
+     * failed is reported as failed. An error polling a job, such as a dropped connection, is logged and that job is
+     * polled again in the next round. Jobs still running at the timeout are reported as failed and
+     * {@link Outcome#isTimedOut() timed out}, with the last polling error if there was one. If the waiting thread is
+     * interrupted, the remaining jobs are reported the same way and the interrupt flag is restored.
+     * @param timeout the maximum time to wait in milliseconds
+     * @return the outcome of each tracked job, keyed by job ID in the order the jobs were added
+     * @throws InternalException an error occurred within Dasein Cloud while polling the jobs
+     */
+    public @Nonnull Map<String,Outcome> waitForAll(long timeout) throws InternalException {
+        APITrace.begin(provider, "waitForJobs");
+        try {
+            Map<String,Outcome> outcomes = new LinkedHashMap<String, Outcome>();
+            Map<String,Throwable> pollErrors = new HashMap<String, Throwable>();
+            long deadline = System.currentTimeMillis() + timeout;
+            long started = System.nanoTime();
+            final CSMethod method = new CSMethod(provider);
+            ProviderContext ctx = provider.getContext();
+            String endpoint = (ctx == null ? "" : CSMethod.getApiUrl(ctx));
+            long pollInterval = getPollInterval(ctx);
+
+            while( true ) {
+                Map<String,String> jobs;
+
+                synchronized( this ) {
+                    jobs = new LinkedHashMap<String, String>(pending);
+                }
+                if( jobs.isEmpty() ) {
+                    return outcomes;
+                }
+                if( System.currentTimeMillis() >= deadline ) {
+                    giveUp(jobs, pollErrors, outcomes, endpoint, started, "did not complete in time");
+                    return outcomes;
+                }
+                try {
+                    Thread.sleep(pollInterval);
+                }
+                catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    giveUp(jobs, pollErrors, outcomes, endpoint, started, "was not waited on because the wait was interrupted");
+                    return outcomes;
+                }
+                Map<String,Future<Document>> polls = new LinkedHashMap<String, Future<Document>>();
+
+                for( final Map.Entry<String,String> job : jobs.entrySet() ) {
+                    polls.put(job.getKey(), provider.submitTask(new Callable<Document>() {
+                        @Override
+                        public Document call() throws Exception {
+                            return method.get(QUERY_ASYNC_JOB_RESULT, new Param("jobId", job.getKey()));
+                        }
+                    }));
+                }
+                for( Map.Entry<String,Future<Document>> poll : polls.entrySet() ) {
+                    String jobId = poll.getKey();
+                    String jobName = jobs.get(jobId);
+                    Document doc;
+
+                    try {
+                        doc = poll.getValue().get();
+                    }
+                    catch( ExecutionException e ) {
+                        Throwable cause = (e.getCause() == null ? e : e.getCause());
+
+                        logger.warn("Unable to check the status of " + jobName + " (job " + jobId + "), will try again: " + cause.getMessage());
+                        pollErrors.put(jobId, cause);
+                        continue;
+                    }
+                    catch( InterruptedException e ) {
+                        Thread.currentThread().interrupt();
+                        for( Future<Document> f : polls.values() ) {
+                            f.cancel(true);
+                        }
+                        synchronized( this ) {
+                            jobs = new LinkedHashMap<String, String>(pending);
+                        }
+                        giveUp(jobs, pollErrors, outcomes, endpoint, started, "was not waited on because the wait was interrupted");
+                        return outcomes;
+                    }
+                    if( doc == null ) {
+                        logger.warn("No status was returned for " + jobName + " (job " + jobId + "), will try again");
+                        pollErrors.put(jobId, new CloudException("No status was returned for job " + jobId));
+                        continue;
+                    }
+                    pollErrors.remove(jobId);
+                    Outcome outcome;
+
+                    try {
+                        Document result = getResult(doc, jobName);
+
+                        if( result == null ) {
+                            continue;
+                        }
+                        outcome = new Outcome(jobId, jobName, result, null, false);
+                    }
+                    catch( CloudException e ) {
+                        outcome = new Outcome(jobId, jobName, null, e, false);
+                    }
+                    outcomes.put(jobId, outcome);
+                    completed(endpoint, outcome, System.nanoTime() - started);
+                    synchronized( this ) {
+                        pending.remove(jobId);
+                    }
+                }
+            }
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    private void giveUp(@Nonnull Map<String,String> jobs, @Nonnull Map<String,Throwable> pollErrors, @Nonnull Map<String,Outcome> outcomes, @Nonnull String endpoint, long started, @Nonnull String reason) {
+        for( Map.Entry<String,String> job : jobs.entrySet() ) {
+            String message = job.getValue() + " " + reason + " (job " + job.getKey() + ")";
+            Throwable pollError = pollErrors.get(job.getKey());
+            CloudException error;
+
+            if( pollError == null ) {
+                error = new CloudException(message);
+            }
+            else {
+                error = new CloudException(message + "; the last status check failed: " + pollError.getMessage(), pollError);
+            }
+            Outcome outcome = new Outcome(job.getKey(), job.getValue(), null, error, true);
+
+            outcomes.put(job.getKey(), outcome);
+            completed(endpoint, outcome, System.nanoTime() - started);
+        }
+        synchronized( this ) {
+            pending.keySet().removeAll(jobs.keySet());
+        }
+    }
+
+    private void completed(@Nonnull String endpoint, @Nonnull Outcome outcome, long waitNanos) {
+        CSMetrics.getInstance().recordJob(endpoint, waitNanos, !outcome.isSuccessful());
+        CSMethod.fireJobComplete(provider, outcome.getJobId(), outcome.getJobName(), waitNanos, outcome.getError());
+    }
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Per-key monitors for the shared caches, so loads of different endpoints and accounts never wait on each other. A
+ * monitor exists only while a thread holds or waits for it, so the set of monitors stays as small as the number of
+ * loads in progress instead of growing with every account ever seen. Callers pair every {@link #acquire(String)}
+ * with a {@link #release(String)} in a <code>finally</code> block.
+ */
+final class CSKeyedLocks {
+    static private class Monitor {
+        private int users;
+    }
+
+    private final Map<String,Monitor> monitors = new HashMap<String, Monitor>();
+
+    /**
+     * Registers the caller as a user of the monitor for the key, creating it if needed.
+     * @param key the key to lock
+     * @return the monitor to synchronize on
+     */
+    synchronized @Nonnull Object acquire(@Nonnull String key) {
+        Monitor monitor = monitors.get(key);
+
+        if( monitor == null ) {
+            monitor = new Monitor();
+            monitors.put(key, monitor);
+        }
+        monitor.users++;
+        return monitor;
+    }
+
+    /**
+     * Unregisters the caller as a user of the monitor for the key, discarding the monitor once nobody uses it.
+     * @param key the key that was locked
+     */
+    synchronized void release(@Nonnull String key) {
+        Monitor monitor = monitors.get(key);
+
+        if( monitor != null && --monitor.users < 1 ) {
+            monitors.remove(key);
+        }
+    }
+
+    synchronized int size() {
+        return monitors.size();
+    }
+}
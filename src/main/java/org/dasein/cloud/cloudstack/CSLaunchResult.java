@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Result of launching many virtual machines at once. Every requested virtual machine ends up in exactly one of three
+ * groups: launched, failed, or stalled, where a stalled launch is one whose job was still running when the wait for it
+ * ended without the cloud having named its virtual machine. A stalled launch may still complete in the cloud, so its
+ * job ID is kept for the caller to follow up on.
+ */
+public class CSLaunchResult {
+    private final Map<String,String>    launched = new LinkedHashMap<String, String>();
+    private final Map<String,Exception> failures = new LinkedHashMap<String, Exception>();
+    private final Map<String,String>    stalled  = new LinkedHashMap<String, String>();
+
+    /**
+     * @param name the name of the virtual machine
+     * @param vmId the ID of the launched virtual machine
+     */
+    public synchronized void addLaunched(@Nonnull String name, @Nonnull String vmId) {
+        launched.put(name, vmId);
+    }
+
+    /**
+     * @param name the name of the virtual machine
+     * @param error the reason it could not be launched
+     */
+    public synchronized void addFailure(@Nonnull String name, @Nonnull Exception error) {
+        failures.put(name, error);
+    }
+
+    /**
+     * @param name the name of the virtual machine
+     * @param jobId the ID of the launch job that was still running
+     */
+    public synchronized void addStalled(@Nonnull String name, @Nonnull String jobId) {
+        stalled.put(name, jobId);
+    }
+
+    /**
+     * @return the IDs of the launched virtual machines, in the order they were requested
+     */
+    public synchronized @Nonnull List<String> getVirtualMachineIds() {
+        return new ArrayList<String>(launched.values());
+    }
+
+    /**
+     * @return the launched virtual machine IDs, keyed by virtual machine name
+     */
+    public synchronized @Nonnull Map<String,String> getLaunched() {
+        return new LinkedHashMap<String, String>(launched);
+    }
+
+    /**
+     * @return the reason each failed virtual machine could not be launched, keyed by virtual machine name
+     */
+    public synchronized @Nonnull Map<String,Exception> getFailures() {
+        return new LinkedHashMap<String, Exception>(failures);
+    }
+
+    /**
+     * @return the IDs of the launch jobs that were still running, keyed by virtual machine name
+     */
+    public synchronized @Nonnull Map<String,String> getStalledJobs() {
+        return new LinkedHashMap<String, String>(stalled);
+    }
+
+    public synchronized boolean isSuccessful() {
+        return (failures.isEmpty() && stalled.isEmpty());
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "Launch [" + launched.size() + " launched, " + failures.size() + " failed, " + stalled.size() + " stalled]";
+    }
+}
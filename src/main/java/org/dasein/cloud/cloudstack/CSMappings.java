@@ -0,0 +1,332 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.util.CalendarWrapper;
+
+/**
+ * Process-wide, immutable view of the optional custom mapping files on the classpath:
+ * <ul>
+ *     <li><code>/cloudMappings.cfg</code> maps endpoints to cloud IDs</li>
+ *     <li><code>/customNetworkMappings.cfg</code> maps <code>cloudId,serviceOfferingId</code> to a network ID</li>
+ *     <li><code>/customServiceMappings.cfg</code> maps <code>cloudId,zoneId</code> to the service offerings allowed in
+ *     the zone</li>
+ * </ul>
+ * The files are parsed once and resolved by endpoint, so lookups are simple map reads. At most once a minute the
+ * registry checks whether any of the files changed and, if so, reloads all of them. A file that fails to parse is
+ * logged and its previous contents are kept.
+ */
+public final class CSMappings {
+    static private final Logger logger = CSCloud.getLogger(CSMappings.class, "std");
+
+    static private final String CLOUD_MAPPINGS   = "/cloudMappings.cfg";
+    static private final String NETWORK_MAPPINGS = "/customNetworkMappings.cfg";
+    static private final String SERVICE_MAPPINGS = "/customServiceMappings.cfg";
+
+    static private final long CHECK_INTERVAL = CalendarWrapper.MINUTE;
+
+    static private volatile CSMappings instance;
+    static private volatile long       nextCheck;
+
+    /**
+     * @return the current mappings, loading them on first use or when one of the files changed
+     */
+    static public @Nonnull CSMappings getInstance() {
+        CSMappings mappings = instance;
+
+        if( mappings == null || System.currentTimeMillis() >= nextCheck ) {
+            synchronized( CSMappings.class ) {
+                mappings = instance;
+                if( mappings == null ) {
+                    mappings = load(null);
+                    instance = mappings;
+                }
+                else if( System.currentTimeMillis() >= nextCheck ) {
+                    if( mappings.lastModified != getLastModified() ) {
+                        mappings = load(mappings);
+                        instance = mappings;
+                    }
+                }
+                nextCheck = System.currentTimeMillis() + CHECK_INTERVAL;
+            }
+        }
+        return mappings;
+    }
+
+    /**
+     * Forces the mapping files to be read again on the next request.
+     */
+    static public synchronized void reload() {
+        instance = null;
+    }
+
+    static private long getLastModified() {
+        return Math.max(getLastModified(CLOUD_MAPPINGS), Math.max(getLastModified(NETWORK_MAPPINGS), getLastModified(SERVICE_MAPPINGS)));
+    }
+
+    static private long getLastModified(@Nonnull String resource) {
+        URL url = CSMappings.class.getResource(resource);
+
+        if( url == null ) {
+            return 0L;
+        }
+        try {
+            if( url.getProtocol().equals("file") ) {
+                return new File(url.toURI()).lastModified();
+            }
+            // asking a connection for its last-modified date opens the resource, which must then be closed
+            URLConnection connection = url.openConnection();
+
+            connection.setUseCaches(false);
+            try {
+                return connection.getLastModified();
+            }
+            finally {
+                connection.getInputStream().close();
+            }
+        }
+        catch( IOException e ) {
+            return 0L;
+        }
+        catch( URISyntaxException e ) {
+            return 0L;
+        }
+        catch( IllegalArgumentException e ) {
+            return 0L;
+        }
+    }
+
+    static private @Nonnull CSMappings load(@Nullable CSMappings previous) {
+        long lastModified = getLastModified();
+        Map<String,String> clouds = loadClouds(previous == null ? null : previous.clouds);
+        Map<String,Map<String,String>> networks = loadNetworks(previous == null ? null : previous.networksByCloud);
+        Map<String,Map<String,Set<String>>> services = loadServices(previous == null ? null : previous.servicesByCloud);
+
+        return new CSMappings(clouds, networks, services, lastModified);
+    }
+
+    static private @Nullable InputStream open(@Nonnull String resource) {
+        InputStream input = CSMappings.class.getResourceAsStream(resource);
+
+        if( input == null && logger.isDebugEnabled() ) {
+            logger.debug("No " + resource + " found on the classpath");
+        }
+        return input;
+    }
+
+    static private @Nonnull Map<String,String> loadClouds(@Nullable Map<String,String> previous) {
+        Map<String,String> clouds = new HashMap<String, String>();
+
+        try {
+            InputStream input = open(CLOUD_MAPPINGS);
+
+            if( input == null ) {
+                return clouds;
+            }
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+                String line;
+
+                while( (line = reader.readLine()) != null ) {
+                    if( line.startsWith("#") ) {
+                        continue;
+                    }
+                    int idx = line.indexOf('=');
+                    if( idx < 0 || line.endsWith("=") ) {
+                        continue;
+                    }
+                    clouds.put(line.substring(0, idx), line.substring(idx+1));
+                }
+            }
+            finally {
+                input.close();
+            }
+            return clouds;
+        }
+        catch( Exception e ) {
+            logger.error("Unable to load " + CLOUD_MAPPINGS + ": " + e.getMessage(), e);
+            return (previous == null ? clouds : previous);
+        }
+    }
+
+    static private @Nonnull Map<String,Map<String,String>> loadNetworks(@Nullable Map<String,Map<String,String>> previous) {
+        Map<String,Map<String,String>> mapping = new HashMap<String,Map<String,String>>();
+
+        try {
+            Properties properties = loadProperties(NETWORK_MAPPINGS);
+
+            if( properties == null ) {
+                return mapping;
+            }
+            for( String key : properties.stringPropertyNames() ) {
+                String[] trueKey = key.split(",");
+
+                if( trueKey.length < 2 ) {
+                    logger.warn("Ignoring malformed key in " + NETWORK_MAPPINGS + ": " + key);
+                    continue;
+                }
+                Map<String,String> current = mapping.get(trueKey[0]);
+
+                if( current == null ) {
+                    current = new HashMap<String,String>();
+                    mapping.put(trueKey[0], current);
+                }
+                current.put(trueKey[1], properties.getProperty(key));
+            }
+            return mapping;
+        }
+        catch( Exception e ) {
+            logger.error("Unable to load " + NETWORK_MAPPINGS + ": " + e.getMessage(), e);
+            return (previous == null ? mapping : previous);
+        }
+    }
+
+    static private @Nonnull Map<String,Map<String,Set<String>>> loadServices(@Nullable Map<String,Map<String,Set<String>>> previous) {
+        Map<String,Map<String,Set<String>>> mapping = new HashMap<String,Map<String,Set<String>>>();
+
+        try {
+            Properties properties = loadProperties(SERVICE_MAPPINGS);
+
+            if( properties == null ) {
+                return mapping;
+            }
+            for( String key : properties.stringPropertyNames() ) {
+                String value = properties.getProperty(key);
+                String[] trueKey = key.split(",");
+
+                if( trueKey.length < 2 ) {
+                    logger.warn("Ignoring malformed key in " + SERVICE_MAPPINGS + ": " + key);
+                    continue;
+                }
+                Map<String,Set<String>> tmp = mapping.get(trueKey[0]);
+
+                if( tmp == null ) {
+                    tmp = new HashMap<String,Set<String>>();
+                    mapping.put(trueKey[0], tmp);
+                }
+                TreeSet<String> m = new TreeSet<String>();
+
+                Collections.addAll(m, value.split(","));
+                tmp.put(trueKey[1], Collections.unmodifiableSet(m));
+            }
+            return mapping;
+        }
+        catch( Exception e ) {
+            logger.error("Unable to load " + SERVICE_MAPPINGS + ": " + e.getMessage(), e);
+            return (previous == null ? mapping : previous);
+        }
+    }
+
+    static private @Nullable Properties loadProperties(@Nonnull String resource) throws IOException {
+        InputStream input = open(resource);
+
+        if( input == null ) {
+            return null;
+        }
+        try {
+            Properties properties = new Properties();
+
+            properties.load(input);
+            return properties;
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    private final Map<String,String>                  clouds;
+    private final Map<String,Map<String,String>>      networksByCloud;
+    private final Map<String,Map<String,Set<String>>> servicesByCloud;
+    private final Map<String,Map<String,String>>      networksByEndpoint;
+    private final Map<String,Map<String,Set<String>>> servicesByEndpoint;
+    private final long                                lastModified;
+
+    private CSMappings(@Nonnull Map<String,String> clouds, @Nonnull Map<String,Map<String,String>> networks, @Nonnull Map<String,Map<String,Set<String>>> services, long lastModified) {
+        Map<String,Map<String,String>> networksByEndpoint = new HashMap<String, Map<String, String>>();
+        Map<String,Map<String,Set<String>>> servicesByEndpoint = new HashMap<String, Map<String, Set<String>>>();
+
+        for( Map.Entry<String,String> entry : clouds.entrySet() ) {
+            Map<String,String> n = networks.get(entry.getValue());
+            Map<String,Set<String>> s = services.get(entry.getValue());
+
+            if( n != null ) {
+                networksByEndpoint.put(entry.getKey(), n);
+            }
+            if( s != null ) {
+                servicesByEndpoint.put(entry.getKey(), s);
+            }
+        }
+        this.clouds = Collections.unmodifiableMap(clouds);
+        this.networksByCloud = Collections.unmodifiableMap(networks);
+        this.servicesByCloud = Collections.unmodifiableMap(services);
+        this.networksByEndpoint = networksByEndpoint;
+        this.servicesByEndpoint = servicesByEndpoint;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @param endpoint the management server endpoint
+     * @return the cloud ID mapped to the endpoint, if any
+     */
+    public @Nullable String getCloudId(@Nonnull String endpoint) {
+        return clouds.get(endpoint);
+    }
+
+    /**
+     * @param endpoint the management server endpoint
+     * @param serviceOfferingId the service offering being launched
+     * @return the network VMs of the specified offering should be placed on, if a custom mapping exists
+     */
+    public @Nullable String getNetworkId(@Nonnull String endpoint, @Nonnull String serviceOfferingId) {
+        Map<String,String> map = networksByEndpoint.get(endpoint);
+
+        return (map == null ? null : map.get(serviceOfferingId));
+    }
+
+    /**
+     * @param endpoint the management server endpoint
+     * @param zoneId the zone
+     * @return the service offerings allowed in the zone, or null if the zone has no custom mapping and every offering
+     * is allowed
+     */
+    public @Nullable Set<String> getServiceOfferings(@Nonnull String endpoint, @Nonnull String zoneId) {
+        Map<String,Set<String>> map = servicesByEndpoint.get(endpoint);
+
+        return (map == null ? null : map.get(zoneId));
+    }
+}
@@ -24,12 +24,19 @@ import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.security.SignatureException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.TreeSet;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import javax.servlet.http.HttpServletResponse;
@@ -40,7 +47,11 @@ import org.apache.commons.codec.binary.Base64;
 import org.apache.http.*;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
 import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.params.BasicHttpParams;
 import org.apache.http.params.HttpParams;
@@ -57,9 +68,6 @@ import org.dasein.cloud.util.APITrace;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
-import org.w3c.dom.bootstrap.DOMImplementationRegistry;
-import org.w3c.dom.ls.DOMImplementationLS;
-import org.w3c.dom.ls.LSSerializer;
 import org.xml.sax.SAXException;
 
 public class CSMethod {
@@ -72,14 +80,70 @@ public class CSMethod {
     static public final String DELETE_KEYPAIR = "deleteSSHKeyPair";
     static public final String LIST_KEYPAIRS  = "listSSHKeyPairs";
 
-    private CSCloud provider;
+    /**
+     * The length of a GET URL, in characters, beyond which a request is sent as a POST instead.
+     */
+    static public final int DEFAULT_POST_THRESHOLD = 2048;
+
+    /**
+     * Commands whose payloads (certificates, user data, long resource ID lists) routinely outgrow a URL, so they are
+     * always sent as a POST.
+     */
+    static private final Set<String> POST_COMMANDS = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList("uploadSslCert", "deployVirtualMachine", "createTags", "deleteTags")));
+
+    static private final int BEFORE_SIGN   = 0;
+    static private final int BEFORE_SEND   = 1;
+    static private final int AFTER_HEADERS = 2;
+    static private final int AFTER_PARSE   = 3;
+    static private final int ON_ERROR      = 4;
+
+    /**
+     * Registered listeners, replaced as a whole on every change so requests can read them without locking.
+     */
+    static private volatile CSRequestListener[] requestListeners = new CSRequestListener[0];
+
+    /**
+     * Registers a listener for every CloudStack call made by any provider in this class loader.
+     * @param listener the listener to add
+     */
+    static public synchronized void addRequestListener(@Nonnull CSRequestListener listener) {
+        CSRequestListener[] current = requestListeners;
+        CSRequestListener[] updated = Arrays.copyOf(current, current.length + 1);
+
+        updated[current.length] = listener;
+        requestListeners = updated;
+    }
+
+    /**
+     * @param listener the listener to remove; nothing happens if it was not registered
+     */
+    static public synchronized void removeRequestListener(@Nonnull CSRequestListener listener) {
+        List<CSRequestListener> updated = new ArrayList<CSRequestListener>(Arrays.asList(requestListeners));
+
+        if( updated.remove(listener) ) {
+            requestListeners = updated.toArray(new CSRequestListener[updated.size()]);
+        }
+    }
+
+    private final CSCloud provider;
     
     public CSMethod(@Nonnull CSCloud provider) { this.provider = provider; }
     
-    private String buildUrl(String command, Param ... params) throws CloudException, InternalException {
+    /**
+     * Builds the signed parameter string for a command. The same string is used as the query string of a GET and as
+     * the form-encoded body of a POST, so both transports are signed identically.
+     * @param command the CloudStack command
+     * @param params the command parameters
+     * @return the encoded and signed parameters, starting with <code>command=</code>
+     * @throws CloudException no context was set for this request
+     * @throws InternalException an error occurred signing the request
+     */
+    String buildQuery(String command, Param ... params) throws CloudException, InternalException {
         ProviderContext ctx = provider.getContext();
 
-
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
         String apiShared = "";
         String apiSecret = "";
         try {
@@ -95,9 +159,6 @@ public class CSMethod {
         catch( UnsupportedEncodingException ignore ) {
         }
 
-        if( ctx == null ) {
-            throw new CloudException("No context was set for this request");
-        }
         try {
             StringBuilder str = new StringBuilder();
             String apiKey = apiShared;
@@ -121,17 +182,7 @@ public class CSMethod {
                 }
             }
             accessKey = newKey.toString();
-            str.append(ctx.getCloud().getEndpoint());
-
-            // Make sure the url ends up exactly as http://x.x.x.x:y/client/api?command=
-            // otherwise the server may choke like we've found it does for uploadSslCert command.
-            while( str.lastIndexOf("/") == str.length()-1 ) {
-                str.deleteCharAt(str.length()-1);
-            }
-            if( !str.toString().endsWith("/api") ) {
-                str.append("/api");
-            }
-            str.append("?command=");
+            str.append("command=");
             str.append(command);
             for( Param param : params ) {
                 str.append("&");
@@ -158,6 +209,63 @@ public class CSMethod {
         }
     }
 
+    @Nonnull String buildApiUrl() throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        return getApiUrl(ctx);
+    }
+
+    /**
+     * @param ctx the context of the request
+     * @return the API URL of the context's endpoint, without a query string
+     */
+    static @Nonnull String getApiUrl(@Nonnull ProviderContext ctx) {
+        StringBuilder str = new StringBuilder();
+
+        str.append(ctx.getCloud().getEndpoint());
+        // Make sure the url ends up exactly as http://x.x.x.x:y/client/api?command=
+        // otherwise the server may choke like we've found it does for uploadSslCert command.
+        while( str.lastIndexOf("/") == str.length()-1 ) {
+            str.deleteCharAt(str.length()-1);
+        }
+        if( !str.toString().endsWith("/api") ) {
+            str.append("/api");
+        }
+        return str.toString();
+    }
+
+    /**
+     * Decides whether a request goes out as a form-encoded POST rather than a GET. Commands known to carry large
+     * payloads are always posted; anything else is posted once the full GET URL would exceed the
+     * <code>postThreshold</code> custom property (default {@value #DEFAULT_POST_THRESHOLD} characters).
+     * @param command the CloudStack command
+     * @param url the API URL without a query string
+     * @param query the signed parameter string
+     * @return true if the request should be sent as a POST
+     */
+    private boolean isPost(@Nonnull String command, @Nonnull String url, @Nonnull String query) {
+        if( POST_COMMANDS.contains(command) ) {
+            return true;
+        }
+        ProviderContext ctx = provider.getContext();
+        Properties p = (ctx == null ? null : ctx.getCustomProperties());
+        String value = (p == null ? null : p.getProperty("postThreshold"));
+        int threshold = DEFAULT_POST_THRESHOLD;
+
+        if( value != null ) {
+            try {
+                threshold = Integer.parseInt(value.trim());
+            }
+            catch( NumberFormatException e ) {
+                CSCloud.getLogger(CSMethod.class, "std").warn("Invalid value for postThreshold: " + value);
+            }
+        }
+        return (threshold >= 0 && url.length() + 1 + query.length() > threshold);
+    }
+
     private byte[] calculateHmac( String data, String key ) throws SignatureException {
         try {
             SecretKeySpec signingKey = new SecretKeySpec(key.getBytes(), "HmacSHA1");
@@ -210,9 +318,35 @@ public class CSMethod {
     public @Nonnull Document get(@Nonnull String command, Param ... params) throws CloudException, InternalException {
         Logger wire = CSCloud.getLogger(CSMethod.class, "wire");
         Logger logger = CSCloud.getLogger(CSMethod.class, "std");
-        String url = buildUrl(command, params);
+        long started = System.nanoTime();
+        CSRequestListener[] listeners = requestListeners;
+        CSRequestEvent event = ( listeners.length == 0 ? null : new CSRequestEvent(provider, command, params, started) );
+        String url, query;
+
+        if( event != null ) {
+            fire(BEFORE_SIGN, listeners, event, null);
+        }
+        try {
+            url = buildApiUrl();
+            query = buildQuery(command, params);
+        }
+        catch( CloudException e ) {
+            fire(ON_ERROR, listeners, event, e);
+            throw e;
+        }
+        catch( InternalException e ) {
+            fire(ON_ERROR, listeners, event, e);
+            throw e;
+        }
+        long signed = System.nanoTime(), responded = 0L, read = 0L;
+        boolean post = isPost(command, url, query);
+        int status = 0;
+        long received = -1L, parseNanos = -1L;
+        boolean failed = true;
+        String body = null, error = null;
+
         if( logger.isTraceEnabled() ) {
-            logger.trace("enter - " + CSMethod.class.getName() + ".get(" + url + ")");
+            logger.trace("enter - " + CSMethod.class.getName() + ".get(" + url + "?" + CSSlowCallLog.redact(query) + ")");
         }
         if( wire.isDebugEnabled() ) {
             wire.debug("[" + ( new Date() ) + "] -------------------------------------------------------------------");
@@ -220,29 +354,55 @@ public class CSMethod {
         }
         HttpClient client = null;
         try {
-            HttpGet get = new HttpGet(url);
+            HttpRequestBase get;
             client = getClient(url);
             HttpResponse response;
 
-            get.addHeader("Content-Type", "application/x-www-form-urlencoded; charset=utf-8");
+            if( post ) {
+                HttpPost method = new HttpPost(url);
+
+                method.setEntity(new StringEntity(query, ContentType.create("application/x-www-form-urlencoded", "UTF-8")));
+                get = method;
+            }
+            else {
+                get = new HttpGet(url + "?" + query);
+                get.addHeader("Content-Type", "application/x-www-form-urlencoded; charset=utf-8");
+            }
             //get.getParams().setCookiePolicy(CookiePolicy.IGNORE_COOKIES);
+            if( event != null ) {
+                event.signed(url, post, query.length(), signed);
+                fire(BEFORE_SEND, listeners, event, null);
+                for( Map.Entry<String,String> header : event.getHeaders().entrySet() ) {
+                    get.addHeader(header.getKey(), header.getValue());
+                }
+            }
             if( wire.isDebugEnabled() ) {
                 wire.debug(get.getRequestLine().toString());
                 for( Header header : get.getAllHeaders() ) {
                     wire.debug(header.getName() + ": " + header.getValue());
                 }
                 wire.debug("");
+                if( post ) {
+                    // the body may carry user data or private keys, so only its size goes to the wire log
+                    wire.debug("[" + query.length() + " characters of form data]");
+                    wire.debug("");
+                }
             }
             try {
                 APITrace.trace(provider, command);
                 response = client.execute(get);
+                responded = System.nanoTime();
             }
             catch( IOException e ) {
                 logger.error("I/O error from server communications: " + e.getMessage());
                 e.printStackTrace();
                 throw new InternalException(e);
             }
-            int status = response.getStatusLine().getStatusCode();
+            status = response.getStatusLine().getStatusCode();
+            if( event != null ) {
+                event.responded(status, responded);
+                fire(AFTER_HEADERS, listeners, event, null);
+            }
             if( logger.isDebugEnabled() ) {
                 logger.debug("get(): HTTP Status " + status);
             }
@@ -263,8 +423,9 @@ public class CSMethod {
             try {
                 if( status != HttpServletResponse.SC_OK ) {
                     HttpEntity entity = response.getEntity();
-                    String body = ( entity == null ? null : EntityUtils.toString(entity) );
-
+                    body = ( entity == null ? null : EntityUtils.toString(entity) );
+                    read = System.nanoTime();
+                    received = ( body == null ? -1L : body.length() );
                     if( body == null ) {
                         CSMethod.ParsedError p = new CSMethod.ParsedError();
 
@@ -281,6 +442,11 @@ public class CSMethod {
                             throw new CSException(CloudErrorType.AUTHENTICATION, p);
                         }
                         else if( status == 430 || status == 431 || status == 432 || status == 436 ) {
+                            if( event != null ) {
+                                event.read(body, read);
+                                event.finished(null, System.nanoTime());
+                                fire(AFTER_PARSE, listeners, event, null);
+                            }
                             return null;
                         }
                         CSMethod.ParsedError p = new CSMethod.ParsedError();
@@ -292,8 +458,19 @@ public class CSMethod {
                     throw new CSException(parseError(status, body));
                 }
                 HttpEntity entity = response.getEntity();
-
-                return parseResponse(status, EntityUtils.toString(entity));
+                body = EntityUtils.toString(entity);
+                read = System.nanoTime();
+                received = body.length();
+                Document doc = parseResponse(status, body);
+
+                parseNanos = System.nanoTime() - read;
+                failed = false;
+                if( event != null ) {
+                    event.read(body, read);
+                    event.finished(doc, read + parseNanos);
+                    fire(AFTER_PARSE, listeners, event, null);
+                }
+                return doc;
             }
             catch( NoHttpResponseException e ) {
                 throw new CloudException("No answer from endpoint: " + e.getMessage());
@@ -302,7 +479,43 @@ public class CSMethod {
                 throw new CloudException("IOException getting stream: " + e.getMessage());
             }
         }
+        catch( CloudException e ) {
+            error = e.getMessage();
+            failed(listeners, event, e, body, read);
+            throw e;
+        }
+        catch( InternalException e ) {
+            error = e.getMessage();
+            failed(listeners, event, e, body, read);
+            throw e;
+        }
+        catch( RuntimeException e ) {
+            error = e.toString();
+            failed(listeners, event, e, body, read);
+            throw e;
+        }
         finally {
+            long finished = System.nanoTime();
+
+            CSMetrics.getInstance().recordCall(url, command, status, query.length(), received, parseNanos, finished - started, failed);
+            if( CSSlowCallLog.isEnabled(provider.getContext()) ) {
+                CSSlowCallLog.Call call = new CSSlowCallLog.Call();
+
+                call.command = command;
+                call.url = url;
+                call.query = query;
+                call.post = post;
+                call.status = status;
+                call.started = started;
+                call.signed = signed;
+                call.responded = responded;
+                call.read = read;
+                call.parsed = (parseNanos < 0L ? 0L : read + parseNanos);
+                call.finished = finished;
+                call.body = body;
+                call.error = (failed && error == null ? "HTTP " + status : error);
+                CSSlowCallLog.record(provider.getContext(), call);
+            }
             if( wire.isDebugEnabled() ) {
                 wire.debug("");
                 wire.debug("[" + ( new Date() ) + "] -------------------------------------------------------------------");
@@ -316,6 +529,53 @@ public class CSMethod {
         }
     }
 
+    static private void failed(@Nonnull CSRequestListener[] listeners, @Nullable CSRequestEvent event, @Nonnull Exception error, @Nullable String body, long read) {
+        if( event != null ) {
+            event.read(body, read);
+            event.finished(null, System.nanoTime());
+            fire(ON_ERROR, listeners, event, error);
+        }
+    }
+
+    static private void fire(int stage, @Nonnull CSRequestListener[] listeners, @Nullable CSRequestEvent event, @Nullable Exception error) {
+        if( event == null ) {
+            return;
+        }
+        for( CSRequestListener listener : listeners ) {
+            try {
+                switch( stage ) {
+                    case BEFORE_SIGN: listener.beforeSign(event); break;
+                    case BEFORE_SEND: listener.beforeSend(event); break;
+                    case AFTER_HEADERS: listener.afterHeaders(event); break;
+                    case AFTER_PARSE: listener.afterParse(event); break;
+                    default: listener.onError(event, error); break;
+                }
+            }
+            catch( RuntimeException e ) {
+                CSCloud.getLogger(CSMethod.class, "std").warn("Request listener " + listener + " failed on " + event + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Tells the registered listeners that an async job being waited on has ended.
+     * @param provider the provider that waited on the job
+     * @param jobId the job ID
+     * @param jobName the description of the job
+     * @param waitNanos how long the job was waited on
+     * @param error the error the job ended with, or null if it succeeded
+     */
+    static void fireJobComplete(@Nonnull CSCloud provider, @Nonnull String jobId, @Nonnull String jobName, long waitNanos, @Nullable CloudException error) {
+        for( CSRequestListener listener : requestListeners ) {
+            try {
+                listener.onJobComplete(provider, jobId, jobName, waitNanos, error);
+            }
+            catch( RuntimeException e ) {
+                CSCloud.getLogger(CSMethod.class, "std").warn("Request listener " + listener + " failed on job " + jobId + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
     private String getSignature(String command, String apiKey, String accessKey, Param ... params) throws UnsupportedEncodingException, SignatureException {
         Logger logger = CSCloud.getLogger(CSMethod.class, "std");
 
@@ -416,7 +676,7 @@ public class CSMethod {
         }
     }
 
-    private @Nonnull Document parseResponse(int code, String xml) throws CloudException, InternalException {
+    @Nonnull Document parseResponse(int code, String xml) throws CloudException, InternalException {
         Logger wire = CSCloud.getLogger(CSMethod.class, "wire");
         Logger logger = CSCloud.getLogger(CSMethod.class, "std");
 
@@ -427,11 +687,10 @@ public class CSMethod {
             try {
                 ByteArrayInputStream input = new ByteArrayInputStream(xml.getBytes("utf-8"));
 
-                Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(input);
                 if( wire.isDebugEnabled() ) {
-                    wire.debug(prettifyXml(doc));
+                    wire.debug(xml);
                 }
-                return doc;
+                return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(input);
             }
             catch( IOException e ) {
                 if( wire.isDebugEnabled() ) {
@@ -458,16 +717,4 @@ public class CSMethod {
             }
         }
     }
-
-    private String prettifyXml( Document doc ) {
-        try {
-            DOMImplementationLS impl = ( DOMImplementationLS ) DOMImplementationRegistry.newInstance().getDOMImplementation("LS");
-            LSSerializer writer = impl.createLSSerializer();
-            writer.getDomConfig().setParameter("format-pretty-print", Boolean.TRUE);
-            return writer.writeToString(doc);
-        }
-        catch( Exception e ) {
-            throw new RuntimeException(e);
-        }
-    }
 }
@@ -0,0 +1,496 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Latency, size and error metrics for every CloudStack command, kept per endpoint and command. {@link CSMethod}
+ * records each call and the job trackers record how long async jobs were waited on, under the pseudo-command
+ * {@link #ASYNC_JOBS}. Recording only touches atomic counters, so it adds no locking to the request path.
+ * <p>
+ * The metrics are published over JMX as {@link CSMetricsMXBean} on first use, can be withdrawn with
+ * {@link #unregister()} and can be pulled directly with {@link #getSnapshots()}. Latencies and parse times are in microseconds and response sizes in characters.
+ */
+public class CSMetrics implements CSMetricsMXBean {
+    static private final Logger logger = CSCloud.getLogger(CSMetrics.class, "std");
+
+    static public final String OBJECT_NAME = "org.dasein.cloud.cloudstack:type=Metrics";
+
+    /**
+     * Pseudo-command under which the time spent waiting on async jobs is recorded, with failed jobs as errors.
+     */
+    static public final String ASYNC_JOBS = "asyncJobs";
+
+    static private final CSMetrics instance = new CSMetrics();
+
+    static private volatile boolean    attempted = false;
+    static private volatile ObjectName registeredName;
+
+    /**
+     * Provides the metrics, publishing them over JMX on first use.
+     * @return the process-wide metrics
+     */
+    static public @Nonnull CSMetrics getInstance() {
+        if( !attempted ) {
+            register();
+        }
+        return instance;
+    }
+
+    /**
+     * Publishes the metrics over JMX as {@link #OBJECT_NAME} if they are not already published. If another copy of the
+     * provider in a separate class loader already owns that name, this copy is published under the same name with an
+     * additional <code>instance</code> key instead.
+     * @return the name the metrics are published under, or null if they could not be published
+     */
+    static public synchronized @Nullable ObjectName register() {
+        attempted = true;
+        if( registeredName != null ) {
+            return registeredName;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+        try {
+            ObjectName name = new ObjectName(OBJECT_NAME);
+
+            try {
+                server.registerMBean(instance, name);
+            }
+            catch( InstanceAlreadyExistsException e ) {
+                name = new ObjectName(OBJECT_NAME + ",instance=" + Integer.toHexString(System.identityHashCode(instance)));
+                logger.info("Metrics are already registered as " + OBJECT_NAME + " by another class loader; registering as " + name);
+                server.registerMBean(instance, name);
+            }
+            registeredName = name;
+        }
+        catch( Exception e ) {
+            logger.warn("Unable to register metrics as " + OBJECT_NAME + ": " + e.getMessage());
+            return null;
+        }
+        return registeredName;
+    }
+
+    /**
+     * Removes the metrics from JMX, so that a container undeploying the provider does not leave the MBean (and the class
+     * loader it pins) behind. Metrics keep being recorded but are not published again unless {@link #register()} is
+     * called.
+     */
+    static public synchronized void unregister() {
+        if( registeredName == null ) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+        }
+        catch( InstanceNotFoundException e ) {
+            logger.debug("Metrics were already unregistered from " + registeredName);
+        }
+        catch( Exception e ) {
+            logger.warn("Unable to unregister metrics from " + registeredName + ": " + e.getMessage());
+        }
+        registeredName = null;
+    }
+
+    /**
+     * Lock-free histogram over logarithmic buckets. Each power of two is split into eight buckets, so reported
+     * percentiles are within 12.5% of the recorded values; values below eight are exact.
+     */
+    static public class Histogram {
+        static private final int  SUB_BITS  = 3;
+        static private final int  SUB_COUNT = 1 << SUB_BITS;
+        static private final int  BUCKETS   = (64 - SUB_BITS + 1) * SUB_COUNT;
+        static private final long LIMIT     = 1L << 62;
+
+        static private int indexOf(long value) {
+            if( value < SUB_COUNT ) {
+                return (int)value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int mantissa = (int)(value >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+
+            return (exponent - SUB_BITS + 1) * SUB_COUNT + mantissa;
+        }
+
+        static private long upperBoundOf(int index) {
+            if( index < SUB_COUNT ) {
+                return index;
+            }
+            int exponent = index / SUB_COUNT + SUB_BITS - 1;
+            long lower = ((long)(SUB_COUNT + index % SUB_COUNT)) << (exponent - SUB_BITS);
+
+            return lower + (1L << (exponent - SUB_BITS)) - 1;
+        }
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong      count   = new AtomicLong(0L);
+        private final AtomicLong      sum     = new AtomicLong(0L);
+        private final AtomicLong      max     = new AtomicLong(0L);
+
+        public void record(long value) {
+            if( value < 0L ) {
+                value = 0L;
+            }
+            else if( value > LIMIT ) {
+                value = LIMIT;
+            }
+            buckets.incrementAndGet(indexOf(value));
+            count.incrementAndGet();
+            sum.addAndGet(value);
+            long current = max.get();
+
+            while( value > current && !max.compareAndSet(current, value) ) {
+                current = max.get();
+            }
+        }
+
+        public long getCount() {
+            return count.get();
+        }
+
+        public long getMax() {
+            return max.get();
+        }
+
+        public double getMean() {
+            long n = count.get();
+
+            return (n == 0L ? 0.0 : ((double)sum.get()) / n);
+        }
+
+        /**
+         * @param quantile the quantile, between 0 and 1
+         * @return the value at the quantile, or 0 if nothing was recorded
+         */
+        public long getPercentile(double quantile) {
+            long n = count.get();
+
+            if( n == 0L ) {
+                return 0L;
+            }
+            long rank = Math.max(1L, (long)Math.ceil(quantile * n));
+            long seen = 0L;
+
+            for( int i = 0; i < BUCKETS; i++ ) {
+                seen += buckets.get(i);
+                if( seen >= rank ) {
+                    return Math.min(upperBoundOf(i), max.get());
+                }
+            }
+            return max.get();
+        }
+
+        public @Nonnull Distribution getDistribution() {
+            return new Distribution(getCount(), getMean(), getPercentile(0.5), getPercentile(0.99), getMax());
+        }
+    }
+
+    /**
+     * Summary of a histogram at the time of a snapshot.
+     */
+    static public class Distribution {
+        private final long   count;
+        private final double mean;
+        private final long   p50;
+        private final long   p99;
+        private final long   max;
+
+        Distribution(long count, double mean, long p50, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "n=" + count + " p50=" + p50 + " p99=" + p99 + " max=" + max;
+        }
+    }
+
+    /**
+     * Point-in-time metrics of one command on one endpoint.
+     */
+    static public class Snapshot {
+        private final String            endpoint;
+        private final String            command;
+        private final long              calls;
+        private final long              errors;
+        private final Map<Integer,Long> errorsByStatus;
+        private final long              bytesSent;
+        private final long              bytesReceived;
+        private final Distribution      latency;
+        private final Distribution      responseSize;
+        private final Distribution      parseTime;
+
+        Snapshot(@Nonnull CommandMetrics metrics) {
+            Map<Integer,Long> errors = new TreeMap<Integer, Long>();
+
+            for( Map.Entry<Integer,AtomicLong> entry : metrics.errorsByStatus.entrySet() ) {
+                errors.put(entry.getKey(), entry.getValue().get());
+            }
+            this.endpoint = metrics.endpoint;
+            this.command = metrics.command;
+            this.calls = metrics.calls.get();
+            this.errors = metrics.errors.get();
+            this.errorsByStatus = Collections.unmodifiableMap(errors);
+            this.bytesSent = metrics.bytesSent.get();
+            this.bytesReceived = metrics.bytesReceived.get();
+            this.latency = metrics.latency.getDistribution();
+            this.responseSize = metrics.responseSize.getDistribution();
+            this.parseTime = metrics.parseTime.getDistribution();
+        }
+
+        public @Nonnull String getEndpoint() {
+            return endpoint;
+        }
+
+        public @Nonnull String getCommand() {
+            return command;
+        }
+
+        public long getCalls() {
+            return calls;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * @return error counts keyed by HTTP status, with 0 for calls that got no response at all
+         */
+        public @Nonnull Map<Integer,Long> getErrorsByStatus() {
+            return errorsByStatus;
+        }
+
+        public long getBytesSent() {
+            return bytesSent;
+        }
+
+        public long getBytesReceived() {
+            return bytesReceived;
+        }
+
+        /**
+         * @return the round-trip time of each call in microseconds, or the wait for each job for {@link #ASYNC_JOBS}
+         */
+        public @Nonnull Distribution getLatency() {
+            return latency;
+        }
+
+        public @Nonnull Distribution getResponseSize() {
+            return responseSize;
+        }
+
+        public @Nonnull Distribution getParseTime() {
+            return parseTime;
+        }
+
+        @Override
+        public String toString() {
+            return command + "@" + endpoint + " [calls=" + calls + ", errors=" + errors + ", latency " + latency + "]";
+        }
+    }
+
+    static private class CommandMetrics {
+        final String                                endpoint;
+        final String                                command;
+        final AtomicLong                            calls          = new AtomicLong(0L);
+        final AtomicLong                            errors         = new AtomicLong(0L);
+        final ConcurrentHashMap<Integer,AtomicLong> errorsByStatus = new ConcurrentHashMap<Integer, AtomicLong>();
+        final AtomicLong                            bytesSent      = new AtomicLong(0L);
+        final AtomicLong                            bytesReceived  = new AtomicLong(0L);
+        final Histogram                             latency        = new Histogram();
+        final Histogram                             responseSize   = new Histogram();
+        final Histogram                             parseTime      = new Histogram();
+
+        CommandMetrics(@Nonnull String endpoint, @Nonnull String command) {
+            this.endpoint = endpoint;
+            this.command = command;
+        }
+
+        void recordError(int status) {
+            errors.incrementAndGet();
+            AtomicLong count = errorsByStatus.get(status);
+
+            if( count == null ) {
+                AtomicLong created = new AtomicLong(0L);
+
+                count = errorsByStatus.putIfAbsent(status, created);
+                if( count == null ) {
+                    count = created;
+                }
+            }
+            count.incrementAndGet();
+        }
+    }
+
+    private final ConcurrentHashMap<String,CommandMetrics> metrics = new ConcurrentHashMap<String, CommandMetrics>();
+
+    private CSMetrics() { }
+
+    private @Nonnull CommandMetrics getMetrics(@Nonnull String endpoint, @Nonnull String command) {
+        String key = endpoint + " " + command;
+        CommandMetrics current = metrics.get(key);
+
+        if( current == null ) {
+            CommandMetrics created = new CommandMetrics(endpoint, command);
+
+            current = metrics.putIfAbsent(key, created);
+            if( current == null ) {
+                current = created;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Records one CloudStack call.
+     * @param endpoint the API endpoint
+     * @param command the command
+     * @param status the HTTP status, or 0 if no response was received
+     * @param requestSize the length of the signed query string or form body
+     * @param responseSize the length of the response body, or -1 if none was read
+     * @param parseNanos the time spent parsing the response, or -1 if it was not parsed
+     * @param elapsedNanos the time from signing to the parsed result or error
+     * @param failed true if the call ended in an error
+     */
+    void recordCall(@Nonnull String endpoint, @Nonnull String command, int status, long requestSize, long responseSize, long parseNanos, long elapsedNanos, boolean failed) {
+        CommandMetrics m = getMetrics(endpoint, command);
+
+        m.calls.incrementAndGet();
+        m.bytesSent.addAndGet(requestSize);
+        if( responseSize >= 0L ) {
+            m.bytesReceived.addAndGet(responseSize);
+            m.responseSize.record(responseSize);
+        }
+        if( parseNanos >= 0L ) {
+            m.parseTime.record(parseNanos / 1000L);
+        }
+        m.latency.record(elapsedNanos / 1000L);
+        if( failed ) {
+            m.recordError(status);
+        }
+    }
+
+    /**
+     * Records the wait for one async job.
+     * @param endpoint the API endpoint
+     * @param elapsedNanos the time from the start of the wait until the job completed, failed or timed out
+     * @param failed true if the job failed or did not complete in time
+     */
+    void recordJob(@Nonnull String endpoint, long elapsedNanos, boolean failed) {
+        CommandMetrics m = getMetrics(endpoint, ASYNC_JOBS);
+
+        m.calls.incrementAndGet();
+        m.latency.record(elapsedNanos / 1000L);
+        if( failed ) {
+            m.errors.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param endpoint the API endpoint
+     * @param command the command
+     * @return the metrics of the command on the endpoint, or null if it has not been called
+     */
+    public @Nullable Snapshot getSnapshot(@Nonnull String endpoint, @Nonnull String command) {
+        CommandMetrics m = metrics.get(endpoint + " " + command);
+
+        return (m == null ? null : new Snapshot(m));
+    }
+
+    @Override
+    public @Nonnull List<Snapshot> getSnapshots() {
+        List<Snapshot> snapshots = new ArrayList<Snapshot>();
+
+        for( CommandMetrics m : new TreeMap<String, CommandMetrics>(metrics).values() ) {
+            snapshots.add(new Snapshot(m));
+        }
+        return snapshots;
+    }
+
+    @Override
+    public long getTotalCalls() {
+        long total = 0L;
+
+        for( CommandMetrics m : metrics.values() ) {
+            if( !m.command.equals(ASYNC_JOBS) ) {
+                total += m.calls.get();
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public long getTotalErrors() {
+        long total = 0L;
+
+        for( CommandMetrics m : metrics.values() ) {
+            if( !m.command.equals(ASYNC_JOBS) ) {
+                total += m.errors.get();
+            }
+        }
+        return total;
+    }
+
+    @Override
+    public void reset() {
+        metrics.clear();
+    }
+}
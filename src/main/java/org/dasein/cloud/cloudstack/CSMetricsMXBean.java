@@ -0,0 +1,40 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.util.List;
+
+/**
+ * JMX view of {@link CSMetrics}, registered as <code>org.dasein.cloud.cloudstack:type=Metrics</code>.
+ */
+public interface CSMetricsMXBean {
+    /**
+     * @return the metrics of every command called so far, one entry per endpoint and command
+     */
+    public List<CSMetrics.Snapshot> getSnapshots();
+
+    public long getTotalCalls();
+
+    public long getTotalErrors();
+
+    /**
+     * Clears all metrics.
+     */
+    public void reset();
+}
@@ -0,0 +1,215 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Records CloudStack traffic to disk so it can be replayed offline, for profiling parsing and mapping against
+ * production-shaped payloads. Register it with {@link CSMethod#addRequestListener(CSRequestListener)} and remove it
+ * when done. Each response that arrived is written as:
+ * <ul>
+ *     <li><code>&lt;command&gt;/&lt;fingerprint&gt;-&lt;n&gt;.xml</code> - the response body, where <code>n</code>
+ *     counts repeats of the same request such as polls of a job</li>
+ *     <li><code>&lt;command&gt;/&lt;fingerprint&gt;-&lt;n&gt;.properties</code> - the status, latency and the request
+ *     the fingerprint was taken from</li>
+ *     <li><code>&lt;command&gt;.xml</code> - the largest successful response of each command, in the layout the
+ *     benchmarks read with <code>-Dcloudstack.fixtures</code></li>
+ * </ul>
+ * The fingerprint is taken from the command and its parameters, ignoring the API key and signature, so a request
+ * signed with other keys maps to the same recording. Sensitive parameters and response elements, such as passwords,
+ * keys and user data, are redacted before anything is written. Recordings are numbered from 1 for each recorder, so
+ * every session should record into an empty directory.
+ */
+public class CSRecorder extends CSRequestListener.Adapter {
+    static private final Logger logger = CSCloud.getLogger(CSRecorder.class, "std");
+
+    private final File                                    directory;
+    private final ConcurrentHashMap<String,AtomicInteger> sequences = new ConcurrentHashMap<String, AtomicInteger>();
+    private final Map<String,Integer>                     largest   = new ConcurrentHashMap<String, Integer>();
+
+    public CSRecorder(@Nonnull File directory) {
+        this.directory = directory;
+    }
+
+    public @Nonnull File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void afterParse(@Nonnull CSRequestEvent event) {
+        record(event);
+    }
+
+    @Override
+    public void onError(@Nonnull CSRequestEvent event, @Nonnull Exception error) {
+        // only failures the server answered can be replayed
+        if( event.getStatus() > 0 && event.getResponseBody() != null ) {
+            record(event);
+        }
+    }
+
+    private void record(@Nonnull CSRequestEvent event) {
+        String body = event.getResponseBody();
+
+        if( body == null ) {
+            return;
+        }
+        Map<String,String> params = new LinkedHashMap<String, String>();
+
+        for( Param param : event.getParameters() ) {
+            if( !params.containsKey(param.getKey()) ) {
+                params.put(param.getKey(), param.getValue() == null ? "" : param.getValue());
+            }
+        }
+        String command = event.getCommand();
+        String fingerprint = fingerprint(command, params);
+        String name = hash(fingerprint);
+        AtomicInteger sequence = sequences.get(command + "/" + name);
+
+        if( sequence == null ) {
+            AtomicInteger created = new AtomicInteger(0);
+
+            sequence = sequences.putIfAbsent(command + "/" + name, created);
+            if( sequence == null ) {
+                sequence = created;
+            }
+        }
+        String content = CSSlowCallLog.redactBody(body);
+        File folder = new File(directory, command);
+        String base = name + "-" + sequence.incrementAndGet();
+        long end = (event.getRead() > 0L ? event.getRead() : System.nanoTime());
+        Properties metadata = new Properties();
+
+        metadata.setProperty("command", command);
+        metadata.setProperty("fingerprint", fingerprint);
+        metadata.setProperty("status", String.valueOf(event.getStatus()));
+        metadata.setProperty("latency", String.valueOf(Math.max(0L, (end - event.getSigned()) / 1000000L)));
+        metadata.setProperty("correlationId", event.getCorrelationId());
+        metadata.setProperty("recorded", String.valueOf(System.currentTimeMillis()));
+        try {
+            if( !folder.isDirectory() && !folder.mkdirs() && !folder.isDirectory() ) {
+                throw new IOException("Unable to create " + folder);
+            }
+            write(new File(folder, base + ".xml"), content);
+
+            OutputStream output = new FileOutputStream(new File(folder, base + ".properties"));
+
+            try {
+                metadata.store(output, null);
+            }
+            finally {
+                output.close();
+            }
+            if( event.getStatus() == 200 ) {
+                updateFixture(command, content);
+            }
+        }
+        catch( IOException e ) {
+            logger.warn("Unable to record " + command + " to " + folder + ": " + e.getMessage());
+        }
+    }
+
+    private synchronized void updateFixture(@Nonnull String command, @Nonnull String content) throws IOException {
+        Integer size = largest.get(command);
+
+        if( size == null || content.length() > size ) {
+            write(new File(directory, command + ".xml"), content);
+            largest.put(command, content.length());
+        }
+    }
+
+    /**
+     * Describes a request independently of the keys it was signed with. Parameter names are matched without regard to
+     * case, as CloudStack matches them, and the values of sensitive parameters are left out.
+     * @param command the command
+     * @param params the parameters of the command, without the command itself
+     * @return the request in a canonical form
+     */
+    static public @Nonnull String fingerprint(@Nonnull String command, @Nonnull Map<String,String> params) {
+        Map<String,String> sorted = new TreeMap<String, String>();
+
+        for( Map.Entry<String,String> entry : params.entrySet() ) {
+            String key = entry.getKey().toLowerCase(Locale.ENGLISH);
+
+            // the server takes the first occurrence of a parameter
+            if( key.equals("command") || key.equals("apikey") || key.equals("signature") || sorted.containsKey(key) ) {
+                continue;
+            }
+            sorted.put(key, CSSlowCallLog.REDACTED.contains(key) ? CSSlowCallLog.REDACTED_VALUE : entry.getValue());
+        }
+        StringBuilder str = new StringBuilder();
+
+        str.append("command=").append(command);
+        for( Map.Entry<String,String> entry : sorted.entrySet() ) {
+            str.append("&").append(entry.getKey()).append("=").append(entry.getValue());
+        }
+        return str.toString();
+    }
+
+    /**
+     * @param fingerprint a request fingerprint
+     * @return the short name under which the request's recordings are stored
+     */
+    static public @Nonnull String hash(@Nonnull String fingerprint) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(fingerprint.getBytes("UTF-8"));
+            StringBuilder str = new StringBuilder();
+
+            for( int i = 0; i < 8; i++ ) {
+                str.append(String.format("%02x", digest[i] & 0xff));
+            }
+            return str.toString();
+        }
+        catch( NoSuchAlgorithmException e ) {
+            throw new RuntimeException("This cannot happen: " + e.getMessage());
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new RuntimeException("This cannot happen: " + e.getMessage());
+        }
+    }
+
+    static private void write(@Nonnull File file, @Nonnull String content) throws IOException {
+        OutputStream output = new FileOutputStream(file);
+
+        try {
+            output.write(content.getBytes("UTF-8"));
+        }
+        finally {
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.w3c.dom.Document;
+
+/**
+ * One CloudStack call as seen by {@link CSRequestListener}s. The event is filled in as the call progresses, so each
+ * callback sees everything known up to its stage. Times are {@link System#nanoTime()} readings, and stages not
+ * reached yet read as 0.
+ * <p>
+ * Every call gets a correlation ID unique within the JVM. Listeners can keep per-call state such as an open span in
+ * the event's attributes.
+ */
+public class CSRequestEvent {
+    static private final String     PREFIX   = Long.toHexString(new Random().nextLong() & 0xffffffffL);
+    static private final AtomicLong sequence = new AtomicLong(0L);
+
+    private final CSCloud            provider;
+    private final String             correlationId;
+    private final String             command;
+    private final List<Param>        parameters;
+    private final long               started;
+    private Map<String,String>       headers;
+    private Map<String,Object>       attributes;
+    private String                   url;
+    private boolean                  post;
+    private int                      requestSize;
+    private int                      status;
+    private long                     signed;
+    private long                     responded;
+    private long                     read;
+    private long                     finished;
+    private long                     responseSize = -1L;
+    private String                   responseBody;
+    private Document                 document;
+
+    CSRequestEvent(@Nonnull CSCloud provider, @Nonnull String command, @Nonnull Param[] parameters, long started) {
+        this.provider = provider;
+        this.correlationId = PREFIX + "-" + Long.toHexString(sequence.incrementAndGet());
+        this.command = command;
+        this.parameters = Collections.unmodifiableList(Arrays.asList(parameters.clone()));
+        this.started = started;
+    }
+
+    public @Nonnull CSCloud getProvider() {
+        return provider;
+    }
+
+    public @Nonnull String getCorrelationId() {
+        return correlationId;
+    }
+
+    public @Nonnull String getCommand() {
+        return command;
+    }
+
+    /**
+     * @return the unsigned parameters of the command; values may include user data or other sensitive content
+     */
+    public @Nonnull List<Param> getParameters() {
+        return parameters;
+    }
+
+    /**
+     * @return the API URL without a query string, or null before signing
+     */
+    public @Nullable String getUrl() {
+        return url;
+    }
+
+    public boolean isPost() {
+        return post;
+    }
+
+    /**
+     * @return the length of the signed query string or form body, or 0 before signing
+     */
+    public int getRequestSize() {
+        return requestSize;
+    }
+
+    /**
+     * @return the HTTP status, or 0 before a response arrived
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    public long getStarted() {
+        return started;
+    }
+
+    public long getSigned() {
+        return signed;
+    }
+
+    public long getResponded() {
+        return responded;
+    }
+
+    public long getRead() {
+        return read;
+    }
+
+    public long getFinished() {
+        return finished;
+    }
+
+    /**
+     * @return the length of the response body, or -1 if it was not read
+     */
+    public long getResponseSize() {
+        return responseSize;
+    }
+
+    /**
+     * @return the raw response body, or null if it was not read
+     */
+    public @Nullable String getResponseBody() {
+        return responseBody;
+    }
+
+    /**
+     * @return the parsed response, available from {@link CSRequestListener#afterParse(CSRequestEvent)} on
+     */
+    public @Nullable Document getDocument() {
+        return document;
+    }
+
+    /**
+     * Adds a header to the request, such as a trace context. Only headers added before the request is sent are used.
+     * @param name the header name
+     * @param value the header value
+     */
+    public synchronized void addHeader(@Nonnull String name, @Nonnull String value) {
+        if( headers == null ) {
+            headers = new LinkedHashMap<String, String>();
+        }
+        headers.put(name, value);
+    }
+
+    public synchronized @Nonnull Map<String,String> getHeaders() {
+        return (headers == null ? Collections.<String,String>emptyMap() : new LinkedHashMap<String, String>(headers));
+    }
+
+    public synchronized @Nullable Object getAttribute(@Nonnull String name) {
+        return (attributes == null ? null : attributes.get(name));
+    }
+
+    public synchronized void setAttribute(@Nonnull String name, @Nullable Object value) {
+        if( attributes == null ) {
+            attributes = new HashMap<String, Object>();
+        }
+        attributes.put(name, value);
+    }
+
+    void signed(@Nonnull String url, boolean post, int requestSize, long signed) {
+        this.url = url;
+        this.post = post;
+        this.requestSize = requestSize;
+        this.signed = signed;
+    }
+
+    void responded(int status, long responded) {
+        this.status = status;
+        this.responded = responded;
+    }
+
+    void read(@Nullable String responseBody, long read) {
+        this.responseBody = responseBody;
+        this.responseSize = (responseBody == null ? -1L : responseBody.length());
+        this.read = read;
+    }
+
+    void finished(@Nullable Document document, long finished) {
+        this.document = document;
+        this.finished = finished;
+    }
+
+    @Override
+    public String toString() {
+        return command + " [" + correlationId + "]";
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+
+/**
+ * Observes every CloudStack call made through {@link CSMethod}, for tracing spans and custom accounting. Listeners are
+ * registered with {@link CSMethod#addRequestListener(CSRequestListener)} and called on the thread making the request,
+ * so they should return quickly; an exception thrown by a listener is logged and otherwise ignored. While no listener
+ * is registered, no events are created at all.
+ * <p>
+ * Extend {@link Adapter} to handle only some of the callbacks.
+ */
+public interface CSRequestListener {
+    /**
+     * Called before the request is signed. Only the command and parameters are known at this point.
+     * @param event the request
+     */
+    public void beforeSign(@Nonnull CSRequestEvent event);
+
+    /**
+     * Called after signing, just before the request is sent. Headers added to the event with
+     * {@link CSRequestEvent#addHeader(String, String)} here are sent with the request.
+     * @param event the request
+     */
+    public void beforeSend(@Nonnull CSRequestEvent event);
+
+    /**
+     * Called once the response status and headers have arrived, before the body is read.
+     * @param event the request, with its status set
+     */
+    public void afterHeaders(@Nonnull CSRequestEvent event);
+
+    /**
+     * Called after a successful response was parsed.
+     * @param event the request, with its document and timings set
+     */
+    public void afterParse(@Nonnull CSRequestEvent event);
+
+    /**
+     * Called when the request fails, at whatever stage it failed.
+     * @param event the request, with as much detail as was known when it failed
+     * @param error the error thrown to the caller
+     */
+    public void onError(@Nonnull CSRequestEvent event, @Nonnull Exception error);
+
+    /**
+     * Called when an async job that was being waited on completes, fails or times out.
+     * @param provider the provider that waited on the job
+     * @param jobId the job ID
+     * @param jobName the description of the job
+     * @param waitNanos how long the job was waited on
+     * @param error the error the job ended with, or null if it succeeded
+     */
+    public void onJobComplete(@Nonnull CSCloud provider, @Nonnull String jobId, @Nonnull String jobName, long waitNanos, @Nullable CloudException error);
+
+    /**
+     * A listener that ignores every callback, to be extended by listeners interested in only a few of them.
+     */
+    static public abstract class Adapter implements CSRequestListener {
+        @Override
+        public void beforeSign(@Nonnull CSRequestEvent event) { }
+
+        @Override
+        public void beforeSend(@Nonnull CSRequestEvent event) { }
+
+        @Override
+        public void afterHeaders(@Nonnull CSRequestEvent event) { }
+
+        @Override
+        public void afterParse(@Nonnull CSRequestEvent event) { }
+
+        @Override
+        public void onError(@Nonnull CSRequestEvent event, @Nonnull Exception error) { }
+
+        @Override
+        public void onJobComplete(@Nonnull CSCloud provider, @Nonnull String jobId, @Nonnull String jobName, long waitNanos, @Nullable CloudException error) { }
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.Cache;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.util.uom.time.TimePeriod;
+
+/**
+ * Single-flight front end to the Dasein {@link Cache} for catalog data. When used with {@link CacheLevel#CLOUD} or
+ * {@link CacheLevel#REGION}, the catalog is held once per endpoint (and region) and shared by every account, and
+ * concurrent misses for the same catalog result in a single download.
+ */
+public final class CSSharedCache {
+    /**
+     * Downloads the full, unfiltered contents of a catalog.
+     * @param <T> the type of catalog item
+     */
+    public interface Loader<T> {
+        @Nonnull Collection<T> load() throws CloudException, InternalException;
+    }
+
+    static private final CSKeyedLocks locks = new CSKeyedLocks();
+
+    /**
+     * Provides the cached catalog, loading it if no current copy exists.
+     * @param provider the provider whose context identifies the endpoint, region and account
+     * @param name the cache name
+     * @param type the type of catalog item
+     * @param level the level at which the catalog is shared
+     * @param timeout how long a loaded catalog remains valid
+     * @param loader the loader invoked on a cache miss
+     * @param <T> the type of catalog item
+     * @return the unmodifiable catalog contents
+     * @throws CloudException an error occurred loading the catalog from the cloud
+     * @throws InternalException an error occurred within Dasein Cloud while loading the catalog
+     */
+    static public @Nonnull <T> Iterable<T> get(@Nonnull CSCloud provider, @Nonnull String name, @Nonnull Class<T> type, @Nonnull CacheLevel level, @Nonnull TimePeriod<?> timeout, @Nonnull Loader<T> loader) throws CloudException, InternalException {
+        ProviderContext ctx = getContext(provider);
+        Cache<T> cache = Cache.getInstance(provider, name, type, level, timeout);
+        Iterable<T> items = cache.get(ctx);
+
+        if( items != null ) {
+            return items;
+        }
+        String key = getLockKey(ctx, name, level);
+        Object lock = locks.acquire(key);
+
+        try {
+            synchronized( lock ) {
+                items = cache.get(ctx);
+                if( items == null ) {
+                    items = Collections.unmodifiableList(new ArrayList<T>(loader.load()));
+                    cache.put(ctx, items);
+                }
+                return items;
+            }
+        }
+        finally {
+            locks.release(key);
+        }
+    }
+
+    /**
+     * Reloads the catalog regardless of whether a current copy exists, replacing the cached copy once the download
+     * completes. Readers keep seeing the previous copy while the refresh is in progress.
+     * @param provider the provider whose context identifies the endpoint, region and account
+     * @param name the cache name
+     * @param type the type of catalog item
+     * @param level the level at which the catalog is shared
+     * @param timeout how long a loaded catalog remains valid
+     * @param loader the loader used to download the catalog
+     * @param <T> the type of catalog item
+     * @return the freshly loaded catalog contents
+     * @throws CloudException an error occurred loading the catalog from the cloud
+     * @throws InternalException an error occurred within Dasein Cloud while loading the catalog
+     */
+    static public @Nonnull <T> Iterable<T> refresh(@Nonnull CSCloud provider, @Nonnull String name, @Nonnull Class<T> type, @Nonnull CacheLevel level, @Nonnull TimePeriod<?> timeout, @Nonnull Loader<T> loader) throws CloudException, InternalException {
+        ProviderContext ctx = getContext(provider);
+        Cache<T> cache = Cache.getInstance(provider, name, type, level, timeout);
+
+        String key = getLockKey(ctx, name, level);
+        Object lock = locks.acquire(key);
+
+        try {
+            synchronized( lock ) {
+                Iterable<T> items = Collections.unmodifiableList(new ArrayList<T>(loader.load()));
+
+                cache.put(ctx, items);
+                return items;
+            }
+        }
+        finally {
+            locks.release(key);
+        }
+    }
+
+    /**
+     * Provides the cached catalog without loading it.
+     * @param provider the provider whose context identifies the endpoint, region and account
+     * @param name the cache name
+     * @param type the type of catalog item
+     * @param level the level at which the catalog is shared
+     * @param timeout how long a loaded catalog remains valid
+     * @param <T> the type of catalog item
+     * @return the cached catalog contents, or null if no current copy exists
+     * @throws CloudException no context was set for the provider
+     */
+    static public @Nullable <T> Iterable<T> peek(@Nonnull CSCloud provider, @Nonnull String name, @Nonnull Class<T> type, @Nonnull CacheLevel level, @Nonnull TimePeriod<?> timeout) throws CloudException {
+        return Cache.getInstance(provider, name, type, level, timeout).get(getContext(provider));
+    }
+
+    /**
+     * Stores a catalog that was loaded outside of this cache, such as one streamed to a caller as it arrived.
+     * @param provider the provider whose context identifies the endpoint, region and account
+     * @param name the cache name
+     * @param type the type of catalog item
+     * @param level the level at which the catalog is shared
+     * @param timeout how long the catalog remains valid
+     * @param items the full catalog contents
+     * @param <T> the type of catalog item
+     * @throws CloudException no context was set for the provider
+     */
+    static public <T> void put(@Nonnull CSCloud provider, @Nonnull String name, @Nonnull Class<T> type, @Nonnull CacheLevel level, @Nonnull TimePeriod<?> timeout, @Nonnull Collection<T> items) throws CloudException {
+        Cache.getInstance(provider, name, type, level, timeout).put(getContext(provider), Collections.unmodifiableList(new ArrayList<T>(items)));
+    }
+
+    static private @Nonnull ProviderContext getContext(@Nonnull CSCloud provider) throws CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        return ctx;
+    }
+
+    static private @Nonnull String getLockKey(@Nonnull ProviderContext ctx, @Nonnull String name, @Nonnull CacheLevel level) {
+        StringBuilder key = new StringBuilder();
+
+        key.append(name).append("/").append(ctx.getCloud().getEndpoint());
+        if( level.equals(CacheLevel.REGION) || level.equals(CacheLevel.REGION_ACCOUNT) ) {
+            key.append("/").append(ctx.getRegionId());
+        }
+        if( level.equals(CacheLevel.CLOUD_ACCOUNT) || level.equals(CacheLevel.REGION_ACCOUNT) ) {
+            key.append("/").append(ctx.getAccountNumber());
+        }
+        return key.toString();
+    }
+
+    private CSSharedCache() { }
+}
@@ -0,0 +1,249 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.ProviderContext;
+
+/**
+ * Logs the CloudStack calls worth looking at, so diagnosing slow or failing calls does not require the full wire log.
+ * A call slower than its threshold, or one that fails with a server or transport error, is logged at WARN with its
+ * redacted request line, status, timing breakdown and the start of the response body. Optionally, a few ordinary
+ * calls per minute are logged at INFO as a baseline for comparison. Everything goes to the <code>dasein.cloud.cloudstack.slow.CSMethod</code>
+ * logger. The log is off unless the <code>slowCallLog</code> property is set, and nothing is captured while the
+ * logger is off either.
+ * <p>
+ * Custom properties:
+ * <ul>
+ *     <li><code>slowCallLog</code> - <code>true</code> to capture calls for this log (default false)</li>
+ *     <li><code>slowCallThreshold</code> - milliseconds after which a call is slow (default 10000, negative to
+ *     disable)</li>
+ *     <li><code>slowCallThreshold.&lt;command&gt;</code> - the threshold for a single command</li>
+ *     <li><code>slowCallSamplesPerMinute</code> - ordinary calls logged per minute (default 0)</li>
+ *     <li><code>slowCallBodyLimit</code> - characters of the response body to log (default 2000)</li>
+ * </ul>
+ */
+public class CSSlowCallLog {
+    static private final Logger logger = CSCloud.getLogger(CSMethod.class, "slow");
+
+    static public final long DEFAULT_THRESHOLD  = 10000L;
+    static public final int  DEFAULT_BODY_LIMIT = 2000;
+
+    /**
+     * Parameters whose values are never logged, because they carry credentials, keys or user data.
+     */
+    static final Set<String> REDACTED = Collections.unmodifiableSet(new HashSet<String>(Arrays.asList(
+            "apikey", "signature", "password", "encryptedpassword", "userdata", "privatekey", "publickey", "certificate",
+            "certchain", "secretkey", "sessionkey"
+    )));
+
+    static final String REDACTED_VALUE = "[redacted]";
+
+    static private final Pattern SENSITIVE_ELEMENT;
+
+    static {
+        StringBuilder names = new StringBuilder();
+
+        for( String name : REDACTED ) {
+            if( names.length() > 0 ) {
+                names.append("|");
+            }
+            names.append(Pattern.quote(name));
+        }
+        // matches the whole element, nested elements included, so wrapped values such as
+        // <password><encryptedpassword>...</encryptedpassword></password> are removed as well
+        SENSITIVE_ELEMENT = Pattern.compile("<(" + names + ")(\\s[^>]*)?>.*?</\\1\\s*>", Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+    }
+
+    static private final AtomicLong    sampleWindow = new AtomicLong(-1L);
+    static private final AtomicInteger samples      = new AtomicInteger(0);
+
+    /**
+     * The details of one call, filled in by {@link CSMethod} as the call progresses.
+     */
+    static class Call {
+        String  command;
+        String  url;
+        String  query;
+        boolean post;
+        int     status;
+        long    started;
+        long    signed;
+        long    responded;
+        long    read;
+        long    parsed;
+        long    finished;
+        String  body;
+        String  error;
+    }
+
+    /**
+     * @param ctx the context of the call, which holds the <code>slowCallLog</code> switch
+     * @return true if calls should be captured for this log at all
+     */
+    static boolean isEnabled(@Nullable ProviderContext ctx) {
+        Properties properties = (ctx == null ? null : ctx.getCustomProperties());
+
+        if( properties == null || !"true".equalsIgnoreCase(properties.getProperty("slowCallLog", "false").trim()) ) {
+            return false;
+        }
+        return logger.isEnabledFor(Level.WARN);
+    }
+
+    /**
+     * Logs the call if it failed, was slower than its threshold, or is picked as a sample of ordinary traffic.
+     * @param ctx the context of the call, which holds the thresholds
+     * @param call the completed call
+     */
+    static void record(@Nullable ProviderContext ctx, @Nonnull Call call) {
+        Properties properties = (ctx == null ? null : ctx.getCustomProperties());
+        long threshold = getLong(properties, "slowCallThreshold." + call.command, getLong(properties, "slowCallThreshold", DEFAULT_THRESHOLD));
+        long elapsed = (call.finished - call.started) / 1000000L;
+
+        // client errors such as a lookup of a missing resource are routine; server and transport errors are not
+        boolean broken = (call.error != null && (call.status == 0 || call.status >= 500));
+
+        if( broken || (threshold >= 0L && elapsed >= threshold) ) {
+            logger.warn(describe(call, properties, broken ? "Failed call" : "Slow call (threshold " + threshold + " ms)"));
+        }
+        else if( logger.isInfoEnabled() && isSampled(getLong(properties, "slowCallSamplesPerMinute", 0L)) ) {
+            logger.info(describe(call, properties, "Sampled call"));
+        }
+    }
+
+    static private boolean isSampled(long perMinute) {
+        if( perMinute <= 0L ) {
+            return false;
+        }
+        long window = System.currentTimeMillis() / 60000L;
+        long current = sampleWindow.get();
+
+        if( window != current && sampleWindow.compareAndSet(current, window) ) {
+            samples.set(0);
+        }
+        return (samples.incrementAndGet() <= perMinute);
+    }
+
+    static private @Nonnull String describe(@Nonnull Call call, @Nullable Properties properties, @Nonnull String reason) {
+        StringBuilder str = new StringBuilder();
+
+        str.append(reason).append(": ").append(call.post ? "POST " : "GET ").append(call.url).append("?").append(redact(call.query));
+        str.append(" -> ").append(call.status == 0 ? "no response" : String.valueOf(call.status));
+        str.append(" in ").append(millis(call.started, call.finished)).append(" ms");
+        str.append(" [sign ").append(millis(call.started, call.signed));
+        str.append(", wait ").append(millis(call.signed, call.responded));
+        str.append(", read ").append(millis(call.responded, call.read));
+        str.append(", parse ").append(millis(call.read, call.parsed)).append("]");
+        if( call.error != null ) {
+            str.append(" error: ").append(call.error);
+        }
+        if( call.body != null ) {
+            int limit = (int)getLong(properties, "slowCallBodyLimit", DEFAULT_BODY_LIMIT);
+            String body = redactBody(call.body);
+
+            str.append("\n");
+            if( limit >= 0 && body.length() > limit ) {
+                str.append(body, 0, limit).append("... [").append(body.length() - limit).append(" more characters]");
+            }
+            else {
+                str.append(body);
+            }
+        }
+        return str.toString();
+    }
+
+    /**
+     * Replaces the values of sensitive parameters in a query string, keeping the parameter names so the request shape
+     * stays visible.
+     * @param query the encoded query string
+     * @return the query string with sensitive values replaced
+     */
+    static @Nonnull String redact(@Nullable String query) {
+        if( query == null ) {
+            return "";
+        }
+        StringBuilder str = new StringBuilder();
+
+        for( String pair : query.split("&") ) {
+            int idx = pair.indexOf('=');
+            String key = (idx < 0 ? pair : pair.substring(0, idx));
+
+            if( str.length() > 0 ) {
+                str.append("&");
+            }
+            if( idx >= 0 && REDACTED.contains(key.toLowerCase(Locale.ENGLISH)) ) {
+                str.append(key).append("=").append(REDACTED_VALUE);
+            }
+            else {
+                str.append(pair);
+            }
+        }
+        return str.toString();
+    }
+
+    /**
+     * Replaces the content of response elements that carry credentials, keys or user data, including any elements
+     * nested within them.
+     * @param body the response body
+     * @return the body with sensitive content replaced
+     */
+    static @Nonnull String redactBody(@Nonnull String body) {
+        Matcher matcher = SENSITIVE_ELEMENT.matcher(body);
+        StringBuffer str = new StringBuffer();
+
+        while( matcher.find() ) {
+            matcher.appendReplacement(str, Matcher.quoteReplacement("<" + matcher.group(1) + ">" + REDACTED_VALUE + "</" + matcher.group(1) + ">"));
+        }
+        matcher.appendTail(str);
+        return str.toString();
+    }
+
+    static private long millis(long from, long to) {
+        return (from <= 0L || to <= 0L || to < from ? 0L : (to - from) / 1000000L);
+    }
+
+    static private long getLong(@Nullable Properties properties, @Nonnull String name, long defaultValue) {
+        String value = (properties == null ? null : properties.getProperty(name));
+
+        if( value != null ) {
+            try {
+                return Long.parseLong(value.trim());
+            }
+            catch( NumberFormatException e ) {
+                CSCloud.getLogger(CSSlowCallLog.class, "std").warn("Invalid value for " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+}
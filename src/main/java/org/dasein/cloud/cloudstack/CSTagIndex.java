@@ -0,0 +1,378 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.Tag;
+import org.dasein.cloud.util.APITrace;
+import org.dasein.util.CalendarWrapper;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Index of the tags on every resource of one type in an account, built from a single paged
+ * <code>listTags&amp;resourcetype=...</code> sweep instead of one <code>listTags</code> call per resource. Indexes are
+ * kept for <code>tagCacheTimeout</code> seconds (default 60) and are updated in place when tags are created or
+ * removed through {@link CSCloud}, so mappers can decorate whole listings with their tags from memory. Concurrent
+ * requests for the same missing index share a single sweep. A listing should capture the index once and hand it to
+ * its mapper; lookups of a single resource should rely on the <code>tags</code> elements of the resource itself
+ * (see {@link #parseTags(Node)}) rather than load a whole index for one resource.
+ */
+public class CSTagIndex {
+    static private final Logger logger = CSCloud.getLogger(CSTagIndex.class, "std");
+
+    static private final int  PAGE_SIZE       = 500;
+    static private final long DEFAULT_TIMEOUT = CalendarWrapper.MINUTE;
+
+    static private final CSTagIndex EMPTY = new CSTagIndex(new HashMap<String, Map<String, String>>(), Long.MAX_VALUE);
+
+    static private final ConcurrentHashMap<String,CSTagIndex> indexes = new ConcurrentHashMap<String, CSTagIndex>();
+    static private final CSKeyedLocks                         locks   = new CSKeyedLocks();
+
+    /**
+     * Provides the tag index for the specified resource type in the account of the provider's current context,
+     * loading it if no current copy exists. If the cloud does not support tags, an empty index is returned.
+     * @param provider the provider whose context identifies the endpoint and account
+     * @param resourceType the CloudStack resource type, such as <code>UserVm</code> or <code>Volume</code>
+     * @return the tag index for the resource type
+     * @throws CloudException an error occurred loading the tags from the cloud
+     * @throws InternalException an error occurred within Dasein Cloud while loading the tags
+     */
+    static public @Nonnull CSTagIndex getInstance(@Nonnull CSCloud provider, @Nonnull String resourceType) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        String key = getKey(ctx, resourceType);
+        CSTagIndex index = indexes.get(key);
+
+        if( index != null && System.currentTimeMillis() < index.expiration ) {
+            return index;
+        }
+        if( !provider.hasApi(CSCloud.LIST_TAGS) ) {
+            return EMPTY;
+        }
+        Object lock = locks.acquire(key);
+
+        try {
+            synchronized( lock ) {
+                index = indexes.get(key);
+                if( index == null || System.currentTimeMillis() >= index.expiration ) {
+                    index = load(provider, resourceType, System.currentTimeMillis() + getTimeout(ctx));
+                    indexes.put(key, index);
+                }
+                return index;
+            }
+        }
+        finally {
+            locks.release(key);
+        }
+    }
+
+    /**
+     * Reloads the tag index for the specified resource type regardless of its current age.
+     * @param provider the provider whose context identifies the endpoint and account
+     * @param resourceType the CloudStack resource type
+     * @return the freshly loaded tag index
+     * @throws CloudException an error occurred loading the tags from the cloud
+     * @throws InternalException an error occurred within Dasein Cloud while loading the tags
+     */
+    static public @Nonnull CSTagIndex refresh(@Nonnull CSCloud provider, @Nonnull String resourceType) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        if( !provider.hasApi(CSCloud.LIST_TAGS) ) {
+            return EMPTY;
+        }
+        String key = getKey(ctx, resourceType);
+
+        Object lock = locks.acquire(key);
+
+        try {
+            synchronized( lock ) {
+                CSTagIndex index = load(provider, resourceType, System.currentTimeMillis() + getTimeout(ctx));
+
+                indexes.put(key, index);
+                return index;
+            }
+        }
+        finally {
+            locks.release(key);
+        }
+    }
+
+    /**
+     * Reads the tags on a single resource directly from the cloud, bypassing the index.
+     * @param provider the provider whose context identifies the endpoint and account
+     * @param resourceType the CloudStack resource type
+     * @param resourceId the resource ID
+     * @return the tags on the resource, or an empty map if it has none or the cloud does not support tags
+     * @throws CloudException an error occurred loading the tags from the cloud
+     * @throws InternalException an error occurred within Dasein Cloud while loading the tags
+     */
+    static public @Nonnull Map<String,String> fetchTags(@Nonnull CSCloud provider, @Nonnull String resourceType, @Nonnull String resourceId) throws CloudException, InternalException {
+        if( !provider.hasApi(CSCloud.LIST_TAGS) ) {
+            return Collections.emptyMap();
+        }
+        APITrace.begin(provider, "Cloud.fetchTags");
+        try {
+            Map<String,Map<String,String>> tags = new HashMap<String, Map<String, String>>();
+            Document doc = new CSMethod(provider).get(CSCloud.LIST_TAGS, new Param("resourcetype", resourceType), new Param("resourceid", resourceId), new Param("listall", "true"));
+            NodeList matches = doc.getElementsByTagName("tag");
+
+            for( int i=0; i<matches.getLength(); i++ ) {
+                parseTag(matches.item(i), tags);
+            }
+            Map<String,String> current = tags.get(resourceId);
+
+            return (current == null ? Collections.<String,String>emptyMap() : Collections.unmodifiableMap(current));
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Reads the tags embedded in a resource element of a list response, that is its <code>tags</code> children, each
+     * with a <code>key</code> and a <code>value</code>.
+     * @param resource the resource element, such as a <code>virtualmachine</code> element
+     * @return the tags on the resource, keyed by tag name
+     */
+    static public @Nonnull Map<String,String> parseTags(@Nonnull Node resource) {
+        Map<String,String> tags = new HashMap<String, String>();
+        NodeList attributes = resource.getChildNodes();
+
+        for( int i=0; i<attributes.getLength(); i++ ) {
+            Node attribute = attributes.item(i);
+
+            if( !attribute.getNodeName().equalsIgnoreCase("tags") || !attribute.hasChildNodes() ) {
+                continue;
+            }
+            NodeList parts = attribute.getChildNodes();
+            String key = null, value = null;
+
+            for( int j=0; j<parts.getLength(); j++ ) {
+                Node part = parts.item(j);
+
+                if( part.getNodeName().equalsIgnoreCase("key") ) {
+                    key = CSCloud.getTextValue(part);
+                }
+                else if( part.getNodeName().equalsIgnoreCase("value") ) {
+                    value = CSCloud.getTextValue(part);
+                }
+            }
+            if( key != null ) {
+                tags.put(key, value == null ? "" : value);
+            }
+        }
+        return tags;
+    }
+
+    /**
+     * Records newly created tags in the index for the resource type, if one is loaded.
+     * @param provider the provider whose context identifies the endpoint and account
+     * @param resourceType the CloudStack resource type
+     * @param resourceIds the tagged resources
+     * @param tags the tags created on each resource
+     */
+    static void tagsCreated(@Nonnull CSCloud provider, @Nonnull String resourceType, @Nonnull String[] resourceIds, @Nonnull Tag... tags) {
+        CSTagIndex index = getLoaded(provider, resourceType);
+
+        if( index != null ) {
+            for( String resourceId : resourceIds ) {
+                index.update(resourceId, tags, false);
+            }
+        }
+    }
+
+    /**
+     * Removes deleted tags from the index for the resource type, if one is loaded.
+     * @param provider the provider whose context identifies the endpoint and account
+     * @param resourceType the CloudStack resource type
+     * @param resourceIds the resources whose tags were removed
+     * @param tags the removed tags; if empty, all tags were removed from the resources
+     */
+    static void tagsRemoved(@Nonnull CSCloud provider, @Nonnull String resourceType, @Nonnull String[] resourceIds, @Nonnull Tag... tags) {
+        CSTagIndex index = getLoaded(provider, resourceType);
+
+        if( index != null ) {
+            for( String resourceId : resourceIds ) {
+                index.update(resourceId, tags, true);
+            }
+        }
+    }
+
+    /**
+     * Drops the index for the resource type so the next request reloads it.
+     * @param provider the provider whose context identifies the endpoint and account
+     * @param resourceType the CloudStack resource type
+     */
+    static public void invalidate(@Nonnull CSCloud provider, @Nonnull String resourceType) {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx != null ) {
+            indexes.remove(getKey(ctx, resourceType));
+        }
+    }
+
+    static private @Nullable CSTagIndex getLoaded(@Nonnull CSCloud provider, @Nonnull String resourceType) {
+        ProviderContext ctx = provider.getContext();
+
+        return (ctx == null ? null : indexes.get(getKey(ctx, resourceType)));
+    }
+
+    static private @Nonnull String getKey(@Nonnull ProviderContext ctx, @Nonnull String resourceType) {
+        return ctx.getCloud().getEndpoint() + "/" + ctx.getAccountNumber() + "/" + resourceType.toLowerCase(Locale.ENGLISH);
+    }
+
+    static private long getTimeout(@Nonnull ProviderContext ctx) {
+        Properties properties = ctx.getCustomProperties();
+        String value = (properties == null ? null : properties.getProperty("tagCacheTimeout"));
+
+        if( value != null ) {
+            try {
+                return Long.parseLong(value.trim()) * CalendarWrapper.SECOND;
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Invalid value for tagCacheTimeout: " + value);
+            }
+        }
+        return DEFAULT_TIMEOUT;
+    }
+
+    static private @Nonnull CSTagIndex load(@Nonnull CSCloud provider, @Nonnull String resourceType, long expiration) throws CloudException, InternalException {
+        APITrace.begin(provider, "Cloud.loadTagIndex");
+        try {
+            Map<String,Map<String,String>> tags = new HashMap<String, Map<String, String>>();
+            CSMethod method = new CSMethod(provider);
+            int page = 1;
+
+            while( true ) {
+                Document doc = method.get(CSCloud.LIST_TAGS, new Param("resourcetype", resourceType), new Param("listall", "true"), new Param("page", String.valueOf(page)), new Param("pagesize", String.valueOf(PAGE_SIZE)));
+                NodeList matches = doc.getElementsByTagName("tag");
+
+                for( int i=0; i<matches.getLength(); i++ ) {
+                    parseTag(matches.item(i), tags);
+                }
+                if( matches.getLength() < PAGE_SIZE ) {
+                    break;
+                }
+                page++;
+            }
+            return new CSTagIndex(tags, expiration);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    static private void parseTag(@Nonnull Node node, @Nonnull Map<String,Map<String,String>> tags) {
+        NodeList attributes = node.getChildNodes();
+        String resourceId = null, key = null, value = null;
+
+        for( int i=0; i<attributes.getLength(); i++ ) {
+            Node attribute = attributes.item(i);
+            String name = attribute.getNodeName().toLowerCase();
+
+            if( name.equals("resourceid") ) {
+                resourceId = CSCloud.getTextValue(attribute);
+            }
+            else if( name.equals("key") ) {
+                key = CSCloud.getTextValue(attribute);
+            }
+            else if( name.equals("value") ) {
+                value = CSCloud.getTextValue(attribute);
+            }
+        }
+        if( resourceId != null && key != null ) {
+            Map<String,String> current = tags.get(resourceId);
+
+            if( current == null ) {
+                current = new HashMap<String, String>();
+                tags.put(resourceId, current);
+            }
+            current.put(key, value == null ? "" : value);
+        }
+    }
+
+    private final ConcurrentHashMap<String,Map<String,String>> tags;
+    private final long                                         expiration;
+
+    private CSTagIndex(@Nonnull Map<String,Map<String,String>> tags, long expiration) {
+        this.tags = new ConcurrentHashMap<String, Map<String, String>>();
+        for( Map.Entry<String,Map<String,String>> entry : tags.entrySet() ) {
+            this.tags.put(entry.getKey(), Collections.unmodifiableMap(entry.getValue()));
+        }
+        this.expiration = expiration;
+    }
+
+    private synchronized void update(@Nonnull String resourceId, @Nonnull Tag[] changes, boolean remove) {
+        Map<String,String> current = tags.get(resourceId);
+        Map<String,String> updated = (current == null ? new HashMap<String, String>() : new HashMap<String, String>(current));
+
+        if( remove && changes.length == 0 ) {
+            updated.clear();
+        }
+        for( Tag tag : changes ) {
+            if( remove ) {
+                updated.remove(tag.getKey());
+            }
+            else if( tag.getValue() != null && !tag.getValue().equals("") ) {
+                updated.put(tag.getKey(), tag.getValue());
+            }
+        }
+        if( updated.isEmpty() ) {
+            tags.remove(resourceId);
+        }
+        else {
+            tags.put(resourceId, Collections.unmodifiableMap(updated));
+        }
+    }
+
+    /**
+     * @param resourceId the resource ID
+     * @return the tags on the resource, or an empty map if it has none
+     */
+    public @Nonnull Map<String,String> getTags(@Nonnull String resourceId) {
+        Map<String,String> current = tags.get(resourceId);
+
+        return (current == null ? Collections.<String,String>emptyMap() : current);
+    }
+
+    public int size() {
+        return tags.size();
+    }
+}
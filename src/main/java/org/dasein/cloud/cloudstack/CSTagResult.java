@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+
+/**
+ * Result of a bulk tag operation. Large resource sets are tagged in chunks, and each chunk succeeds or fails on its
+ * own, so callers can see exactly which resources were not tagged.
+ */
+public class CSTagResult {
+    /**
+     * One chunk of resources submitted in a single <code>createTags</code> or <code>deleteTags</code> call.
+     */
+    static public class Chunk {
+        private final List<String>   resourceIds;
+        private final CloudException error;
+
+        Chunk(@Nonnull List<String> resourceIds, @Nullable CloudException error) {
+            this.resourceIds = Collections.unmodifiableList(resourceIds);
+            this.error = error;
+        }
+
+        public @Nonnull List<String> getResourceIds() {
+            return resourceIds;
+        }
+
+        public @Nullable CloudException getError() {
+            return error;
+        }
+
+        public boolean isSuccessful() {
+            return (error == null);
+        }
+    }
+
+    private final String      operation;
+    private final List<Chunk> chunks = new ArrayList<Chunk>();
+
+    CSTagResult(@Nonnull String operation) {
+        this.operation = operation;
+    }
+
+    synchronized void add(@Nonnull Chunk chunk) {
+        chunks.add(chunk);
+    }
+
+    synchronized void addAll(@Nonnull CSTagResult other) {
+        chunks.addAll(other.getChunks());
+    }
+
+    public synchronized @Nonnull List<Chunk> getChunks() {
+        return new ArrayList<Chunk>(chunks);
+    }
+
+    public synchronized @Nonnull List<Chunk> getFailedChunks() {
+        List<Chunk> failed = new ArrayList<Chunk>();
+
+        for( Chunk chunk : chunks ) {
+            if( !chunk.isSuccessful() ) {
+                failed.add(chunk);
+            }
+        }
+        return failed;
+    }
+
+    public @Nonnull List<String> getFailedResourceIds() {
+        List<String> ids = new ArrayList<String>();
+
+        for( Chunk chunk : getFailedChunks() ) {
+            ids.addAll(chunk.getResourceIds());
+        }
+        return ids;
+    }
+
+    public boolean isSuccessful() {
+        return getFailedChunks().isEmpty();
+    }
+
+    /**
+     * Turns any chunk failures into an exception for callers that treat tagging as all-or-nothing.
+     * @throws CloudException one or more chunks failed; the first failure is the cause
+     */
+    public void checkSuccess() throws CloudException {
+        List<Chunk> failed = getFailedChunks();
+
+        if( !failed.isEmpty() ) {
+            CloudException first = failed.get(0).getError();
+
+            throw new CloudException(operation + " failed for " + getFailedResourceIds().size() + " resource(s) in " + failed.size() + " of " + getChunks().size() + " chunk(s): " + (first == null ? "unknown error" : first.getMessage()), first);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return operation + " [" + getChunks().size() + " chunk(s), " + getFailedChunks().size() + " failed]";
+    }
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+
+/**
+ * A group of independent lookups that run concurrently on the provider's task executor and are joined under one
+ * deadline. The executor is shared with every other bulk operation of the provider, so {@link #join()} runs any lookup
+ * the executor has not started yet on the calling thread instead of waiting for a pool thread to free up; a group
+ * therefore always makes progress, even when the executor is saturated. The first lookup to fail cancels the rest
+ * and its error is thrown from {@link #join()}, so a caller never waits on the remaining lookups once the overall
+ * operation is bound to fail.
+ */
+public class CSTaskGroup {
+    private final CSCloud                        provider;
+    private final long                           deadline;
+    private final List<FutureTask<?>>            tasks     = new ArrayList<FutureTask<?>>();
+    private final LinkedBlockingQueue<Future<?>> completed = new LinkedBlockingQueue<Future<?>>();
+
+    /**
+     * @param provider the provider whose task executor runs the lookups
+     * @param timeout the time in milliseconds that all lookups together may take
+     */
+    public CSTaskGroup(@Nonnull CSCloud provider, long timeout) {
+        this.provider = provider;
+        this.deadline = System.currentTimeMillis() + timeout;
+    }
+
+    /**
+     * Starts a lookup as part of this group.
+     * @param task the lookup
+     * @param <T> the type of the lookup result
+     * @return the future result of the lookup, which is complete once {@link #join()} returns
+     */
+    public @Nonnull <T> Future<T> fork(@Nonnull Callable<T> task) {
+        FutureTask<T> future = new FutureTask<T>(task) {
+            @Override
+            protected void done() {
+                completed.add(this);
+            }
+        };
+
+        tasks.add(future);
+        if( provider.isTaskThread() ) {
+            // a pool thread waiting on the pool could deadlock it
+            future.run();
+        }
+        else {
+            try {
+                provider.getTaskExecutor().execute(future);
+            }
+            catch( RejectedExecutionException e ) {
+                // the provider was closed; join() runs the lookup on the calling thread
+            }
+        }
+        return future;
+    }
+
+    /**
+     * Waits for every lookup in the group to finish, running any lookup the executor has not started yet on the
+     * calling thread.
+     * @throws CloudException a lookup failed with a cloud error, or the deadline passed first
+     * @throws InternalException a lookup failed with an internal error, or the wait was interrupted
+     */
+    public void join() throws CloudException, InternalException {
+        try {
+            for( int remaining = tasks.size(); remaining > 0; remaining-- ) {
+                Future<?> done = completed.poll();
+
+                if( done == null ) {
+                    runPending();
+                    long wait = deadline - System.currentTimeMillis();
+
+                    done = (wait > 0L ? completed.poll(wait, TimeUnit.MILLISECONDS) : completed.poll());
+                }
+                if( done == null ) {
+                    cancel();
+                    throw new CloudException("Timed out waiting for " + remaining + " of " + tasks.size() + " lookup(s) to complete");
+                }
+                try {
+                    done.get();
+                }
+                catch( ExecutionException e ) {
+                    cancel();
+                    rethrow(e);
+                }
+            }
+        }
+        catch( InterruptedException e ) {
+            cancel();
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * Provides the result of a lookup in this group after {@link #join()} has returned, with any failure thrown as
+     * the cloud or internal error the lookup raised.
+     * @param lookup the future returned by {@link #fork(Callable)}
+     * @param <T> the type of the lookup result
+     * @return the result of the lookup
+     * @throws CloudException the lookup failed with a cloud error
+     * @throws InternalException the lookup failed with an internal error, or was not complete
+     */
+    public @Nullable <T> T get(@Nonnull Future<T> lookup) throws CloudException, InternalException {
+        if( !lookup.isDone() ) {
+            throw new InternalException("The lookup has not completed; join() must return before its result is read");
+        }
+        try {
+            return lookup.get();
+        }
+        catch( ExecutionException e ) {
+            rethrow(e);
+            return null;
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+    }
+
+    private void runPending() {
+        for( FutureTask<?> task : tasks ) {
+            if( !completed.isEmpty() || System.currentTimeMillis() >= deadline ) {
+                return;
+            }
+            // does nothing if the executor has already started the lookup
+            task.run();
+        }
+    }
+
+    static private void rethrow(@Nonnull ExecutionException e) throws CloudException, InternalException {
+        Throwable cause = e.getCause();
+
+        if( cause instanceof CloudException ) {
+            throw (CloudException)cause;
+        }
+        if( cause instanceof InternalException ) {
+            throw (InternalException)cause;
+        }
+        throw new InternalException(cause);
+    }
+
+    private void cancel() {
+        for( Future<?> task : tasks ) {
+            task.cancel(true);
+        }
+    }
+}
@@ -39,12 +39,8 @@ import org.dasein.cloud.dc.StoragePool;
 import org.dasein.cloud.util.APITrace;
 import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
-import org.dasein.util.uom.time.Day;
 import org.dasein.util.uom.time.Minute;
 import org.dasein.util.uom.time.TimePeriod;
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -100,45 +96,11 @@ public class CSTopology extends AbstractDataCenterServices<CSCloud> {
     }
 
     public boolean zoneSupportsVlans(@Nonnull String zoneId) throws InternalException, CloudException {
-        Cache<Boolean> cache = Cache.getInstance(getProvider(), "advanced.vlan."+zoneId, Boolean.class, CacheLevel.CLOUD_ACCOUNT,
-                new TimePeriod<Day>(1,
-                TimePeriod.DAY));
-        Iterable<Boolean> cachedValues = cache.get(getContext());
-        if( cachedValues != null && cachedValues.iterator().hasNext() ) {
-            return cachedValues.iterator().next();
-        }
-
         APITrace.begin(getProvider(), "DC.zoneSupportsVlans");
         try {
-            Document doc = new CSMethod(getProvider()).get(LIST_ZONES, new Param("available", "true"));
-
-            NodeList matches = doc.getElementsByTagName("zone");
-            for( int i=0; i<matches.getLength(); i++ ) {
-                Node zone = matches.item(i);
-
-                if( zone.hasChildNodes() ) {
-                    NodeList attrs = zone.getChildNodes();
-                    String networkType = null;
-                    String id = null;
+            CSZoneCatalog.Zone zone = CSZoneCatalog.getInstance(getProvider()).getZone(zoneId);
 
-                    for( int j=0; j<attrs.getLength(); j++ ) {
-                        Node attr = attrs.item(j);
-
-                        if( attr.getNodeName().equalsIgnoreCase("id") ) {
-                            id = attr.getFirstChild().getNodeValue().trim();
-                        }
-                        else if( attr.getNodeName().equalsIgnoreCase("networkType") ) {
-                            networkType = attr.getFirstChild().getNodeValue().trim();
-                        }
-                    }
-                    if( zoneId.equals(id) ) {
-                        boolean advancedZone = !"basic".equalsIgnoreCase(networkType);
-                        cache.put(getContext(), Collections.singleton(advancedZone));
-                        return advancedZone;
-                    }
-                }
-            }
-            return false;
+            return (zone != null && !zone.isBasic());
         }
         finally {
             APITrace.end();
@@ -148,41 +110,12 @@ public class CSTopology extends AbstractDataCenterServices<CSCloud> {
     public boolean supportsSecurityGroups(@Nonnull String zoneId, boolean basicOnly) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "DC.supportsSecurityGroups");
         try {
-            Document doc = new CSMethod(getProvider()).get(LIST_ZONES, new Param("available", "true"));
-            boolean sg = false;
-            boolean basic = false;
-
-            NodeList matches = doc.getElementsByTagName("zone");
-            for( int i=0; i<matches.getLength(); i++ ) {
-                Node zone = matches.item(i);
-
-                if( zone.hasChildNodes() ) {
-                    NodeList attrs = zone.getChildNodes();
-                    boolean groups = false;
-                    String networkType = null;
-                    String id = null;
+            CSZoneCatalog.Zone zone = CSZoneCatalog.getInstance(getProvider()).getZone(zoneId);
 
-                    for( int j=0; j<attrs.getLength(); j++ ) {
-                        Node attr = attrs.item(j);
-
-                        if( attr.getNodeName().equalsIgnoreCase("id") ) {
-                            id = attr.getFirstChild().getNodeValue().trim();
-                        }
-                        else if( attr.getNodeName().equalsIgnoreCase("networkType") ) {
-                            networkType = attr.getFirstChild().getNodeValue().trim();
-                        }
-                        else if( attr.getNodeName().equalsIgnoreCase("securitygroupsenabled") ) {
-                            groups = attr.getFirstChild().getNodeValue().trim().equalsIgnoreCase("true");
-                        }
-                    }
-                    if( zoneId.equals(id) ) {
-                        basic = "basic".equalsIgnoreCase(networkType);
-                        sg = groups;
-                        break;
-                    }
-                }
+            if( zone == null ) {
+                return false;
             }
-            return ((!basicOnly || basic) && sg);
+            return ((!basicOnly || zone.isBasic()) && zone.isSecurityGroupsEnabled());
         }
         finally {
             APITrace.end();
@@ -221,28 +154,18 @@ public class CSTopology extends AbstractDataCenterServices<CSCloud> {
     public @Nonnull Iterable<Region> listRegions() throws InternalException, CloudException {
         APITrace.begin(getProvider(), "DC.listRegions");
         try {
-            Cache<Region> cache = Cache.getInstance(getProvider(), "regions", Region.class, CacheLevel.CLOUD_ACCOUNT, new TimePeriod<Minute>(15, TimePeriod.MINUTE));
-            Iterable<Region> regions = cache.get(getContext());
-
-            if( regions == null ) {
-                Document doc = new CSMethod(getProvider()).get(LIST_ZONES, new Param("available", "true"));
+            List<Region> regions = new ArrayList<Region>();
 
-                regions = new ArrayList<Region>();
-                NodeList matches = doc.getElementsByTagName("zone");
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    Region r = toRegion(matches.item(i));
+            for( CSZoneCatalog.Zone zone : CSZoneCatalog.getInstance(getProvider()).getZones() ) {
+                Region r = toRegion(zone);
 
-                    if( r != null ) {
-                        if (getProvider().getProviderName().contains("Datapipe")) {
-                            // don't return Shanghai region as there are Chinese license concerns
-                            if (r.getName().contains("Shanghai")) {
-                                continue;
-                            }
-                        }
-                        ((List)regions).add(r);
+                if (getProvider().getProviderName().contains("Datapipe")) {
+                    // don't return Shanghai region as there are Chinese license concerns
+                    if (r.getName().contains("Shanghai")) {
+                        continue;
                     }
                 }
-                cache.put(getContext(), regions);
+                regions.add(r);
             }
             return regions;
         }
@@ -251,37 +174,11 @@ public class CSTopology extends AbstractDataCenterServices<CSCloud> {
         }
     }
 
-    private @Nullable Region toRegion(@Nullable Node node) {
-        if( node == null ) {
-            return null;
-        }
-        NodeList attributes = node.getChildNodes();
+    private @Nonnull Region toRegion(@Nonnull CSZoneCatalog.Zone zone) {
         Region region = new Region();
-        
-        for( int i=0; i<attributes.getLength(); i++ ) {
-            Node n = attributes.item(i);
-            String name = n.getNodeName().toLowerCase();
-            String value;
-            
-            if( n.getChildNodes().getLength() > 0 ) {
-                value = n.getFirstChild().getNodeValue();
-            }
-            else {
-                value = null;
-            }
-            if( name.equals("id") ) {
-                region.setProviderRegionId(value);
-            }
-            else if( name.equals("name") ) {
-                region.setName(value);
-            }
-        }
-        if( region.getProviderRegionId() == null ) {
-            return null;
-        }
-        if( region.getName() == null ) {
-            region.setName(region.getProviderRegionId());
-        }
+
+        region.setProviderRegionId(zone.getId());
+        region.setName(zone.getName() == null ? zone.getId() : zone.getName());
         region.setActive(true);
         region.setAvailable(true);
         region.setJurisdiction(getJurisdiction(region.getName()));
@@ -0,0 +1,228 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudErrorType;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.util.CalendarWrapper;
+
+/**
+ * Process-wide registry of the CloudStack version running behind each management server endpoint. The version is
+ * detected once per endpoint and shared by every {@link CSCloud} instance and account talking to that endpoint, for
+ * <code>versionCacheTimeout</code> seconds (default one hour). Because detection runs with the caller's credentials,
+ * a failed detection is remembered only for the endpoint and account that saw it, for
+ * <code>versionFailureTimeout</code> seconds (default one minute), so an unreachable endpoint is not asked again on
+ * every request. Authentication failures and other 4xx errors are never remembered.
+ */
+public final class CSVersionRegistry {
+    static private final Logger logger = CSCloud.getLogger(CSVersionRegistry.class, "std");
+
+    static private final long DEFAULT_TIMEOUT         = CalendarWrapper.HOUR;
+    static private final long DEFAULT_FAILURE_TIMEOUT = CalendarWrapper.MINUTE;
+
+    /**
+     * The version detected for a single endpoint along with the capability flags derived from it.
+     */
+    static public class Entry {
+        private final String    versionString;
+        private final CSVersion version;
+        private final int       major;
+        private final int       minor;
+        private final long      expiration;
+        private final Exception failure;
+
+        Entry(@Nullable String versionString, long expiration) {
+            this(versionString, null, expiration);
+        }
+
+        Entry(@Nullable String versionString, @Nullable Exception failure, long expiration) {
+            int major = 0, minor = 0;
+
+            if( versionString != null ) {
+                String[] parts = versionString.trim().split("\\.");
+
+                try {
+                    major = Integer.parseInt(parts[0]);
+                    if( parts.length > 1 ) {
+                        minor = Integer.parseInt(parts[1]);
+                    }
+                }
+                catch( NumberFormatException e ) {
+                    logger.warn("Unable to parse CloudStack version " + versionString);
+                }
+            }
+            this.versionString = versionString;
+            this.version = (major >= 4 ? CSVersion.CS4 : CSVersion.CS3);
+            this.major = major;
+            this.minor = minor;
+            this.expiration = expiration;
+            this.failure = failure;
+        }
+
+        public @Nullable String getVersionString() {
+            return versionString;
+        }
+
+        public @Nonnull CSVersion getVersion() {
+            return version;
+        }
+
+        public boolean isAtLeast(int major, int minor) {
+            return (this.major > major || (this.major == major && this.minor >= minor));
+        }
+
+        /**
+         * @return the error that prevented the version from being detected, if this entry records a failed detection
+         */
+        public @Nullable Exception getFailure() {
+            return failure;
+        }
+
+        public boolean isExpired() {
+            return (System.currentTimeMillis() >= expiration);
+        }
+    }
+
+    static private final ConcurrentHashMap<String,Entry>  entries  = new ConcurrentHashMap<String, Entry>();
+    static private final ConcurrentHashMap<String,Entry>  failures = new ConcurrentHashMap<String, Entry>();
+    static private final ConcurrentHashMap<String,Object> locks    = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * Provides the version information for the endpoint of the provider's current context, detecting it if no
+     * current entry exists. Concurrent callers for the same endpoint share a single detection call. A failed
+     * detection is not retried for the same account until its entry expires, but other accounts still try their own.
+     * @param provider the provider whose context identifies the endpoint
+     * @return the version entry for the endpoint
+     * @throws CloudException an error occurred detecting the version, now or within the failure timeout
+     * @throws InternalException an error occurred within Dasein Cloud while detecting the version
+     */
+    static public @Nonnull Entry getEntry(@Nonnull CSCloud provider) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        String endpoint = ctx.getCloud().getEndpoint();
+        String failureKey = endpoint + "/" + ctx.getAccountNumber();
+        Entry entry = entries.get(endpoint);
+
+        if( entry == null || entry.isExpired() ) {
+            Object lock = locks.get(endpoint);
+
+            if( lock == null ) {
+                locks.putIfAbsent(endpoint, new Object());
+                lock = locks.get(endpoint);
+            }
+            synchronized( lock ) {
+                entry = entries.get(endpoint);
+                if( entry == null || entry.isExpired() ) {
+                    entry = failures.get(failureKey);
+                    if( entry == null || entry.isExpired() ) {
+                        failures.remove(failureKey);
+                        entry = detect(provider, endpoint, ctx);
+                        if( entry.getFailure() == null ) {
+                            entries.put(endpoint, entry);
+                        }
+                        else if( isRemembered(entry.getFailure()) ) {
+                            failures.put(failureKey, entry);
+                        }
+                    }
+                }
+            }
+        }
+        Exception failure = entry.getFailure();
+
+        if( failure != null ) {
+            throw new CloudException("Unable to detect the CloudStack version at " + endpoint + ": " + failure.getMessage(), failure);
+        }
+        return entry;
+    }
+
+    /**
+     * Authentication failures and other 4xx errors are specific to the caller's credentials or request, so they say
+     * nothing about the endpoint and are not worth remembering.
+     */
+    static private boolean isRemembered(@Nonnull Exception failure) {
+        if( failure instanceof CloudException ) {
+            CloudException e = (CloudException)failure;
+            int code = e.getHttpCode();
+
+            if( CloudErrorType.AUTHENTICATION.equals(e.getErrorType()) || (code >= 400 && code < 500) ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static private @Nonnull Entry detect(@Nonnull CSCloud provider, @Nonnull String endpoint, @Nonnull ProviderContext ctx) {
+        try {
+            Entry entry = new Entry(CSZoneCatalog.getInstance(provider).getVersionString(), System.currentTimeMillis() + getTimeout(ctx, "versionCacheTimeout", DEFAULT_TIMEOUT));
+
+            if( logger.isInfoEnabled() ) {
+                logger.info("Detected CloudStack " + entry.getVersionString() + " at " + endpoint);
+            }
+            return entry;
+        }
+        catch( Exception e ) {
+            long timeout = getTimeout(ctx, "versionFailureTimeout", DEFAULT_FAILURE_TIMEOUT);
+
+            logger.warn("Unable to detect the CloudStack version at " + endpoint + " for account " + ctx.getAccountNumber() + ": " + e.getMessage());
+            return new Entry(null, e, System.currentTimeMillis() + timeout);
+        }
+    }
+
+    /**
+     * Drops any cached version information for the specified endpoint, forcing the next request to detect it again.
+     * @param endpoint the management server endpoint
+     */
+    static public void invalidate(@Nonnull String endpoint) {
+        entries.remove(endpoint);
+        for( String key : failures.keySet() ) {
+            if( key.startsWith(endpoint + "/") ) {
+                failures.remove(key);
+            }
+        }
+    }
+
+    static private long getTimeout(@Nonnull ProviderContext ctx, @Nonnull String property, long defaultTimeout) {
+        Properties properties = ctx.getCustomProperties();
+        String value = (properties == null ? null : properties.getProperty(property));
+
+        if( value != null ) {
+            try {
+                return Long.parseLong(value.trim()) * CalendarWrapper.SECOND;
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Invalid value for " + property + ": " + value);
+            }
+        }
+        return defaultTimeout;
+    }
+
+    private CSVersionRegistry() { }
+}
@@ -0,0 +1,387 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.APITrace;
+import org.dasein.util.CalendarWrapper;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * Parsed result of a single <code>listZones&amp;available=true</code> call, shared by every consumer of zone
+ * attributes for one endpoint and account. Catalogs are kept for <code>zoneCacheTimeout</code> seconds (default 15
+ * minutes) and are refreshed in the background on the provider's task executor once they are within
+ * <code>zoneCacheRefreshAhead</code> seconds (default 60) of expiring, so callers rarely wait on the cloud. An expired
+ * catalog is replaced when it is next read, and catalogs nobody reads any more are swept out at most once every
+ * 15 minutes, so storing a catalog does not cost a scan of every account.
+ */
+public class CSZoneCatalog {
+    static private final Logger logger = CSCloud.getLogger(CSZoneCatalog.class, "std");
+
+    static private final long DEFAULT_TIMEOUT       = CalendarWrapper.MINUTE * 15L;
+    static private final long DEFAULT_REFRESH_AHEAD = CalendarWrapper.MINUTE;
+    static private final long SWEEP_INTERVAL        = DEFAULT_TIMEOUT;
+
+    static public class Zone {
+        private final String  id;
+        private final String  name;
+        private final String  networkType;
+        private final boolean securityGroupsEnabled;
+        private final boolean localStorageEnabled;
+        private final String  allocationState;
+        private final String  domainId;
+        private final String  domainName;
+
+        Zone(@Nonnull String id, @Nullable String name, @Nullable String networkType, boolean securityGroupsEnabled, boolean localStorageEnabled, @Nullable String allocationState, @Nullable String domainId, @Nullable String domainName) {
+            this.id = id;
+            this.name = name;
+            this.networkType = networkType;
+            this.securityGroupsEnabled = securityGroupsEnabled;
+            this.localStorageEnabled = localStorageEnabled;
+            this.allocationState = allocationState;
+            this.domainId = domainId;
+            this.domainName = domainName;
+        }
+
+        public @Nonnull String getId() {
+            return id;
+        }
+
+        public @Nullable String getName() {
+            return name;
+        }
+
+        public @Nullable String getNetworkType() {
+            return networkType;
+        }
+
+        public boolean isBasic() {
+            return "basic".equalsIgnoreCase(networkType);
+        }
+
+        public boolean isSecurityGroupsEnabled() {
+            return securityGroupsEnabled;
+        }
+
+        public boolean isLocalStorageEnabled() {
+            return localStorageEnabled;
+        }
+
+        public @Nullable String getAllocationState() {
+            return allocationState;
+        }
+
+        public @Nullable String getDomainId() {
+            return domainId;
+        }
+
+        public @Nullable String getDomainName() {
+            return domainName;
+        }
+
+        @Override
+        public String toString() {
+            return "Zone [" + id + "] " + networkType + (securityGroupsEnabled ? " with security groups" : "");
+        }
+    }
+
+    static private final ConcurrentHashMap<String,CSZoneCatalog> catalogs  = new ConcurrentHashMap<String, CSZoneCatalog>();
+    static private final CSKeyedLocks                            locks     = new CSKeyedLocks();
+    static private final AtomicLong                              nextSweep = new AtomicLong(0L);
+
+    /**
+     * Provides the zone catalog for the endpoint and account of the provider's current context, loading it if there
+     * is no current copy.
+     * @param provider the provider whose context identifies the endpoint and account
+     * @return the current zone catalog
+     * @throws CloudException an error occurred loading the zones from the cloud
+     * @throws InternalException an error occurred within Dasein Cloud while loading the zones
+     */
+    static public @Nonnull CSZoneCatalog getInstance(@Nonnull CSCloud provider) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        String key = getKey(ctx);
+        CSZoneCatalog catalog = catalogs.get(key);
+        long now = System.currentTimeMillis();
+
+        if( catalog == null || now >= catalog.expiration ) {
+            Object lock = locks.acquire(key);
+
+            try {
+                synchronized( lock ) {
+                    catalog = catalogs.get(key);
+                    if( catalog == null || System.currentTimeMillis() >= catalog.expiration ) {
+                        catalog = load(provider);
+                        store(key, catalog);
+                    }
+                }
+            }
+            finally {
+                locks.release(key);
+            }
+        }
+        else if( now >= catalog.expiration - getRefreshAhead(ctx) ) {
+            catalog.refreshAhead(provider, key);
+        }
+        return catalog;
+    }
+
+    /**
+     * Reloads the catalog for the provider's current endpoint and account, regardless of its current age. Readers
+     * keep seeing the previous catalog until the new one is loaded. Because the reload always calls the cloud with
+     * the provider's own credentials, it doubles as a subscription check.
+     * @param provider the provider whose context identifies the endpoint and account
+     * @return the freshly loaded catalog
+     * @throws CloudException an error occurred loading the zones from the cloud
+     * @throws InternalException an error occurred within Dasein Cloud while loading the zones
+     */
+    static public @Nonnull CSZoneCatalog refresh(@Nonnull CSCloud provider) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null ) {
+            throw new CloudException("No context was set for this request");
+        }
+        CSZoneCatalog catalog = load(provider);
+
+        store(getKey(ctx), catalog);
+        return catalog;
+    }
+
+    /**
+     * Drops the catalog for the provider's current endpoint and account so the next request reloads it.
+     * @param provider the provider whose context identifies the endpoint and account
+     */
+    static public void invalidate(@Nonnull CSCloud provider) {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx != null ) {
+            catalogs.remove(getKey(ctx));
+        }
+    }
+
+    static private @Nonnull String getKey(@Nonnull ProviderContext ctx) {
+        return ctx.getCloud().getEndpoint() + "/" + ctx.getAccountNumber();
+    }
+
+    static private void store(@Nonnull String key, @Nonnull CSZoneCatalog catalog) {
+        long now = System.currentTimeMillis();
+        long sweep = nextSweep.get();
+
+        catalogs.put(key, catalog);
+        if( now >= sweep && nextSweep.compareAndSet(sweep, now + SWEEP_INTERVAL) ) {
+            Iterator<CSZoneCatalog> it = catalogs.values().iterator();
+
+            while( it.hasNext() ) {
+                if( now >= it.next().expiration ) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    static private long getProperty(@Nonnull ProviderContext ctx, @Nonnull String name, long defaultValue) {
+        Properties properties = ctx.getCustomProperties();
+        String value = (properties == null ? null : properties.getProperty(name));
+
+        if( value != null ) {
+            try {
+                return Long.parseLong(value.trim()) * CalendarWrapper.SECOND;
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Invalid value for " + name + ": " + value);
+            }
+        }
+        return defaultValue;
+    }
+
+    static long getTimeout(@Nonnull ProviderContext ctx) {
+        return getProperty(ctx, "zoneCacheTimeout", DEFAULT_TIMEOUT);
+    }
+
+    static private long getRefreshAhead(@Nonnull ProviderContext ctx) {
+        return getProperty(ctx, "zoneCacheRefreshAhead", DEFAULT_REFRESH_AHEAD);
+    }
+
+    static private @Nonnull CSZoneCatalog load(@Nonnull CSCloud provider) throws CloudException, InternalException {
+        APITrace.begin(provider, "DC.loadZoneCatalog");
+        try {
+            Document doc = new CSMethod(provider).get(CSTopology.LIST_ZONES, new Param("available", "true"));
+            String versionString = null;
+
+            NodeList meta = doc.getElementsByTagName("listzonesresponse");
+            for( int i=0; i<meta.getLength(); i++ ) {
+                Node version = meta.item(i).getAttributes().getNamedItem("cloud-stack-version");
+
+                if( version != null ) {
+                    versionString = version.getNodeValue();
+                }
+            }
+            Map<String,Zone> zones = new LinkedHashMap<String, Zone>();
+            NodeList matches = doc.getElementsByTagName("zone");
+
+            for( int i=0; i<matches.getLength(); i++ ) {
+                Zone zone = toZone(matches.item(i));
+
+                if( zone != null ) {
+                    zones.put(zone.getId(), zone);
+                }
+            }
+            return new CSZoneCatalog(zones, versionString, System.currentTimeMillis() + getTimeout(provider.getContext()));
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    static private @Nullable Zone toZone(@Nullable Node node) {
+        if( node == null || !node.hasChildNodes() ) {
+            return null;
+        }
+        NodeList attributes = node.getChildNodes();
+        String id = null, name = null, networkType = null, allocationState = null, domainId = null, domainName = null;
+        boolean groups = false, localStorage = false;
+
+        for( int i=0; i<attributes.getLength(); i++ ) {
+            Node attribute = attributes.item(i);
+            String attr = attribute.getNodeName().toLowerCase();
+            String value = CSCloud.getTextValue(attribute);
+
+            if( value != null ) {
+                value = value.trim();
+            }
+            if( attr.equals("id") ) {
+                id = value;
+            }
+            else if( attr.equals("name") ) {
+                name = value;
+            }
+            else if( attr.equals("networktype") ) {
+                networkType = value;
+            }
+            else if( attr.equals("securitygroupsenabled") ) {
+                groups = "true".equalsIgnoreCase(value);
+            }
+            else if( attr.equals("localstorageenabled") ) {
+                localStorage = "true".equalsIgnoreCase(value);
+            }
+            else if( attr.equals("allocationstate") ) {
+                allocationState = value;
+            }
+            else if( attr.equals("domainid") ) {
+                domainId = value;
+            }
+            else if( attr.equals("domain") || attr.equals("domainname") ) {
+                domainName = value;
+            }
+        }
+        if( id == null ) {
+            return null;
+        }
+        return new Zone(id, name, networkType, groups, localStorage, allocationState, domainId, domainName);
+    }
+
+    private final Map<String,Zone> zones;
+    private final String           versionString;
+    private final long             expiration;
+    private final AtomicBoolean    refreshing = new AtomicBoolean(false);
+
+    private CSZoneCatalog(@Nonnull Map<String,Zone> zones, @Nullable String versionString, long expiration) {
+        this.zones = Collections.unmodifiableMap(zones);
+        this.versionString = versionString;
+        this.expiration = expiration;
+    }
+
+    private void refreshAhead(@Nonnull final CSCloud provider, @Nonnull final String key) {
+        if( !refreshing.compareAndSet(false, true) ) {
+            return;
+        }
+        try {
+            provider.getTaskExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        CSZoneCatalog catalog = load(provider);
+
+                        Object lock = locks.acquire(key);
+
+                        try {
+                            synchronized( lock ) {
+                                store(key, catalog);
+                            }
+                        }
+                        finally {
+                            locks.release(key);
+                        }
+                    }
+                    catch( Throwable t ) {
+                        logger.warn("Unable to refresh zone catalog for " + key + ": " + t.getMessage());
+                        refreshing.set(false);
+                    }
+                }
+            });
+        }
+        catch( RejectedExecutionException e ) {
+            // the provider is closing; the next caller after expiry reloads in the foreground
+            refreshing.set(false);
+        }
+    }
+
+    public @Nullable Zone getZone(@Nonnull String zoneId) {
+        return zones.get(zoneId);
+    }
+
+    public @Nonnull List<Zone> getZones() {
+        return new ArrayList<Zone>(zones.values());
+    }
+
+    /**
+     * @return the value of the <code>cloud-stack-version</code> attribute of the <code>listZones</code> response,
+     * if the management server provided it
+     */
+    public @Nullable String getVersionString() {
+        return versionString;
+    }
+
+    public long getExpiration() {
+        return expiration;
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack.compute;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.util.CalendarWrapper;
+
+/**
+ * Sorted view of the disk offerings available in one region, built once from the shared disk offering catalog and
+ * rebuilt only when that catalog is reloaded. Fixed-size offerings are kept in size order, so the offering best
+ * suited to a requested size is found with a single tree lookup rather than a scan of every offering.
+ */
+final class DiskOfferingIndex {
+    static private final ConcurrentHashMap<String,DiskOfferingIndex> indexes   = new ConcurrentHashMap<String, DiskOfferingIndex>();
+    static private final AtomicLong                                  nextSweep = new AtomicLong(0L);
+
+    // the catalogs are cached for four hours, so an older index was built from a catalog that has since expired
+    static private final long MAX_AGE        = CalendarWrapper.HOUR * 4L;
+    static private final long SWEEP_INTERVAL = CalendarWrapper.MINUTE * 15L;
+
+    /**
+     * Provides the index for the specified catalog, building it if the region has no index for this exact catalog.
+     * @param key the endpoint, region and account the catalog belongs to
+     * @param catalog the current disk offering catalog of the region
+     * @return the index over the catalog
+     */
+    static @Nonnull DiskOfferingIndex getInstance(@Nonnull String key, @Nonnull Iterable<Volumes.DiskOffering> catalog) {
+        DiskOfferingIndex index = indexes.get(key);
+
+        if( index == null || index.source != catalog ) {
+            index = new DiskOfferingIndex(catalog);
+            indexes.put(key, index);
+            sweep();
+        }
+        return index;
+    }
+
+    /**
+     * Drops the indexes of accounts that have not loaded a catalog within its lifetime, at most once per sweep
+     * interval, so accounts that are no longer used do not keep their indexes forever.
+     */
+    static private void sweep() {
+        long now = System.currentTimeMillis();
+        long next = nextSweep.get();
+
+        if( now >= next && nextSweep.compareAndSet(next, now + SWEEP_INTERVAL) ) {
+            Iterator<DiskOfferingIndex> it = indexes.values().iterator();
+
+            while( it.hasNext() ) {
+                if( now - it.next().created >= MAX_AGE ) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private final Iterable<Volumes.DiskOffering>              source;
+    private final long                                        created = System.currentTimeMillis();
+    private final Map<String,Volumes.DiskOffering>            byId;
+    private final TreeMap<Long,Volumes.DiskOffering>          bySize;
+    private final Map<String,List<Volumes.DiskOffering>>      byTag;
+    private final Volumes.DiskOffering                        custom;
+
+    private DiskOfferingIndex(@Nonnull Iterable<Volumes.DiskOffering> source) {
+        Map<String,Volumes.DiskOffering> byId = new HashMap<String, Volumes.DiskOffering>();
+        TreeMap<Long,Volumes.DiskOffering> bySize = new TreeMap<Long, Volumes.DiskOffering>();
+        Map<String,List<Volumes.DiskOffering>> byTag = new HashMap<String, List<Volumes.DiskOffering>>();
+        Volumes.DiskOffering custom = null;
+
+        for( Volumes.DiskOffering offering : source ) {
+            byId.put(offering.id, offering);
+            if( offering.isCustom() ) {
+                if( custom == null ) {
+                    custom = offering;
+                }
+            }
+            else if( !bySize.containsKey(offering.diskSize) ) {
+                bySize.put(offering.diskSize, offering);
+            }
+            if( offering.tags != null ) {
+                for( String tag : offering.tags.split(",") ) {
+                    tag = tag.trim().toLowerCase(Locale.ENGLISH);
+                    if( tag.length() > 0 ) {
+                        List<Volumes.DiskOffering> list = byTag.get(tag);
+
+                        if( list == null ) {
+                            list = new ArrayList<Volumes.DiskOffering>();
+                            byTag.put(tag, list);
+                        }
+                        list.add(offering);
+                    }
+                }
+            }
+        }
+        this.source = source;
+        this.byId = byId;
+        this.bySize = bySize;
+        this.byTag = byTag;
+        this.custom = custom;
+    }
+
+    /**
+     * @param offeringId the disk offering ID
+     * @return the matching disk offering, or null if the region has no such offering
+     */
+    @Nullable Volumes.DiskOffering getOffering(@Nonnull String offeringId) {
+        return byId.get(offeringId);
+    }
+
+    /**
+     * @param sizeInGb the size in gigabytes
+     * @return the fixed-size offering of exactly the specified size, if any
+     */
+    @Nullable Volumes.DiskOffering getExactSize(long sizeInGb) {
+        return bySize.get(sizeInGb);
+    }
+
+    /**
+     * Identifies the fixed-size offering closest to the requested size: the smallest offering at least as large as
+     * the request or, failing that, the largest offering available. A non-positive size selects the smallest
+     * offering.
+     * @param sizeInGb the requested size in gigabytes
+     * @return the nearest fixed-size offering, or null if the region has no fixed-size offerings
+     */
+    @Nullable Volumes.DiskOffering getNearestSize(long sizeInGb) {
+        if( bySize.isEmpty() ) {
+            return null;
+        }
+        if( sizeInGb < 1L ) {
+            return bySize.firstEntry().getValue();
+        }
+        Map.Entry<Long,Volumes.DiskOffering> entry = bySize.ceilingEntry(sizeInGb);
+
+        if( entry == null ) {
+            entry = bySize.lastEntry();
+        }
+        return entry.getValue();
+    }
+
+    /**
+     * @return the first offering that lets the caller choose the volume size, if any
+     */
+    @Nullable Volumes.DiskOffering getCustomOffering() {
+        return custom;
+    }
+
+    /**
+     * @param tag a storage tag
+     * @return the offerings carrying the specified storage tag, in catalog order
+     */
+    @Nonnull List<Volumes.DiskOffering> getOfferingsWithTag(@Nonnull String tag) {
+        List<Volumes.DiskOffering> list = byTag.get(tag.trim().toLowerCase(Locale.ENGLISH));
+
+        return (list == null ? Collections.<Volumes.DiskOffering>emptyList() : Collections.unmodifiableList(list));
+    }
+
+    int size() {
+        return byId.size();
+    }
+}
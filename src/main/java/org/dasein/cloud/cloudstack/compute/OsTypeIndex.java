@@ -0,0 +1,93 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack.compute;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.Platform;
+
+/**
+ * Lookup of CloudStack OS type IDs by platform and architecture, built once from the shared <code>listOsTypes</code>
+ * catalog of an endpoint. The index is rebuilt only when the underlying catalog is reloaded. When several OS types
+ * map to the same platform and architecture, the first one in catalog order wins, as it did with the linear scan.
+ */
+final class OsTypeIndex {
+    static private final ConcurrentHashMap<String,OsTypeIndex> indexes = new ConcurrentHashMap<String, OsTypeIndex>();
+
+    /**
+     * Provides the index for the specified catalog, building it if the endpoint has no index for this exact catalog.
+     * @param endpoint the endpoint the catalog belongs to
+     * @param catalog the current OS type catalog of the endpoint
+     * @return the index over the catalog
+     */
+    static @Nonnull OsTypeIndex getInstance(@Nonnull String endpoint, @Nonnull Iterable<Templates.OsType> catalog) {
+        OsTypeIndex index = indexes.get(endpoint);
+
+        if( index == null || index.source != catalog ) {
+            index = new OsTypeIndex(catalog);
+            indexes.put(endpoint, index);
+        }
+        return index;
+    }
+
+    static private @Nonnull String getKey(@Nonnull Platform platform, @Nonnull Architecture architecture) {
+        return platform.name() + "/" + architecture.name();
+    }
+
+    private final Iterable<Templates.OsType> source;
+    private final Map<String,String>         ids;
+
+    private OsTypeIndex(@Nonnull Iterable<Templates.OsType> source) {
+        Map<String,String> ids = new HashMap<String, String>();
+
+        for( Templates.OsType type : source ) {
+            Platform platform = (type.description == null ? null : Platform.guess(type.description));
+
+            if( platform == null ) {
+                continue;
+            }
+            String key = getKey(platform, Templates.guess(type.description));
+
+            if( !ids.containsKey(key) ) {
+                ids.put(key, type.id);
+            }
+        }
+        this.source = source;
+        this.ids = ids;
+    }
+
+    /**
+     * @param platform the desired platform
+     * @param architecture the desired architecture
+     * @return the ID of the first OS type matching the platform and architecture, or null if none matches
+     */
+    @Nullable String getOsTypeId(@Nonnull Platform platform, @Nonnull Architecture architecture) {
+        return ids.get(getKey(platform, architecture));
+    }
+
+    int size() {
+        return ids.size();
+    }
+}
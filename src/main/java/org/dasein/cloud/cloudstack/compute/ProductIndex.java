@@ -0,0 +1,234 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack.compute;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.compute.VirtualMachineProduct;
+import org.dasein.cloud.compute.VirtualMachineProductFilterOptions;
+import org.dasein.util.CalendarWrapper;
+
+/**
+ * CPU and RAM index over the service offering catalog of one account in one region, restricted to the offerings the
+ * custom service mappings allow. The index is built once from the cached catalog and rebuilt only when that catalog or
+ * the mappings are reloaded, so product lookups and range queries are answered in memory. Products are mutable, so every product handed out is a copy of the indexed one.
+ */
+final class ProductIndex {
+    static private final ConcurrentHashMap<String,ProductIndex> indexes   = new ConcurrentHashMap<String, ProductIndex>();
+    static private final AtomicLong                             nextSweep = new AtomicLong(0L);
+
+    // the catalogs are cached for four hours, so an older index was built from a catalog that has since expired
+    static private final long MAX_AGE        = CalendarWrapper.HOUR * 4L;
+    static private final long SWEEP_INTERVAL = CalendarWrapper.MINUTE * 15L;
+
+    static private final Comparator<VirtualMachineProduct> byRam = new Comparator<VirtualMachineProduct>() {
+        @Override
+        public int compare(VirtualMachineProduct p1, VirtualMachineProduct p2) {
+            int r1 = getRamInMb(p1), r2 = getRamInMb(p2);
+
+            return (r1 < r2 ? -1 : (r1 == r2 ? 0 : 1));
+        }
+    };
+
+    /**
+     * Provides the index for the specified catalog, building it if the region has no index for this exact catalog and
+     * mapping.
+     * @param key the endpoint, region and account the catalog belongs to
+     * @param catalog the current service offering catalog of the region
+     * @param allowed the service offerings allowed by the custom service mappings, or null if every offering is allowed
+     * @return the index over the catalog
+     */
+    static @Nonnull ProductIndex getInstance(@Nonnull String key, @Nonnull Iterable<VirtualMachineProduct> catalog, @Nullable Set<String> allowed) {
+        ProductIndex index = indexes.get(key);
+
+        if( index == null || index.source != catalog || (allowed == null ? index.allowed != null : !allowed.equals(index.allowed)) ) {
+            index = new ProductIndex(catalog, allowed);
+            indexes.put(key, index);
+            sweep();
+        }
+        return index;
+    }
+
+    /**
+     * Drops the indexes of accounts that have not loaded a catalog within its lifetime, at most once per sweep
+     * interval, so accounts that are no longer used do not keep their indexes forever.
+     */
+    static private void sweep() {
+        long now = System.currentTimeMillis();
+        long next = nextSweep.get();
+
+        if( now >= next && nextSweep.compareAndSet(next, now + SWEEP_INTERVAL) ) {
+            Iterator<ProductIndex> it = indexes.values().iterator();
+
+            while( it.hasNext() ) {
+                if( now - it.next().created >= MAX_AGE ) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    static private @Nonnull VirtualMachineProduct copy(@Nonnull VirtualMachineProduct product) {
+        VirtualMachineProduct copy = new VirtualMachineProduct();
+
+        copy.setProviderProductId(product.getProviderProductId());
+        copy.setName(product.getName());
+        copy.setDescription(product.getDescription());
+        copy.setRamSize(product.getRamSize());
+        copy.setCpuCount(product.getCpuCount());
+        copy.setRootVolumeSize(product.getRootVolumeSize());
+        copy.setStandardHourlyRate(product.getStandardHourlyRate());
+        copy.setArchitectures(product.getArchitectures());
+        return copy;
+    }
+
+    static private @Nonnull List<VirtualMachineProduct> copy(@Nonnull List<VirtualMachineProduct> products) {
+        List<VirtualMachineProduct> copies = new ArrayList<VirtualMachineProduct>(products.size());
+
+        for( VirtualMachineProduct product : products ) {
+            copies.add(copy(product));
+        }
+        return copies;
+    }
+
+    static private int getRamInMb(@Nonnull VirtualMachineProduct product) {
+        return (product.getRamSize() == null ? 0 : product.getRamSize().intValue());
+    }
+
+    private final Iterable<VirtualMachineProduct>                   source;
+    private final long                                              created = System.currentTimeMillis();
+    private final Set<String>                                       allowed;
+    private final Map<String,VirtualMachineProduct>                 byId;
+    private final TreeMap<Integer,List<VirtualMachineProduct>>      byCpu;
+    private final List<VirtualMachineProduct>                       sorted;
+
+    private ProductIndex(@Nonnull Iterable<VirtualMachineProduct> source, @Nullable Set<String> allowed) {
+        Map<String,VirtualMachineProduct> byId = new HashMap<String, VirtualMachineProduct>();
+        TreeMap<Integer,List<VirtualMachineProduct>> byCpu = new TreeMap<Integer, List<VirtualMachineProduct>>();
+        List<VirtualMachineProduct> sorted = new ArrayList<VirtualMachineProduct>();
+
+        for( VirtualMachineProduct product : source ) {
+            if( allowed != null && !allowed.contains(product.getProviderProductId()) ) {
+                continue;
+            }
+            List<VirtualMachineProduct> list = byCpu.get(product.getCpuCount());
+
+            if( list == null ) {
+                list = new ArrayList<VirtualMachineProduct>();
+                byCpu.put(product.getCpuCount(), list);
+            }
+            list.add(product);
+            byId.put(product.getProviderProductId(), product);
+        }
+        for( List<VirtualMachineProduct> list : byCpu.values() ) {
+            Collections.sort(list, byRam);
+            sorted.addAll(list);
+        }
+        this.source = source;
+        this.allowed = allowed;
+        this.byId = byId;
+        this.byCpu = byCpu;
+        this.sorted = Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * @param productId the service offering ID
+     * @return the matching product, or null if the region has no such product
+     */
+    @Nullable VirtualMachineProduct getProduct(@Nonnull String productId) {
+        VirtualMachineProduct product = byId.get(productId);
+
+        return (product == null ? null : copy(product));
+    }
+
+    /**
+     * @return every product in the region, ordered by CPU count and then RAM size
+     */
+    @Nonnull List<VirtualMachineProduct> getProducts() {
+        return copy(sorted);
+    }
+
+    /**
+     * Lists the products matching the filter options, ordered by CPU count and then RAM size. The options are tested
+     * against the indexed products, so only the matches are copied.
+     * @param options the filter options, or null for every product
+     * @return the matching products
+     */
+    @Nonnull List<VirtualMachineProduct> getProducts(@Nullable VirtualMachineProductFilterOptions options) {
+        if( options == null ) {
+            return getProducts();
+        }
+        List<VirtualMachineProduct> matches = new ArrayList<VirtualMachineProduct>();
+
+        for( VirtualMachineProduct product : sorted ) {
+            if( options.matches(product) ) {
+                matches.add(copy(product));
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * Lists the products within the specified CPU and RAM ranges, ordered by CPU count and then RAM size.
+     * @param minCpu the minimum number of CPUs
+     * @param maxCpu the maximum number of CPUs, or a negative value for no maximum
+     * @param minRamInMb the minimum RAM size in megabytes
+     * @param maxRamInMb the maximum RAM size in megabytes, or a negative value for no maximum
+     * @return the matching products
+     */
+    @Nonnull List<VirtualMachineProduct> search(int minCpu, int maxCpu, int minRamInMb, int maxRamInMb) {
+        if( maxCpu >= 0 && maxCpu < minCpu ) {
+            return Collections.emptyList();
+        }
+        SortedMap<Integer,List<VirtualMachineProduct>> candidates = (maxCpu < 0 ? byCpu.tailMap(minCpu) : byCpu.subMap(minCpu, maxCpu + 1));
+        List<VirtualMachineProduct> matches = new ArrayList<VirtualMachineProduct>();
+
+        for( List<VirtualMachineProduct> list : candidates.values() ) {
+            for( VirtualMachineProduct product : list ) {
+                int ram = getRamInMb(product);
+
+                if( maxRamInMb >= 0 && ram > maxRamInMb ) {
+                    break;
+                }
+                if( ram >= minRamInMb ) {
+                    matches.add(copy(product));
+                }
+            }
+        }
+        return matches;
+    }
+
+    int size() {
+        return byId.size();
+    }
+}
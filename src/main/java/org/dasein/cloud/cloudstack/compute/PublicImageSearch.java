@@ -0,0 +1,383 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack.compute;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.cloudstack.CSCloud;
+import org.dasein.cloud.cloudstack.CSMethod;
+import org.dasein.cloud.cloudstack.Param;
+import org.dasein.cloud.compute.ImageFilterOptions;
+import org.dasein.cloud.compute.MachineImage;
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+/**
+ * One search of the public templates and ISOs of the current region. Every filter is listed concurrently on the
+ * provider's task executor. The first page of each filter gives the total count, and the remaining pages are then
+ * fetched concurrently as well. Images are de-duplicated by ID across filters and pages, and each new image is handed
+ * to the caller as soon as its page is parsed.
+ * <p>
+ * Only one search runs at a time per endpoint, region, account and set of filters; callers missing the cache while a
+ * search is in flight join it rather than listing the templates again. The search runs with the credentials of the
+ * caller that started it, so it is never shared across accounts.
+ * <p>
+ * The page tasks never wait on each other, so they may be queued on the bounded executor from its own threads. A
+ * caller on an executor thread never joins a search in flight, since it would wait on the pool it belongs to; it runs
+ * its own search with every page inline. A page the executor rejects, because its provider was closed mid-search,
+ * also runs inline.
+ */
+final class PublicImageSearch {
+    static private final Logger logger = CSCloud.getLogger(PublicImageSearch.class, "std");
+
+    static private final int PAGE_SIZE = 500;
+
+    static private final ConcurrentHashMap<String,PublicImageSearch> running = new ConcurrentHashMap<String, PublicImageSearch>();
+
+    /**
+     * Provides the search in flight for the provider's endpoint, region and account with the same filters, or starts a
+     * new one.
+     * @param templates the template support that parses and caches the images
+     * @param provider the provider to search with
+     * @param hypervisors the hypervisors of the current region
+     * @param templateFilters the <code>templateFilter</code> values to list templates with
+     * @param isoFilters the <code>isoFilter</code> values to list ISOs with
+     * @param cacheName the name under which the completed search is cached
+     * @return the running or newly started search
+     */
+    static @Nonnull PublicImageSearch join(@Nonnull Templates templates, @Nonnull CSCloud provider, @Nullable List<String> hypervisors, @Nonnull List<String> templateFilters, @Nonnull List<String> isoFilters, @Nonnull String cacheName) {
+        ProviderContext ctx = provider.getContext();
+        String key = (ctx == null ? "" : ctx.getCloud().getEndpoint() + "/" + ctx.getRegionId() + "/" + ctx.getAccountNumber()) + "/" + cacheName;
+        PublicImageSearch search = new PublicImageSearch(templates, provider, hypervisors, key, cacheName);
+
+        if( search.inline ) {
+            search.start(templateFilters, isoFilters);
+            return search;
+        }
+        PublicImageSearch current = running.putIfAbsent(key, search);
+
+        if( current != null ) {
+            return current;
+        }
+        search.start(templateFilters, isoFilters);
+        return search;
+    }
+
+    private final Templates                              templates;
+    private final CSCloud                                provider;
+    private final List<String>                           hypervisors;
+    private final String                                 key;
+    private final String                                 cacheName;
+    private final boolean                                inline;
+    private final ConcurrentHashMap<String,MachineImage> seen     = new ConcurrentHashMap<String, MachineImage>();
+    private final List<MachineImage>                     found    = new ArrayList<MachineImage>();
+    private final AtomicInteger                          pending  = new AtomicInteger(0);
+    private final CountDownLatch                         done     = new CountDownLatch(1);
+    private volatile boolean                             complete = false;
+    private volatile Exception                           error;
+
+    private PublicImageSearch(@Nonnull Templates templates, @Nonnull CSCloud provider, @Nullable List<String> hypervisors, @Nonnull String key, @Nonnull String cacheName) {
+        this.templates = templates;
+        this.provider = provider;
+        this.hypervisors = hypervisors;
+        this.key = key;
+        this.cacheName = cacheName;
+        this.inline = provider.isTaskThread();
+    }
+
+    /**
+     * Starts listing every filter. This returns once the first pages are queued, or once everything was listed if the
+     * search runs inline.
+     * @param templateFilters the <code>templateFilter</code> values to list templates with
+     * @param isoFilters the <code>isoFilter</code> values to list ISOs with
+     */
+    private void start(@Nonnull List<String> templateFilters, @Nonnull List<String> isoFilters) {
+        // held until every first page is queued, so the search cannot complete early
+        pending.incrementAndGet();
+        try {
+            for( String filter : templateFilters ) {
+                fetch(Templates.LIST_TEMPLATES, "templateFilter", filter, "template", 1);
+            }
+            for( String filter : isoFilters ) {
+                fetch(Templates.LIST_ISOS, "isoFilter", filter, "iso", 1);
+            }
+        }
+        finally {
+            release();
+        }
+    }
+
+    /**
+     * Waits for the search to complete.
+     * @return every image found, in the order found
+     * @throws CloudException a page could not be listed
+     * @throws InternalException a page could not be parsed, or the wait was interrupted
+     */
+    @Nonnull Collection<MachineImage> await() throws CloudException, InternalException {
+        try {
+            done.await();
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new InternalException(e);
+        }
+        rethrow();
+        synchronized( found ) {
+            return new ArrayList<MachineImage>(found);
+        }
+    }
+
+    /**
+     * Provides the images matching the options as they arrive. This waits for the first image, so a search that fails
+     * outright throws here; an error after the first image surfaces from the iterator as an
+     * {@link IllegalStateException}. The result may be iterated any number of times, by any number of threads; each
+     * iteration starts from the first image and follows the search as it progresses, and hands out its own copies of
+     * the images.
+     * @param options the options images must match, or null for all images
+     * @return the matching images
+     * @throws CloudException the search failed before finding any image
+     * @throws InternalException the search failed before finding any image, or the wait was interrupted
+     */
+    @Nonnull Iterable<MachineImage> stream(@Nullable final ImageFilterOptions options) throws CloudException, InternalException {
+        synchronized( found ) {
+            while( found.isEmpty() && !complete ) {
+                try {
+                    found.wait();
+                }
+                catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    throw new InternalException(e);
+                }
+            }
+            if( found.isEmpty() ) {
+                rethrow();
+            }
+        }
+        return new Iterable<MachineImage>() {
+            @Override
+            public Iterator<MachineImage> iterator() {
+                return new Iterator<MachineImage>() {
+                    private int          index = 0;
+                    private MachineImage next  = null;
+
+                    @Override
+                    public boolean hasNext() {
+                        while( next == null ) {
+                            MachineImage image = take(index);
+
+                            if( image == null ) {
+                                return false;
+                            }
+                            index++;
+                            if( options == null || options.matches(image) ) {
+                                next = image;
+                            }
+                        }
+                        return true;
+                    }
+
+                    @Override
+                    public MachineImage next() {
+                        if( !hasNext() ) {
+                            throw new NoSuchElementException();
+                        }
+                        MachineImage image = next;
+
+                        next = null;
+                        return Templates.copy(image);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Waits for the image at the given position of the search results.
+     * @param index the position of the image
+     * @return the image, or null if the search completed with fewer images
+     */
+    private @Nullable MachineImage take(int index) {
+        synchronized( found ) {
+            while( index >= found.size() && !complete ) {
+                try {
+                    found.wait();
+                }
+                catch( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for public images", e);
+                }
+            }
+            if( index < found.size() ) {
+                return found.get(index);
+            }
+        }
+        if( error != null ) {
+            throw new IllegalStateException("Public image search failed: " + error.getMessage(), error);
+        }
+        return null;
+    }
+
+    private void fetch(@Nonnull final String command, @Nonnull final String filterName, @Nonnull final String filter, @Nonnull final String element, final int page) {
+        Runnable task = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if( error == null ) {
+                        list(command, filterName, filter, element, page);
+                    }
+                }
+                catch( Exception e ) {
+                    fail(e);
+                }
+                finally {
+                    release();
+                }
+            }
+        };
+
+        pending.incrementAndGet();
+        if( inline ) {
+            task.run();
+            return;
+        }
+        try {
+            provider.getTaskExecutor().submit(task);
+        }
+        catch( RejectedExecutionException e ) {
+            // the provider was closed mid-search; finish its pages here so callers that joined still get a result
+            task.run();
+        }
+    }
+
+    private void list(@Nonnull String command, @Nonnull String filterName, @Nonnull String filter, @Nonnull String element, int page) throws CloudException, InternalException {
+        String regionId = provider.getContext().getRegionId();
+        List<Param> params = new ArrayList<Param>();
+
+        params.add(new Param(filterName, filter));
+        if( hypervisors != null && hypervisors.size() == 1 ) {
+            params.add(new Param("hypervisor", hypervisors.get(0)));
+        }
+        if( regionId != null && !regionId.isEmpty() ) {
+            params.add(new Param("zoneId", regionId));
+        }
+        if( command.equals(Templates.LIST_ISOS) ) {
+            params.add(new Param("bootable", "true"));
+        }
+        params.add(new Param("pagesize", String.valueOf(PAGE_SIZE)));
+        params.add(new Param("page", String.valueOf(page)));
+
+        Document doc = new CSMethod(provider).get(command, params);
+
+        if( page == 1 ) {
+            Node count = doc.getElementsByTagName("count").item(0);
+
+            if( count != null && count.getFirstChild() != null ) {
+                int pages = (Integer.parseInt(count.getFirstChild().getNodeValue().trim()) + PAGE_SIZE - 1) / PAGE_SIZE;
+
+                for( int p = 2; p <= pages; p++ ) {
+                    fetch(command, filterName, filter, element, p);
+                }
+            }
+        }
+        NodeList matches = doc.getElementsByTagName(element);
+
+        for( int i=0; i<matches.getLength(); i++ ) {
+            MachineImage image = templates.toImage(matches.item(i), true, hypervisors, null);
+
+            if( image == null ) {
+                continue;
+            }
+            if( element.equals("iso") ) {
+                image.setTag("isISO", "true");
+            }
+            if( seen.putIfAbsent(image.getProviderMachineImageId(), image) == null ) {
+                synchronized( found ) {
+                    found.add(image);
+                    found.notifyAll();
+                }
+            }
+        }
+    }
+
+    private void fail(@Nonnull Exception e) {
+        if( error == null ) {
+            error = e;
+            logger.warn("Public image search failed: " + e.getMessage());
+        }
+    }
+
+    private void release() {
+        if( pending.decrementAndGet() == 0 ) {
+            try {
+                if( error == null ) {
+                    List<MachineImage> images;
+
+                    synchronized( found ) {
+                        images = new ArrayList<MachineImage>(found);
+                    }
+                    templates.cachePublicImages(cacheName, images);
+                }
+            }
+            finally {
+                // the entry only exists to share a search in flight, so it must never outlive the search
+                running.remove(key, this);
+                synchronized( found ) {
+                    complete = true;
+                    found.notifyAll();
+                }
+                done.countDown();
+            }
+        }
+    }
+
+    private void rethrow() throws CloudException, InternalException {
+        Exception e = error;
+
+        if( e instanceof CloudException ) {
+            throw (CloudException)e;
+        }
+        if( e instanceof InternalException ) {
+            throw (InternalException)e;
+        }
+        if( e != null ) {
+            throw new InternalException(e);
+        }
+    }
+}
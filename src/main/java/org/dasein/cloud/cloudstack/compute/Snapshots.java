@@ -24,6 +24,8 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 import org.dasein.cloud.CloudException;
@@ -60,7 +62,7 @@ public class Snapshots extends AbstractSnapshotSupport {
     static private final String DELETE_SNAPSHOT = "deleteSnapshot";
     static private final String LIST_SNAPSHOTS  = "listSnapshots";
     
-    private CSCloud provider;
+    private final CSCloud provider;
     
     Snapshots(CSCloud provider) {
         super(provider);
@@ -327,6 +329,19 @@ public class Snapshots extends AbstractSnapshotSupport {
         return false;
     }
 
+    /**
+     * Lists the snapshots in the current region on the provider's task executor.
+     * @return the future result of the listing
+     */
+    public @Nonnull Future<Iterable<Snapshot>> listSnapshotsConcurrently() {
+        return provider.submitTask(new Callable<Iterable<Snapshot>>() {
+            @Override
+            public Iterable<Snapshot> call() throws Exception {
+                return listSnapshots();
+            }
+        });
+    }
+
     @Override
     public @Nonnull Iterable<Snapshot> listSnapshots() throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Snapshot.listSnapshots");
@@ -541,7 +556,7 @@ public class Snapshots extends AbstractSnapshotSupport {
     	APITrace.begin(getProvider(), "Snapshot.setTags");
     	try {
     		removeTags(snapshotIds);
-    		provider.createTags(snapshotIds, "Snapshot", tags);
+    		provider.createTags(snapshotIds, "Snapshot", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
@@ -557,7 +572,7 @@ public class Snapshots extends AbstractSnapshotSupport {
     public void updateTags(@Nonnull String[] snapshotIds, @Nonnull Tag... tags) throws CloudException, InternalException {
     	APITrace.begin(getProvider(), "Snapshot.updateTags");
     	try {
-    		provider.updateTags(snapshotIds, "Snapshot", tags);
+    		provider.updateTags(snapshotIds, "Snapshot", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
@@ -574,7 +589,7 @@ public class Snapshots extends AbstractSnapshotSupport {
     public void removeTags(@Nonnull String[] snapshotIds, @Nonnull Tag... tags) throws CloudException, InternalException {
     	APITrace.begin(getProvider(), "Snapshot.removeTags");
     	try {
-    		provider.removeTags(snapshotIds, "Snapshot", tags);
+    		provider.removeTags(snapshotIds, "Snapshot", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
@@ -36,7 +36,9 @@ import org.dasein.cloud.cloudstack.CSCloud;
 import org.dasein.cloud.cloudstack.CSException;
 import org.dasein.cloud.cloudstack.CSMethod;
 import org.dasein.cloud.cloudstack.CSServiceProvider;
-import org.dasein.cloud.cloudstack.CSTopology;
+import org.dasein.cloud.cloudstack.CSSharedCache;
+import org.dasein.cloud.cloudstack.CSTagIndex;
+import org.dasein.cloud.cloudstack.CSZoneCatalog;
 import org.dasein.cloud.cloudstack.Param;
 import org.dasein.cloud.compute.AbstractImageSupport;
 import org.dasein.cloud.compute.Architecture;
@@ -54,10 +56,8 @@ import org.dasein.cloud.util.APITrace;
 import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
 import org.dasein.util.CalendarWrapper;
-import org.dasein.util.Jiterator;
-import org.dasein.util.JiteratorPopulator;
-import org.dasein.util.PopulatorThread;
 import org.dasein.util.uom.time.Day;
+import org.dasein.util.uom.time.Minute;
 import org.dasein.util.uom.time.TimePeriod;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -77,6 +77,8 @@ public class Templates extends AbstractImageSupport<CSCloud> {
     static public final String REGISTER_TEMPLATE           = "registerTemplate";
     static public final String UPDATE_ISO_PERMISSIONS      = "updateIsoPermissions";
     static public final String UPDATE_TEMPLATE_PERMISSIONS = "updateTemplatePermissions";
+
+    static private final TimePeriod<Minute> PUBLIC_IMAGE_TIMEOUT = new TimePeriod<Minute>(15, TimePeriod.MINUTE);
     
     public Templates(CSCloud provider) {
         super(provider);
@@ -208,7 +210,7 @@ public class Templates extends AbstractImageSupport<CSCloud> {
             for( int i=0; i<matches.getLength(); i++ ) {
                 Node node = matches.item(i);
 
-                MachineImage image = toImage(node, false, null);
+                MachineImage image = toImage(node, false, null, null);
 
                 if( image != null ) {
                     if (!isTemplate) {
@@ -228,7 +230,7 @@ public class Templates extends AbstractImageSupport<CSCloud> {
         return getProvider().getComputeServices().getVolumeSupport().getRootVolumeId(serverId);
     }
     
-    private Architecture guess(String desc) {
+    static Architecture guess(String desc) {
         Architecture arch = Architecture.I64;
         
         if( desc.contains("x64") ) {
@@ -440,7 +442,7 @@ public class Templates extends AbstractImageSupport<CSCloud> {
             for( int i=0; i<matches.getLength(); i++ ) {
                 Node node = matches.item(i);
 
-                MachineImage image = toImage(node, true, null);
+                MachineImage image = toImage(node, true, null, null);
                 if( image != null && image.getProviderMachineImageId().equals(templateId) ) {
                     return true;
                 }
@@ -533,10 +535,9 @@ public class Templates extends AbstractImageSupport<CSCloud> {
     public boolean isSubscribed() throws CloudException, InternalException {
         APITrace.begin(getProvider(), "Image.isSubscribed");
         try {
-            CSMethod method = new CSMethod(getProvider());
-
             try {
-                method.get(CSTopology.LIST_ZONES, new Param("available", "true"));
+                // a live call, so the credentials really are checked; the response also refreshes the zone catalog
+                CSZoneCatalog.refresh(getProvider());
                 return true;
             }
             catch( CSException e ) {
@@ -686,6 +687,7 @@ public class Templates extends AbstractImageSupport<CSCloud> {
                     numPages++;
                 }
             }
+            CSTagIndex tagIndex = getProvider().getTagIndex("Template");
 
             for (int page = 1; page <= numPages; page++) {
                 if (page > 1) {
@@ -696,7 +698,7 @@ public class Templates extends AbstractImageSupport<CSCloud> {
                 NodeList matches = doc.getElementsByTagName("iso");
 
                 for( int i=0; i<matches.getLength(); i++ ) {
-                    MachineImage image = toImage(matches.item(i), false, hypervisors);
+                    MachineImage image = toImage(matches.item(i), false, hypervisors, tagIndex);
 
                     if( image != null && (options == null || options.matches(image)) ) {
                         image.setTag("isISO", "true");
@@ -751,6 +753,7 @@ public class Templates extends AbstractImageSupport<CSCloud> {
                     numPages++;
                 }
             }
+            CSTagIndex tagIndex = getProvider().getTagIndex("Template");
 
             for (int page = 1; page <= numPages; page++) {
                 if (page > 1) {
@@ -761,7 +764,7 @@ public class Templates extends AbstractImageSupport<CSCloud> {
                 NodeList matches = doc.getElementsByTagName("iso");
 
                 for( int i=0; i<matches.getLength(); i++ ) {
-                    MachineImage image = toImage(matches.item(i), false, getProvider().getZoneHypervisors(getContext().getRegionId()));
+                    MachineImage image = toImage(matches.item(i), false, getProvider().getZoneHypervisors(getContext().getRegionId()), tagIndex);
 
 
                     if( image != null && (options == null || options.matches(image)) ) {
@@ -1002,165 +1005,178 @@ public class Templates extends AbstractImageSupport<CSCloud> {
         }
     }
 
+    /**
+     * Searches the public templates of the current region. While the shared public template list is current, matches
+     * come from it without calling the cloud. Otherwise a concurrent search lists every public filter and streams
+     * matches back as its pages arrive, storing the full list for later searches once it completes. Concurrent searches
+     * of the same region by the same account share the search already in flight. The shared list is kept per set of
+     * public filters, and every image handed out is a copy, since images are mutable.
+     * <p>
+     * A streamed result may be iterated more than once. Because it is returned before every page is listed, an error
+     * listing a later page surfaces from the iterator as an {@link IllegalStateException} rather than from this method.
+     * @param options the options images must match
+     * @return the matching images
+     * @throws CloudException an error occurred listing the templates
+     * @throws InternalException an error occurred within Dasein Cloud while listing the templates
+     */
     @Override
     public @Nonnull Iterable<MachineImage> searchPublicImages(final @Nonnull ImageFilterOptions options) throws CloudException, InternalException {
-        //dmayne 20131004: need to get both sets of filters (featured and community) to match direct console
-        final List<Param> params = new ArrayList<Param>();
-        final List<MachineImage> allImages = new ArrayList<MachineImage>();
-        final CSMethod method = new CSMethod(getProvider());
-        Param filterParam = new Param("templateFilter", "featured");
-        params.add(filterParam);
-        final List<String> hypervisors = getProvider().getZoneHypervisors(getContext().getRegionId());
-        if( hypervisors != null && hypervisors.size() == 1) {
-            params.add(new Param("hypervisor", hypervisors.get(0)));
-        }
-        if( getContext().getRegionId() != null && !getContext().getRegionId().isEmpty() ) {
-            params.add(new Param("zoneId", getContext().getRegionId()));
+        APITrace.begin(getProvider(), "Image.searchPublicImages");
+        try {
+            List<String> templateFilters = getPublicTemplateFilters();
+            List<String> isoFilters = getFilters("publicIsoFilters", "");
+            String cacheName = getPublicImageCacheName(templateFilters, isoFilters);
+            Iterable<MachineImage> cached = CSSharedCache.peek(getProvider(), cacheName, MachineImage.class, CacheLevel.REGION, PUBLIC_IMAGE_TIMEOUT);
+
+            if( cached == null ) {
+                return startPublicImageSearch(templateFilters, isoFilters, cacheName).stream(options);
+            }
+            List<MachineImage> images = new ArrayList<MachineImage>();
+
+            for( MachineImage img : cached ) {
+                if( options.matches(img) ) {
+                    images.add(copy(img));
+                }
+            }
+            return images;
         }
+        finally {
+            APITrace.end();
+        }
+    }
 
-        //todo add public isos when we can support launching vms from them
-        //todo refactor to make smaller methods
-        // params3 = new Param[] { new Param("isoFilter", "featured"),  new Param("zoneId", getContext().getRegionId()), new Param("bootable", "true") };
-        // params4 = new Param[] { new Param("isoFilter", "community"),  new Param("zoneId", getContext().getRegionId()), new Param("bootable", "true") };
+    /**
+     * Reloads the shared public template list for the current region, regardless of its current age.
+     * @throws CloudException an error occurred loading the templates from the cloud
+     * @throws InternalException an error occurred within Dasein Cloud while loading the templates
+     */
+    public void refreshPublicImages() throws CloudException, InternalException {
+        List<String> templateFilters = getPublicTemplateFilters();
+        List<String> isoFilters = getFilters("publicIsoFilters", "");
+        String cacheName = getPublicImageCacheName(templateFilters, isoFilters);
+
+        CSSharedCache.refresh(getProvider(), cacheName, MachineImage.class, CacheLevel.REGION, PUBLIC_IMAGE_TIMEOUT, new PublicImageLoader(templateFilters, isoFilters, cacheName));
+    }
 
+    /**
+     * Loads the unfiltered public templates for the current region. The list is shared by every account talking to the
+     * same endpoint and region for 15 minutes.
+     */
+    private class PublicImageLoader implements CSSharedCache.Loader<MachineImage> {
+        private final List<String> templateFilters;
+        private final List<String> isoFilters;
+        private final String       cacheName;
+
+        PublicImageLoader(@Nonnull List<String> templateFilters, @Nonnull List<String> isoFilters, @Nonnull String cacheName) {
+            this.templateFilters = templateFilters;
+            this.isoFilters = isoFilters;
+            this.cacheName = cacheName;
+        }
 
-        getProvider().hold();
-        PopulatorThread<MachineImage> populator = new PopulatorThread<MachineImage>(new JiteratorPopulator<MachineImage>() {
-            @Override
-            public void populate(@Nonnull Jiterator<MachineImage> iterator) throws Exception {
-                try {
-                    APITrace.begin(getProvider(), "Image.searchPublicImages.populate");
-                    try {
-                        final Document doc = method.get(LIST_TEMPLATES, params);
-                        final NodeList matches = doc.getElementsByTagName("template");
+        @Override
+        public @Nonnull Collection<MachineImage> load() throws CloudException, InternalException {
+            APITrace.begin(getProvider(), "Image.loadPublicImages");
+            try {
+                return startPublicImageSearch(templateFilters, isoFilters, cacheName).await();
+            }
+            finally {
+                APITrace.end();
+            }
+        }
+    }
 
-                        for( int i=0; i<matches.getLength(); i++ ) {
-                            final MachineImage img = toImage(matches.item(i), true, hypervisors);
+    /**
+     * Joins the search of the public filters in flight for this region and account, or starts a new one.
+     * @param templateFilters the <code>templateFilter</code> values to list templates with
+     * @param isoFilters the <code>isoFilter</code> values to list ISOs with
+     * @param cacheName the name under which the completed search is cached
+     * @return the running search
+     * @throws CloudException an error occurred looking up the zone hypervisors
+     * @throws InternalException an error occurred within Dasein Cloud while looking up the zone hypervisors
+     */
+    private @Nonnull PublicImageSearch startPublicImageSearch(@Nonnull List<String> templateFilters, @Nonnull List<String> isoFilters, @Nonnull String cacheName) throws CloudException, InternalException {
+        return PublicImageSearch.join(this, getProvider(), getProvider().getZoneHypervisors(getContext().getRegionId()), templateFilters, isoFilters, cacheName);
+    }
 
-                            if( img != null && options.matches(img) ) {
-                                iterator.push(img);
-                            }
-                        }
-                    }
-                    finally {
-                        APITrace.end();
-                    }
-                }
-                finally {
-                    getProvider().release();
-                }
+    /**
+     * Templates are listed with the <code>publicImageFilters</code> custom property (default
+     * <code>featured,community</code>, or only <code>featured</code> for DataPipe) and bootable ISOs with
+     * <code>publicIsoFilters</code> (default none), each a comma-separated list of CloudStack filters such as
+     * <code>executable</code>.
+     * @return the <code>templateFilter</code> values of a public image search
+     */
+    private @Nonnull List<String> getPublicTemplateFilters() {
+        //dmayne 20131004: need to get both sets of filters (featured and community) to match direct console
+        String defaultFilters = (getProvider().getServiceProvider().equals(CSServiceProvider.DATAPIPE) ? "featured" : "featured,community");
+
+        return getFilters("publicImageFilters", defaultFilters);
+    }
+
+    /**
+     * Names the shared public image list after the filters it was listed with, so contexts configured with different
+     * filters do not see each other's lists.
+     */
+    static private @Nonnull String getPublicImageCacheName(@Nonnull List<String> templateFilters, @Nonnull List<String> isoFilters) {
+        List<String> templates = new ArrayList<String>(templateFilters);
+        List<String> isos = new ArrayList<String>(isoFilters);
+
+        Collections.sort(templates);
+        Collections.sort(isos);
+        return "publicImages" + templates + isos;
+    }
+
+    /**
+     * Copies an image from the shared public image list, so callers cannot change the shared instance.
+     * @param image the shared image
+     * @return a copy of the image
+     */
+    static @Nonnull MachineImage copy(@Nonnull MachineImage image) {
+        MachineImage copy = MachineImage.getImageInstance(image.getProviderOwnerId(), image.getProviderRegionId(), image.getProviderMachineImageId(), image.getImageClass(), image.getCurrentState(), image.getName(), image.getDescription(), image.getArchitecture(), image.getPlatform());
+
+        copy.withSoftware(image.getSoftware());
+        copy.setTags(new HashMap<String, String>(image.getTags()));
+        copy.createdAt(image.getCreationTimestamp());
+        if( image.isPublic() ) {
+            copy.sharedWithPublic();
+        }
+        return copy;
+    }
+
+    private @Nonnull List<String> getFilters(@Nonnull String property, @Nonnull String defaultValue) {
+        Properties properties = getContext().getCustomProperties();
+        String value = (properties == null ? null : properties.getProperty(property));
+        List<String> filters = new ArrayList<String>();
+
+        for( String filter : (value == null ? defaultValue : value).split(",") ) {
+            if( filter.trim().length() > 0 && !filters.contains(filter.trim()) ) {
+                filters.add(filter.trim());
             }
-        });
-
-        populator.populate();
-        allImages.addAll(populator.getResult());
-
-        /*todo add public isos when we can support launching vms from them
-         getProvider().hold();
-         populator = new PopulatorThread<MachineImage>(new JiteratorPopulator<MachineImage>() {
-             @Override
-             public void populate(@Nonnull Jiterator<MachineImage> iterator) throws Exception {
-                 try {
-                     APITrace.begin(getProvider(), "Image.searchPublicImages.populate");
-                     try {
-                         Document doc = method.get(method.buildUrl(LIST_ISOS, params3), LIST_ISOS);
-                         NodeList matches = doc.getElementsByTagName("iso");
-
-                         for( int i=0; i<matches.getLength(); i++ ) {
-                             MachineImage img = toImage(matches.item(i), true);
-
-
-                             if( img != null && options.matches(img) ) {
-                                 img.setTag("isISO", "true");
-                                 iterator.push(img);
-                             }
-                         }
-                     }
-                     finally {
-                         APITrace.end();
-                     }
-                 }
-                 finally {
-                     getProvider().release();
-                 }
-             }
-         });
-
-         populator.populate();
-         allImages.addAll(populator.getResult());
-         */
-        filterParam.setValue("community");
-        if (!getProvider().getServiceProvider().equals(CSServiceProvider.DATAPIPE) ) {
-            getProvider().hold();
-            populator = new PopulatorThread<MachineImage>(new JiteratorPopulator<MachineImage>() {
-                @Override
-                public void populate(@Nonnull Jiterator<MachineImage> iterator) throws Exception {
-                    try {
-                        APITrace.begin(getProvider(), "Image.searchPublicImages.populate");
-                        try {
-                            final Document doc = method.get(LIST_TEMPLATES, params);
-                            final NodeList matches = doc.getElementsByTagName("template");
-
-                            for( int i=0; i<matches.getLength(); i++ ) {
-                                final MachineImage img = toImage(matches.item(i), true, hypervisors);
-
-                                if( img != null && options.matches(img) && !allImages.contains(img)) {
-                                    iterator.push(img);
-                                }
-                            }
-                        }
-                        finally {
-                            APITrace.end();
-                        }
-                    }
-                    finally {
-                        getProvider().release();
-                    }
-                }
-            });
-
-            populator.populate();
-            allImages.addAll(populator.getResult());
-
-            /*todo add public isos when we can support launching vms from them
-             getProvider().hold();
-             populator = new PopulatorThread<MachineImage>(new JiteratorPopulator<MachineImage>() {
-                 @Override
-                 public void populate(@Nonnull Jiterator<MachineImage> iterator) throws Exception {
-                     try {
-                         APITrace.begin(getProvider(), "Image.searchPublicImages.populate");
-                         try {
-                             Document doc = method.get(method.buildUrl(LIST_ISOS, params4), LIST_ISOS);
-                             NodeList matches = doc.getElementsByTagName("iso");
-
-                             for( int i=0; i<matches.getLength(); i++ ) {
-                                 MachineImage img = toImage(matches.item(i), true);
-
-
-                                 if( img != null && options.matches(img) && !allImages.contains(img)) {
-                                    img.setTag("isISO", "true");
-                                    iterator.push(img);
-                                }
-                            }
-                        }
-                        finally {
-                            APITrace.end();
-                        }
-                    }
-                    finally {
-                        getProvider().release();
-                    }
-                }
-            });
+        }
+        return filters;
+    }
 
-            populator.populate();
-            allImages.addAll(populator.getResult());
-            */
+    /**
+     * Stores the result of a completed public image search as the shared public template list.
+     * @param cacheName the name of the list for the filters searched
+     * @param images every public image found
+     */
+    void cachePublicImages(@Nonnull String cacheName, @Nonnull Collection<MachineImage> images) {
+        try {
+            CSSharedCache.put(getProvider(), cacheName, MachineImage.class, CacheLevel.REGION, PUBLIC_IMAGE_TIMEOUT, images);
+        }
+        catch( CloudException e ) {
+            logger.warn("Unable to cache public images: " + e.getMessage());
         }
-        return allImages;
     }
 
-    private @Nullable MachineImage toImage(@Nullable Node node, boolean onlyIfPublic, List<String> desiredHypervisors) throws CloudException, InternalException {
+    /**
+     * @param node the <code>template</code> or <code>iso</code> element to map
+     * @param onlyIfPublic true to map only public images
+     * @param desiredHypervisors the hypervisors the image must support, or null for any
+     * @param tagIndex the tag index captured for the listing being mapped, or null to use only the tags in the element
+     * @return the image, or null if the element does not describe a matching image
+     */
+    @Nullable MachineImage toImage(@Nullable Node node, boolean onlyIfPublic, List<String> desiredHypervisors, @Nullable CSTagIndex tagIndex) throws CloudException, InternalException {
         if( node == null ) {
             return null;
         }
@@ -1169,7 +1185,8 @@ public class Templates extends AbstractImageSupport<CSCloud> {
         NodeList attributes = node.getChildNodes();
         boolean isPublic = false;
 
-        String providerOwnerId = getContext().getAccountNumber();
+        // public listings are shared across accounts, so an image without an account element has no known owner
+        String providerOwnerId = (onlyIfPublic ? "" : getContext().getAccountNumber());
         MachineImageState state = MachineImageState.PENDING;
         String regionId = null;
         ImageClass imageClass = ImageClass.MACHINE;
@@ -1277,6 +1294,13 @@ public class Templates extends AbstractImageSupport<CSCloud> {
         if( architecture == null ) {
             architecture = bestArchitectureGuess;
         }
+        if( !onlyIfPublic && imageId != null ) {
+            // public listings are shared across accounts, so only private listings carry account tags
+            properties.putAll(CSTagIndex.parseTags(node));
+            if( tagIndex != null ) {
+                properties.putAll(tagIndex.getTags(imageId));
+            }
+        }
         MachineImage image = null;
         if( !onlyIfPublic || isPublic ) {
             image = MachineImage.getImageInstance(providerOwnerId, regionId, imageId, imageClass, state, imgName, description, architecture, platform);
@@ -1335,34 +1359,72 @@ public class Templates extends AbstractImageSupport<CSCloud> {
         return null;
     }
 
-    private String toOs(Platform platform, Architecture architecture) throws InternalException, CloudException {
-        Document doc = new CSMethod(getProvider()).get(LIST_OS_TYPES);
-        NodeList matches = doc.getElementsByTagName("ostype");
-        
-        for( int i=0; i<matches.getLength(); i++ ) {
-            NodeList attrs = matches.item(i).getChildNodes();
-            Architecture arch = Architecture.I64;
-            Platform pf = null;
-            String id = null;
-            
-            for( int j=0; j<attrs.getLength(); j++ ) {
-                Node attr = attrs.item(j);
+    /**
+     * A single entry of the <code>listOsTypes</code> catalog.
+     */
+    static public class OsType {
+        public String id;
+        public String description;
 
-                if( attr.getNodeName().equals("id") ) {
-                    id = attr.getFirstChild().getNodeValue();
-                }
-                else if( attr.getNodeName().equals("description") ) {
-                    String desc = attr.getFirstChild().getNodeValue();
-                    
-                    pf = Platform.guess(desc);
-                    arch = guess(desc);
+        public String toString() { return "OS Type [" + id + "] " + description; }
+    }
+
+    /**
+     * Provides the OS type catalog of the endpoint, shared by every account and region for a day.
+     * @return the OS types known to the cloud
+     * @throws InternalException an error occurred within Dasein Cloud while loading the OS types
+     * @throws CloudException an error occurred loading the OS types from the cloud
+     */
+    public @Nonnull Iterable<OsType> listOsTypes() throws InternalException, CloudException {
+        return CSSharedCache.get(getProvider(), "osTypes", OsType.class, CacheLevel.CLOUD, new TimePeriod<Day>(1, TimePeriod.DAY), new OsTypeLoader());
+    }
+
+    /**
+     * Reloads the shared OS type catalog of the endpoint, regardless of its current age.
+     * @throws InternalException an error occurred within Dasein Cloud while loading the OS types
+     * @throws CloudException an error occurred loading the OS types from the cloud
+     */
+    public void refreshOsTypes() throws InternalException, CloudException {
+        CSSharedCache.refresh(getProvider(), "osTypes", OsType.class, CacheLevel.CLOUD, new TimePeriod<Day>(1, TimePeriod.DAY), new OsTypeLoader());
+    }
+
+    private class OsTypeLoader implements CSSharedCache.Loader<OsType> {
+        @Override
+        public @Nonnull Collection<OsType> load() throws CloudException, InternalException {
+            APITrace.begin(getProvider(), "Image.listOsTypes");
+            try {
+                Document doc = new CSMethod(getProvider()).get(LIST_OS_TYPES);
+                NodeList matches = doc.getElementsByTagName("ostype");
+                List<OsType> types = new ArrayList<OsType>();
+
+                for( int i=0; i<matches.getLength(); i++ ) {
+                    NodeList attrs = matches.item(i).getChildNodes();
+                    OsType type = new OsType();
+
+                    for( int j=0; j<attrs.getLength(); j++ ) {
+                        Node attr = attrs.item(j);
+
+                        if( attr.getNodeName().equals("id") ) {
+                            type.id = attr.getFirstChild().getNodeValue();
+                        }
+                        else if( attr.getNodeName().equals("description") ) {
+                            type.description = attr.getFirstChild().getNodeValue();
+                        }
+                    }
+                    if( type.id != null ) {
+                        types.add(type);
+                    }
                 }
+                return types;
             }
-            if( platform.equals(pf) && architecture.equals(arch) ) {
-                return id;
+            finally {
+                APITrace.end();
             }
         }
-        return null;
+    }
+
+    private String toOs(Platform platform, Architecture architecture) throws InternalException, CloudException {
+        return OsTypeIndex.getInstance(getContext().getCloud().getEndpoint(), listOsTypes()).getOsTypeId(platform, architecture);
     }
     
     private String validateName(String name) throws InternalException, CloudException {
@@ -1407,7 +1469,7 @@ public class Templates extends AbstractImageSupport<CSCloud> {
     	APITrace.begin(getProvider(), "Image.setTags");
     	try {
     		removeTags(imageIds);
-    		getProvider().createTags(imageIds, "Template", tags);
+    		getProvider().createTags(imageIds, "Template", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
@@ -1423,7 +1485,7 @@ public class Templates extends AbstractImageSupport<CSCloud> {
     public void updateTags(@Nonnull String[] imageIds, @Nonnull Tag... tags) throws CloudException, InternalException {
     	APITrace.begin(getProvider(), "Server.updateTags");
     	try {
-    		getProvider().updateTags(imageIds, "Template", tags);
+    		getProvider().updateTags(imageIds, "Template", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
@@ -1439,7 +1501,7 @@ public class Templates extends AbstractImageSupport<CSCloud> {
     public void removeTags(@Nonnull String[] imageIds, @Nonnull Tag... tags) throws CloudException, InternalException {
     	APITrace.begin(getProvider(), "Image.removeTags");
     	try {
-    		getProvider().removeTags(imageIds, "Template", tags);
+    		getProvider().removeTags(imageIds, "Template", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
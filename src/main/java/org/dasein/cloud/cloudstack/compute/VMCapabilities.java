@@ -248,16 +248,19 @@ public class VMCapabilities extends AbstractCapabilities<CSCloud> implements Vir
         return false;
     }
 
-    private transient Collection<Architecture> architectures;
+    private transient volatile Collection<Architecture> architectures;
     @Nonnull
     @Override
     public Iterable<Architecture> listSupportedArchitectures() throws InternalException, CloudException {
+        Collection<Architecture> architectures = this.architectures;
+
         if( architectures == null ) {
             ArrayList<Architecture> a = new ArrayList<Architecture>();
 
             a.add(Architecture.I32);
             a.add(Architecture.I64);
             architectures = Collections.unmodifiableList(a);
+            this.architectures = architectures;
         }
         return architectures;
     }
@@ -27,18 +27,24 @@ import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.Requirement;
 import org.dasein.cloud.ResourceStatus;
 import org.dasein.cloud.Tag;
+import org.dasein.cloud.cloudstack.CSBulkResult;
 import org.dasein.cloud.cloudstack.CSCloud;
 import org.dasein.cloud.cloudstack.CSException;
+import org.dasein.cloud.cloudstack.CSJobTracker;
+import org.dasein.cloud.cloudstack.CSLaunchResult;
+import org.dasein.cloud.cloudstack.CSMappings;
 import org.dasein.cloud.cloudstack.CSMethod;
-import org.dasein.cloud.cloudstack.CSTopology;
+import org.dasein.cloud.cloudstack.CSSharedCache;
+import org.dasein.cloud.cloudstack.CSTagIndex;
+import org.dasein.cloud.cloudstack.CSTaskGroup;
 import org.dasein.cloud.cloudstack.CSVersion;
+import org.dasein.cloud.cloudstack.CSZoneCatalog;
 import org.dasein.cloud.cloudstack.Param;
 import org.dasein.cloud.cloudstack.network.Network;
 import org.dasein.cloud.cloudstack.network.SecurityGroup;
 import org.dasein.cloud.compute.*;
 import org.dasein.cloud.network.RawAddress;
 import org.dasein.cloud.util.APITrace;
-import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
 import org.dasein.util.CalendarWrapper;
 import org.dasein.util.uom.storage.Gigabyte;
@@ -53,9 +59,6 @@ import org.w3c.dom.NodeList;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletResponse;
-import java.io.BufferedReader;
-import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
 import java.text.DateFormat;
 import java.text.ParseException;
@@ -64,11 +67,15 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class VirtualMachines extends AbstractVMSupport<CSCloud> {
     static public final Logger logger = Logger.getLogger(VirtualMachines.class);
@@ -84,10 +91,6 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
     static private final String START_VIRTUAL_MACHINE   = "startVirtualMachine";
     static private final String STOP_VIRTUAL_MACHINE    = "stopVirtualMachine";
     
-    static private Properties                              cloudMappings;
-    static private Map<String,Map<String,String>>          customNetworkMappings;
-    static private Map<String,Map<String,Set<String>>>     customServiceMappings;
-    
     public VirtualMachines(CSCloud provider) {
         super(provider);
     }
@@ -157,7 +160,7 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
                 NodeList nodeList = responseDoc.getElementsByTagName("virtualmachine");
                 if (nodeList.getLength() > 0) {
                     Node virtualMachine = nodeList.item(0);
-                    vm = toVirtualMachine(virtualMachine);
+                    vm = toVirtualMachine(virtualMachine, null);
                     if( vm != null ) {
                         if (restart) {
                             start(vmId);
@@ -235,7 +238,7 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
                 NodeList nodeList = responseDoc.getElementsByTagName("virtualmachine");
                 if (nodeList.getLength() > 0) {
                     Node virtualMachine = nodeList.item(0);
-                    vm = toVirtualMachine(virtualMachine);
+                    vm = toVirtualMachine(virtualMachine, null);
                     if( vm != null ) {
                         if (restart) {
                             start(vmId);
@@ -335,72 +338,6 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
         }
     }
 
-    private String getRootPassword(@Nonnull String serverId) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "VM.getPassword");
-        try {
-            ProviderContext ctx = provider.getContext();
-
-            if( ctx == null ) {
-                throw new CloudException("No context was specified for this request");
-            }
-
-            CSMethod method = new CSMethod(provider);
-            Document doc = method.get(method.buildUrl(GET_VIRTUAL_MACHINE_PASSWORD, new Param("id", serverId)), GET_VIRTUAL_MACHINE_PASSWORD);
-
-            if (doc != null){
-                NodeList matches = doc.getElementsByTagName("getvmpasswordresponse");
-
-                for( int i=0; i<matches.getLength(); i++ ) {
-                    Node node = matches.item(i);
-
-                    if( node != null ) {
-                        NodeList attributes = node.getChildNodes();
-                        for( int j=0; j<attributes.getLength(); j++ ) {
-                            Node attribute = attributes.item(j);
-                            String name = attribute.getNodeName().toLowerCase();
-                            String value;
-
-                            if( attribute.getChildNodes().getLength() > 0 ) {
-                                value = attribute.getFirstChild().getNodeValue();
-                            }
-                            else {
-                                value = null;
-                            }
-                            if( name.equals("password") ) {
-                                NodeList nodes = attribute.getChildNodes();
-                                for( int k=0; k<nodes.getLength(); k++ ) {
-                                    Node password = nodes.item(k);
-                                    name = password.getNodeName().toLowerCase();
-
-                                    if( password.getChildNodes().getLength() > 0 ) {
-                                        value = password.getFirstChild().getNodeValue();
-                                    }
-                                    else {
-                                        value = null;
-                                    }
-                                    if( name.equals("encryptedpassword") ) {
-                                        return value;
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            }
-            logger.warn("Unable to find password for vm with id "+serverId);
-            return null;
-        }
-        catch (CSException e) {
-            if (e.getHttpCode() == 431) {
-                logger.warn("No password found for vm "+serverId);
-            }
-            return null;
-        }
-        finally {
-            APITrace.end();
-        }
-    }
-
     @Override
     public @Nullable VirtualMachine getVirtualMachine(@Nonnull String serverId) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "VM.getVirtualMachine");
@@ -412,7 +349,7 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
                 return null;
             }
             for( int i=0; i<matches.getLength(); i++ ) {
-                VirtualMachine s = toVirtualMachine(matches.item(i));
+                VirtualMachine s = toVirtualMachine(matches.item(i), null);
 
                 if( s != null && s.getProviderVirtualMachineId().equals(serverId) ) {
                     return s;
@@ -435,7 +372,8 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
     public boolean isSubscribed() throws CloudException, InternalException {
         APITrace.begin(getProvider(), "VM.isSubscribed");
         try {
-            new CSMethod(getProvider()).get(CSTopology.LIST_ZONES, new Param("available", "true"));
+            // a live call, so the credentials really are checked; the response also refreshes the zone catalog
+            CSZoneCatalog.refresh(getProvider());
             return true;
         }
         catch( CSException e ) {
@@ -463,45 +401,259 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
     public @Nonnull VirtualMachine launch(@Nonnull VMLaunchOptions withLaunchOptions) throws CloudException, InternalException {
         APITrace.begin(getProvider(), "VM.launch");
         try {
-            String id = withLaunchOptions.getStandardProductId();
-
-            VirtualMachineProduct product = getProduct(id);
-            if( product == null ) {
-                throw new CloudException("Invalid product ID: " + id);
-            }
-
             VirtualMachine vm ;
+
+            // CloudStack 2.1 takes none of the planned parameters, so it is not planned for
             if( getProvider().getVersion().greaterThan(CSVersion.CS21) ) {
-                vm = launch22(withLaunchOptions.getMachineImageId(), product,  withLaunchOptions.getDataCenterId(), withLaunchOptions.getFriendlyName(), withLaunchOptions.getBootstrapKey(), withLaunchOptions.getVlanId(), withLaunchOptions.getFirewallIds(), withLaunchOptions.getUserData());
+                LaunchPlan plan = planLaunch(withLaunchOptions.getStandardProductId(), null, withLaunchOptions.getMachineImageId(), withLaunchOptions.getDataCenterId(), withLaunchOptions.getBootstrapKey(), withLaunchOptions.getVlanId(), withLaunchOptions.getFirewallIds(), withLaunchOptions.getUserData());
+
+                vm = launch(deploy(plan, withLaunchOptions.getFriendlyName()));
             }
             else {
+                VirtualMachineProduct product = getProduct(withLaunchOptions.getStandardProductId());
+
+                if( product == null ) {
+                    throw new CloudException("Invalid product ID: " + withLaunchOptions.getStandardProductId());
+                }
                 vm = launch21(withLaunchOptions.getMachineImageId(), product, withLaunchOptions.getDataCenterId(), withLaunchOptions.getFriendlyName());
             }
 
-            // Set tags
-            List<Tag> tags = new ArrayList<Tag>();
-            Map<String, Object> meta = withLaunchOptions.getMetaData();
-            for( Map.Entry<String, Object> entry : meta.entrySet() ) {
-            	if( entry.getKey().equalsIgnoreCase("name") || entry.getKey().equalsIgnoreCase("description") ) {
-            		continue;
-            	}
-            	if (entry.getValue() != null && !entry.getValue().equals("")) {
-            		tags.add(new Tag(entry.getKey(), entry.getValue().toString()));
-            	}
+            getProvider().createTags(new String[] { vm.getProviderVirtualMachineId() }, "UserVm", getLaunchTags(withLaunchOptions, withLaunchOptions.getFriendlyName()));
+            return vm;
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Launches many virtual machines from the same options. This is {@link #launchBatch(VMLaunchOptions, int)} for
+     * callers that only want the IDs: failed launches are logged and left out, and launch jobs still running after
+     * <code>launchJobTimeout</code> seconds (default one hour) without having named their virtual machine are logged
+     * with their job IDs and left out as well, so the virtual machines that did launch are always returned.
+     * @param withLaunchOptions the options shared by every virtual machine
+     * @param count the number of virtual machines to launch
+     * @return the IDs of the launched virtual machines
+     * @throws CloudException no virtual machine could be launched; the first failure is thrown, or the stalled job
+     * IDs are named if no launch failed outright
+     * @throws InternalException an error occurred within Dasein Cloud while launching and no virtual machine was
+     * launched
+     */
+    @Override
+    public @Nonnull Iterable<String> launchMany(@Nonnull VMLaunchOptions withLaunchOptions, int count) throws CloudException, InternalException {
+        if( count < 1 ) {
+            throw new InternalException("Invalid attempt to launch less than 1 virtual machine (requested " + count + ")");
+        }
+        if( count == 1 ) {
+            return Collections.singletonList(launch(withLaunchOptions).getProviderVirtualMachineId());
+        }
+        CSLaunchResult result = launchBatch(withLaunchOptions, count);
+        Map<String,String> stalled = result.getStalledJobs();
+
+        if( !stalled.isEmpty() ) {
+            logger.warn(stalled.size() + " launch job(s) did not complete in time and may still launch: " + stalled);
+        }
+        List<String> vmIds = result.getVirtualMachineIds();
+
+        if( vmIds.isEmpty() ) {
+            Iterator<Exception> failures = result.getFailures().values().iterator();
+            Exception firstError = (failures.hasNext() ? failures.next() : null);
+
+            if( firstError instanceof InternalException ) {
+                throw (InternalException)firstError;
+            }
+            if( firstError == null ) {
+                throw new CloudException("No launch job completed in time: " + stalled);
+            }
+            throw (firstError instanceof CloudException ? (CloudException)firstError : new CloudException("Could not launch servers", firstError));
+        }
+        return vmIds;
+    }
+
+    /**
+     * Launches many virtual machines from the same options and reports what happened to each of them. The network,
+     * security groups, product and template are resolved once for the whole batch, the
+     * <code>deployVirtualMachine</code> calls are submitted concurrently on the provider's task executor, and the
+     * resulting jobs are waited on together for up to <code>launchJobTimeout</code> seconds (default one hour). Each
+     * virtual machine is named after the friendly name in the options with a <code>-n</code> suffix. Every submitted
+     * deployment is accounted for: a launch job still running at the timeout counts as launched (and is tagged) if
+     * CloudStack already named its virtual machine, and as stalled otherwise.
+     * @param withLaunchOptions the options shared by every virtual machine
+     * @param count the number of virtual machines to launch
+     * @return the launched, failed and stalled virtual machines
+     * @throws CloudException the launch prerequisites could not be resolved
+     * @throws InternalException an error occurred within Dasein Cloud while preparing the launch
+     */
+    public @Nonnull CSLaunchResult launchBatch(@Nonnull VMLaunchOptions withLaunchOptions, int count) throws CloudException, InternalException {
+        if( count < 1 ) {
+            throw new InternalException("Invalid attempt to launch less than 1 virtual machine (requested " + count + ")");
+        }
+        APITrace.begin(getProvider(), "VM.launchBatch");
+        try {
+            CSLaunchResult result = new CSLaunchResult();
+
+            if( !getProvider().getVersion().greaterThan(CSVersion.CS21) ) {
+                int i = 1;
+
+                for( String vmId : super.launchMany(withLaunchOptions, count) ) {
+                    result.addLaunched(withLaunchOptions.getFriendlyName() + "-" + (i++), vmId);
+                }
+                return result;
             }
-            tags.add(new Tag("Name", withLaunchOptions.getFriendlyName()));
-            tags.add(new Tag("Description", withLaunchOptions.getDescription()));
-            if( withLaunchOptions.getVirtualMachineGroup() != null ) {
-            	tags.add(new Tag("dsnVMGroup", withLaunchOptions.getVirtualMachineGroup()));
+            final LaunchPlan plan = planLaunch(withLaunchOptions.getStandardProductId(), null, withLaunchOptions.getMachineImageId(), withLaunchOptions.getDataCenterId(), withLaunchOptions.getBootstrapKey(), withLaunchOptions.getVlanId(), withLaunchOptions.getFirewallIds(), withLaunchOptions.getUserData());
+            Map<String,Future<Document>> submissions = new LinkedHashMap<String, Future<Document>>();
+
+            for( int i = 1; i <= count; i++ ) {
+                final String name = withLaunchOptions.getFriendlyName() + "-" + i;
+
+                submissions.put(name, getProvider().submitTask(new Callable<Document>() {
+                    @Override
+                    public Document call() throws Exception {
+                        return deploy(plan, name);
+                    }
+                }));
             }
-            getProvider().createTags(new String[] { vm.getProviderVirtualMachineId() }, "UserVm", tags.toArray(new Tag[tags.size()]));
-            return vm;
+            CSJobTracker tracker = new CSJobTracker(getProvider());
+            Map<String,String> namesByJob = new HashMap<String, String>();
+            Map<String,String> vmsByJob = new HashMap<String, String>();
+            Map<String,Tag[]> tags = new LinkedHashMap<String, Tag[]>();
+
+            // collect every submission before acting on any failure, so no deployment in flight goes unaccounted for
+            for( Map.Entry<String,Future<Document>> submission : submissions.entrySet() ) {
+                String name = submission.getKey();
+                Exception error = null;
+
+                try {
+                    Document doc = await(submission.getValue());
+                    String jobId = CSJobTracker.getJobId(doc);
+                    String vmId = getVirtualMachineId(doc, "deployvirtualmachineresponse");
+
+                    if( jobId != null ) {
+                        namesByJob.put(jobId, name);
+                        if( vmId != null ) {
+                            vmsByJob.put(jobId, vmId);
+                        }
+                        tracker.track(jobId, "Launch Server " + name);
+                    }
+                    else if( vmId != null ) {
+                        result.addLaunched(name, vmId);
+                        tags.put(vmId, getLaunchTags(withLaunchOptions, name));
+                    }
+                    else {
+                        error = new CloudException("Could not launch server " + name);
+                    }
+                }
+                catch( ExecutionException e ) {
+                    Throwable cause = e.getCause();
+
+                    error = (cause instanceof Exception ? (Exception)cause : new CloudException(cause));
+                }
+                if( error != null ) {
+                    logger.error("Failed to launch " + name + ": " + error.getMessage());
+                    result.addFailure(name, error);
+                }
+            }
+            for( CSJobTracker.Outcome outcome : tracker.waitForAll(getLaunchJobTimeout(getContext())).values() ) {
+                String name = namesByJob.get(outcome.getJobId());
+                CloudException error = outcome.getError();
+                String vmId = null;
+
+                if( outcome.isTimedOut() ) {
+                    vmId = vmsByJob.get(outcome.getJobId());
+                    if( vmId == null ) {
+                        logger.warn("Launch of " + name + " is still running as job " + outcome.getJobId());
+                        result.addStalled(name, outcome.getJobId());
+                    }
+                    else {
+                        logger.warn("Launch of " + name + " (" + vmId + ") is still running as job " + outcome.getJobId());
+                        result.addLaunched(name, vmId);
+                        tags.put(vmId, getLaunchTags(withLaunchOptions, name));
+                    }
+                    continue;
+                }
+
+                if( error == null && outcome.getResult() != null ) {
+                    vmId = getVirtualMachineId(outcome.getResult(), "virtualmachine");
+                    if( vmId == null ) {
+                        error = new CloudException("No virtual machine provided for " + name);
+                    }
+                }
+                if( vmId != null ) {
+                    result.addLaunched(name, vmId);
+                    tags.put(vmId, getLaunchTags(withLaunchOptions, name));
+                }
+                else if( error != null ) {
+                    logger.error("Failed to launch " + name + ": " + error.getMessage());
+                    result.addFailure(name, error);
+                }
+            }
+            if( !tags.isEmpty() ) {
+                getProvider().createTags(tags, "UserVm");
+            }
+            return result;
         }
         finally {
             APITrace.end();
         }
     }
 
+    static private long getLaunchJobTimeout(@Nullable ProviderContext ctx) {
+        Properties properties = (ctx == null ? null : ctx.getCustomProperties());
+        String value = (properties == null ? null : properties.getProperty("launchJobTimeout"));
+
+        if( value != null ) {
+            try {
+                return Long.parseLong(value.trim()) * CalendarWrapper.SECOND;
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Invalid value for launchJobTimeout: " + value);
+            }
+        }
+        return CalendarWrapper.HOUR;
+    }
+
+    private @Nonnull Tag[] getLaunchTags(@Nonnull VMLaunchOptions withLaunchOptions, @Nonnull String name) {
+        List<Tag> tags = new ArrayList<Tag>();
+        Map<String, Object> meta = withLaunchOptions.getMetaData();
+        for( Map.Entry<String, Object> entry : meta.entrySet() ) {
+            if( entry.getKey().equalsIgnoreCase("name") || entry.getKey().equalsIgnoreCase("description") ) {
+                continue;
+            }
+            if (entry.getValue() != null && !entry.getValue().equals("")) {
+                tags.add(new Tag(entry.getKey(), entry.getValue().toString()));
+            }
+        }
+        tags.add(new Tag("Name", name));
+        tags.add(new Tag("Description", withLaunchOptions.getDescription()));
+        if( withLaunchOptions.getVirtualMachineGroup() != null ) {
+            tags.add(new Tag("dsnVMGroup", withLaunchOptions.getVirtualMachineGroup()));
+        }
+        return tags.toArray(new Tag[tags.size()]);
+    }
+
+    /**
+     * Finds the virtual machine ID in a deployment response or job result.
+     * @param doc the response
+     * @param element the element holding the virtual machine attributes
+     * @return the virtual machine ID, or null if the response does not identify one
+     */
+    static private @Nullable String getVirtualMachineId(@Nonnull Document doc, @Nonnull String element) {
+        NodeList matches = doc.getElementsByTagName(element);
+
+        for( int i=0; i<matches.getLength(); i++ ) {
+            NodeList attrs = matches.item(i).getChildNodes();
+
+            for( int j=0; j<attrs.getLength(); j++ ) {
+                Node node = attrs.item(j);
+
+                if( node != null && node.hasChildNodes() && (node.getNodeName().equalsIgnoreCase("virtualmachineid") || node.getNodeName().equalsIgnoreCase("id")) ) {
+                    return node.getFirstChild().getNodeValue();
+                }
+            }
+        }
+        return null;
+    }
+
     @Override
     @Deprecated
     @SuppressWarnings("deprecation")
@@ -536,89 +688,44 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
         );
     }
     
-    private void load() {
-        try {
-            InputStream input = VirtualMachines.class.getResourceAsStream("/cloudMappings.cfg");
-            BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-            Properties properties = new Properties();
-            String line;
-            
-            while( (line = reader.readLine()) != null ) {
-                if( line.startsWith("#") ) {
-                    continue;
-                }
-                int idx = line.indexOf('=');
-                if( idx < 0 || line.endsWith("=") ) {
-                    continue;
-                }
-                String cloudUrl = line.substring(0, idx);
-                String cloudId = line.substring(idx+1);
-                properties.put(cloudUrl, cloudId);
-            }
-            cloudMappings = properties;
-        }
-        catch( Throwable ignore ) {
-            // ignore
-        }        
-        try {
-            InputStream input = VirtualMachines.class.getResourceAsStream("/customNetworkMappings.cfg");
-            Map<String,Map<String,String>> mapping = new HashMap<String,Map<String,String>>();
-            Properties properties = new Properties();
-            
-            properties.load(input);
-            for( Object key : properties.keySet() ) {
-                String[] trueKey = ((String)key).split(",");
-                Map<String,String> current = mapping.get(trueKey[0]);
-                
-                if( current == null ) {
-                    current = new HashMap<String,String>();
-                    mapping.put(trueKey[0], current);
-                }
-                current.put(trueKey[1], (String)properties.get(key));
-            }
-            customNetworkMappings = mapping;
-        }
-        catch( Throwable ignore ) {
-            // ignore
-        }
-        try {
-            InputStream input = VirtualMachines.class.getResourceAsStream("/customServiceMappings.cfg");
-            Map<String,Map<String,Set<String>>> mapping = new HashMap<String,Map<String,Set<String>>>();
-            Properties properties = new Properties();
-            
-            properties.load(input);
-            
-            for( Object key : properties.keySet() ) {
-                String value = (String)properties.get(key);
-                
-                if( value != null ) {
-                    String[] trueKey = ((String)key).split(",");
-                    Map<String,Set<String>> tmp = mapping.get(trueKey[0]);
-                    
-                    if( tmp == null ) {
-                        tmp =new HashMap<String,Set<String>>();
-                        mapping.put(trueKey[0], tmp);
-                    }
-                    TreeSet<String> m = new TreeSet<String>();
-                    String[] offerings = value.split(",");
-                    
-                    if( offerings == null || offerings.length < 1 ) {
-                        m.add(value);
-                    }
-                    else {
-                        Collections.addAll(m, offerings);
-                    }
-                    tmp.put(trueKey[1], m);
-                }
-            }
-            customServiceMappings = mapping;
-        }
-        catch( Throwable ignore ) {
-            // ignore
+    private @Nonnull VirtualMachine launch22(@Nonnull String imageId, @Nonnull VirtualMachineProduct product, @Nullable String inZoneId, @Nonnull String name, @Nullable String withKeypair, @Nullable String targetVlanId, @Nullable String[] protectedByFirewalls, @Nullable String userData) throws InternalException, CloudException {
+        return launch(deploy(planLaunch(product.getProviderProductId(), product, imageId, inZoneId, withKeypair, targetVlanId, protectedByFirewalls, userData), name));
+    }
+
+    /**
+     * The parts of a CloudStack 2.2+ deployment that are the same for every virtual machine launched from the same
+     * options, so a batch of launches resolves them only once.
+     */
+    static private class LaunchPlan {
+        final VirtualMachineProduct product;
+        final List<Param>           params;
+        final List<String>          networks;
+
+        LaunchPlan(@Nonnull VirtualMachineProduct product, @Nonnull List<Param> params, @Nullable List<String> networks) {
+            this.product = product;
+            this.params = params;
+            this.networks = networks;
         }
     }
-    
-    private @Nonnull VirtualMachine launch22(@Nonnull String imageId, @Nonnull VirtualMachineProduct product, @Nullable String inZoneId, @Nonnull String name, @Nullable String withKeypair, @Nullable String targetVlanId, @Nullable String[] protectedByFirewalls, @Nullable String userData) throws InternalException, CloudException {
+
+    /**
+     * Resolves the prerequisites of a CloudStack 2.2+ deployment. The product, the candidate networks and the security
+     * group support of the zone are independent of each other, so they are looked up concurrently under one deadline
+     * of <code>launchPlanTimeout</code> seconds (default 120); the first lookup to fail aborts the others. Only the
+     * product (on a cold catalog) and the free networks call the cloud; security group support is usually cached.
+     * @param productId the service offering to launch
+     * @param product the service offering, if the caller already has it
+     * @param imageId the template to launch
+     * @param inZoneId the zone to launch into, or null for the current region
+     * @param withKeypair the SSH key pair, if any
+     * @param targetVlanId the network to launch into, if the caller chose one
+     * @param protectedByFirewalls the security groups to launch into, if any
+     * @param userData the user data, if any
+     * @return the resolved launch plan
+     * @throws CloudException a lookup failed or timed out, or the product does not exist
+     * @throws InternalException an error occurred within Dasein Cloud resolving the plan
+     */
+    private @Nonnull LaunchPlan planLaunch(@Nonnull final String productId, @Nullable VirtualMachineProduct product, @Nonnull String imageId, @Nullable String inZoneId, @Nullable String withKeypair, @Nullable String targetVlanId, @Nullable String[] protectedByFirewalls, @Nullable String userData) throws InternalException, CloudException {
         ProviderContext ctx = getContext();
         List<String> vlans = null;
 
@@ -635,25 +742,12 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
             throw new InternalException("No region is established for this request");
         }
 
-       String prdId = product.getProviderProductId();
+        String prdId = productId;
 
-        if( customNetworkMappings == null ) {
-            load();
-        }
-        if( customNetworkMappings != null ) {
-            String cloudId = cloudMappings.getProperty(ctx.getCloud().getEndpoint());
-            
-            if( cloudId != null ) {
-                Map<String,String> map = customNetworkMappings.get(cloudId);
-                
-                if( map != null ) {
-                    String id = map.get(prdId);
-                    
-                    if( id != null ) {
-                        targetVlanId = id;
-                    }
-                }
-            }
+        String mappedNetworkId = CSMappings.getInstance().getNetworkId(ctx.getCloud().getEndpoint(), prdId);
+
+        if( mappedNetworkId != null ) {
+            targetVlanId = mappedNetworkId;
         }
         if( targetVlanId != null && targetVlanId.length() < 1 ) {
             targetVlanId = null;
@@ -663,28 +757,76 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
         }
 
         String securityGroupIds = StringUtils.join(protectedByFirewalls, ",");
-
+        final String zoneId = regionId;
+        CSTaskGroup lookups = new CSTaskGroup(getProvider(), getLaunchPlanTimeout(ctx));
+        Future<VirtualMachineProduct> productLookup = null;
+        Future<List<String>> networkLookup = null;
+
+        if( product == null ) {
+            productLookup = lookups.fork(new Callable<VirtualMachineProduct>() {
+                @Override
+                public VirtualMachineProduct call() throws Exception {
+                    VirtualMachineProduct p = getProduct(productId);
+
+                    if( p == null ) {
+                        throw new CloudException("Invalid product ID: " + productId);
+                    }
+                    return p;
+                }
+            });
+        }
         if( targetVlanId == null ) {
-            Network vlan = getProvider().getNetworkServices().getVlanSupport();
-            
-            if( vlan != null && vlan.isSubscribed() ) {
-                if( getCapabilities().identifyVlanRequirement().equals(Requirement.REQUIRED) ) {
-                    vlans = vlan.findFreeNetworks();
+            networkLookup = lookups.fork(new Callable<List<String>>() {
+                @Override
+                public List<String> call() throws Exception {
+                    Network vlan = getProvider().getNetworkServices().getVlanSupport();
+
+                    if( vlan != null && vlan.isSubscribed() ) {
+                        if( getCapabilities().identifyVlanRequirement().equals(Requirement.REQUIRED) ) {
+                            return vlan.findFreeNetworks();
+                        }
+                    }
+                    return null;
                 }
+            });
+        }
+        // whether the zone supports security groups depends on the networks found, so ask both questions up front
+        Future<Boolean> basicGroupsLookup = lookups.fork(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return getProvider().getDataCenterServices().supportsSecurityGroups(zoneId, true);
             }
+        });
+        Future<Boolean> groupsLookup = lookups.fork(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return getProvider().getDataCenterServices().supportsSecurityGroups(zoneId, false);
+            }
+        });
+        lookups.join();
+        if( productLookup != null ) {
+            product = lookups.get(productLookup);
         }
-        else {
+        if( networkLookup != null ) {
+            vlans = lookups.get(networkLookup);
+        }
+        boolean basicGroups = Boolean.TRUE.equals(lookups.get(basicGroupsLookup));
+        boolean groups = Boolean.TRUE.equals(lookups.get(groupsLookup));
+
+        if( targetVlanId != null ) {
             vlans = new ArrayList<String>();
             vlans.add(targetVlanId);
         }
+        boolean supportsGroups = (vlans == null || vlans.isEmpty() ? basicGroups : groups);
+
         if( securityGroupIds != null && !securityGroupIds.isEmpty() ) {
             // TODO: shouldn't we throw OpNotSupported if firewalls aren't supported but still requested?
             // otherwise it's like a confusion, no?
-            if (!getProvider().getDataCenterServices().supportsSecurityGroups(regionId, vlans == null || vlans.isEmpty())) {
+            if (!supportsGroups) {
                 securityGroupIds = null;
             }
         }
-        else if( getProvider().getDataCenterServices().supportsSecurityGroups(regionId, vlans == null || vlans.isEmpty()) ) {
+        else if( supportsGroups ) {
             /*
             String sgId = null;
             
@@ -737,7 +879,6 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
         params.add(new Param("zoneId", inZoneId));
         params.add(new Param("serviceOfferingId", prdId));
         params.add(new Param("templateId", imageId));
-        params.add(new Param("displayName", name));
         if( userData != null && userData.length() > 0 ) {
             try {
                 params.add(new Param("userdata", new String(Base64.encodeBase64(userData.getBytes("utf-8")), "utf-8")));
@@ -752,17 +893,46 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
         if( securityGroupIds != null && securityGroupIds.length() > 0 ) {
             params.add(new Param("securitygroupids", securityGroupIds));
         }
-        if( vlans != null && vlans.size() > 0 ) {
+        return new LaunchPlan(product, params, vlans);
+    }
+
+    static private long getLaunchPlanTimeout(@Nonnull ProviderContext ctx) {
+        Properties properties = ctx.getCustomProperties();
+        String value = (properties == null ? null : properties.getProperty("launchPlanTimeout"));
+
+        if( value != null ) {
+            try {
+                return Long.parseLong(value.trim()) * CalendarWrapper.SECOND;
+            }
+            catch( NumberFormatException e ) {
+                logger.warn("Invalid value for launchPlanTimeout: " + value);
+            }
+        }
+        return CalendarWrapper.MINUTE * 2L;
+    }
+
+    /**
+     * Submits the deployment of a single virtual machine without waiting for it to complete. If the plan lists several
+     * candidate networks, each is tried in turn until one has address capacity.
+     * @param plan the resolved launch prerequisites
+     * @param name the display name of the virtual machine
+     * @return the <code>deployVirtualMachine</code> response
+     * @throws CloudException the deployment was rejected
+     * @throws InternalException an error occurred within Dasein Cloud submitting the deployment
+     */
+    private @Nonnull Document deploy(@Nonnull LaunchPlan plan, @Nonnull String name) throws InternalException, CloudException {
+        List<Param> params = new ArrayList<Param>(plan.params);
+
+        params.add(new Param("displayName", name));
+        if( plan.networks != null && plan.networks.size() > 0 ) {
             CloudException lastError = null;
 
-            for( String withVlanId : vlans ) {
-                params.add(new Param("networkIds", withVlanId));
+            for( String withVlanId : plan.networks ) {
+                List<Param> attempt = new ArrayList<Param>(params);
 
+                attempt.add(new Param("networkIds", withVlanId));
                 try {
-                    return launch(new CSMethod(getProvider()).get(
-                            DEPLOY_VIRTUAL_MACHINE,
-                            params.toArray(new Param[params.size()]))
-                    );
+                    return new CSMethod(getProvider()).get(DEPLOY_VIRTUAL_MACHINE, attempt);
                 }
                 catch( CloudException e ) {
                     if( e.getMessage().contains("sufficient address capacity") ) {
@@ -772,17 +942,12 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
                     throw e;
                 }
             }
-            if( lastError == null ) {
+            if( lastError != null ) {
                 throw lastError;
             }
             throw new CloudException("Unable to identify a network into which a VM can be launched");
         }
-        else {
-            return launch(new CSMethod(getProvider()).get(
-                    DEPLOY_VIRTUAL_MACHINE,
-                    params.toArray(new Param[params.size()])
-            ));
-        }
+        return new CSMethod(getProvider()).get(DEPLOY_VIRTUAL_MACHINE, params);
     }
     
     private @Nonnull VirtualMachine launch(@Nonnull Document doc) throws InternalException, CloudException {
@@ -823,7 +988,7 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
             NodeList nodeList = responseDoc.getElementsByTagName("virtualmachine");
             if (nodeList.getLength() > 0) {
                 Node virtualMachine = nodeList.item(0);
-                vm = toVirtualMachine(virtualMachine);
+                vm = toVirtualMachine(virtualMachine, null);
                 if( vm != null ) {
                     return vm;
                 }
@@ -894,26 +1059,71 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
     public Iterable<VirtualMachineProduct> listProducts(VirtualMachineProductFilterOptions options, Architecture architecture) throws InternalException, CloudException {
         APITrace.begin(getProvider(), "VM.listProducts");
         try {
-            Cache<VirtualMachineProduct> cache = Cache.getInstance(getProvider(), "ServerProducts", VirtualMachineProduct.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(4, TimePeriod.HOUR));
-            Collection<VirtualMachineProduct> products = (Collection<VirtualMachineProduct>)cache.get(getContext());
-            if(products == null){
-                Set<String> mapping = null;
+            // the filter options only expose matches(), so CPU and RAM range queries go through searchProducts()
+            return getProductIndex().getProducts(options);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-                if( customServiceMappings == null ) {
-                    load();
-                }
-                if( customServiceMappings != null ) {
-                    String cloudId = cloudMappings.getProperty(getContext().getCloud().getEndpoint());
+    @Override
+    public @Nullable VirtualMachineProduct getProduct(@Nonnull String productId) throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "VM.getProduct");
+        try {
+            return getProductIndex().getProduct(productId);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Lists the service offerings of the current region within the specified CPU and RAM ranges, answered from the
+     * cached offering catalog of the account without calling the cloud when the catalog is warm.
+     * @param minCpuCount the minimum number of CPUs
+     * @param maxCpuCount the maximum number of CPUs, or a negative value for no maximum
+     * @param minRam the minimum RAM size, or null for no minimum
+     * @param maxRam the maximum RAM size, or null for no maximum
+     * @return the matching products, ordered by CPU count and then RAM size
+     * @throws InternalException an error occurred within Dasein Cloud while loading the offerings
+     * @throws CloudException an error occurred loading the offerings from the cloud
+     */
+    public @Nonnull Iterable<VirtualMachineProduct> searchProducts(int minCpuCount, int maxCpuCount, @Nullable Storage<Megabyte> minRam, @Nullable Storage<Megabyte> maxRam) throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "VM.searchProducts");
+        try {
+            return getProductIndex().search(minCpuCount, maxCpuCount, minRam == null ? 0 : minRam.intValue(), maxRam == null ? -1 : maxRam.intValue());
+        }
+        finally {
+            APITrace.end();
+        }
+    }
 
-                    if( cloudId != null ) {
-                        Map<String,Set<String>> map = customServiceMappings.get(cloudId);
+    private @Nonnull ProductIndex getProductIndex() throws InternalException, CloudException {
+        // service offerings may be restricted to a domain, so the catalog is never shared across accounts
+        Iterable<VirtualMachineProduct> products = CSSharedCache.get(getProvider(), "ServerProducts", VirtualMachineProduct.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(4, TimePeriod.HOUR), new ProductLoader());
+        // the custom service mappings are applied here rather than when loading, so a reloaded mapping file takes
+        // effect at once instead of when the catalog expires
+        Set<String> allowed = CSMappings.getInstance().getServiceOfferings(getContext().getCloud().getEndpoint(), getContext().getRegionId());
 
-                        if( map != null ) {
-                            mapping = map.get(getContext().getRegionId());
-                        }
-                    }
-                }
-                products = new ArrayList<VirtualMachineProduct>();
+        return ProductIndex.getInstance(getContext().getCloud().getEndpoint() + "/" + getContext().getRegionId() + "/" + getContext().getAccountNumber(), products, allowed);
+    }
+
+    /**
+     * Reloads the service offering catalog of the current account and region, regardless of its current age.
+     * @throws InternalException an error occurred within Dasein Cloud while loading the offerings
+     * @throws CloudException an error occurred loading the offerings from the cloud
+     */
+    public void refreshProducts() throws InternalException, CloudException {
+        CSSharedCache.refresh(getProvider(), "ServerProducts", VirtualMachineProduct.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(4, TimePeriod.HOUR), new ProductLoader());
+    }
+
+    private class ProductLoader implements CSSharedCache.Loader<VirtualMachineProduct> {
+        @Override
+        public @Nonnull Collection<VirtualMachineProduct> load() throws CloudException, InternalException {
+            APITrace.begin(getProvider(), "VM.loadProducts");
+            try {
+                List<VirtualMachineProduct> products = new ArrayList<VirtualMachineProduct>();
 
                 Document doc = new CSMethod(getProvider()).get(
                         LIST_SERVICE_OFFERINGS,
@@ -958,35 +1168,25 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
                             break;
                         }
                     }
-                    if( id != null  && name != null && cpu > 0 && memory > 0 && !customized) {
-                        if( mapping == null || mapping.contains(id) ) {
-                            VirtualMachineProduct product;
-
-                            product = new VirtualMachineProduct();
-                            product.setProviderProductId(id);
-                            product.setName(name + " (" + cpu + " CPU/" + memory + "MB RAM)");
-                            product.setDescription(name + " (" + cpu + " CPU/" + memory + "MB RAM)");
-                            product.setRamSize(new Storage<Megabyte>(memory, Storage.MEGABYTE));
-                            product.setCpuCount(cpu);
-                            product.setRootVolumeSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
-                            product.setArchitectures(Architecture.I32, Architecture.I64);
-                            if (options != null) {
-                                if (options.matches(product)) {
-                                    products.add(product);
-                                }
-                            }
-                            else {
-                                products.add(product);
-                            }
-                        }
+                    if( id != null  && name != null && cpu > 0 && memory > 0 && !Boolean.TRUE.equals(customized) ) {
+                        VirtualMachineProduct product;
+
+                        product = new VirtualMachineProduct();
+                        product.setProviderProductId(id);
+                        product.setName(name + " (" + cpu + " CPU/" + memory + "MB RAM)");
+                        product.setDescription(name + " (" + cpu + " CPU/" + memory + "MB RAM)");
+                        product.setRamSize(new Storage<Megabyte>(memory, Storage.MEGABYTE));
+                        product.setCpuCount(cpu);
+                        product.setRootVolumeSize(new Storage<Gigabyte>(1, Storage.GIGABYTE));
+                        product.setArchitectures(Architecture.I32, Architecture.I64);
+                        products.add(product);
                     }
                 }
-                cache.put(getContext(), products);
+                return products;
+            }
+            finally {
+                APITrace.end();
             }
-            return products;
-        }
-        finally {
-            APITrace.end();
         }
     }
 
@@ -1045,6 +1245,20 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
         }
     }
 
+    /**
+     * Lists the virtual machines in the current region on the provider's task executor, so the listing can run
+     * alongside others and be awaited with them.
+     * @return the future result of the listing
+     */
+    public @Nonnull Future<Iterable<VirtualMachine>> listVirtualMachinesConcurrently() {
+        return getProvider().submitTask(new Callable<Iterable<VirtualMachine>>() {
+            @Override
+            public Iterable<VirtualMachine> call() throws Exception {
+                return listVirtualMachines();
+            }
+        });
+    }
+
     @Override
     public @Nonnull Iterable<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
         APITrace.begin(getProvider(), "VM.listVirtualMachines");
@@ -1068,6 +1282,7 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
                     numPages++;
                 }
             }
+            CSTagIndex tagIndex = getProvider().getTagIndex("UserVm");
 
             for (int page = 1; page <= numPages; page++) {
                 if (page > 1) {
@@ -1084,7 +1299,7 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
                     Node node = matches.item(i);
 
                     if( node != null ) {
-                        VirtualMachine vm = toVirtualMachine(node);
+                        VirtualMachine vm = toVirtualMachine(node, tagIndex);
 
                         if( vm != null ) {
                             servers.add(vm);
@@ -1206,6 +1421,166 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
         }
     }
 
+    /**
+     * Starts many virtual machines at once. The requests are submitted concurrently, at most
+     * <code>maxConcurrentRequests</code> at a time, and the resulting jobs are tracked together.
+     * @param vmIds the virtual machines to start
+     * @return the outcome for each virtual machine
+     * @throws InternalException an error occurred within Dasein Cloud while tracking the jobs
+     */
+    public @Nonnull CSBulkResult startAll(@Nonnull Collection<String> vmIds) throws InternalException {
+        APITrace.begin(getProvider(), "VM.startAll");
+        try {
+            return runBulk(START_VIRTUAL_MACHINE, "Start virtual machine", vmIds);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Stops many virtual machines at once.
+     * @param vmIds the virtual machines to stop
+     * @param force true to force the virtual machines off
+     * @return the outcome for each virtual machine
+     * @throws InternalException an error occurred within Dasein Cloud while tracking the jobs
+     */
+    public @Nonnull CSBulkResult stopAll(@Nonnull Collection<String> vmIds, boolean force) throws InternalException {
+        APITrace.begin(getProvider(), "VM.stopAll");
+        try {
+            return runBulk(STOP_VIRTUAL_MACHINE, "Stop virtual machine", vmIds, new Param("forced", String.valueOf(force)));
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Reboots many virtual machines at once.
+     * @param vmIds the virtual machines to reboot
+     * @return the outcome for each virtual machine
+     * @throws InternalException an error occurred within Dasein Cloud while tracking the jobs
+     */
+    public @Nonnull CSBulkResult rebootAll(@Nonnull Collection<String> vmIds) throws InternalException {
+        APITrace.begin(getProvider(), "VM.rebootAll");
+        try {
+            return runBulk(REBOOT_VIRTUAL_MACHINE, "Reboot virtual machine", vmIds);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Terminates many virtual machines at once.
+     * @param vmIds the virtual machines to terminate
+     * @param explanation the reason for the termination (not sent to CloudStack)
+     * @return the outcome for each virtual machine
+     * @throws InternalException an error occurred within Dasein Cloud while tracking the jobs
+     * @throws CloudException an error occurred checking the account type
+     */
+    public @Nonnull CSBulkResult terminateAll(@Nonnull Collection<String> vmIds, @Nullable String explanation) throws InternalException, CloudException {
+        APITrace.begin(getProvider(), "VM.terminateAll");
+        try {
+            if( getProvider().isAdminAccount() ) {
+                return runBulk(DESTROY_VIRTUAL_MACHINE, "Terminate virtual machine", vmIds, new Param("expunge", "true"));
+            }
+            return runBulk(DESTROY_VIRTUAL_MACHINE, "Terminate virtual machine", vmIds);
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * Runs one CloudStack command against each of the specified virtual machines. The commands are submitted
+     * concurrently on the provider's task executor, so at most <code>maxConcurrentRequests</code> are in flight at a
+     * time, and the resulting async jobs are then waited on together. A failure to submit or complete the command for
+     * one virtual machine is recorded against that virtual machine only.
+     * @param command the CloudStack command, which takes the virtual machine in its <code>id</code> parameter
+     * @param jobName a description of the operation for error messages
+     * @param vmIds the virtual machines to operate on
+     * @param extra any parameters to send with every command
+     * @return the outcome for each virtual machine
+     * @throws InternalException an error occurred within Dasein Cloud while tracking the jobs
+     */
+    private @Nonnull CSBulkResult runBulk(@Nonnull final String command, @Nonnull String jobName, @Nonnull Collection<String> vmIds, @Nonnull final Param ... extra) throws InternalException {
+        CSBulkResult result = new CSBulkResult(jobName);
+        Map<String,Future<String>> submissions = new LinkedHashMap<String, Future<String>>();
+
+        for( final String vmId : vmIds ) {
+            if( submissions.containsKey(vmId) ) {
+                continue;
+            }
+            submissions.put(vmId, getProvider().submitTask(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    List<Param> params = new ArrayList<Param>();
+
+                    params.add(new Param("id", vmId));
+                    Collections.addAll(params, extra);
+                    return CSJobTracker.getJobId(new CSMethod(getProvider()).get(command, params));
+                }
+            }));
+        }
+        CSJobTracker tracker = new CSJobTracker(getProvider());
+        Map<String,String> vmsByJob = new HashMap<String, String>();
+
+        for( Map.Entry<String,Future<String>> submission : submissions.entrySet() ) {
+            String vmId = submission.getKey();
+
+            try {
+                String jobId = await(submission.getValue());
+
+                // keep the submission order in the result even though jobs finish in any order
+                result.add(vmId, null);
+                if( jobId != null ) {
+                    vmsByJob.put(jobId, vmId);
+                    tracker.track(jobId, jobName + " " + vmId);
+                }
+            }
+            catch( ExecutionException e ) {
+                Throwable cause = e.getCause();
+
+                // an internal error is reported against its own virtual machine like any other, since the commands
+                // for the others have already been sent
+                result.add(vmId, cause instanceof CloudException ? (CloudException)cause : new CloudException(cause));
+            }
+        }
+        for( CSJobTracker.Outcome outcome : tracker.waitForAll(CalendarWrapper.HOUR).values() ) {
+            result.add(vmsByJob.get(outcome.getJobId()), outcome.getError());
+        }
+        return result;
+    }
+
+    /**
+     * Waits for a submitted call without giving up on interruption, so that a call already sent to the cloud is never
+     * left unaccounted for. The interrupt status is restored once the call completes.
+     * @param future the submitted call
+     * @param <T> the type of the call result
+     * @return the result of the call
+     * @throws ExecutionException the call failed
+     */
+    static private <T> T await(@Nonnull Future<T> future) throws ExecutionException {
+        boolean interrupted = false;
+
+        try {
+            while( true ) {
+                try {
+                    return future.get();
+                }
+                catch( InterruptedException e ) {
+                    interrupted = true;
+                }
+            }
+        }
+        finally {
+            if( interrupted ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     private @Nullable ResourceStatus toStatus(@Nullable Node node) throws CloudException, InternalException {
         if( node == null ) {
             return null;
@@ -1267,7 +1642,12 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
         return new ResourceStatus(serverId, state);
     }
 
-    private @Nullable VirtualMachine toVirtualMachine(@Nullable Node node) throws CloudException, InternalException {
+    /**
+     * @param node the <code>virtualmachine</code> element to map
+     * @param tagIndex the tag index captured for the listing being mapped, or null to use only the tags in the element
+     * @return the virtual machine, or null if the element does not describe one
+     */
+    @Nullable VirtualMachine toVirtualMachine(@Nullable Node node, @Nullable CSTagIndex tagIndex) throws CloudException, InternalException {
         if( node == null ) {
             return null;
         }
@@ -1501,6 +1881,10 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
             }
         }
         );  */
+        properties.putAll(CSTagIndex.parseTags(node));
+        if( tagIndex != null && server.getProviderVirtualMachineId() != null ) {
+            properties.putAll(tagIndex.getTags(server.getProviderVirtualMachineId()));
+        }
         server.setTags(properties);
         return server;
     }
@@ -1515,7 +1899,7 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
     	APITrace.begin(getProvider(), "Server.setTags");
     	try {
     		removeTags(vmIds);
-    		getProvider().createTags(vmIds, "UserVm", tags);
+    		getProvider().createTags(vmIds, "UserVm", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
@@ -1531,7 +1915,7 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
     public void updateTags(@Nonnull String[] vmIds, @Nonnull Tag... tags) throws CloudException, InternalException {
     	APITrace.begin(getProvider(), "Server.updateTags");
     	try {
-    		getProvider().updateTags(vmIds, "UserVm", tags);
+    		getProvider().updateTags(vmIds, "UserVm", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
@@ -1547,7 +1931,7 @@ public class VirtualMachines extends AbstractVMSupport<CSCloud> {
     public void removeTags(@Nonnull String[] vmIds, @Nonnull Tag... tags) throws CloudException, InternalException {
     	APITrace.begin(getProvider(), "Server.removeTags");
     	try {
-    		getProvider().removeTags(vmIds, "UserVm", tags);
+    		getProvider().removeTags(vmIds, "UserVm", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
@@ -27,6 +27,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -43,6 +45,8 @@ import org.dasein.cloud.cloudstack.CSCloud;
 import org.dasein.cloud.cloudstack.CSException;
 import org.dasein.cloud.cloudstack.CSMethod;
 import org.dasein.cloud.cloudstack.CSServiceProvider;
+import org.dasein.cloud.cloudstack.CSSharedCache;
+import org.dasein.cloud.cloudstack.CSTagIndex;
 import org.dasein.cloud.cloudstack.Param;
 import org.dasein.cloud.compute.AbstractVolumeSupport;
 import org.dasein.cloud.compute.Platform;
@@ -62,6 +66,8 @@ import org.dasein.cloud.util.CacheLevel;
 import org.dasein.util.CalendarWrapper;
 import org.dasein.util.uom.storage.Gigabyte;
 import org.dasein.util.uom.storage.Storage;
+import org.dasein.util.uom.time.Hour;
+import org.dasein.util.uom.time.TimePeriod;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -83,11 +89,14 @@ public class Volumes extends AbstractVolumeSupport {
         public String name;
         public String description;
         public String type;
+        public String tags;
+
+        public boolean isCustom() { return diskSize < 1; }
 
         public String toString() {return "DiskOffering ["+id+"] of size "+diskSize;}
     }
     
-    private CSCloud provider;
+    private final CSCloud provider;
     
     Volumes(CSCloud provider) {
         super(provider);
@@ -152,15 +161,11 @@ public class Volumes extends AbstractVolumeSupport {
             }
             String snapshotId = options.getSnapshotId();
             String productId = options.getVolumeProductId();
+            DiskOfferingIndex index = getDiskOfferingIndex();
             VolumeProduct product = null;
 
             if( productId != null ) {
-                for( VolumeProduct prd : listVolumeProducts() ) {
-                    if( productId.equals(prd.getProviderProductId()) ) {
-                        product = prd;
-                        break;
-                    }
-                }
+                product = toProduct(index.getOffering(productId));
             }
             Storage<Gigabyte> size;
 
@@ -170,54 +175,18 @@ public class Volumes extends AbstractVolumeSupport {
                     if( size.intValue() < getMinimumVolumeSize().intValue() ) {
                         size = getMinimumVolumeSize();
                     }
-                    Iterable<VolumeProduct> products = listVolumeProducts();
-                    VolumeProduct best = null;
-                    VolumeProduct custom = null;
-
-                    for( VolumeProduct p : products ) {
-                        Storage<Gigabyte> s = p.getVolumeSize();
-
-                        if( s  == null || s.intValue() == 0 ) {
-                            if (custom == null) {
-                                custom = p;
-                            }
-                            continue;
-                        }
-                        long currentSize = s.getQuantity().longValue();
-
-                        s = (best == null ? null : best.getVolumeSize());
+                    DiskOffering offering = null;
 
-                        long bestSize = (s == null ? 0L : s.getQuantity().longValue());
-
-                        if( size.longValue() > 0L && size.longValue() == currentSize ) {
-                            product = p;
-                            break;
-                        }
-                        if( best == null ) {
-                            best = p;
-                        }
-                        else if( bestSize > 0L || currentSize > 0L ) {
-                            if( size.longValue() > 0L ) {
-                                if( bestSize < size.longValue() && bestSize >0L && (currentSize > size.longValue() || currentSize > bestSize) ) {
-                                    best = p;
-                                }
-                                else if( bestSize > size.longValue() && currentSize > size.longValue() && currentSize < bestSize ) {
-                                    best = p;
-                                }
-                            }
-                            else if( currentSize > 0L && currentSize < bestSize ) {
-                                best = p;
-                            }
-                        }
+                    if( size.longValue() > 0L ) {
+                        offering = index.getExactSize(size.longValue());
                     }
-                    if( product == null ) {
-                        if (custom != null) {
-                            product = custom;
-                        }
-                        else {
-                            product = best;
-                        }
+                    if( offering == null ) {
+                        offering = index.getCustomOffering();
+                    }
+                    if( offering == null ) {
+                        offering = index.getNearestSize(size.longValue());
                     }
+                    product = toProduct(offering);
                 }
                 else {
                     size = product.getVolumeSize();
@@ -411,6 +380,9 @@ public class Volumes extends AbstractVolumeSupport {
                 else if( n.getNodeName().equalsIgnoreCase("storagetype") ) {
                     offering.type = value;
                 }
+                else if( n.getNodeName().equalsIgnoreCase("tags") ) {
+                    offering.tags = value;
+                }
             }
             if( offering.id != null ) {
                 if( offering.name == null ) {
@@ -450,7 +422,7 @@ public class Volumes extends AbstractVolumeSupport {
             Node v = matches.item(i);
 
             if( v != null ) {
-                Volume volume = toVolume(v, true);
+                Volume volume = toVolume(v, true, null);
                 
                 if( volume != null ) {
                     return volume;
@@ -471,7 +443,7 @@ public class Volumes extends AbstractVolumeSupport {
                 Node v = matches.item(i);
 
                 if( v != null ) {
-                    return toVolume(v, false);
+                    return toVolume(v, false, null);
                 }
             }
             return null;
@@ -555,21 +527,14 @@ public class Volumes extends AbstractVolumeSupport {
     public @Nonnull Iterable<VolumeProduct> listVolumeProducts() throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Volume.listVolumeProducts");
         try {
-            Cache<VolumeProduct> cache = Cache.getInstance(getProvider(), "volumeProducts", VolumeProduct.class, CacheLevel.REGION_ACCOUNT);
-            Iterable<VolumeProduct> products = cache.get(getContext());
-
-            if( products == null ) {
-                ArrayList<VolumeProduct> list = new ArrayList<VolumeProduct>();
+            List<VolumeProduct> products = new ArrayList<VolumeProduct>();
 
-                for( DiskOffering offering : getDiskOfferings() ) {
-                    VolumeProduct p = toProduct(offering);
+            for( DiskOffering offering : listDiskOfferings() ) {
+                VolumeProduct p = toProduct(offering);
 
-                    if( p != null && (!provider.getServiceProvider().equals(CSServiceProvider.DEMOCLOUD) || "local".equals(offering.type)) ) {
-                        list.add(p);
-                    }
+                if( p != null ) {
+                    products.add(p);
                 }
-                products = Collections.unmodifiableList(list);
-                cache.put(getContext(), products);
             }
             return products;
         }
@@ -578,6 +543,45 @@ public class Volumes extends AbstractVolumeSupport {
         }
     }
 
+    /**
+     * Provides the disk offerings usable for volumes in the current region. Disk offerings may be restricted to a
+     * domain, so the list is cached for four hours per account rather than shared across accounts. The offerings are
+     * shared by every caller of the account and must not be modified.
+     * @return the usable disk offerings
+     * @throws InternalException an error occurred within Dasein Cloud while loading the offerings
+     * @throws CloudException an error occurred loading the offerings from the cloud
+     */
+    @Nonnull Iterable<DiskOffering> listDiskOfferings() throws InternalException, CloudException {
+        return CSSharedCache.get(provider, "diskOfferings", DiskOffering.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(4, TimePeriod.HOUR), new DiskOfferingLoader());
+    }
+
+    @Nonnull DiskOfferingIndex getDiskOfferingIndex() throws InternalException, CloudException {
+        return DiskOfferingIndex.getInstance(getContext().getCloud().getEndpoint() + "/" + getContext().getRegionId() + "/" + getContext().getAccountNumber(), listDiskOfferings());
+    }
+
+    /**
+     * Reloads the disk offering catalog of the current account and region, regardless of its current age.
+     * @throws InternalException an error occurred within Dasein Cloud while loading the offerings
+     * @throws CloudException an error occurred loading the offerings from the cloud
+     */
+    public void refreshVolumeProducts() throws InternalException, CloudException {
+        CSSharedCache.refresh(provider, "diskOfferings", DiskOffering.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(4, TimePeriod.HOUR), new DiskOfferingLoader());
+    }
+
+    private class DiskOfferingLoader implements CSSharedCache.Loader<DiskOffering> {
+        @Override
+        public @Nonnull Collection<DiskOffering> load() throws CloudException, InternalException {
+            List<DiskOffering> list = new ArrayList<DiskOffering>();
+
+            for( DiskOffering offering : getDiskOfferings() ) {
+                if( !provider.getServiceProvider().equals(CSServiceProvider.DEMOCLOUD) || "local".equals(offering.type) ) {
+                    list.add(offering);
+                }
+            }
+            return list;
+        }
+    }
+
     @Override
     public @Nonnull Iterable<ResourceStatus> listVolumeStatus() throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Volume.listVolumeStatus");
@@ -625,6 +629,19 @@ public class Volumes extends AbstractVolumeSupport {
         }
     }
 
+    /**
+     * Lists the volumes in the current region on the provider's task executor.
+     * @return the future result of the listing
+     */
+    public @Nonnull Future<Iterable<Volume>> listVolumesConcurrently() {
+        return provider.submitTask(new Callable<Iterable<Volume>>() {
+            @Override
+            public Iterable<Volume> call() throws Exception {
+                return listVolumes();
+            }
+        });
+    }
+
     @Override
     public @Nonnull Iterable<Volume> listVolumes() throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Volume.listVolumes");
@@ -652,6 +669,7 @@ public class Volumes extends AbstractVolumeSupport {
                 numPages++;
             }
         }
+        CSTagIndex tagIndex = provider.getTagIndex("Volume");
 
         for (int page = 1; page <= numPages; page++) {
             if (page > 1) {
@@ -664,7 +682,7 @@ public class Volumes extends AbstractVolumeSupport {
                 Node v = matches.item(i);
 
                 if( v != null ) {
-                    Volume volume = toVolume(v, rootOnly);
+                    Volume volume = toVolume(v, rootOnly, tagIndex);
 
                     if( volume != null ) {
                         volumes.add(volume);
@@ -802,7 +820,13 @@ public class Volumes extends AbstractVolumeSupport {
         return new ResourceStatus(volumeId, volumeState);
     }
 
-    private @Nullable Volume toVolume(@Nullable Node node, boolean rootOnly) throws InternalException, CloudException {
+    /**
+     * @param node the <code>volume</code> element to map
+     * @param rootOnly true to map only root volumes
+     * @param tagIndex the tag index captured for the listing being mapped, or null to use only the tags in the element
+     * @return the volume, or null if the element does not describe a matching volume
+     */
+    @Nullable Volume toVolume(@Nullable Node node, boolean rootOnly, @Nullable CSTagIndex tagIndex) throws InternalException, CloudException {
         if( node == null ) {
             return null;
         }
@@ -915,6 +939,14 @@ public class Volumes extends AbstractVolumeSupport {
         if( root ) {
             volume.setGuestOperatingSystem(Platform.guess(volume.getName() + " " + volume.getDescription()));
         }
+        for( Map.Entry<String,String> tag : CSTagIndex.parseTags(node).entrySet() ) {
+            volume.setTag(tag.getKey(), tag.getValue());
+        }
+        if( tagIndex != null && volume.getProviderVolumeId() != null ) {
+            for( Map.Entry<String,String> tag : tagIndex.getTags(volume.getProviderVolumeId()).entrySet() ) {
+                volume.setTag(tag.getKey(), tag.getValue());
+            }
+        }
         return volume;
     }
     
@@ -928,7 +960,7 @@ public class Volumes extends AbstractVolumeSupport {
     	APITrace.begin(getProvider(), "Volume.setTags");
     	try {
     		removeTags(volumeIds);
-    		provider.createTags(volumeIds, "Volume", tags);
+    		provider.createTags(volumeIds, "Volume", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
@@ -944,7 +976,7 @@ public class Volumes extends AbstractVolumeSupport {
     public void updateTags(@Nonnull String[] volumeIds, @Nonnull Tag... tags) throws CloudException, InternalException {
     	APITrace.begin(getProvider(), "Volume.updateTags");
     	try {
-    		provider.updateTags(volumeIds, "Volume", tags);
+    		provider.updateTags(volumeIds, "Volume", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
@@ -960,7 +992,7 @@ public class Volumes extends AbstractVolumeSupport {
     public void removeTags(@Nonnull String[] volumeIds, @Nonnull Tag... tags) throws CloudException, InternalException {
     	APITrace.begin(getProvider(), "Volume.removeTags");
     	try {
-    		provider.removeTags(volumeIds, "Volume", tags);
+    		provider.removeTags(volumeIds, "Volume", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
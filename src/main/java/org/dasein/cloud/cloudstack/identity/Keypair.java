@@ -50,7 +50,7 @@ import java.util.Locale;
  * @version 2012.02
  */
 public class Keypair implements ShellKeySupport {
-    private CSCloud provider;
+    private final CSCloud provider;
     private transient volatile KeypairCapabilities capabilities;
 
     Keypair(@Nonnull CSCloud provider) { this.provider = provider; }
@@ -25,6 +25,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 
 import javax.annotation.Nonnull;
@@ -210,7 +211,8 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
                 }
                 CSMethod method = new CSMethod(getProvider());
                 Document doc = method.get(LIST_PUBLIC_IP_ADDRESSES, new Param("zoneId", getContext().getRegionId()));
-                ArrayList<org.dasein.cloud.network.IpAddress> addresses = new ArrayList<org.dasein.cloud.network.IpAddress>();
+                ArrayList<org.dasein.cloud.network.IpAddress> all = new ArrayList<org.dasein.cloud.network.IpAddress>();
+                boolean unresolved = false;
 
                 int numPages = 1;
                 NodeList nodes = doc.getElementsByTagName("count");
@@ -237,13 +239,24 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
                     NodeList matches = doc.getElementsByTagName("publicipaddress");
 
                     for( int i=0; i<matches.getLength(); i++ ) {
-                        org.dasein.cloud.network.IpAddress addr = toAddress(matches.item(i), loadBalancers);
+                        org.dasein.cloud.network.IpAddress addr = toAddress(matches.item(i), loadBalancers, false);
 
-                        if( addr != null && (!unassignedOnly || !addr.isAssigned()) ) {
-                            addresses.add(addr);
+                        if( addr != null ) {
+                            all.add(addr);
+                            unresolved |= (addr.getServerId() == null);
                         }
                     }
                 }
+                if( unresolved ) {
+                    assignServers(all);
+                }
+                ArrayList<org.dasein.cloud.network.IpAddress> addresses = new ArrayList<org.dasein.cloud.network.IpAddress>();
+
+                for( org.dasein.cloud.network.IpAddress addr : all ) {
+                    if( !unassignedOnly || !addr.isAssigned() ) {
+                        addresses.add(addr);
+                    }
+                }
                 return addresses;
             }
             return Collections.emptyList();
@@ -253,10 +266,22 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
         }
     }
 
+    /**
+     * Lists the IP pool on the provider's task executor, so the listing can run alongside others and be awaited with
+     * them. Errors from the listing are thrown from {@link Future#get()}.
+     * @param version the IP version of the pool
+     * @param unassignedOnly true to list only addresses not assigned to a server
+     * @return the future result of the listing
+     */
     @Nonnull
     @Override
-    public Future<Iterable<org.dasein.cloud.network.IpAddress>> listIpPoolConcurrently(@Nonnull IPVersion version, boolean unassignedOnly) throws InternalException, CloudException {
-        return null;  //To change body of implemented methods use File | Settings | File Templates.
+    public Future<Iterable<org.dasein.cloud.network.IpAddress>> listIpPoolConcurrently(@Nonnull final IPVersion version, final boolean unassignedOnly) throws InternalException, CloudException {
+        return getProvider().submitTask(new Callable<Iterable<org.dasein.cloud.network.IpAddress>>() {
+            @Override
+            public Iterable<org.dasein.cloud.network.IpAddress> call() throws Exception {
+                return listIpPool(version, unassignedOnly);
+            }
+        });
     }
 
     @Override
@@ -578,7 +603,21 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
         return IPVersion.IPV4.equals(ofVersion);
     }
 
-    private @Nullable org.dasein.cloud.network.IpAddress toAddress(@Nullable Node node, @Nonnull Map<String,LoadBalancer> loadBalancers) throws InternalException, CloudException {
+    @Nullable org.dasein.cloud.network.IpAddress toAddress(@Nullable Node node, @Nonnull Map<String,LoadBalancer> loadBalancers) throws InternalException, CloudException {
+        return toAddress(node, loadBalancers, true);
+    }
+
+    /**
+     * Maps a <code>publicipaddress</code> element to an address.
+     * @param node the element
+     * @param loadBalancers the load balancers in the region, keyed by address
+     * @param resolveServer true to look up the server behind an address the response does not name; listings pass
+     *                      false and resolve all of their addresses from one VM listing with {@link #assignServers(List)}
+     * @return the address, or null if the address is not allocated
+     * @throws CloudException an error occurred looking up the server
+     * @throws InternalException an error occurred within Dasein Cloud while looking up the server
+     */
+    private @Nullable org.dasein.cloud.network.IpAddress toAddress(@Nullable Node node, @Nonnull Map<String,LoadBalancer> loadBalancers, boolean resolveServer) throws InternalException, CloudException {
         if( node == null ) {
             return null;
         }
@@ -638,7 +677,7 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
         if( lb != null ) {
             address.setProviderLoadBalancerId(lb.getProviderLoadBalancerId());
         }
-        if( address.getServerId() == null ) {
+        if( resolveServer && address.getServerId() == null ) {
             for( VirtualMachine vm : getProvider().getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
                 RawAddress[] addrs = vm.getPublicAddresses();
                 
@@ -652,6 +691,31 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
         return address;
     }
 
+    /**
+     * Fills in the server behind each address the API response did not attribute to one, from a single VM listing.
+     * @param addresses the addresses to resolve
+     * @throws CloudException an error occurred listing the virtual machines
+     * @throws InternalException an error occurred within Dasein Cloud while listing the virtual machines
+     */
+    private void assignServers(@Nonnull List<org.dasein.cloud.network.IpAddress> addresses) throws InternalException, CloudException {
+        Map<String,String> servers = new HashMap<String, String>();
+
+        for( VirtualMachine vm : getProvider().getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
+            for( RawAddress addr : vm.getPublicAddresses() ) {
+                servers.put(addr.getIpAddress(), vm.getProviderVirtualMachineId());
+            }
+        }
+        for( org.dasein.cloud.network.IpAddress address : addresses ) {
+            if( address.getServerId() == null ) {
+                String serverId = servers.get(address.getRawAddress().getIpAddress());
+
+                if( serverId != null ) {
+                    address.setServerId(serverId);
+                }
+            }
+        }
+    }
+
     private @Nullable ResourceStatus toStatus(@Nullable Node node, @Nonnull Map<String,LoadBalancer> loadBalancers) throws InternalException, CloudException {
         if( node == null ) {
             return null;
@@ -717,7 +781,7 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
     	APITrace.begin(getProvider(), "IpAddress.setTags");
     	try {
     		removeTags(addressIds);
-    		getProvider().createTags(addressIds, "PublicIpAddress", tags);
+    		getProvider().createTags(addressIds, "PublicIpAddress", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
@@ -733,7 +797,7 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
     public void updateTags(@Nonnull String[] addressIds, @Nonnull Tag... tags) throws CloudException, InternalException {
     	APITrace.begin(getProvider(), "IpAddress.updateTags");
     	try {
-    		getProvider().updateTags(addressIds, "PublicIpAddress", tags);
+    		getProvider().updateTags(addressIds, "PublicIpAddress", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
@@ -750,7 +814,7 @@ public class IpAddress extends AbstractIpAddressSupport<CSCloud> {
     public void removeTags(@Nonnull String[] addressIds, @Nonnull Tag... tags) throws CloudException, InternalException {
     	APITrace.begin(getProvider(), "IpAddress.removeTags");
     	try {
-    		getProvider().removeTags(addressIds, "PublicIpAddress", tags);
+    		getProvider().removeTags(addressIds, "PublicIpAddress", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
@@ -21,6 +21,8 @@ package org.dasein.cloud.cloudstack.network;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
@@ -418,8 +420,10 @@ public class LoadBalancers extends AbstractLoadBalancerSupport<CSCloud> {
                     }
                 }
                 final List<ResourceStatus> results = new ArrayList<ResourceStatus>();
+                Set<String> inRegion = listRegionAddresses();
+
                 for( LoadBalancer lb : matches.values() ) {
-                    if( matchesRegion(lb.getProviderLoadBalancerId()) ) {
+                    if( inRegion.contains(lb.getProviderLoadBalancerId()) ) {
                         results.add(new ResourceStatus(lb.getProviderLoadBalancerId(), lb.getCurrentState()));
                     }
                 }
@@ -599,6 +603,19 @@ public class LoadBalancers extends AbstractLoadBalancerSupport<CSCloud> {
         }
     }
 
+    /**
+     * Lists the load balancers in the current region on the provider's task executor.
+     * @return the future result of the listing
+     */
+    public @Nonnull Future<Iterable<LoadBalancer>> listLoadBalancersConcurrently() {
+        return getProvider().submitTask(new Callable<Iterable<LoadBalancer>>() {
+            @Override
+            public Iterable<LoadBalancer> call() throws Exception {
+                return listLoadBalancers();
+            }
+        });
+    }
+
     @Override
     public @Nonnull Iterable<LoadBalancer> listLoadBalancers() throws CloudException, InternalException {
         APITrace.begin(getProvider(), "LB.listLoadBalancers");
@@ -634,8 +651,10 @@ public class LoadBalancers extends AbstractLoadBalancerSupport<CSCloud> {
                 }
             }
             final List<LoadBalancer> results = new ArrayList<LoadBalancer>();
+            Set<String> inRegion = listRegionAddresses();
+
             for( LoadBalancer lb : matches.values() ) {
-                if( matchesRegion(lb.getProviderLoadBalancerId()) ) {
+                if( inRegion.contains(lb.getProviderLoadBalancerId()) ) {
                     results.add(lb);
                 }
             }
@@ -652,33 +671,76 @@ public class LoadBalancers extends AbstractLoadBalancerSupport<CSCloud> {
         }
     }
 
-    boolean matchesRegion(@Nonnull String addressId) throws InternalException, CloudException {
+    /**
+     * Lists the public addresses in the current region with one paged sweep, so that a listing can be filtered to the
+     * region without looking up the address of every load balancer on its own.
+     * @return the IDs and IP addresses of every public address in the region
+     * @throws CloudException an error occurred listing the addresses
+     * @throws InternalException an error occurred within Dasein Cloud while listing the addresses
+     */
+    private @Nonnull Set<String> listRegionAddresses() throws InternalException, CloudException {
         // TODO: add trace
+        String regionId = getContext().getRegionId();
+        Set<String> addresses = new HashSet<String>();
         CSMethod method = new CSMethod(getProvider());
-        Document doc = method.get("listPublicIpAddresses", new Param(isId(addressId) ? "ipAddressId" : "ipAddress", addressId));
+        Document doc = method.get("listPublicIpAddresses", new Param("zoneId", regionId));
 
-        NodeList matches = doc.getElementsByTagName("publicipaddress");
-        for( int i=0; i<matches.getLength(); i++ ) {
-            Node n = matches.item(i);
-            NodeList attributes = n.getChildNodes();
-            
-            for( int j=0; j<attributes.getLength(); j++ ) {
-                Node child = attributes.item(j);
-                String name = child.getNodeName().toLowerCase();
-                String value;
-                
-                if( child.getChildNodes().getLength() > 0 ) {
-                    value = child.getFirstChild().getNodeValue();
-                }
-                else {
-                    value = null;
+        int numPages = 1;
+        NodeList nodes = doc.getElementsByTagName("count");
+        Node nd = nodes.item(0);
+        if (nd != null) {
+            String value = nd.getFirstChild().getNodeValue().trim();
+            int count = Integer.parseInt(value);
+            numPages = count/500;
+            int remainder = count % 500;
+            if (remainder > 0) {
+                numPages++;
+            }
+        }
+
+        for (int page = 1; page <= numPages; page++) {
+            if (page > 1) {
+                String nextPage = String.valueOf(page);
+                doc = method.get("listPublicIpAddresses", new Param("zoneId", regionId), new Param("pagesize", "500"), new Param("page", nextPage));
+            }
+            NodeList matches = doc.getElementsByTagName("publicipaddress");
+
+            for( int i=0; i<matches.getLength(); i++ ) {
+                NodeList attributes = matches.item(i).getChildNodes();
+                String id = null, address = null, zoneId = null;
+
+                for( int j=0; j<attributes.getLength(); j++ ) {
+                    Node child = attributes.item(j);
+                    String name = child.getNodeName().toLowerCase();
+                    String value;
+
+                    if( child.getChildNodes().getLength() > 0 ) {
+                        value = child.getFirstChild().getNodeValue();
+                    }
+                    else {
+                        value = null;
+                    }
+                    if( name.equals("id") ) {
+                        id = value;
+                    }
+                    else if( name.equals("ipaddress") ) {
+                        address = value;
+                    }
+                    else if( name.equals("zoneid") ) {
+                        zoneId = value;
+                    }
                 }
-                if( name.equalsIgnoreCase("zoneid") ) {
-                    return (value != null && value.equalsIgnoreCase(getContext().getRegionId()));
+                if( zoneId != null && zoneId.equalsIgnoreCase(regionId) ) {
+                    if( id != null ) {
+                        addresses.add(id);
+                    }
+                    if( address != null ) {
+                        addresses.add(address);
+                    }
                 }
             }
         }
-        return false;
+        return addresses;
     }
 
     @Override
@@ -915,7 +977,7 @@ public class LoadBalancers extends AbstractLoadBalancerSupport<CSCloud> {
         getProvider().waitForJob(doc, "Remove Load Balancer Rule");
     }
     
-    private void toRule(@Nullable Node node, @Nonnull Map<String,LoadBalancer> current) throws InternalException, CloudException {
+    void toRule(@Nullable Node node, @Nonnull Map<String,LoadBalancer> current) throws InternalException, CloudException {
         NodeList attributes = node.getChildNodes();
         int publicPort = -1, privatePort = -1;
         LbAlgorithm algorithm = null;
@@ -1034,7 +1096,7 @@ public class LoadBalancers extends AbstractLoadBalancerSupport<CSCloud> {
             String key = (isId ? "publicIpId" : "publicIp");
             CSMethod method = new CSMethod(getProvider());
 
-            Document doc = method.get(method.buildUrl(LIST_LOAD_BALANCER_RULES, new Param[] { new Param(key, address) }), LIST_LOAD_BALANCER_RULES);
+            Document doc = method.get(LIST_LOAD_BALANCER_RULES, new Param(key, address));
             NodeList rules = doc.getElementsByTagName("loadbalancerrule");
 
             if( rules.getLength() > 0 ) {
@@ -1103,7 +1165,7 @@ public class LoadBalancers extends AbstractLoadBalancerSupport<CSCloud> {
     	APITrace.begin(getProvider(), "LB.setTags");
     	try {
     		removeTags(loadBalancerIds);
-    		getProvider().createTags(loadBalancerIds, "LoadBalancer", tags);
+    		getProvider().createTags(loadBalancerIds, "LoadBalancer", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
@@ -1119,7 +1181,7 @@ public class LoadBalancers extends AbstractLoadBalancerSupport<CSCloud> {
     public void updateTags(@Nonnull String[] loadBalancerIds, @Nonnull Tag... tags) throws CloudException, InternalException {
     	APITrace.begin(getProvider(), "LB.updateTags");
     	try {
-    		getProvider().updateTags(loadBalancerIds, "LoadBalancer", tags);
+    		getProvider().updateTags(loadBalancerIds, "LoadBalancer", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
@@ -1136,7 +1198,7 @@ public class LoadBalancers extends AbstractLoadBalancerSupport<CSCloud> {
     public void removeTags(@Nonnull String[] loadBalancerIds, @Nonnull Tag... tags) throws CloudException, InternalException {
     	APITrace.begin(getProvider(), "LB.removeTags");
     	try {
-    		getProvider().removeTags(loadBalancerIds, "LoadBalancer", tags);
+    		getProvider().removeTags(loadBalancerIds, "LoadBalancer", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
@@ -677,7 +677,7 @@ public class Network extends AbstractVLANSupport<CSCloud> {
     public void updateVLANTags(@Nonnull String[] vlanIds, @Nonnull Tag... tags) throws CloudException, InternalException {
     	APITrace.begin(getProvider(), "VLAN.updateTags");
     	try {
-    		getProvider().updateTags(vlanIds, "Network", tags);
+    		getProvider().updateTags(vlanIds, "Network", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
@@ -693,7 +693,7 @@ public class Network extends AbstractVLANSupport<CSCloud> {
     public void removeVLANTags(@Nonnull String[] vlanIds, @Nonnull Tag... tags) throws CloudException, InternalException {
     	APITrace.begin(getProvider(), "VLAN.removeTags");
     	try {
-    		getProvider().removeTags(vlanIds, "Network", tags);
+    		getProvider().removeTags(vlanIds, "Network", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
@@ -710,7 +710,7 @@ public class Network extends AbstractVLANSupport<CSCloud> {
     	APITrace.begin(getProvider(), "VLAN.setTags");
     	try {
     		removeVLANTags(vlanIds);
-    		getProvider().createTags(vlanIds, "Network", tags);
+    		getProvider().createTags(vlanIds, "Network", tags).checkSuccess();
     	}
     	finally {
     		APITrace.end();
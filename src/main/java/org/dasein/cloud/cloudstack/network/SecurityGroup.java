@@ -24,6 +24,8 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Logger;
 import org.dasein.cloud.CloudException;
@@ -360,6 +362,19 @@ public class SecurityGroup extends AbstractFirewallSupport<CSCloud> {
         }
     }
 
+    /**
+     * Lists the security groups in the current region on the provider's task executor.
+     * @return the future result of the listing
+     */
+    public @Nonnull Future<Collection<Firewall>> listConcurrently() {
+        return getProvider().submitTask(new Callable<Collection<Firewall>>() {
+            @Override
+            public Collection<Firewall> call() throws Exception {
+                return list();
+            }
+        });
+    }
+
     @Override
     public @Nonnull Collection<Firewall> list() throws InternalException, CloudException {
         APITrace.begin(getProvider(), "Firewall.list");
@@ -719,7 +734,7 @@ public class SecurityGroup extends AbstractFirewallSupport<CSCloud> {
 		APITrace.begin(getProvider(), "Firewall.setTags");
 		try {
 			removeTags(firewallIds);
-			getProvider().createTags(firewallIds, "SecurityGroup", tags);
+			getProvider().createTags(firewallIds, "SecurityGroup", tags).checkSuccess();
 		}
 		finally {
 			APITrace.end();
@@ -735,7 +750,7 @@ public class SecurityGroup extends AbstractFirewallSupport<CSCloud> {
 	public void updateTags(@Nonnull String[] firewallIds, @Nonnull Tag... tags) throws CloudException, InternalException {
 		APITrace.begin(getProvider(), "Firewall.updateTags");
 		try {
-			getProvider().updateTags(firewallIds, "SecurityGroup", tags);
+			getProvider().updateTags(firewallIds, "SecurityGroup", tags).checkSuccess();
 		} 
 		finally {
 			APITrace.end();
@@ -751,7 +766,7 @@ public class SecurityGroup extends AbstractFirewallSupport<CSCloud> {
 	public void removeTags(@Nonnull String[] firewallIds, @Nonnull Tag... tags) throws CloudException, InternalException {
 		APITrace.begin(getProvider(), "Firewall.removeTags");
 		try {
-			getProvider().removeTags(firewallIds, "SecurityGroup", tags);
+			getProvider().removeTags(firewallIds, "SecurityGroup", tags).checkSuccess();
 		}
 		finally {
 			APITrace.end();
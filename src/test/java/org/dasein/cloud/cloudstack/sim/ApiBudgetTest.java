@@ -0,0 +1,310 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack.sim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+
+import javax.annotation.Nonnull;
+
+import org.dasein.cloud.Tag;
+import org.dasein.cloud.cloudstack.CSBulkResult;
+import org.dasein.cloud.cloudstack.CSCloud;
+import org.dasein.cloud.cloudstack.CSTagResult;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.network.IPVersion;
+import org.dasein.cloud.network.IpAddress;
+import org.dasein.cloud.network.LoadBalancer;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs Dasein operations end to end against the {@link CSSimulator} and holds each of them to the budget of CloudStack
+ * calls and wall time in <code>api-budgets.properties</code>, so a change that makes an operation call the cloud once
+ * per resource fails the build instead of surfacing in production. Wall time depends on the build machine, so its
+ * budgets are only enforced when <code>apiBudgets.enforceMillis</code> is true, as set by the
+ * <code>api-budgets</code> Maven profile. Bytes transferred and client-side allocation are recorded alongside and
+ * printed in a report at the end of the run.
+ */
+public class ApiBudgetTest {
+    static private final String BUDGETS         = "/api-budgets.properties";
+    static private final String OVERRIDE_PREFIX = "budget.";
+    static private final String ENFORCE_MILLIS  = "apiBudgets.enforceMillis";
+
+    /**
+     * The cost of one run of a scenario.
+     */
+    static public class Measurement {
+        public String              scenario;
+        public int                 calls;
+        public Map<String,Integer> callsByCommand;
+        public long                bytesSent;
+        public long                bytesReceived;
+        public long                millis;
+        public long                allocatedBytes;
+
+        @Override
+        public String toString() {
+            return String.format("%-20s %6d calls %10d B out %10d B in %7d ms %12s alloc", scenario, calls, bytesSent, bytesReceived, millis, allocatedBytes < 0 ? "n/a" : allocatedBytes + " B");
+        }
+    }
+
+    static private final Properties        budgets      = new Properties();
+    static private final List<Measurement> measurements = new ArrayList<Measurement>();
+
+    @BeforeClass
+    static public void loadBudgets() throws IOException {
+        InputStream input = ApiBudgetTest.class.getResourceAsStream(BUDGETS);
+
+        assertNotNull("Missing " + BUDGETS, input);
+        try {
+            budgets.load(input);
+        }
+        finally {
+            input.close();
+        }
+        for( String name : System.getProperties().stringPropertyNames() ) {
+            if( name.startsWith(OVERRIDE_PREFIX) ) {
+                budgets.setProperty(name.substring(OVERRIDE_PREFIX.length()), System.getProperty(name));
+            }
+        }
+    }
+
+    @AfterClass
+    static public void report() {
+        System.out.println("CloudStack API budget report");
+        for( Measurement measurement : measurements ) {
+            System.out.println("  " + measurement + " " + measurement.callsByCommand);
+        }
+    }
+
+    private CSSimulator simulator;
+    private CSCloud     provider;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new CSSimulator();
+        simulator.start();
+        provider = simulator.connect();
+        // the API catalog is loaded once per provider and is not part of any operation's cost
+        provider.hasApi(CSCloud.LIST_TAGS);
+    }
+
+    @After
+    public void tearDown() {
+        if( provider != null ) {
+            provider.close();
+        }
+        simulator.stop();
+    }
+
+    @Test
+    public void listVirtualMachines() throws Exception {
+        simulator.setCount("listVirtualMachines", 1200);
+
+        Iterable<VirtualMachine> vms = measure("listVirtualMachines", true, new Callable<Iterable<VirtualMachine>>() {
+            @Override
+            public Iterable<VirtualMachine> call() throws Exception {
+                return provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines();
+            }
+        });
+
+        assertEquals(1200, count(vms));
+    }
+
+    @Test
+    public void listLoadBalancers() throws Exception {
+        simulator.setCount("listLoadBalancerRules", 50);
+        simulator.setCount("listPublicIpAddresses", 60);
+
+        Iterable<LoadBalancer> lbs = measure("listLoadBalancers", true, new Callable<Iterable<LoadBalancer>>() {
+            @Override
+            public Iterable<LoadBalancer> call() throws Exception {
+                return provider.getNetworkServices().getLoadBalancerSupport().listLoadBalancers();
+            }
+        });
+
+        assertEquals(50, count(lbs));
+    }
+
+    @Test
+    public void listIpPool() throws Exception {
+        simulator.setCount("listPublicIpAddresses", 200);
+
+        Iterable<IpAddress> addresses = measure("listIpPool", true, new Callable<Iterable<IpAddress>>() {
+            @Override
+            public Iterable<IpAddress> call() throws Exception {
+                return provider.getNetworkServices().getIpAddressSupport().listIpPool(IPVersion.IPV4, false);
+            }
+        });
+
+        assertEquals(200, count(addresses));
+    }
+
+    @Test
+    public void stopAll() throws Exception {
+        final List<String> vmIds = new ArrayList<String>();
+
+        for( int i = 0; i < 20; i++ ) {
+            vmIds.add("vm-" + i);
+        }
+        CSBulkResult result = measure("stopAll", false, new Callable<CSBulkResult>() {
+            @Override
+            public CSBulkResult call() throws Exception {
+                return provider.getComputeServices().getVirtualMachineSupport().stopAll(vmIds, false);
+            }
+        });
+
+        assertTrue(result.toString(), result.isSuccessful());
+    }
+
+    @Test
+    public void createTags() throws Exception {
+        final String[] vmIds = new String[500];
+
+        for( int i = 0; i < vmIds.length; i++ ) {
+            vmIds[i] = UUID.nameUUIDFromBytes(("vm-" + i).getBytes()).toString();
+        }
+        CSTagResult result = measure("createTags", false, new Callable<CSTagResult>() {
+            @Override
+            public CSTagResult call() throws Exception {
+                return provider.createTags(vmIds, "UserVm", new Tag("Environment", "test"));
+            }
+        });
+
+        assertTrue(result.toString(), result.isSuccessful());
+    }
+
+    /**
+     * Runs one scenario, records its cost and checks it against the budget.
+     * @param scenario the scenario name, which prefixes its budget entries
+     * @param warmUp true to run the operation once before measuring, so provider caches are in their steady state
+     * @param operation the operation to measure
+     * @return the result of the measured run
+     * @throws Exception the operation failed
+     */
+    private <T> T measure(@Nonnull String scenario, boolean warmUp, @Nonnull Callable<T> operation) throws Exception {
+        if( warmUp ) {
+            operation.call();
+        }
+        simulator.resetCounts();
+
+        Measurement measurement = new Measurement();
+        long allocated = getAllocatedBytes();
+        long start = System.nanoTime();
+        T result = operation.call();
+
+        measurement.millis = (System.nanoTime() - start) / 1000000L;
+        measurement.allocatedBytes = (allocated < 0 ? -1L : Math.max(0L, getAllocatedBytes() - allocated));
+        measurement.scenario = scenario;
+        measurement.calls = simulator.getTotalRequestCount();
+        measurement.callsByCommand = simulator.getRequestCounts();
+        measurement.bytesSent = simulator.getBytesReceived();
+        measurement.bytesReceived = simulator.getBytesSent();
+        synchronized( measurements ) {
+            measurements.add(measurement);
+        }
+        check(measurement);
+        return result;
+    }
+
+    private void check(@Nonnull Measurement measurement) {
+        String scenario = measurement.scenario;
+        long calls = getBudget(scenario + ".calls");
+        long millis = getBudget(scenario + ".millis");
+
+        if( measurement.calls > calls ) {
+            fail(scenario + " made " + measurement.calls + " CloudStack calls against a budget of " + calls + ": " + measurement.callsByCommand);
+        }
+        for( Map.Entry<String,Integer> command : measurement.callsByCommand.entrySet() ) {
+            String key = scenario + ".calls." + command.getKey();
+
+            if( budgets.containsKey(key) && command.getValue() > getBudget(key) ) {
+                fail(scenario + " made " + command.getValue() + " " + command.getKey() + " calls against a budget of " + getBudget(key));
+            }
+        }
+        if( Boolean.getBoolean(ENFORCE_MILLIS) && measurement.millis > millis ) {
+            fail(scenario + " took " + measurement.millis + " ms against a budget of " + millis + " ms");
+        }
+    }
+
+    private long getBudget(@Nonnull String key) {
+        String value = budgets.getProperty(key);
+
+        if( value == null ) {
+            fail("No budget is defined for " + key + " in " + BUDGETS);
+        }
+        return Long.parseLong(value.trim());
+    }
+
+    static private int count(@Nonnull Iterable<?> items) {
+        int count = 0;
+
+        for( Object ignore : items ) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Sums the bytes allocated by every live thread except the simulator's own. Threads that exit between two samples
+     * take their allocation with them, so the figure is a close lower bound rather than an exact count.
+     * @return the bytes allocated so far, or -1 if the JVM does not track allocation per thread
+     */
+    static private long getAllocatedBytes() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        if( !(bean instanceof com.sun.management.ThreadMXBean) ) {
+            return -1L;
+        }
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean)bean;
+
+        if( !threads.isThreadAllocatedMemorySupported() || !threads.isThreadAllocatedMemoryEnabled() ) {
+            return -1L;
+        }
+        long[] ids = threads.getAllThreadIds();
+        ThreadInfo[] infos = threads.getThreadInfo(ids);
+        long[] allocated = threads.getThreadAllocatedBytes(ids);
+        long total = 0L;
+
+        for( int i = 0; i < ids.length; i++ ) {
+            if( infos[i] != null && allocated[i] > 0L && !infos[i].getThreadName().startsWith(CSSimulator.THREAD_PREFIX) ) {
+                total += allocated[i];
+            }
+        }
+        return total;
+    }
+}
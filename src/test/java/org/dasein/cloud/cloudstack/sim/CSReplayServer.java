@@ -0,0 +1,279 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack.sim;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.cloudstack.CSCloud;
+import org.dasein.cloud.cloudstack.CSRecorder;
+
+/**
+ * Serves traffic captured by {@link CSRecorder} back to the provider, so its services can be profiled offline and
+ * deterministically against production-shaped responses. A request is matched to its recordings by the same
+ * fingerprint the recorder took, and repeats of a request get the recorded responses in order, the last one being
+ * served again once they run out. Each response is delayed by its recorded latency times the latency scale.
+ * <p>
+ * Signatures are not verified, so a provider can connect with any keys. A request with no recording is answered with
+ * an error and counted as a miss.
+ */
+public class CSReplayServer {
+    static public final String THREAD_PREFIX = "cloudstack-replay-";
+
+    static private class Recording {
+        int    sequence;
+        int    status;
+        long   latency;
+        String body;
+    }
+
+    private final Map<String,List<Recording>> recordings = new HashMap<String, List<Recording>>();
+    private final Map<String,AtomicInteger>   cursors    = new HashMap<String, AtomicInteger>();
+    private final AtomicInteger               served     = new AtomicInteger(0);
+    private final AtomicInteger               misses     = new AtomicInteger(0);
+    private final AtomicLong                  delayed    = new AtomicLong(0L);
+    private volatile double                   latencyScale = 1.0;
+    private ExecutorService                   executor;
+    private HttpServer                        server;
+
+    /**
+     * Loads every recording in a directory written by {@link CSRecorder}.
+     * @param directory the recording directory
+     * @throws IOException the recordings could not be read
+     */
+    public CSReplayServer(@Nonnull File directory) throws IOException {
+        File[] folders = directory.listFiles();
+
+        if( folders == null ) {
+            throw new IOException("No recordings in " + directory);
+        }
+        for( File folder : folders ) {
+            File[] files = (folder.isDirectory() ? folder.listFiles() : null);
+
+            if( files == null ) {
+                continue;
+            }
+            for( File file : files ) {
+                String name = file.getName();
+
+                if( !name.endsWith(".properties") ) {
+                    continue;
+                }
+                String base = name.substring(0, name.length() - ".properties".length());
+                int idx = base.lastIndexOf('-');
+                Properties metadata = new Properties();
+                InputStream input = new FileInputStream(file);
+
+                try {
+                    metadata.load(input);
+                }
+                finally {
+                    input.close();
+                }
+                Recording recording = new Recording();
+
+                recording.sequence = Integer.parseInt(base.substring(idx + 1));
+                recording.status = Integer.parseInt(metadata.getProperty("status"));
+                recording.latency = Long.parseLong(metadata.getProperty("latency", "0"));
+                recording.body = CSSimulator.read(new FileInputStream(new File(folder, base + ".xml")));
+
+                String key = folder.getName() + "/" + base.substring(0, idx);
+                List<Recording> list = recordings.get(key);
+
+                if( list == null ) {
+                    list = new ArrayList<Recording>();
+                    recordings.put(key, list);
+                    cursors.put(key, new AtomicInteger(0));
+                }
+                list.add(recording);
+            }
+        }
+        for( List<Recording> list : recordings.values() ) {
+            Collections.sort(list, new Comparator<Recording>() {
+                @Override
+                public int compare(Recording a, Recording b) {
+                    return (a.sequence < b.sequence ? -1 : (a.sequence == b.sequence ? 0 : 1));
+                }
+            });
+        }
+    }
+
+    /**
+     * @param scale the factor applied to recorded latencies; 0 serves every response immediately
+     */
+    public void setLatencyScale(double scale) {
+        latencyScale = scale;
+    }
+
+    /**
+     * @return the number of distinct requests with recordings
+     */
+    public int getRecordingCount() {
+        return recordings.size();
+    }
+
+    public int getServedCount() {
+        return served.get();
+    }
+
+    public int getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the total delay, in milliseconds, applied to the responses served so far
+     */
+    public long getDelayedMillis() {
+        return delayed.get();
+    }
+
+    /**
+     * Starts the replay from the first recording of every request again.
+     */
+    public void rewind() {
+        for( AtomicInteger cursor : cursors.values() ) {
+            cursor.set(0);
+        }
+        served.set(0);
+        misses.set(0);
+        delayed.set(0L);
+    }
+
+    public synchronized void start() throws IOException {
+        if( server != null ) {
+            return;
+        }
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger threads = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(@Nonnull Runnable runnable) {
+                Thread thread = new Thread(runnable, THREAD_PREFIX + threads.incrementAndGet());
+
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/client/api", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                CSReplayServer.this.handle(exchange);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public synchronized void stop() {
+        if( server != null ) {
+            server.stop(0);
+            server = null;
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    public synchronized @Nonnull String getEndpoint() {
+        if( server == null ) {
+            throw new IllegalStateException("The replay server is not running");
+        }
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/client/api";
+    }
+
+    /**
+     * Connects a provider to the replay server. Any keys are accepted, since recordings do not depend on them.
+     * @return a provider for the simulated zone
+     * @throws CloudException the provider could not connect
+     * @throws InternalException an error occurred within Dasein Cloud while connecting
+     */
+    public @Nonnull CSCloud connect() throws CloudException, InternalException {
+        return CSSimulator.connect(getEndpoint(), CSSimulator.API_KEY, CSSimulator.SECRET_KEY);
+    }
+
+    private void handle(@Nonnull HttpExchange exchange) throws IOException {
+        String query = exchange.getRequestURI().getRawQuery();
+
+        if( "POST".equalsIgnoreCase(exchange.getRequestMethod()) ) {
+            query = CSSimulator.read(exchange.getRequestBody());
+        }
+        Map<String,String> params = CSSimulator.parse(query);
+        String command = params.get("command");
+        String key = command + "/" + CSRecorder.hash(CSRecorder.fingerprint(String.valueOf(command), params));
+        List<Recording> list = recordings.get(key);
+
+        if( list == null ) {
+            misses.incrementAndGet();
+            respond(exchange, 530, "<errorresponse><errorcode>530</errorcode><errortext>No recording of " + command + "</errortext></errorresponse>");
+            return;
+        }
+        Recording recording = list.get(Math.min(cursors.get(key).getAndIncrement(), list.size() - 1));
+        long delay = (long)(recording.latency * latencyScale);
+
+        if( delay > 0L ) {
+            delayed.addAndGet(delay);
+            try {
+                Thread.sleep(delay);
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        served.incrementAndGet();
+        respond(exchange, recording.status, recording.body);
+    }
+
+    private void respond(@Nonnull HttpExchange exchange, int status, @Nonnull String content) throws IOException {
+        byte[] body = content.getBytes("UTF-8");
+
+        exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream output = exchange.getResponseBody();
+
+        try {
+            output.write(body);
+        }
+        finally {
+            output.close();
+        }
+    }
+}
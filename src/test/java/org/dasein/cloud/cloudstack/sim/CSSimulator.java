@@ -0,0 +1,1056 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack.sim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.codec.binary.Base64;
+import org.dasein.cloud.Cloud;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.ContextRequirements;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.cloudstack.CSCloud;
+
+/**
+ * In-process CloudStack management server for offline load and latency testing. It verifies request signatures the
+ * way CloudStack does, serves synthetic listings at any scale, runs async jobs with a configurable duration, and can
+ * inject latency, throttling and errors. Requests are accepted both as GET query strings and as form-encoded POSTs.
+ * <p>
+ * Resources are generated on demand from their index, so listing tens of thousands of them costs no memory up
+ * front. IDs are stable across calls, so a resource seen in one listing can be addressed in later calls.
+ */
+public class CSSimulator {
+    static public final String VERSION    = "4.5.1";
+    static public final String ZONE_ID    = UUID.nameUUIDFromBytes("zone-1".getBytes()).toString();
+    static public final String ACCOUNT    = "simulator";
+    static public final String API_KEY    = "simulator-api-key";
+    static public final String SECRET_KEY = "simulator-secret-key";
+
+    /**
+     * Prefix of the names of the threads serving requests, so measurements can tell server work from client work.
+     */
+    static public final String THREAD_PREFIX = "cloudstack-simulator-";
+
+    static private final int DEFAULT_PAGE_SIZE = 500;
+    // generated attributes with this prefix are rendered as embedded <tags> elements rather than as plain values
+    static private final String TAG_PREFIX = "tag:";
+
+    static private final Set<String> ASYNC_COMMANDS = new HashSet<String>(Arrays.asList(
+            "deployVirtualMachine", "startVirtualMachine", "stopVirtualMachine", "rebootVirtualMachine",
+            "destroyVirtualMachine", "scaleVirtualMachine", "createTags", "deleteTags", "createSnapshot", "deleteSnapshot",
+            "attachVolume", "detachVolume", "associateIpAddress", "disassociateIpAddress", "createLoadBalancerRule",
+            "deleteLoadBalancerRule", "assignToLoadBalancerRule", "removeFromLoadBalancerRule"
+    ));
+
+    /**
+     * Generates the attributes of the n-th synthetic resource of one listing.
+     */
+    static private abstract class Generator {
+        final String  element;
+        final boolean scoped;
+
+        Generator(@Nonnull String element) {
+            this(element, false);
+        }
+
+        /**
+         * @param element the name of the element for each resource
+         * @param scoped true if the <code>id</code> parameter names the parent resource, as for rule instances
+         */
+        Generator(@Nonnull String element, boolean scoped) {
+            this.element = element;
+            this.scoped = scoped;
+        }
+
+        abstract @Nonnull Map<String,String> generate(int n);
+    }
+
+    static private class Job {
+        final String command;
+        final long   completion;
+        final String error;
+        final String resultXml;
+
+        Job(@Nonnull String command, long completion, @Nullable String error, @Nonnull String resultXml) {
+            this.command = command;
+            this.completion = completion;
+            this.error = error;
+            this.resultXml = resultXml;
+        }
+    }
+
+    static private @Nonnull String id(@Nonnull String type, int n) {
+        return UUID.nameUUIDFromBytes((type + "-" + n).getBytes()).toString();
+    }
+
+    private final Map<String,Generator>     generators = new HashMap<String, Generator>();
+    private final Map<String,Integer>       counts     = new ConcurrentHashMap<String, Integer>();
+    private final Map<String,Long>          latencies  = new ConcurrentHashMap<String, Long>();
+    private final Map<String,AtomicInteger> requests   = new ConcurrentHashMap<String, AtomicInteger>();
+    private final Map<String,Job>           jobs       = new ConcurrentHashMap<String, Job>();
+    private final Map<String,AtomicInteger> failures   = new ConcurrentHashMap<String, AtomicInteger>();
+    private final Map<String,AtomicInteger> slowJobs   = new ConcurrentHashMap<String, AtomicInteger>();
+    private final Map<String,Long>          slowJobDurations = new ConcurrentHashMap<String, Long>();
+    private final AtomicInteger             rejected   = new AtomicInteger(0);
+    private final AtomicLong                bytesIn    = new AtomicLong(0L);
+    private final AtomicLong                bytesOut   = new AtomicLong(0L);
+    private final Random                    random     = new Random(42L);
+
+    private volatile long   latency          = 0L;
+    private volatile long   jobDuration      = 0L;
+    private volatile double errorRate        = 0.0;
+    private volatile double jobFailureRate   = 0.0;
+    private volatile int    maxRequestsPerSecond = 0;
+    private volatile long   throttleWindow   = 1000L;
+    private volatile boolean deployedIds     = true;
+
+    private volatile Set<String>    gatedCommands = Collections.emptySet();
+    private volatile CountDownLatch gate;
+    private final AtomicInteger     gateTimeouts  = new AtomicInteger(0);
+
+    private long            windowStart;
+    private int             windowRequests;
+    private HttpServer      server;
+    private ExecutorService executor;
+
+    public CSSimulator() {
+        register("listVirtualMachines", new Generator("virtualmachine") {
+            @Override
+            @Nonnull Map<String,String> generate(int n) {
+                Map<String,String> vm = new LinkedHashMap<String, String>();
+
+                vm.put("id", id("vm", n));
+                vm.put("name", "vm-" + n);
+                vm.put("displayname", "vm-" + n);
+                vm.put("account", ACCOUNT);
+                vm.put("created", "2015-01-01T00:00:00+0000");
+                vm.put("state", (n % 10 == 9 ? "Stopped" : "Running"));
+                vm.put("haenable", "false");
+                vm.put("zoneid", ZONE_ID);
+                vm.put("templateid", id("template", n % 50));
+                vm.put("templatename", "template-" + (n % 50));
+                vm.put("serviceofferingid", id("serviceoffering", n % 10));
+                vm.put("hypervisor", "KVM");
+                vm.put(TAG_PREFIX + "Name", "vm-" + n);
+                return vm;
+            }
+        });
+        register("listVolumes", new Generator("volume") {
+            @Override
+            @Nonnull Map<String,String> generate(int n) {
+                Map<String,String> volume = new LinkedHashMap<String, String>();
+
+                volume.put("id", id("volume", n));
+                volume.put("name", "volume-" + n);
+                volume.put("zoneid", ZONE_ID);
+                volume.put("type", (n % 2 == 0 ? "ROOT" : "DATADISK"));
+                volume.put("deviceid", String.valueOf(n % 2));
+                volume.put("virtualmachineid", id("vm", n / 2));
+                volume.put("size", String.valueOf(20L * 1024L * 1024L * 1024L));
+                volume.put("created", "2015-01-01T00:00:00+0000");
+                volume.put("state", "Ready");
+                volume.put("diskofferingid", id("diskoffering", n % 5));
+                return volume;
+            }
+        });
+        register("listTemplates", new Generator("template") {
+            @Override
+            @Nonnull Map<String,String> generate(int n) {
+                Map<String,String> template = new LinkedHashMap<String, String>();
+
+                template.put("id", id("template", n));
+                template.put("name", "template-" + n);
+                template.put("displaytext", (n % 2 == 0 ? "Ubuntu 14.04 (64-bit)" : "CentOS 6.5 (64-bit)"));
+                template.put("ispublic", String.valueOf(n % 3 == 0));
+                template.put("isready", "true");
+                template.put("isfeatured", "false");
+                template.put("created", "2015-01-01T00:00:00+0000");
+                template.put("ostypeid", id("ostype", n % 2));
+                template.put("ostypename", (n % 2 == 0 ? "Ubuntu 14.04 (64-bit)" : "CentOS 6.5 (64-bit)"));
+                template.put("account", ACCOUNT);
+                template.put("zoneid", ZONE_ID);
+                template.put("hypervisor", "KVM");
+                template.put("format", "QCOW2");
+                return template;
+            }
+        });
+        register("listPublicIpAddresses", new Generator("publicipaddress") {
+            @Override
+            @Nonnull Map<String,String> generate(int n) {
+                Map<String,String> address = new LinkedHashMap<String, String>();
+
+                address.put("id", id("ip", n));
+                address.put("ipaddress", "10." + ((n >> 16) & 255) + "." + ((n >> 8) & 255) + "." + (n & 255));
+                address.put("allocated", "2015-01-01T00:00:00+0000");
+                address.put("zoneid", ZONE_ID);
+                address.put("issourcenat", String.valueOf(n == 0));
+                address.put("account", ACCOUNT);
+                address.put("state", "Allocated");
+                if( n % 2 == 1 ) {
+                    address.put("virtualmachineid", id("vm", n));
+                }
+                return address;
+            }
+        });
+        register("listLoadBalancerRules", new Generator("loadbalancerrule") {
+            @Override
+            @Nonnull Map<String,String> generate(int n) {
+                Map<String,String> rule = new LinkedHashMap<String, String>();
+
+                rule.put("id", id("lbrule", n));
+                rule.put("name", "lb-" + n);
+                rule.put("publicipid", id("ip", n));
+                rule.put("publicip", "10." + ((n >> 16) & 255) + "." + ((n >> 8) & 255) + "." + (n & 255));
+                rule.put("publicport", "80");
+                rule.put("privateport", "8080");
+                rule.put("algorithm", "roundrobin");
+                rule.put("account", ACCOUNT);
+                rule.put("state", "Active");
+                rule.put("zoneid", ZONE_ID);
+                return rule;
+            }
+        });
+        register("listLoadBalancerRuleInstances", new Generator("loadbalancerruleinstance", true) {
+            @Override
+            @Nonnull Map<String,String> generate(int n) {
+                Map<String,String> instance = new LinkedHashMap<String, String>();
+
+                instance.put("id", id("vm", n));
+                instance.put("name", "vm-" + n);
+                instance.put("state", "Running");
+                instance.put("zoneid", ZONE_ID);
+                return instance;
+            }
+        });
+        register("listSnapshots", new Generator("snapshot") {
+            @Override
+            @Nonnull Map<String,String> generate(int n) {
+                Map<String,String> snapshot = new LinkedHashMap<String, String>();
+
+                snapshot.put("id", id("snapshot", n));
+                snapshot.put("name", "snapshot-" + n);
+                snapshot.put("volumeid", id("volume", n));
+                snapshot.put("created", "2015-01-01T00:00:00+0000");
+                snapshot.put("state", "BackedUp");
+                snapshot.put("account", ACCOUNT);
+                return snapshot;
+            }
+        });
+        register("listServiceOfferings", new Generator("serviceoffering") {
+            @Override
+            @Nonnull Map<String,String> generate(int n) {
+                Map<String,String> offering = new LinkedHashMap<String, String>();
+
+                offering.put("id", id("serviceoffering", n));
+                offering.put("name", "offering-" + n);
+                offering.put("displaytext", "Offering " + n);
+                offering.put("cpunumber", String.valueOf(1 << (n % 4)));
+                offering.put("cpuspeed", "2000");
+                offering.put("memory", String.valueOf(512 * (n + 1)));
+                return offering;
+            }
+        });
+        register("listDiskOfferings", new Generator("diskoffering") {
+            @Override
+            @Nonnull Map<String,String> generate(int n) {
+                Map<String,String> offering = new LinkedHashMap<String, String>();
+
+                offering.put("id", id("diskoffering", n));
+                offering.put("name", "disk-" + n);
+                offering.put("displaytext", "Disk " + n);
+                offering.put("disksize", String.valueOf(n == 0 ? 0 : 10 * n));
+                offering.put("iscustomized", String.valueOf(n == 0));
+                return offering;
+            }
+        });
+        register("listOsTypes", new Generator("ostype") {
+            @Override
+            @Nonnull Map<String,String> generate(int n) {
+                Map<String,String> type = new LinkedHashMap<String, String>();
+
+                type.put("id", id("ostype", n));
+                type.put("description", (n % 2 == 0 ? "Ubuntu 14.04 (64-bit)" : "CentOS 6.5 (64-bit)"));
+                return type;
+            }
+        });
+        register("listZones", new Generator("zone") {
+            @Override
+            @Nonnull Map<String,String> generate(int n) {
+                Map<String,String> zone = new LinkedHashMap<String, String>();
+
+                zone.put("id", (n == 0 ? ZONE_ID : id("zone", n + 1)));
+                zone.put("name", "zone-" + (n + 1));
+                zone.put("networktype", "Advanced");
+                zone.put("securitygroupsenabled", "false");
+                zone.put("allocationstate", "Enabled");
+                return zone;
+            }
+        });
+        register("listHypervisors", new Generator("hypervisor") {
+            @Override
+            @Nonnull Map<String,String> generate(int n) {
+                return Collections.singletonMap("name", (n == 0 ? "KVM" : "XenServer"));
+            }
+        });
+        register("listAccounts", new Generator("account") {
+            @Override
+            @Nonnull Map<String,String> generate(int n) {
+                Map<String,String> account = new LinkedHashMap<String, String>();
+
+                account.put("id", id("account", n));
+                account.put("name", ACCOUNT);
+                account.put("accounttype", "0");
+                account.put("domainid", id("domain", 0));
+                account.put("domain", "ROOT");
+                account.put("state", "enabled");
+                return account;
+            }
+        });
+        register("listTags", new Generator("tag") {
+            @Override
+            @Nonnull Map<String,String> generate(int n) {
+                Map<String,String> tag = new LinkedHashMap<String, String>();
+
+                tag.put("key", "Name");
+                tag.put("value", "vm-" + n);
+                tag.put("resourcetype", "UserVm");
+                tag.put("resourceid", id("vm", n));
+                return tag;
+            }
+        });
+        setCount("listVirtualMachines", 100);
+        setCount("listVolumes", 200);
+        setCount("listTemplates", 50);
+        setCount("listPublicIpAddresses", 20);
+        setCount("listLoadBalancerRules", 10);
+        setCount("listLoadBalancerRuleInstances", 2);
+        setCount("listSnapshots", 20);
+        setCount("listServiceOfferings", 10);
+        setCount("listDiskOfferings", 5);
+        setCount("listOsTypes", 2);
+        setCount("listZones", 1);
+        setCount("listHypervisors", 2);
+        setCount("listAccounts", 1);
+        setCount("listTags", 0);
+    }
+
+    private void register(@Nonnull String command, @Nonnull Generator generator) {
+        generators.put(command, generator);
+    }
+
+    /**
+     * Sets how many resources a listing command returns across all of its pages.
+     * @param command the listing command, such as <code>listVirtualMachines</code>
+     * @param count the number of resources
+     */
+    public void setCount(@Nonnull String command, int count) {
+        counts.put(command, count);
+    }
+
+    /**
+     * @param millis the latency added to every request
+     */
+    public void setLatency(long millis) {
+        latency = millis;
+    }
+
+    /**
+     * @param command the command to slow down
+     * @param millis the latency added to requests for that command, on top of the general latency
+     */
+    public void setLatency(@Nonnull String command, long millis) {
+        latencies.put(command, millis);
+    }
+
+    /**
+     * @param millis how long async jobs stay pending before they complete
+     */
+    public void setJobDuration(long millis) {
+        jobDuration = millis;
+    }
+
+    /**
+     * @param command the command whose next jobs are slow
+     * @param count how many of its next jobs stay pending for the specified time instead of the general job duration
+     * @param millis how long those jobs stay pending
+     */
+    public void setSlowJobs(@Nonnull String command, int count, long millis) {
+        slowJobDurations.put(command, millis);
+        slowJobs.put(command, new AtomicInteger(count));
+    }
+
+    /**
+     * @param reported false to answer <code>deployVirtualMachine</code> with only a job ID, as older clouds do, so the
+     * virtual machine ID is only known once the job completes
+     */
+    public void setDeployedIdsReported(boolean reported) {
+        deployedIds = reported;
+    }
+
+    /**
+     * @param rate the fraction of requests, between 0 and 1, that fail with a 530 error
+     */
+    public void setErrorRate(double rate) {
+        errorRate = rate;
+    }
+
+    /**
+     * @param command the command whose next requests fail
+     * @param count how many of its next requests fail with a 530 error
+     */
+    public void setFailures(@Nonnull String command, int count) {
+        failures.put(command, new AtomicInteger(count));
+    }
+
+    /**
+     * @param rate the fraction of async jobs, between 0 and 1, that complete with an error
+     */
+    public void setJobFailureRate(double rate) {
+        jobFailureRate = rate;
+    }
+
+    /**
+     * @param limit the number of requests accepted per second before the server answers 429, or 0 for no limit
+     */
+    public void setMaxRequestsPerSecond(int limit) {
+        setMaxRequests(limit, 1000L);
+    }
+
+    /**
+     * @param limit the number of requests accepted per window before the server answers 429, or 0 for no limit
+     * @param windowMillis the length of the throttling window, which starts with its first request
+     */
+    public synchronized void setMaxRequests(int limit, long windowMillis) {
+        maxRequestsPerSecond = limit;
+        throttleWindow = windowMillis;
+        windowStart = 0L;
+        windowRequests = 0;
+    }
+
+    /**
+     * Holds the next requests for the specified commands until the given number of them are in flight together, so a
+     * test can prove that requests overlap without measuring elapsed time. A request still held after ten seconds is
+     * released and counted by {@link #getGateTimeouts()}.
+     * @param parties the number of requests that must arrive before any is answered
+     * @param commands the commands whose requests are held
+     */
+    public void setGate(int parties, @Nonnull String ... commands) {
+        gate = new CountDownLatch(parties);
+        gateTimeouts.set(0);
+        gatedCommands = new HashSet<String>(Arrays.asList(commands));
+    }
+
+    /**
+     * @return the number of gated requests released because too few requests arrived to open the gate
+     */
+    public int getGateTimeouts() {
+        return gateTimeouts.get();
+    }
+
+    /**
+     * @param command the command
+     * @return the number of signed requests received for the command
+     */
+    public int getRequestCount(@Nonnull String command) {
+        AtomicInteger count = requests.get(command);
+
+        return (count == null ? 0 : count.get());
+    }
+
+    /**
+     * @return the number of signed requests received for each command
+     */
+    public @Nonnull Map<String,Integer> getRequestCounts() {
+        Map<String,Integer> copy = new TreeMap<String, Integer>();
+
+        for( Map.Entry<String,AtomicInteger> count : requests.entrySet() ) {
+            copy.put(count.getKey(), count.getValue().get());
+        }
+        return copy;
+    }
+
+    public int getTotalRequestCount() {
+        int total = 0;
+
+        for( AtomicInteger count : requests.values() ) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    /**
+     * @return the number of requests rejected for a bad signature or throttling
+     */
+    public int getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the bytes of request query strings and bodies received
+     */
+    public long getBytesReceived() {
+        return bytesIn.get();
+    }
+
+    /**
+     * @return the bytes of response bodies sent
+     */
+    public long getBytesSent() {
+        return bytesOut.get();
+    }
+
+    public void resetCounts() {
+        requests.clear();
+        rejected.set(0);
+        bytesIn.set(0L);
+        bytesOut.set(0L);
+    }
+
+    public synchronized void start() throws IOException {
+        if( server != null ) {
+            return;
+        }
+        executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger threads = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(@Nonnull Runnable runnable) {
+                Thread thread = new Thread(runnable, THREAD_PREFIX + threads.incrementAndGet());
+
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/client/api", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                CSSimulator.this.handle(exchange);
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public synchronized void stop() {
+        if( server != null ) {
+            server.stop(0);
+            server = null;
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    public synchronized @Nonnull String getEndpoint() {
+        if( server == null ) {
+            throw new IllegalStateException("The simulator is not running");
+        }
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/client/api";
+    }
+
+    /**
+     * Connects a provider to the simulator with the simulator's own keys.
+     * @return a provider for the simulated zone
+     * @throws CloudException the provider could not connect
+     * @throws InternalException an error occurred within Dasein Cloud while connecting
+     */
+    public @Nonnull CSCloud connect() throws CloudException, InternalException {
+        return connect(API_KEY, SECRET_KEY);
+    }
+
+    /**
+     * Connects a provider to the simulator with the specified keys.
+     * @param apiKey the API key
+     * @param secretKey the secret key
+     * @return a provider for the simulated zone
+     * @throws CloudException the provider could not connect
+     * @throws InternalException an error occurred within Dasein Cloud while connecting
+     */
+    public @Nonnull CSCloud connect(@Nonnull String apiKey, @Nonnull String secretKey) throws CloudException, InternalException {
+        return connect(getEndpoint(), apiKey, secretKey);
+    }
+
+    /**
+     * Connects a provider to a local test server such as the simulator or a {@link CSReplayServer}.
+     * @param endpoint the API endpoint of the server
+     * @param apiKey the API key
+     * @param secretKey the secret key
+     * @return a provider for the simulated zone
+     * @throws CloudException the provider could not connect
+     * @throws InternalException an error occurred within Dasein Cloud while connecting
+     */
+    static public @Nonnull CSCloud connect(@Nonnull String endpoint, @Nonnull String apiKey, @Nonnull String secretKey) throws CloudException, InternalException {
+        return connect(endpoint, ACCOUNT, apiKey, secretKey);
+    }
+
+    /**
+     * Connects a provider to the simulator under a different account number. The simulator does not check account
+     * numbers, so this only changes how the provider keys its per-account caches.
+     * @param account the account number for the provider's context
+     * @return a provider for the simulated zone
+     * @throws CloudException the provider could not connect
+     * @throws InternalException an error occurred within Dasein Cloud while connecting
+     */
+    public @Nonnull CSCloud connectAccount(@Nonnull String account) throws CloudException, InternalException {
+        return connect(getEndpoint(), account, API_KEY, SECRET_KEY);
+    }
+
+    static private @Nonnull CSCloud connect(@Nonnull String endpoint, @Nonnull String account, @Nonnull String apiKey, @Nonnull String secretKey) throws CloudException, InternalException {
+        Cloud cloud = Cloud.register("Simulator", "CloudStack", endpoint, CSCloud.class);
+        ContextRequirements.Field field = new CSCloud().getContextRequirements().getConfigurableValues().get(0);
+
+        try {
+            ProviderContext ctx = cloud.createContext(account, ZONE_ID, ProviderContext.Value.parseValue(field, apiKey, secretKey));
+
+            // simulated jobs finish in milliseconds, so waiting the production poll interval only slows the tests down
+            ctx.getCustomProperties().setProperty("jobPollInterval", "100");
+            return (CSCloud)ctx.connect();
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new InternalException(e);
+        }
+    }
+
+    private void handle(@Nonnull HttpExchange exchange) throws IOException {
+        try {
+            String query = exchange.getRequestURI().getRawQuery();
+
+            if( "POST".equalsIgnoreCase(exchange.getRequestMethod()) ) {
+                query = read(exchange.getRequestBody());
+            }
+            if( query != null ) {
+                bytesIn.addAndGet(query.length());
+            }
+            // parameter names are normalized to lower case
+            Map<String,String> params = parse(query);
+            String command = params.get("command");
+
+            if( command == null ) {
+                respond(exchange, 432, "errorresponse", error(432, "No command was specified"));
+                return;
+            }
+            if( !isSigned(params) ) {
+                rejected.incrementAndGet();
+                respond(exchange, 401, command, error(401, "unable to verify user credentials and/or request signature"));
+                return;
+            }
+            if( isThrottled() ) {
+                rejected.incrementAndGet();
+                respond(exchange, 429, command, error(429, "You have exceeded the number of API requests allowed per second"));
+                return;
+            }
+            count(command);
+            hold(command);
+            pause(command);
+            AtomicInteger failing = failures.get(command);
+
+            if( (failing != null && failing.getAndDecrement() > 0) || (errorRate > 0.0 && nextDouble() < errorRate) ) {
+                respond(exchange, 530, command, error(530, "Simulated internal error"));
+                return;
+            }
+            respond(exchange, 200, command, execute(command, params));
+        }
+        catch( UnsupportedCommandException e ) {
+            respond(exchange, 432, "errorresponse", error(432, e.getMessage()));
+        }
+        catch( RuntimeException e ) {
+            respond(exchange, 530, "errorresponse", error(530, String.valueOf(e.getMessage())));
+        }
+    }
+
+    private @Nonnull String execute(@Nonnull String command, @Nonnull Map<String,String> params) {
+        if( command.equals("queryAsyncJobResult") ) {
+            return queryJob(params.get("jobid"));
+        }
+        if( command.equals("listApis") ) {
+            StringBuilder xml = new StringBuilder();
+            Set<String> names = new HashSet<String>(generators.keySet());
+
+            names.addAll(ASYNC_COMMANDS);
+            names.add("queryAsyncJobResult");
+            xml.append("<count>").append(names.size()).append("</count>");
+            for( String name : names ) {
+                xml.append("<api><name>").append(name).append("</name><isasync>").append(ASYNC_COMMANDS.contains(name)).append("</isasync></api>");
+            }
+            return xml.toString();
+        }
+        if( command.equals("listCapabilities") ) {
+            return "<capability><cloudstackversion>" + VERSION + "</cloudstackversion><securitygroupsenabled>false</securitygroupsenabled></capability>";
+        }
+        Generator generator = generators.get(command);
+
+        if( generator != null ) {
+            return list(command, generator, params);
+        }
+        if( ASYNC_COMMANDS.contains(command) ) {
+            return startJob(command, params);
+        }
+        throw new UnsupportedCommandException(command);
+    }
+
+    private @Nonnull String list(@Nonnull String command, @Nonnull Generator generator, @Nonnull Map<String,String> params) {
+        Integer total = counts.get(command);
+        int count = (total == null ? 0 : total);
+        int pageSize = DEFAULT_PAGE_SIZE, page = 1;
+
+        if( params.containsKey("pagesize") ) {
+            pageSize = Integer.parseInt(params.get("pagesize"));
+        }
+        if( params.containsKey("page") ) {
+            page = Integer.parseInt(params.get("page"));
+        }
+        String id = params.get("id");
+        StringBuilder xml = new StringBuilder();
+
+        if( id != null && !generator.scoped ) {
+            // a lookup by ID scans the synthetic set, which is fine at simulator scale
+            for( int n = 0; n < count; n++ ) {
+                Map<String,String> resource = generator.generate(n);
+
+                if( id.equals(resource.get("id")) ) {
+                    xml.append("<count>1</count>");
+                    element(xml, generator.element, resource);
+                    return xml.toString();
+                }
+            }
+            return "<count>0</count>";
+        }
+        String resourceId = params.get("resourceid");
+
+        if( resourceId != null ) {
+            int found = 0;
+
+            for( int n = 0; n < count; n++ ) {
+                Map<String,String> resource = generator.generate(n);
+
+                if( resourceId.equals(resource.get("resourceid")) ) {
+                    element(xml, generator.element, resource);
+                    found++;
+                }
+            }
+            return "<count>" + found + "</count>" + xml;
+        }
+        int start = (page - 1) * pageSize;
+        int end = Math.min(count, start + pageSize);
+
+        if( count > 0 ) {
+            xml.append("<count>").append(count).append("</count>");
+        }
+        for( int n = start; n < end; n++ ) {
+            element(xml, generator.element, generator.generate(n));
+        }
+        return xml.toString();
+    }
+
+    private @Nonnull String startJob(@Nonnull String command, @Nonnull Map<String,String> params) {
+        String jobId = UUID.randomUUID().toString();
+        String error = (jobFailureRate > 0.0 && nextDouble() < jobFailureRate ? "Simulated failure of " + command : null);
+        StringBuilder result = new StringBuilder();
+        String resourceId = params.get("id");
+
+        if( command.equals("deployVirtualMachine") ) {
+            Map<String,String> vm = new LinkedHashMap<String, String>();
+
+            resourceId = UUID.randomUUID().toString();
+            vm.put("id", resourceId);
+            vm.put("name", params.containsKey("displayname") ? params.get("displayname") : resourceId);
+            vm.put("displayname", params.containsKey("displayname") ? params.get("displayname") : resourceId);
+            vm.put("account", ACCOUNT);
+            vm.put("created", "2015-01-01T00:00:00+0000");
+            vm.put("state", "Running");
+            vm.put("zoneid", params.containsKey("zoneid") ? params.get("zoneid") : ZONE_ID);
+            vm.put("templateid", params.get("templateid"));
+            vm.put("serviceofferingid", params.get("serviceofferingid"));
+            element(result, "virtualmachine", vm);
+        }
+        else if( command.endsWith("VirtualMachine") && resourceId != null ) {
+            Map<String,String> vm = new LinkedHashMap<String, String>();
+
+            vm.put("id", resourceId);
+            vm.put("zoneid", ZONE_ID);
+            vm.put("state", command.startsWith("stop") ? "Stopped" : (command.startsWith("destroy") ? "Destroyed" : "Running"));
+            element(result, "virtualmachine", vm);
+        }
+        else {
+            result.append("<success>true</success>");
+        }
+        AtomicInteger slow = slowJobs.get(command);
+        long duration = (slow != null && slow.getAndDecrement() > 0 ? slowJobDurations.get(command) : jobDuration);
+
+        jobs.put(jobId, new Job(command, System.currentTimeMillis() + duration, error, result.toString()));
+        if( resourceId == null || (!deployedIds && command.equals("deployVirtualMachine")) ) {
+            return "<jobid>" + jobId + "</jobid>";
+        }
+        return "<jobid>" + jobId + "</jobid><id>" + resourceId + "</id>";
+    }
+
+    private @Nonnull String queryJob(@Nullable String jobId) {
+        Job job = (jobId == null ? null : jobs.get(jobId));
+
+        if( job == null ) {
+            throw new IllegalArgumentException("No such job: " + jobId);
+        }
+        StringBuilder xml = new StringBuilder();
+
+        xml.append("<jobid>").append(jobId).append("</jobid>");
+        if( System.currentTimeMillis() < job.completion ) {
+            xml.append("<jobstatus>0</jobstatus>");
+        }
+        else if( job.error != null ) {
+            xml.append("<jobstatus>2</jobstatus><jobresultcode>530</jobresultcode><jobresult><errorcode>530</errorcode><errortext>");
+            xml.append(escape(job.error)).append("</errortext></jobresult>");
+        }
+        else {
+            xml.append("<jobstatus>1</jobstatus><jobresultcode>0</jobresultcode><jobresult>").append(job.resultXml).append("</jobresult>");
+        }
+        xml.append("<cmd>").append(job.command).append("</cmd>");
+        return xml.toString();
+    }
+
+    private boolean isSigned(@Nonnull Map<String,String> params) throws UnsupportedEncodingException {
+        String signature = params.get("signature");
+
+        if( signature == null || !API_KEY.equals(params.get("apikey")) ) {
+            return false;
+        }
+        TreeMap<String,String> sorted = new TreeMap<String, String>();
+
+        for( Map.Entry<String,String> param : params.entrySet() ) {
+            if( !param.getKey().equals("signature") ) {
+                sorted.put(param.getKey(), URLEncoder.encode(param.getValue(), "UTF-8").replaceAll("\\+", "%20").toLowerCase(Locale.ENGLISH));
+            }
+        }
+        StringBuilder str = new StringBuilder();
+
+        for( Map.Entry<String,String> param : sorted.entrySet() ) {
+            if( str.length() > 0 ) {
+                str.append("&");
+            }
+            str.append(param.getKey()).append("=").append(param.getValue());
+        }
+        try {
+            Mac mac = Mac.getInstance("HmacSHA1");
+
+            mac.init(new SecretKeySpec(SECRET_KEY.getBytes(), "HmacSHA1"));
+            return signature.equals(new String(Base64.encodeBase64(mac.doFinal(str.toString().getBytes()))));
+        }
+        catch( Exception e ) {
+            return false;
+        }
+    }
+
+    private synchronized boolean isThrottled() {
+        int limit = maxRequestsPerSecond;
+
+        if( limit <= 0 ) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+
+        if( now - windowStart >= throttleWindow ) {
+            windowStart = now;
+            windowRequests = 0;
+        }
+        return (++windowRequests > limit);
+    }
+
+    private void count(@Nonnull String command) {
+        AtomicInteger count = requests.get(command);
+
+        if( count == null ) {
+            synchronized( requests ) {
+                count = requests.get(command);
+                if( count == null ) {
+                    count = new AtomicInteger(0);
+                    requests.put(command, count);
+                }
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private void hold(@Nonnull String command) {
+        CountDownLatch latch = gate;
+
+        if( latch == null || latch.getCount() == 0L || !gatedCommands.contains(command) ) {
+            return;
+        }
+        latch.countDown();
+        try {
+            if( !latch.await(10L, TimeUnit.SECONDS) ) {
+                gateTimeouts.incrementAndGet();
+            }
+        }
+        catch( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void pause(@Nonnull String command) {
+        Long extra = latencies.get(command);
+        long millis = latency + (extra == null ? 0L : extra);
+
+        if( millis > 0L ) {
+            try { Thread.sleep(millis); }
+            catch( InterruptedException ignore ) { /* ignore */ }
+        }
+    }
+
+    private synchronized double nextDouble() {
+        return random.nextDouble();
+    }
+
+    /**
+     * Renders one page of a listing exactly as the server would send it, without going through HTTP. Benchmarks and
+     * scenario tests use this to obtain fixture payloads.
+     * @param command the listing command
+     * @param page the page number, starting at 1
+     * @param pageSize the number of resources per page
+     * @return the XML response body
+     */
+    public @Nonnull String render(@Nonnull String command, int page, int pageSize) {
+        Map<String,String> params = new HashMap<String, String>();
+
+        params.put("page", String.valueOf(page));
+        params.put("pagesize", String.valueOf(pageSize));
+        return wrap(command, execute(command, params));
+    }
+
+    static private @Nonnull String wrap(@Nonnull String command, @Nonnull String content) {
+        String root = (command.equals("errorresponse") ? command : command.toLowerCase(Locale.ENGLISH) + "response");
+
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?><" + root + " cloud-stack-version=\"" + VERSION + "\">" + content + "</" + root + ">";
+    }
+
+    private void respond(@Nonnull HttpExchange exchange, int status, @Nonnull String command, @Nonnull String content) throws IOException {
+        byte[] body = wrap(command, content).getBytes("UTF-8");
+
+        exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+        bytesOut.addAndGet(body.length);
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream output = exchange.getResponseBody();
+
+        try {
+            output.write(body);
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    static private @Nonnull String error(int code, @Nonnull String message) {
+        return "<errorcode>" + code + "</errorcode><errortext>" + escape(message) + "</errortext>";
+    }
+
+    static private void element(@Nonnull StringBuilder xml, @Nonnull String name, @Nonnull Map<String,String> attributes) {
+        xml.append("<").append(name).append(">");
+        for( Map.Entry<String,String> attribute : attributes.entrySet() ) {
+            if( attribute.getValue() != null && attribute.getKey().startsWith(TAG_PREFIX) ) {
+                xml.append("<tags><key>").append(escape(attribute.getKey().substring(TAG_PREFIX.length()))).append("</key><value>").append(escape(attribute.getValue())).append("</value></tags>");
+            }
+            else if( attribute.getValue() != null ) {
+                xml.append("<").append(attribute.getKey()).append(">").append(escape(attribute.getValue())).append("</").append(attribute.getKey()).append(">");
+            }
+        }
+        xml.append("</").append(name).append(">");
+    }
+
+    static private @Nonnull String escape(@Nonnull String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+    }
+
+    static @Nonnull Map<String,String> parse(@Nullable String query) throws UnsupportedEncodingException {
+        Map<String,String> params = new LinkedHashMap<String, String>();
+
+        if( query == null ) {
+            return params;
+        }
+        for( String pair : query.split("&") ) {
+            if( pair.length() < 1 ) {
+                continue;
+            }
+            int idx = pair.indexOf('=');
+            String key = URLDecoder.decode(idx < 0 ? pair : pair.substring(0, idx), "UTF-8").toLowerCase(Locale.ENGLISH);
+            String value = (idx < 0 ? "" : URLDecoder.decode(pair.substring(idx + 1), "UTF-8"));
+
+            // CloudStack parameter names are case-insensitive and the first occurrence wins, as in the client signer
+            if( !params.containsKey(key) ) {
+                params.put(key, value);
+            }
+        }
+        return params;
+    }
+
+    static @Nonnull String read(@Nonnull InputStream input) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+
+        try {
+            while( (count = input.read(buffer)) != -1 ) {
+                bytes.write(buffer, 0, count);
+            }
+        }
+        finally {
+            input.close();
+        }
+        return bytes.toString("UTF-8");
+    }
+
+    static private class UnsupportedCommandException extends RuntimeException {
+        UnsupportedCommandException(@Nonnull String command) {
+            super("The given command does not exist or it is not available for user: " + command);
+        }
+    }
+}
@@ -0,0 +1,923 @@
+/**
+ * Copyright (C) 2009-2015 Dell, Inc.
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.cloudstack.sim;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nonnull;
+import javax.management.ObjectName;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.Tag;
+import org.dasein.cloud.cloudstack.CSBulkResult;
+import org.dasein.cloud.cloudstack.CSCloud;
+import org.dasein.cloud.cloudstack.CSJobTracker;
+import org.dasein.cloud.cloudstack.CSLaunchResult;
+import org.dasein.cloud.cloudstack.CSMethod;
+import org.dasein.cloud.cloudstack.CSMetrics;
+import org.dasein.cloud.cloudstack.CSRecorder;
+import org.dasein.cloud.cloudstack.CSRequestEvent;
+import org.dasein.cloud.cloudstack.CSRequestListener;
+import org.dasein.cloud.cloudstack.CSTagIndex;
+import org.dasein.cloud.cloudstack.CSTagResult;
+import org.dasein.cloud.cloudstack.CSTaskGroup;
+import org.dasein.cloud.cloudstack.CSVersionRegistry;
+import org.dasein.cloud.cloudstack.CSZoneCatalog;
+import org.dasein.cloud.cloudstack.Param;
+import org.dasein.cloud.compute.ImageFilterOptions;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.compute.MachineImageSupport;
+import org.dasein.cloud.compute.Snapshot;
+import org.dasein.cloud.compute.VMLaunchOptions;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.Volume;
+import org.dasein.cloud.network.IPVersion;
+import org.dasein.cloud.network.IpAddress;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.w3c.dom.Document;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Exercises the provider against the in-process {@link CSSimulator}, so these tests need no live cloud.
+ */
+public class CSSimulatorTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private CSSimulator simulator;
+    private CSCloud     provider;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = new CSSimulator();
+        simulator.start();
+        provider = simulator.connect();
+    }
+
+    @After
+    public void tearDown() {
+        if( provider != null ) {
+            provider.close();
+        }
+        simulator.stop();
+    }
+
+    @Test
+    public void listsEveryPageOfALargeListing() throws Exception {
+        simulator.setCount("listVirtualMachines", 1200);
+
+        int count = 0;
+
+        for( VirtualMachine vm : provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
+            assertNotNull(vm.getProviderVirtualMachineId());
+            count++;
+        }
+        assertEquals(1200, count);
+        assertEquals(3, simulator.getRequestCount("listVirtualMachines"));
+    }
+
+    @Test
+    public void rejectsBadSignatures() throws Exception {
+        CSCloud impostor = simulator.connect(CSSimulator.API_KEY, "wrong-secret");
+
+        try {
+            new CSMethod(impostor).get("listZones");
+            fail("A request signed with the wrong secret was accepted");
+        }
+        catch( CloudException expected ) {
+            assertEquals(1, simulator.getRejectedCount());
+        }
+        finally {
+            impostor.close();
+        }
+    }
+
+    @Test
+    public void checksSubscriptionWithOwnCredentials() throws Exception {
+        assertTrue(provider.getComputeServices().getVirtualMachineSupport().isSubscribed());
+
+        // same account, so the zone catalog loaded above is shared with the impostor
+        CSCloud impostor = simulator.connect(CSSimulator.API_KEY, "wrong-secret");
+
+        try {
+            assertFalse(impostor.getComputeServices().getVirtualMachineSupport().isSubscribed());
+            assertFalse(impostor.getComputeServices().getImageSupport().isSubscribed());
+        }
+        finally {
+            impostor.close();
+        }
+    }
+
+    @Test
+    public void readsTagsOfASingleResourceWithoutASweep() throws Exception {
+        simulator.setCount("listTags", 1200);
+
+        String vmId = null;
+
+        for( VirtualMachine vm : provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
+            vmId = vm.getProviderVirtualMachineId();
+            assertEquals(vm.getName(), vm.getTag("Name"));
+        }
+        // the listing decorates every VM from one paged sweep
+        assertEquals(3, simulator.getRequestCount("listTags"));
+
+        CSTagIndex.invalidate(provider, "UserVm");
+        simulator.resetCounts();
+        assertNotNull(vmId);
+        VirtualMachine vm = provider.getComputeServices().getVirtualMachineSupport().getVirtualMachine(vmId);
+
+        assertNotNull(vm);
+        // a single VM is decorated from the tags embedded in its own element
+        assertEquals(vm.getName(), vm.getTag("Name"));
+        assertEquals(0, simulator.getRequestCount("listTags"));
+    }
+
+    @Test
+    public void acceptsSignedPosts() throws Exception {
+        StringBuilder userData = new StringBuilder();
+
+        while( userData.length() < 8192 ) {
+            userData.append("a long line of user data\n");
+        }
+        Document doc = new CSMethod(provider).get("deployVirtualMachine", new Param("zoneId", CSSimulator.ZONE_ID), new Param("userdata", userData.toString()));
+
+        assertNotNull(CSJobTracker.getJobId(doc));
+        assertEquals(1, simulator.getRequestCount("deployVirtualMachine"));
+        assertEquals(0, simulator.getRejectedCount());
+    }
+
+    @Test
+    public void reportsPerVirtualMachineOutcomes() throws Exception {
+        List<String> vmIds = new ArrayList<String>();
+
+        for( int i = 0; i < 20; i++ ) {
+            vmIds.add("vm-" + i);
+        }
+        simulator.setJobDuration(100L);
+
+        CSBulkResult result = provider.getComputeServices().getVirtualMachineSupport().stopAll(vmIds, false);
+
+        assertTrue(result.toString(), result.isSuccessful());
+        assertEquals(20, result.getOutcomes().size());
+        assertEquals(20, simulator.getRequestCount("stopVirtualMachine"));
+    }
+
+    @Test
+    public void launchesTheRestWhenSomeLaunchesFail() throws Exception {
+        simulator.setFailures("deployVirtualMachine", 1);
+
+        CSLaunchResult result = provider.getComputeServices().getVirtualMachineSupport().launchBatch(getLaunchOptions(), 3);
+
+        assertEquals(result.toString(), 2, result.getVirtualMachineIds().size());
+        assertEquals(1, result.getFailures().size());
+        assertTrue(result.getStalledJobs().isEmpty());
+        assertEquals(3, simulator.getRequestCount("deployVirtualMachine"));
+    }
+
+    @Test
+    public void returnsLaunchedVirtualMachinesWhenALaunchStalls() throws Exception {
+        provider.getContext().getCustomProperties().setProperty("launchJobTimeout", "1");
+        simulator.setDeployedIdsReported(false);
+        simulator.setSlowJobs("deployVirtualMachine", 1, 60000L);
+
+        CSLaunchResult result = provider.getComputeServices().getVirtualMachineSupport().launchBatch(getLaunchOptions(), 3);
+
+        assertEquals(result.toString(), 2, result.getVirtualMachineIds().size());
+        assertEquals(1, result.getStalledJobs().size());
+        assertTrue(result.getFailures().isEmpty());
+
+        simulator.setSlowJobs("deployVirtualMachine", 1, 60000L);
+        List<String> vmIds = new ArrayList<String>();
+
+        for( String vmId : provider.getComputeServices().getVirtualMachineSupport().launchMany(getLaunchOptions(), 3) ) {
+            vmIds.add(vmId);
+        }
+        assertEquals(2, vmIds.size());
+    }
+
+    @Test
+    public void countsTimedOutLaunchesWithKnownIdsAsLaunched() throws Exception {
+        provider.getContext().getCustomProperties().setProperty("launchJobTimeout", "1");
+        simulator.setSlowJobs("deployVirtualMachine", 3, 60000L);
+
+        CSLaunchResult result = provider.getComputeServices().getVirtualMachineSupport().launchBatch(getLaunchOptions(), 3);
+
+        assertTrue(result.toString(), result.isSuccessful());
+        assertEquals(3, result.getVirtualMachineIds().size());
+        // virtual machines CloudStack has already named are tagged even though their launch is still running
+        assertEquals(1, simulator.getRequestCount("createTags"));
+    }
+
+    @Test
+    public void splitsTagRequestsAtTheChunkLength() throws Exception {
+        // "vm-0,vm-1,vm-2" is exactly 14 characters
+        provider.getContext().getCustomProperties().setProperty("tagChunkLength", "14");
+
+        CSTagResult result = provider.createTags(getResourceIds(10), "UserVm", new Tag("Name", "chunked"));
+
+        assertTrue(result.toString(), result.isSuccessful());
+        assertEquals(Arrays.asList(3, 3, 3, 1), getChunkSizes(result));
+        assertEquals(4, simulator.getRequestCount("createTags"));
+
+        provider.getContext().getCustomProperties().setProperty("tagChunkLength", "13");
+        result = provider.createTags(getResourceIds(10), "UserVm", new Tag("Name", "chunked"));
+        assertEquals(Arrays.asList(2, 2, 2, 2, 2), getChunkSizes(result));
+
+        // an ID longer than the chunk length still goes out, on its own
+        provider.getContext().getCustomProperties().setProperty("tagChunkLength", "2");
+        result = provider.createTags(getResourceIds(3), "UserVm", new Tag("Name", "chunked"));
+        assertEquals(Arrays.asList(1, 1, 1), getChunkSizes(result));
+
+        simulator.resetCounts();
+        result = provider.createTags(new String[0], "UserVm", new Tag("Name", "chunked"));
+        assertTrue(result.getChunks().isEmpty());
+        assertEquals(0, simulator.getRequestCount("createTags"));
+    }
+
+    @Test
+    public void reportsTheTagChunksThatFail() throws Exception {
+        provider.getContext().getCustomProperties().setProperty("tagChunkLength", "14");
+        simulator.setFailures("createTags", 1);
+
+        CSTagResult result = provider.createTags(getResourceIds(9), "UserVm", new Tag("Name", "chunked"));
+
+        assertFalse(result.isSuccessful());
+        assertEquals(3, result.getChunks().size());
+        assertEquals(1, result.getFailedChunks().size());
+        assertEquals(3, result.getFailedResourceIds().size());
+        assertNotNull(result.getFailedChunks().get(0).getError());
+        try {
+            result.checkSuccess();
+            fail("A failed chunk should fail the operation");
+        }
+        catch( CloudException expected ) {
+            assertTrue(expected.getMessage(), expected.getMessage().contains("1 of 3 chunk(s)"));
+        }
+    }
+
+    @Test
+    public void neverRemovesEveryTagWhenNoTagHasAValue() throws Exception {
+        CSTagResult result = provider.removeTags(getResourceIds(3), "UserVm", new Tag("Name", ""), new Tag("Owner", null));
+
+        assertFalse(result.isSuccessful());
+        assertEquals(3, result.getFailedResourceIds().size());
+        assertEquals(0, simulator.getRequestCount("deleteTags"));
+
+        // with no tags at all, removing every tag is what the caller asked for
+        result = provider.removeTags(getResourceIds(3), "UserVm");
+        assertTrue(result.toString(), result.isSuccessful());
+        assertEquals(1, simulator.getRequestCount("deleteTags"));
+    }
+
+    private @Nonnull String[] getResourceIds(int count) {
+        String[] ids = new String[count];
+
+        for( int i = 0; i < count; i++ ) {
+            ids[i] = "vm-" + i;
+        }
+        return ids;
+    }
+
+    private @Nonnull List<Integer> getChunkSizes(@Nonnull CSTagResult result) {
+        List<Integer> sizes = new ArrayList<Integer>();
+
+        for( CSTagResult.Chunk chunk : result.getChunks() ) {
+            sizes.add(chunk.getResourceIds().size());
+        }
+        return sizes;
+    }
+
+    private @Nonnull VMLaunchOptions getLaunchOptions() throws Exception {
+        String productId = provider.getComputeServices().getVirtualMachineSupport().searchProducts(0, -1, null, null).iterator().next().getProviderProductId();
+
+        return VMLaunchOptions.getInstance(productId, "template-0", "launch", "Launch test").inVlan(null, CSSimulator.ZONE_ID, "network-0");
+    }
+
+    @Test
+    public void runsTaskGroupLookupsInlineWhenTheExecutorIsSaturated() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        int threads = ((ThreadPoolExecutor)provider.getTaskExecutor()).getMaximumPoolSize();
+
+        try {
+            for( int i = 0; i < threads; i++ ) {
+                provider.submitTask(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        return release.await(60L, TimeUnit.SECONDS);
+                    }
+                });
+            }
+            CSTaskGroup lookups = new CSTaskGroup(provider, 5000L);
+            Future<String> lookup = lookups.fork(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return Thread.currentThread().getName();
+                }
+            });
+
+            lookups.join();
+            assertEquals(Thread.currentThread().getName(), lookups.get(lookup));
+        }
+        finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void cancelsTaskGroupLookupsAtTheDeadline() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        CSTaskGroup lookups = new CSTaskGroup(provider, 500L);
+        Future<Boolean> lookup = lookups.fork(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                started.countDown();
+                try {
+                    return new CountDownLatch(1).await(60L, TimeUnit.SECONDS);
+                }
+                catch( InterruptedException e ) {
+                    interrupted.countDown();
+                    throw e;
+                }
+            }
+        });
+
+        assertTrue(started.await(5L, TimeUnit.SECONDS));
+        try {
+            lookups.join();
+            fail("The group should have timed out");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+        assertTrue(lookup.isCancelled());
+        assertTrue(interrupted.await(5L, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void cancelsTaskGroupLookupsWhenOneFails() throws Exception {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        CSTaskGroup lookups = new CSTaskGroup(provider, 60000L);
+        Future<Boolean> slow = lookups.fork(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                started.countDown();
+                try {
+                    return new CountDownLatch(1).await(60L, TimeUnit.SECONDS);
+                }
+                catch( InterruptedException e ) {
+                    interrupted.countDown();
+                    throw e;
+                }
+            }
+        });
+
+        assertTrue(started.await(5L, TimeUnit.SECONDS));
+        lookups.fork(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                throw new InternalException("Simulated lookup failure");
+            }
+        });
+        try {
+            lookups.join();
+            fail("The failed lookup should have been thrown");
+        }
+        catch( InternalException expected ) {
+            assertEquals("Simulated lookup failure", expected.getMessage());
+        }
+        assertTrue(slow.isCancelled());
+        assertTrue(interrupted.await(5L, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void keepsPollingJobsThroughPollErrors() throws Exception {
+        simulator.setJobDuration(300L);
+        simulator.setFailures("queryAsyncJobResult", 2);
+
+        CSJobTracker tracker = new CSJobTracker(provider);
+
+        for( int i = 0; i < 2; i++ ) {
+            Document doc = new CSMethod(provider).get("stopVirtualMachine", new Param("id", "vm-" + i));
+
+            tracker.track(CSJobTracker.getJobId(doc), "stop vm-" + i);
+        }
+        Map<String,CSJobTracker.Outcome> outcomes = tracker.waitForAll(60000L);
+
+        assertEquals(2, outcomes.size());
+        for( CSJobTracker.Outcome outcome : outcomes.values() ) {
+            assertTrue(outcome.toString(), outcome.isSuccessful());
+        }
+    }
+
+    @Test
+    public void reportsLastPollErrorForJobsThatTimeOut() throws Exception {
+        simulator.setJobDuration(60000L);
+        simulator.setFailures("queryAsyncJobResult", Integer.MAX_VALUE);
+
+        CSJobTracker tracker = new CSJobTracker(provider);
+        Document doc = new CSMethod(provider).get("stopVirtualMachine", new Param("id", "vm-0"));
+        String jobId = CSJobTracker.getJobId(doc);
+
+        tracker.track(jobId, "stop vm-0");
+        CSJobTracker.Outcome outcome = tracker.waitForAll(500L).get(jobId);
+
+        assertNotNull(outcome);
+        assertTrue(outcome.isTimedOut());
+        assertNotNull(outcome.getError().getCause());
+        assertTrue(simulator.getRequestCount("queryAsyncJobResult") > 1);
+    }
+
+    @Test
+    public void stopsWaitingForJobsWhenInterrupted() throws Exception {
+        simulator.setJobDuration(60000L);
+
+        CSJobTracker tracker = new CSJobTracker(provider);
+        Document doc = new CSMethod(provider).get("stopVirtualMachine", new Param("id", "vm-0"));
+        String jobId = CSJobTracker.getJobId(doc);
+
+        tracker.track(jobId, "stop vm-0");
+        Thread.currentThread().interrupt();
+        try {
+            CSJobTracker.Outcome outcome = tracker.waitForAll(60000L).get(jobId);
+
+            assertNotNull(outcome);
+            assertTrue(outcome.isTimedOut());
+            assertTrue(Thread.currentThread().isInterrupted());
+        }
+        finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    public void recordsMetricsPerCommand() throws Exception {
+        for( int i = 0; i < 3; i++ ) {
+            new CSMethod(provider).get("listZones");
+        }
+        simulator.setErrorRate(1.0);
+        try {
+            new CSMethod(provider).get("listZones");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+        CSMetrics.Snapshot snapshot = CSMetrics.getInstance().getSnapshot(simulator.getEndpoint(), "listZones");
+
+        assertNotNull(snapshot);
+        assertTrue(snapshot.toString(), snapshot.getCalls() >= 4);
+        assertEquals(1L, (long)snapshot.getErrorsByStatus().get(530));
+        assertTrue(snapshot.getLatency().getMax() > 0L);
+        assertTrue(snapshot.getResponseSize().getP50() > 0L);
+    }
+
+    @Test
+    public void remembersFailedVersionDetectionPerAccount() throws Exception {
+        CSVersionRegistry.invalidate(simulator.getEndpoint());
+        CSZoneCatalog.invalidate(provider);
+        simulator.setErrorRate(1.0);
+
+        int attempts = -1;
+
+        for( int i = 0; i < 3; i++ ) {
+            try {
+                provider.getVersionString();
+                fail("The version was detected from a failing endpoint");
+            }
+            catch( CloudException expected ) {
+                // expected
+            }
+            if( attempts < 0 ) {
+                attempts = simulator.getRequestCount("listZones");
+                assertTrue("The version was never detected", attempts > 0);
+            }
+        }
+        assertEquals("A failed detection was retried before its entry expired", attempts, simulator.getRequestCount("listZones"));
+
+        // another account on the same endpoint does not inherit the failure
+        simulator.setErrorRate(0.0);
+        CSCloud other = simulator.connectAccount("other-account");
+
+        try {
+            assertEquals(CSSimulator.VERSION, other.getVersionString());
+        }
+        finally {
+            other.close();
+        }
+        // and its success is shared with every account
+        assertEquals(CSSimulator.VERSION, provider.getVersionString());
+    }
+
+    @Test
+    public void doesNotRememberAuthenticationFailures() throws Exception {
+        CSVersionRegistry.invalidate(simulator.getEndpoint());
+        CSZoneCatalog.invalidate(provider);
+
+        CSCloud impostor = simulator.connect(CSSimulator.API_KEY, "wrong-secret");
+
+        try {
+            impostor.getVersionString();
+            fail("The version was detected with bad credentials");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+        finally {
+            impostor.close();
+        }
+        assertEquals(CSSimulator.VERSION, provider.getVersionString());
+    }
+
+    @Test
+    public void publishesMetricsUntilUnregistered() throws Exception {
+        ObjectName name = CSMetrics.register();
+
+        assertNotNull(name);
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        CSMetrics.unregister();
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+        assertEquals(name, CSMetrics.register());
+        assertTrue(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void logsFailedCallsRedacted() throws Exception {
+        final List<String> messages = new ArrayList<String>();
+        Logger slow = Logger.getLogger("dasein.cloud.cloudstack.slow.CSMethod");
+        AppenderSkeleton appender = new AppenderSkeleton() {
+            @Override
+            protected void append(LoggingEvent event) {
+                messages.add(event.getRenderedMessage());
+            }
+
+            @Override
+            public void close() { }
+
+            @Override
+            public boolean requiresLayout() {
+                return false;
+            }
+        };
+        Level level = slow.getLevel();
+
+        slow.setLevel(Level.WARN);
+        slow.addAppender(appender);
+        try {
+            simulator.setErrorRate(1.0);
+            try {
+                new CSMethod(provider).get("listZones", new Param("name", "zone-0"));
+                fail("No error was injected");
+            }
+            catch( CloudException expected ) {
+                // expected
+            }
+            assertEquals("The log is opt-in", 0, messages.size());
+
+            provider.getContext().getCustomProperties().setProperty("slowCallLog", "true");
+            try {
+                new CSMethod(provider).get("listZones", new Param("name", "zone-1"));
+                fail("No error was injected");
+            }
+            catch( CloudException expected ) {
+                // expected
+            }
+        }
+        finally {
+            slow.removeAppender(appender);
+            slow.setLevel(level);
+        }
+        assertEquals(messages.toString(), 1, messages.size());
+        String message = messages.get(0);
+
+        assertTrue(message, message.startsWith("Failed call: GET "));
+        assertTrue(message, message.contains("-> 530"));
+        assertTrue(message, message.contains("apiKey=[redacted]"));
+        assertTrue(message, message.contains("name=zone-1"));
+        assertFalse(message, message.contains(CSSimulator.API_KEY));
+    }
+
+    @Test
+    public void notifiesRequestListeners() throws Exception {
+        final List<String> stages = new ArrayList<String>();
+        CSRequestListener listener = new CSRequestListener.Adapter() {
+            @Override
+            public void beforeSign(@Nonnull CSRequestEvent event) {
+                stages.add("sign " + event.getCommand());
+            }
+
+            @Override
+            public void beforeSend(@Nonnull CSRequestEvent event) {
+                event.addHeader("X-Correlation-Id", event.getCorrelationId());
+                stages.add("send");
+            }
+
+            @Override
+            public void afterHeaders(@Nonnull CSRequestEvent event) {
+                stages.add("headers " + event.getStatus());
+            }
+
+            @Override
+            public void afterParse(@Nonnull CSRequestEvent event) {
+                stages.add("parse " + (event.getDocument() != null));
+            }
+
+            @Override
+            public void onError(@Nonnull CSRequestEvent event, @Nonnull Exception error) {
+                stages.add("error " + event.getStatus());
+            }
+        };
+
+        CSMethod.addRequestListener(listener);
+        try {
+            new CSMethod(provider).get("listZones");
+            simulator.setErrorRate(1.0);
+            try {
+                new CSMethod(provider).get("listZones");
+                fail("No error was injected");
+            }
+            catch( CloudException expected ) {
+                // expected
+            }
+        }
+        finally {
+            CSMethod.removeRequestListener(listener);
+        }
+        assertEquals(Arrays.asList("sign listZones", "send", "headers 200", "parse true", "sign listZones", "send", "headers 530", "error 530"), stages);
+    }
+
+    @Test
+    public void replaysRecordedTraffic() throws Exception {
+        File directory = folder.newFolder("recording");
+        CSRecorder recorder = new CSRecorder(directory);
+        int recorded = 0;
+
+        simulator.setCount("listVirtualMachines", 120);
+        simulator.setLatency("listVirtualMachines", 200L);
+        CSMethod.addRequestListener(recorder);
+        try {
+            for( VirtualMachine vm : provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
+                recorded++;
+            }
+        }
+        finally {
+            CSMethod.removeRequestListener(recorder);
+        }
+        simulator.stop();
+        assertTrue(new File(directory, "listVirtualMachines.xml").exists());
+
+        CSReplayServer replay = new CSReplayServer(directory);
+
+        replay.start();
+        CSCloud replayed = replay.connect();
+
+        try {
+            int count = 0;
+
+            for( VirtualMachine vm : replayed.getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
+                count++;
+            }
+            assertEquals(recorded, count);
+            assertTrue("The recorded latency was not replayed", replay.getDelayedMillis() >= 200L);
+            assertEquals(0, replay.getMissCount());
+
+            replay.rewind();
+            replay.setLatencyScale(0.0);
+            count = 0;
+            for( VirtualMachine vm : replayed.getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
+                count++;
+            }
+            assertEquals(recorded, count);
+            assertEquals(0, replay.getMissCount());
+            assertEquals("The latency scale was not applied", 0L, replay.getDelayedMillis());
+        }
+        finally {
+            replayed.close();
+            replay.stop();
+        }
+    }
+
+    @Test
+    public void servesConcurrentThreadsFromOneProvider() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(16);
+        List<Future<Object>> catalogs = new ArrayList<Future<Object>>();
+        List<Future<Integer>> counts = new ArrayList<Future<Integer>>();
+
+        try {
+            for( int i = 0; i < 16; i++ ) {
+                catalogs.add(threads.submit(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        start.await();
+                        return provider.getApiCatalog();
+                    }
+                }));
+                counts.add(threads.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        int count = 0;
+
+                        start.await();
+                        for( VirtualMachine vm : provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
+                            count++;
+                        }
+                        return count;
+                    }
+                }));
+            }
+            start.countDown();
+            for( Future<Object> catalog : catalogs ) {
+                assertTrue("Threads got different API catalogs", catalog.get() == catalogs.get(0).get());
+            }
+            for( Future<Integer> count : counts ) {
+                assertEquals(100, count.get().intValue());
+            }
+        }
+        finally {
+            threads.shutdownNow();
+        }
+        assertTrue("The API catalog was loaded more than once", simulator.getRequestCount("listApis") <= 1);
+    }
+
+    @Test
+    public void searchesPublicImagesAcrossFiltersAndPages() throws Exception {
+        simulator.setCount("listTemplates", 1200);
+
+        MachineImageSupport support = provider.getComputeServices().getImageSupport();
+        Set<String> ids = new HashSet<String>();
+
+        for( MachineImage image : support.searchPublicImages(ImageFilterOptions.getInstance()) ) {
+            assertTrue("Image " + image.getProviderMachineImageId() + " was returned twice", ids.add(image.getProviderMachineImageId()));
+        }
+        // every third template is public; featured and community each take three pages
+        assertEquals(400, ids.size());
+        assertEquals(6, simulator.getRequestCount("listTemplates"));
+
+        int count = 0;
+
+        for( MachineImage image : support.searchPublicImages(ImageFilterOptions.getInstance()) ) {
+            count++;
+        }
+        assertEquals(400, count);
+        assertEquals("The second search did not use the shared list", 6, simulator.getRequestCount("listTemplates"));
+    }
+
+    @Test
+    public void keepsPublicImageListsPerFilterSet() throws Exception {
+        simulator.setCount("listTemplates", 1200);
+
+        MachineImageSupport support = provider.getComputeServices().getImageSupport();
+
+        for( MachineImage image : support.searchPublicImages(ImageFilterOptions.getInstance()) ) {
+            image.setTag("changed", "true");
+        }
+        assertEquals(6, simulator.getRequestCount("listTemplates"));
+        for( MachineImage image : support.searchPublicImages(ImageFilterOptions.getInstance()) ) {
+            assertEquals("A change to a returned image reached the shared list", null, image.getTag("changed"));
+        }
+
+        // a context with other filters must not be answered from the list of the default filters
+        provider.getContext().getCustomProperties().setProperty("publicImageFilters", "featured");
+        int count = 0;
+
+        for( MachineImage image : support.searchPublicImages(ImageFilterOptions.getInstance()) ) {
+            count++;
+        }
+        assertEquals(400, count);
+        assertEquals(9, simulator.getRequestCount("listTemplates"));
+    }
+
+    @Test
+    public void sharesPublicImageSearchInFlight() throws Exception {
+        simulator.setCount("listTemplates", 1200);
+        simulator.setLatency("listTemplates", 300L);
+
+        final MachineImageSupport support = provider.getComputeServices().getImageSupport();
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        List<Future<Integer>> searches = new ArrayList<Future<Integer>>();
+
+        try {
+            for( int i=0; i<2; i++ ) {
+                searches.add(pool.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        start.await();
+                        Iterable<MachineImage> images = support.searchPublicImages(ImageFilterOptions.getInstance());
+                        int first = 0, second = 0;
+
+                        for( MachineImage image : images ) {
+                            first++;
+                        }
+                        for( MachineImage image : images ) {
+                            second++;
+                        }
+                        assertEquals("The result could not be iterated again", first, second);
+                        return first;
+                    }
+                }));
+            }
+            start.countDown();
+            for( Future<Integer> search : searches ) {
+                assertEquals(400, search.get().intValue());
+            }
+        }
+        finally {
+            pool.shutdownNow();
+        }
+        assertEquals("The concurrent searches did not share one listing", 6, simulator.getRequestCount("listTemplates"));
+    }
+
+    @Test
+    public void runsListingsConcurrently() throws Exception {
+        // each listing is held until all four are in flight, which a sequential implementation never reaches
+        simulator.setGate(4, "listVirtualMachines", "listVolumes", "listSnapshots", "listPublicIpAddresses");
+
+        Future<Iterable<VirtualMachine>> vms = provider.getComputeServices().getVirtualMachineSupport().listVirtualMachinesConcurrently();
+        Future<Iterable<Volume>> volumes = provider.getComputeServices().getVolumeSupport().listVolumesConcurrently();
+        Future<Iterable<Snapshot>> snapshots = provider.getComputeServices().getSnapshotSupport().listSnapshotsConcurrently();
+        Future<Iterable<IpAddress>> addresses = provider.getNetworkServices().getIpAddressSupport().listIpPoolConcurrently(IPVersion.IPV4, false);
+
+        int count = 0;
+
+        for( VirtualMachine vm : vms.get() ) {
+            count++;
+        }
+        assertEquals(100, count);
+        assertNotNull(volumes.get());
+        assertNotNull(snapshots.get());
+        assertNotNull(addresses.get());
+        assertEquals("The listings did not run concurrently", 0, simulator.getGateTimeouts());
+    }
+
+    @Test
+    public void throttlesRequests() throws Exception {
+        // a window far longer than the test, so the second request cannot fall into a fresh one
+        simulator.setMaxRequests(1, 60000L);
+        new CSMethod(provider).get("listZones");
+        try {
+            new CSMethod(provider).get("listZones");
+            fail("The second request within the window was not throttled");
+        }
+        catch( CloudException expected ) {
+            assertEquals(1, simulator.getRejectedCount());
+        }
+    }
+
+    @Test
+    public void injectsErrors() throws Exception {
+        simulator.setErrorRate(1.0);
+        try {
+            new CSMethod(provider).get("listZones");
+            fail("No error was injected");
+        }
+        catch( CloudException expected ) {
+            // expected
+        }
+    }
+}